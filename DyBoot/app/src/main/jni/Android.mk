@@ -8,10 +8,10 @@ include $(CLEAR_VARS)
 #LOCAL_SRC_FILES :=	su.c
 
 LOCAL_MODULE :=	dyserver
-LOCAL_SRC_FILES	:=	dyserver.c
+LOCAL_SRC_FILES	:=	dyserver.c bootanim_prepare.c
 #LOCAL_MODULE :=	cdemo
 #LOCAL_SRC_FILES	:=	cdemo.c
-LOCAL_LDLIBS += -llog
+LOCAL_LDLIBS += -llog -lz
 
 #LOCAL_LDFLAGS := -llog
 # 引用系统库
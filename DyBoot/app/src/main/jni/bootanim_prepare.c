@@ -0,0 +1,607 @@
+#include <errno.h>
+#include <fcntl.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <sys/mman.h>
+#include <sys/stat.h>
+#include <unistd.h>
+#include <zlib.h>
+
+#include <android/log.h>
+#define clogd(...) __android_log_print(ANDROID_LOG_INFO, "ccsBootAnimation", __VA_ARGS__)
+
+#include "bootanim_prepare.h"
+
+#define ZIP_EOCD_SIG        0x06054b50
+#define ZIP_CDIR_SIG        0x02014b50
+#define ZIP_LOCAL_SIG       0x04034b50
+#define ZIP_EOCD_LEN        22
+#define ZIP_CDIR_LEN        46
+#define ZIP_LOCAL_LEN       30
+#define ZIP_MAX_COMMENT     0xffff
+
+#define MAX_PARTS           32
+#define DESC_LINE_MAX       256
+
+struct zip_entry {
+    char name[BOOTANIM_CACHE_NAME_MAX];
+    uint16_t method;
+    uint32_t size;
+    size_t data_offset;
+};
+
+struct zip_archive {
+    const uint8_t *base;
+    size_t length;
+    struct zip_entry *entries;
+    int count;
+};
+
+struct anim_part {
+    char path[BOOTANIM_CACHE_NAME_MAX];
+    int has_trim;
+    int frames;
+};
+
+struct anim_desc {
+    int width;
+    int height;
+    int fps;
+    struct anim_part parts[MAX_PARTS];
+    int part_count;
+};
+
+static uint16_t rd16(const uint8_t *p) {
+    return (uint16_t) (p[0] | (p[1] << 8));
+}
+
+static uint32_t rd32(const uint8_t *p) {
+    return (uint32_t) p[0] | ((uint32_t) p[1] << 8) | ((uint32_t) p[2] << 16)
+            | ((uint32_t) p[3] << 24);
+}
+
+static uint32_t rd32be(const uint8_t *p) {
+    return ((uint32_t) p[0] << 24) | ((uint32_t) p[1] << 16) | ((uint32_t) p[2] << 8)
+            | (uint32_t) p[3];
+}
+
+static void zip_close(struct zip_archive *zip) {
+    free(zip->entries);
+    if (zip->base != NULL) {
+        munmap((void *) zip->base, zip->length);
+    }
+    memset(zip, 0, sizeof(*zip));
+}
+
+static int zip_open(const char *path, struct zip_archive *zip, char *err, size_t err_len) {
+    struct stat st;
+    const uint8_t *eocd = NULL;
+    size_t cdir_offset, pos;
+    int fd, i;
+
+    memset(zip, 0, sizeof(*zip));
+    fd = open(path, O_RDONLY | O_CLOEXEC);
+    if (fd < 0) {
+        snprintf(err, err_len, "open %s: %s", path, strerror(errno));
+        return -1;
+    }
+    if (fstat(fd, &st) < 0 || st.st_size < ZIP_EOCD_LEN) {
+        snprintf(err, err_len, "%s is not a zip", path);
+        close(fd);
+        return -1;
+    }
+    zip->length = (size_t) st.st_size;
+    zip->base = mmap(NULL, zip->length, PROT_READ, MAP_PRIVATE, fd, 0);
+    close(fd);
+    if (zip->base == MAP_FAILED) {
+        zip->base = NULL;
+        snprintf(err, err_len, "mmap %s: %s", path, strerror(errno));
+        return -1;
+    }
+
+    // The end of central directory record sits behind an optional comment.
+    for (pos = zip->length - ZIP_EOCD_LEN; ; pos--) {
+        if (rd32(zip->base + pos) == ZIP_EOCD_SIG) {
+            eocd = zip->base + pos;
+            break;
+        }
+        if (pos == 0 || zip->length - pos > ZIP_EOCD_LEN + ZIP_MAX_COMMENT) {
+            break;
+        }
+    }
+    if (eocd == NULL) {
+        snprintf(err, err_len, "missing end of central directory");
+        zip_close(zip);
+        return -1;
+    }
+
+    zip->count = rd16(eocd + 10);
+    cdir_offset = rd32(eocd + 16);
+    zip->entries = calloc(zip->count > 0 ? zip->count : 1, sizeof(struct zip_entry));
+    if (zip->entries == NULL) {
+        snprintf(err, err_len, "out of memory");
+        zip_close(zip);
+        return -1;
+    }
+
+    pos = cdir_offset;
+    for (i = 0; i < zip->count; i++) {
+        struct zip_entry *entry = &zip->entries[i];
+        const uint8_t *cdir = zip->base + pos;
+        const uint8_t *local;
+        size_t name_len, local_offset;
+
+        if (pos + ZIP_CDIR_LEN > zip->length || rd32(cdir) != ZIP_CDIR_SIG) {
+            snprintf(err, err_len, "corrupt central directory at entry %d", i);
+            zip_close(zip);
+            return -1;
+        }
+        name_len = rd16(cdir + 28);
+        if (name_len >= BOOTANIM_CACHE_NAME_MAX || pos + ZIP_CDIR_LEN + name_len > zip->length) {
+            snprintf(err, err_len, "entry %d name too long", i);
+            zip_close(zip);
+            return -1;
+        }
+        memcpy(entry->name, cdir + ZIP_CDIR_LEN, name_len);
+        entry->name[name_len] = '\0';
+        entry->method = rd16(cdir + 10);
+        entry->size = rd32(cdir + 20);
+
+        local_offset = rd32(cdir + 42);
+        local = zip->base + local_offset;
+        if (local_offset + ZIP_LOCAL_LEN > zip->length || rd32(local) != ZIP_LOCAL_SIG) {
+            snprintf(err, err_len, "corrupt local header for %s", entry->name);
+            zip_close(zip);
+            return -1;
+        }
+        entry->data_offset = local_offset + ZIP_LOCAL_LEN + rd16(local + 26) + rd16(local + 28);
+        if (entry->data_offset + entry->size > zip->length) {
+            snprintf(err, err_len, "%s is truncated", entry->name);
+            zip_close(zip);
+            return -1;
+        }
+
+        pos += ZIP_CDIR_LEN + name_len + rd16(cdir + 30) + rd16(cdir + 32);
+    }
+    return 0;
+}
+
+static const struct zip_entry *zip_find(const struct zip_archive *zip, const char *name) {
+    int i;
+    for (i = 0; i < zip->count; i++) {
+        if (strcmp(zip->entries[i].name, name) == 0) {
+            return &zip->entries[i];
+        }
+    }
+    return NULL;
+}
+
+/* Same grammar as BootAnimation::parseAnimationDesc. */
+static int parse_desc(const struct zip_archive *zip, struct anim_desc *desc,
+        char *err, size_t err_len) {
+    const struct zip_entry *entry = zip_find(zip, "desc.txt");
+    const char *s, *end;
+
+    memset(desc, 0, sizeof(*desc));
+    if (entry == NULL) {
+        snprintf(err, err_len, "desc.txt not found");
+        return -1;
+    }
+    s = (const char *) zip->base + entry->data_offset;
+    end = s + entry->size;
+    while (s < end) {
+        const char *endl = memchr(s, '\n', end - s);
+        char line[DESC_LINE_MAX];
+        char path[BOOTANIM_CACHE_NAME_MAX];
+        char type;
+        int count, pause;
+        size_t len;
+
+        if (endl == NULL) {
+            // The player ignores a last line without a newline, so do we.
+            break;
+        }
+        len = endl - s;
+        if (len >= sizeof(line)) {
+            len = sizeof(line) - 1;
+        }
+        memcpy(line, s, len);
+        line[len] = '\0';
+        s = endl + 1;
+
+        if (sscanf(line, "%d %d %d", &desc->width, &desc->height, &desc->fps) == 3) {
+            continue;
+        }
+        if (sscanf(line, " %c %d %d %63s", &type, &count, &pause, path) == 4) {
+            if (desc->part_count == MAX_PARTS) {
+                snprintf(err, err_len, "more than %d parts", MAX_PARTS);
+                return -1;
+            }
+            strcpy(desc->parts[desc->part_count++].path, path);
+        }
+    }
+    if (desc->width <= 0 || desc->height <= 0 || desc->fps <= 0) {
+        snprintf(err, err_len, "desc.txt has no valid \"width height fps\" line");
+        return -1;
+    }
+    if (desc->part_count == 0) {
+        snprintf(err, err_len, "desc.txt declares no parts");
+        return -1;
+    }
+    return 0;
+}
+
+/*
+ * Maps an entry to the part that plays it, the way BootAnimation::preloadZip
+ * does: the entry's directory must equal the part path. Returns NULL for
+ * entries that are not frames (directories, desc.txt, audio, trim data).
+ */
+static struct anim_part *frame_part(struct anim_desc *desc, const char *name, int *is_trim) {
+    const char *slash = strrchr(name, '/');
+    const char *leaf = slash != NULL ? slash + 1 : name;
+    size_t dir_len = slash != NULL ? (size_t) (slash - name) : 0;
+    int i;
+
+    *is_trim = 0;
+    if (*leaf == '\0' || strcmp(leaf, "audio.wav") == 0) {
+        return NULL;
+    }
+    for (i = 0; i < desc->part_count; i++) {
+        struct anim_part *part = &desc->parts[i];
+        if (strlen(part->path) == dir_len && strncmp(part->path, name, dir_len) == 0) {
+            *is_trim = strcmp(leaf, "trim.txt") == 0;
+            return part;
+        }
+    }
+    return NULL;
+}
+
+static int png_size(const uint8_t *data, size_t len, uint32_t *width, uint32_t *height) {
+    static const uint8_t sig[8] = { 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' };
+    if (len < 33 || memcmp(data, sig, sizeof(sig)) != 0 || memcmp(data + 12, "IHDR", 4) != 0) {
+        return -1;
+    }
+    *width = rd32be(data + 16);
+    *height = rd32be(data + 20);
+    return 0;
+}
+
+static int validate_zip(struct zip_archive *zip, struct anim_desc *desc,
+        char *err, size_t err_len) {
+    int i;
+
+    for (i = 0; i < zip->count; i++) {
+        const struct zip_entry *entry = &zip->entries[i];
+        if (entry->method != 0) {
+            snprintf(err, err_len, "%s is compressed; must be only stored", entry->name);
+            return -1;
+        }
+    }
+    if (parse_desc(zip, desc, err, err_len) < 0) {
+        return -1;
+    }
+    for (i = 0; i < zip->count; i++) {
+        const struct zip_entry *entry = &zip->entries[i];
+        struct anim_part *part;
+        int is_trim;
+
+        part = frame_part(desc, entry->name, &is_trim);
+        if (part == NULL) {
+            continue;
+        }
+        if (is_trim) {
+            part->has_trim = 1;
+            continue;
+        }
+        part->frames++;
+    }
+    for (i = 0; i < zip->count; i++) {
+        const struct zip_entry *entry = &zip->entries[i];
+        struct anim_part *part;
+        uint32_t w, h;
+        int is_trim;
+
+        part = frame_part(desc, entry->name, &is_trim);
+        if (part == NULL || is_trim) {
+            continue;
+        }
+        if (png_size(zip->base + entry->data_offset, entry->size, &w, &h) < 0) {
+            snprintf(err, err_len, "%s is not a png", entry->name);
+            return -1;
+        }
+        // Trimmed frames are cropped, untrimmed ones fill the animation area.
+        if (part->has_trim ? (w > (uint32_t) desc->width || h > (uint32_t) desc->height)
+                : (w != (uint32_t) desc->width || h != (uint32_t) desc->height)) {
+            snprintf(err, err_len, "%s is %ux%u, desc.txt says %dx%d",
+                    entry->name, w, h, desc->width, desc->height);
+            return -1;
+        }
+    }
+    for (i = 0; i < desc->part_count; i++) {
+        if (desc->parts[i].frames == 0) {
+            snprintf(err, err_len, "part %s has no frames", desc->parts[i].path);
+            return -1;
+        }
+    }
+    return 0;
+}
+
+int bootanim_validate(const char *zip_path, char *err, size_t err_len) {
+    struct zip_archive zip;
+    struct anim_desc desc;
+    int ret;
+
+    if (zip_open(zip_path, &zip, err, err_len) < 0) {
+        return -1;
+    }
+    ret = validate_zip(&zip, &desc, err, err_len);
+    zip_close(&zip);
+    return ret;
+}
+
+static uint8_t paeth(uint8_t a, uint8_t b, uint8_t c) {
+    int p = a + b - c;
+    int pa = abs(p - a);
+    int pb = abs(p - b);
+    int pc = abs(p - c);
+    if (pa <= pb && pa <= pc) {
+        return a;
+    }
+    return pb <= pc ? b : c;
+}
+
+/*
+ * Minimal PNG decoder producing premultiplied RGBA8888, matching what Skia
+ * hands to glTexImage2D in BootAnimation::initTexture. Only 8-bit,
+ * non-interlaced images are handled; anything else returns -1 and the
+ * caller skips the cache so the player keeps decoding PNGs itself.
+ */
+static int png_decode(const uint8_t *data, size_t len, uint8_t *out) {
+    uint8_t palette[256][4];
+    uint8_t *idat = NULL, *raw = NULL;
+    size_t idat_len = 0, pos = 8;
+    uint32_t width, height, x, y;
+    int depth = 0, color = 0, interlace = 0, channels, i;
+    size_t stride;
+    uLongf raw_len;
+    int ret = -1;
+
+    if (png_size(data, len, &width, &height) < 0) {
+        return -1;
+    }
+    for (i = 0; i < 256; i++) {
+        palette[i][0] = palette[i][1] = palette[i][2] = 0;
+        palette[i][3] = 0xff;
+    }
+    while (pos + 12 <= len) {
+        uint32_t chunk_len = rd32be(data + pos);
+        const uint8_t *type = data + pos + 4;
+        const uint8_t *body = data + pos + 8;
+
+        if (chunk_len > len - pos - 12) {
+            goto out;
+        }
+        if (memcmp(type, "IHDR", 4) == 0) {
+            depth = body[8];
+            color = body[9];
+            interlace = body[12];
+        } else if (memcmp(type, "PLTE", 4) == 0) {
+            for (i = 0; i < (int) (chunk_len / 3) && i < 256; i++) {
+                palette[i][0] = body[i * 3];
+                palette[i][1] = body[i * 3 + 1];
+                palette[i][2] = body[i * 3 + 2];
+            }
+        } else if (memcmp(type, "tRNS", 4) == 0 && color == 3) {
+            for (i = 0; i < (int) chunk_len && i < 256; i++) {
+                palette[i][3] = body[i];
+            }
+        } else if (memcmp(type, "IDAT", 4) == 0) {
+            uint8_t *grown = realloc(idat, idat_len + chunk_len);
+            if (grown == NULL) {
+                goto out;
+            }
+            idat = grown;
+            memcpy(idat + idat_len, body, chunk_len);
+            idat_len += chunk_len;
+        } else if (memcmp(type, "IEND", 4) == 0) {
+            break;
+        }
+        pos += chunk_len + 12;
+    }
+
+    switch (color) {
+        case 0: channels = 1; break;    // gray
+        case 2: channels = 3; break;    // rgb
+        case 3: channels = 1; break;    // palette
+        case 4: channels = 2; break;    // gray + alpha
+        case 6: channels = 4; break;    // rgba
+        default: goto out;
+    }
+    if (depth != 8 || interlace != 0 || idat == NULL) {
+        goto out;
+    }
+
+    stride = (size_t) width * channels;
+    raw_len = (uLongf) ((stride + 1) * height);
+    raw = malloc(raw_len);
+    if (raw == NULL || uncompress(raw, &raw_len, idat, idat_len) != Z_OK
+            || raw_len != (stride + 1) * height) {
+        goto out;
+    }
+
+    for (y = 0; y < height; y++) {
+        uint8_t *line = raw + y * (stride + 1);
+        uint8_t *cur = line + 1;
+        const uint8_t *prev = y > 0 ? raw + (y - 1) * (stride + 1) + 1 : NULL;
+        uint8_t *dst = out + (size_t) y * width * 4;
+        size_t k;
+
+        for (k = 0; k < stride; k++) {
+            uint8_t a = k >= (size_t) channels ? cur[k - channels] : 0;
+            uint8_t b = prev != NULL ? prev[k] : 0;
+            uint8_t c = prev != NULL && k >= (size_t) channels ? prev[k - channels] : 0;
+            switch (line[0]) {
+                case 0: break;
+                case 1: cur[k] += a; break;
+                case 2: cur[k] += b; break;
+                case 3: cur[k] += (uint8_t) ((a + b) / 2); break;
+                case 4: cur[k] += paeth(a, b, c); break;
+                default: goto out;
+            }
+        }
+
+        for (x = 0; x < width; x++) {
+            const uint8_t *src = cur + (size_t) x * channels;
+            uint8_t r, g, b, alpha;
+            switch (color) {
+                case 0: r = g = b = src[0]; alpha = 0xff; break;
+                case 2: r = src[0]; g = src[1]; b = src[2]; alpha = 0xff; break;
+                case 3:
+                    r = palette[src[0]][0];
+                    g = palette[src[0]][1];
+                    b = palette[src[0]][2];
+                    alpha = palette[src[0]][3];
+                    break;
+                case 4: r = g = b = src[0]; alpha = src[1]; break;
+                default: r = src[0]; g = src[1]; b = src[2]; alpha = src[3]; break;
+            }
+            dst[x * 4] = (uint8_t) ((r * alpha + 127) / 255);
+            dst[x * 4 + 1] = (uint8_t) ((g * alpha + 127) / 255);
+            dst[x * 4 + 2] = (uint8_t) ((b * alpha + 127) / 255);
+            dst[x * 4 + 3] = alpha;
+        }
+    }
+    ret = 0;
+
+out:
+    free(raw);
+    free(idat);
+    return ret;
+}
+
+static size_t align_up(size_t value) {
+    return (value + BOOTANIM_CACHE_ALIGN - 1) & ~((size_t) BOOTANIM_CACHE_ALIGN - 1);
+}
+
+static int write_cache(struct zip_archive *zip, struct anim_desc *desc, const struct stat *zip_st,
+        const char *tmp_path) {
+    struct bootanim_cache_header header;
+    struct bootanim_cache_record *records = NULL;
+    uint8_t *pixels = NULL;
+    size_t offset, max_frame = 0;
+    uint32_t count = 0, n = 0;
+    int fd = -1, ret = -1, i, is_trim;
+
+    for (i = 0; i < zip->count; i++) {
+        if (frame_part(desc, zip->entries[i].name, &is_trim) != NULL && !is_trim) {
+            count++;
+        }
+    }
+    records = calloc(count > 0 ? count : 1, sizeof(*records));
+    if (records == NULL) {
+        goto out;
+    }
+
+    offset = align_up(sizeof(header) + count * sizeof(*records));
+    for (i = 0; i < zip->count; i++) {
+        const struct zip_entry *entry = &zip->entries[i];
+        struct bootanim_cache_record *record;
+        uint32_t w, h;
+        size_t frame_bytes;
+
+        if (frame_part(desc, entry->name, &is_trim) == NULL || is_trim) {
+            continue;
+        }
+        png_size(zip->base + entry->data_offset, entry->size, &w, &h);
+        frame_bytes = (size_t) w * h * 4;
+        record = &records[n++];
+        strcpy(record->name, entry->name);
+        record->width = w;
+        record->height = h;
+        record->offset = offset;
+        offset = align_up(offset + frame_bytes);
+        if (frame_bytes > max_frame) {
+            max_frame = frame_bytes;
+        }
+        if (offset > BOOTANIM_CACHE_MAX_BYTES) {
+            clogd("bootanim cache skipped: frames exceed %d bytes\n", BOOTANIM_CACHE_MAX_BYTES);
+            goto out;
+        }
+    }
+
+    pixels = malloc(max_frame > 0 ? max_frame : 1);
+    fd = open(tmp_path, O_WRONLY | O_CREAT | O_TRUNC | O_CLOEXEC, 0644);
+    if (pixels == NULL || fd < 0) {
+        goto out;
+    }
+
+    memcpy(header.magic, BOOTANIM_CACHE_MAGIC, sizeof(header.magic));
+    header.version = BOOTANIM_CACHE_VERSION;
+    header.frame_count = count;
+    header.reserved = 0;
+    header.zip_size = (uint64_t) zip_st->st_size;
+    header.zip_mtime = (int64_t) zip_st->st_mtime;
+    if (pwrite(fd, &header, sizeof(header), 0) != (ssize_t) sizeof(header)
+            || pwrite(fd, records, count * sizeof(*records), sizeof(header))
+                    != (ssize_t) (count * sizeof(*records))) {
+        goto out;
+    }
+
+    n = 0;
+    for (i = 0; i < zip->count; i++) {
+        const struct zip_entry *entry = &zip->entries[i];
+        const struct bootanim_cache_record *record;
+        size_t frame_bytes;
+
+        if (frame_part(desc, entry->name, &is_trim) == NULL || is_trim) {
+            continue;
+        }
+        record = &records[n++];
+        frame_bytes = (size_t) record->width * record->height * 4;
+        if (png_decode(zip->base + entry->data_offset, entry->size, pixels) < 0) {
+            clogd("bootanim cache skipped: cannot decode %s\n", entry->name);
+            goto out;
+        }
+        if (pwrite(fd, pixels, frame_bytes, (off_t) record->offset) != (ssize_t) frame_bytes) {
+            goto out;
+        }
+    }
+    if (ftruncate(fd, (off_t) offset) < 0 || fsync(fd) < 0) {
+        goto out;
+    }
+    ret = 0;
+
+out:
+    if (fd >= 0) {
+        close(fd);
+    }
+    free(pixels);
+    free(records);
+    return ret;
+}
+
+int bootanim_build_cache(const char *zip_path, const char *cache_path) {
+    struct zip_archive zip;
+    struct anim_desc desc;
+    struct stat st;
+    char tmp_path[256];
+    char err[128];
+    int ret = -1;
+
+    unlink(cache_path);
+    snprintf(tmp_path, sizeof(tmp_path), "%s.tmp", cache_path);
+    if (stat(zip_path, &st) < 0 || zip_open(zip_path, &zip, err, sizeof(err)) < 0) {
+        return -1;
+    }
+    if (validate_zip(&zip, &desc, err, sizeof(err)) == 0
+            && write_cache(&zip, &desc, &st, tmp_path) == 0
+            && rename(tmp_path, cache_path) == 0) {
+        chmod(cache_path, 0644);
+        ret = 0;
+    } else {
+        unlink(tmp_path);
+    }
+    zip_close(&zip);
+    return ret;
+}
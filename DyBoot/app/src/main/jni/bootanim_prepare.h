@@ -0,0 +1,53 @@
+#ifndef DYBOOT_BOOTANIM_PREPARE_H
+#define DYBOOT_BOOTANIM_PREPARE_H
+
+#include <stddef.h>
+#include <stdint.h>
+
+/*
+ * Pre-decoded frame cache written next to the uploaded bootanimation.zip.
+ * MtkBootanimation mmaps this file and uploads the RGBA pixels directly,
+ * so the layout below must stay in sync with BootAnimation.cpp.
+ *
+ *   header  (32 bytes)
+ *   records (frame_count * 80 bytes)
+ *   pixels  (premultiplied RGBA8888, each frame page aligned)
+ */
+#define BOOTANIM_CACHE_MAGIC        "BAFC"
+#define BOOTANIM_CACHE_VERSION      1
+#define BOOTANIM_CACHE_NAME_MAX     64
+#define BOOTANIM_CACHE_ALIGN        4096
+/* Do not fill /data with raw pixels; larger animations just play from PNG. */
+#define BOOTANIM_CACHE_MAX_BYTES    (128 * 1024 * 1024)
+
+struct bootanim_cache_header {
+    char magic[4];
+    uint32_t version;
+    uint32_t frame_count;
+    uint32_t reserved;
+    uint64_t zip_size;
+    int64_t zip_mtime;
+};
+
+struct bootanim_cache_record {
+    char name[BOOTANIM_CACHE_NAME_MAX];
+    uint32_t width;
+    uint32_t height;
+    uint64_t offset;
+};
+
+/*
+ * Checks that zip_path is a bootanimation the player can use: every entry
+ * stored (not deflated), desc.txt parses, and every frame is a PNG whose
+ * size matches desc.txt. Returns 0 on success, -1 with a reason in err.
+ */
+int bootanim_validate(const char *zip_path, char *err, size_t err_len);
+
+/*
+ * Decodes every frame of an already validated zip into cache_path.
+ * Returns 0 when the cache was written, -1 when it was skipped; a stale
+ * cache is always removed first so the player never sees mismatched data.
+ */
+int bootanim_build_cache(const char *zip_path, const char *cache_path);
+
+#endif
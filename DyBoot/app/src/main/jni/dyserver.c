@@ -6,12 +6,44 @@
 #include <sys/un.h>
 #include <pthread.h>
 #include <arpa/inet.h>
+#include <unistd.h>
 
 #include <android/log.h>
 #define clogd(...) __android_log_print(ANDROID_LOG_INFO, "ccsBootAnimation", __VA_ARGS__)
 
+#include "bootanim_prepare.h"
+
+#define USER_BOOTANIMATION_FILE     "/data/local/bootanimation.zip"
+#define USER_BOOTANIMATION_CACHE    "/data/local/bootanimation.cache"
+
 int sockfd, newfd;
 
+/*
+ * Checks the zip that was just copied in, so a broken upload is reported to
+ * the client now instead of showing up as a blank boot animation, then
+ * pre-decodes its frames for the player. A rejected zip is removed and the
+ * device falls back to the system animation.
+ */
+static void prepare_bootanimation(int fd) {
+    char err[128];
+    char result[200];
+    int ret;
+
+    ret = bootanim_validate(USER_BOOTANIMATION_FILE, err, sizeof(err));
+    if (ret < 0) {
+        unlink(USER_BOOTANIMATION_FILE);
+        unlink(USER_BOOTANIMATION_CACHE);
+        snprintf(result, sizeof(result), "bootanimation rejected: %s", err);
+    } else {
+        ret = bootanim_build_cache(USER_BOOTANIMATION_FILE, USER_BOOTANIMATION_CACHE);
+        snprintf(result, sizeof(result), "bootanimation ok, frame cache %s",
+                ret == 0 ? "built" : "skipped");
+    }
+    printf("%s\n", result);
+    clogd("%s\n", result);
+    send(fd, result, strlen(result), 0);
+}
+
 int main(int argc, char *argv[]) {
     int ret;
     pthread_t read_tid, write_tid;
@@ -75,6 +107,7 @@ int main(int argc, char *argv[]) {
                 ret = system("ls");
                 printf("ret = %d \n", ret);
                 clogd("ls result = %d \n", ret);
+                prepare_bootanimation(newfd);
             } else if (strcmp(buffer, "ls") == 0) {
                 ret = system("ls");
                 printf("ret = %d \n", ret);
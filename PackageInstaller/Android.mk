@@ -36,4 +36,6 @@ LOCAL_PROGUARD_FLAG_FILES := proguard.flags
 # Comment for now unitl all private API dependencies are removed
 # LOCAL_SDK_VERSION := system_current
 
-include $(BUILD_PACKAGE)
\ No newline at end of file
+include $(BUILD_PACKAGE)
+
+include $(call all-makefiles-under,$(LOCAL_PATH))
@@ -25,20 +25,32 @@ import android.support.annotation.Nullable;
 import android.util.AtomicFile;
 import android.util.Log;
 import android.util.SparseArray;
-import android.util.Xml;
 
-import org.xmlpull.v1.XmlPullParser;
-import org.xmlpull.v1.XmlPullParserException;
-import org.xmlpull.v1.XmlSerializer;
+import com.android.internal.annotations.VisibleForTesting;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32;
 
 /**
  * Persists results of events and calls back observers when a matching result arrives.
+ *
+ * <p>The state is kept in an append-only log: every change appends one small record instead of
+ * rewriting the whole state. Once most records of the log are obsolete the log is compacted into
+ * a snapshot of the current state. A record torn by a crash and everything after it is dropped
+ * when the log is read back.
  */
 class EventResultPersister {
     private static final String LOG_TAG = EventResultPersister.class.getSimpleName();
@@ -52,9 +64,34 @@ class EventResultPersister {
      */
     static final String EXTRA_ID = "EventResultPersister.EXTRA_ID";
 
+    /** Start of the log */
+    private static final int LOG_MAGIC = 0x45525031; // "ERP1"
+
+    /** Size of the length and checksum in front of each record */
+    private static final int RECORD_HEADER_SIZE = Integer.BYTES + Long.BYTES;
+
+    /** Record: the event id counter was changed */
+    private static final byte RECORD_COUNTER = 1;
+
+    /** Record: a result arrived that no observer was waiting for */
+    private static final byte RECORD_RESULT = 2;
+
+    /** Record: a stored result was delivered to an observer */
+    private static final byte RECORD_CONSUMED = 3;
+
+    /** Don't compact logs that are shorter than this */
+    @VisibleForTesting
+    static final int MIN_RECORDS_TO_COMPACT = 64;
+
+    /** Compact the log once this percentage of its records are obsolete */
+    private static final int COMPACT_OBSOLETE_PERCENT = 75;
+
     /** Persisted state of this object */
     private final AtomicFile mResultsFile;
 
+    /** Executes the writes of the log */
+    private final Executor mWriteExecutor;
+
     private final Object mLock = new Object();
 
     /** Currently stored but not yet called back results (install id -> status, status message) */
@@ -69,8 +106,14 @@ class EventResultPersister {
     /** If a write that will persist the state is scheduled */
     private boolean mIsPersistScheduled;
 
-    /** If the state was changed while the data was being persisted */
-    private boolean mIsPersistingStateValid;
+    /** Encoded records that are not yet appended to the log */
+    private final ArrayList<byte[]> mPendingRecords = new ArrayList<>();
+
+    /** Number of records in the log */
+    private int mNumLoggedRecords;
+
+    /** If the log cannot be appended to and has to be replaced by a snapshot */
+    private boolean mIsSnapshotRequired;
 
     /**
      * @return a new event id.
@@ -82,7 +125,7 @@ class EventResultPersister {
             }
 
             mCounter++;
-            writeState();
+            writeRecord(encodeCounter(mCounter));
 
             return mCounter - 1;
         }
@@ -94,80 +137,95 @@ class EventResultPersister {
     }
 
     /**
-     * Progress parser to the next element.
-     *
-     * @param parser The parser to progress
-     */
-    private static void nextElement(@NonNull XmlPullParser parser)
-            throws XmlPullParserException, IOException {
-        int type;
-        do {
-            type = parser.next();
-        } while (type != XmlPullParser.START_TAG && type != XmlPullParser.END_DOCUMENT);
-    }
-
-    /**
-     * Read an int attribute from the current element
-     *
-     * @param parser The parser to read from
-     * @param name The attribute name to read
-     *
-     * @return The value of the attribute
-     */
-    private static int readIntAttribute(@NonNull XmlPullParser parser, @NonNull String name) {
-        return Integer.parseInt(parser.getAttributeValue(null, name));
-    }
-
-    /**
-     * Read an String attribute from the current element
-     *
-     * @param parser The parser to read from
-     * @param name The attribute name to read
+     * Read persisted state.
      *
-     * @return The value of the attribute or null if the attribute is not set
+     * @param resultFile The file the results are persisted in
      */
-    private static String readStringAttribute(@NonNull XmlPullParser parser, @NonNull String name) {
-        return parser.getAttributeValue(null, name);
+    EventResultPersister(@NonNull File resultFile) {
+        this(resultFile, AsyncTask.SERIAL_EXECUTOR);
     }
 
     /**
      * Read persisted state.
      *
      * @param resultFile The file the results are persisted in
+     * @param writeExecutor Executes the writes of the log
      */
-    EventResultPersister(@NonNull File resultFile) {
+    @VisibleForTesting
+    EventResultPersister(@NonNull File resultFile, @NonNull Executor writeExecutor) {
         mResultsFile = new AtomicFile(resultFile);
+        mWriteExecutor = writeExecutor;
         mCounter = GENERATE_NEW_ID + 1;
 
+        long validLength = 0;
         try (FileInputStream stream = mResultsFile.openRead()) {
-            XmlPullParser parser = Xml.newPullParser();
-            parser.setInput(stream, StandardCharsets.UTF_8.name());
-
-            nextElement(parser);
-            while (parser.getEventType() != XmlPullParser.END_DOCUMENT) {
-                String tagName = parser.getName();
-                if ("results".equals(tagName)) {
-                    mCounter = readIntAttribute(parser, "counter");
-                } else if ("result".equals(tagName)) {
-                    int id = readIntAttribute(parser, "id");
-                    int status = readIntAttribute(parser, "status");
-                    int legacyStatus = readIntAttribute(parser, "legacyStatus");
-                    String statusMessage = readStringAttribute(parser, "statusMessage");
-
-                    if (mResults.get(id) != null) {
-                        throw new Exception("id " + id + " has two results");
-                    }
+            DataInputStream in = new DataInputStream(stream);
+
+            if (in.readInt() != LOG_MAGIC) {
+                throw new IOException("not a result log");
+            }
+            validLength = Integer.BYTES;
 
-                    mResults.put(id, new EventResult(status, legacyStatus, statusMessage));
-                } else {
-                    throw new Exception("unexpected tag");
+            while (true) {
+                byte[] record = readRecord(in);
+                if (record == null) {
+                    break;
                 }
 
-                nextElement(parser);
+                applyRecord(record);
+                mNumLoggedRecords++;
+                validLength += RECORD_HEADER_SIZE + record.length;
             }
+        } catch (FileNotFoundException e) {
+            // Nothing persisted yet
         } catch (Exception e) {
+            Log.e(LOG_TAG, "error reading results", e);
             mResults.clear();
-            writeState();
+            mCounter = GENERATE_NEW_ID + 1;
+            validLength = 0;
+        }
+
+        if (validLength == 0 || validLength < mResultsFile.getBaseFile().length()) {
+            // Drop a torn write at the end of the log before anything is appended to it
+            synchronized (mLock) {
+                mIsSnapshotRequired = true;
+                writeRecord(null);
+            }
+        }
+    }
+
+    /**
+     * Update the state from a record read from the log.
+     *
+     * @param record The payload of the record
+     */
+    private void applyRecord(@NonNull byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+
+        byte type = in.readByte();
+        switch (type) {
+            case RECORD_COUNTER:
+                mCounter = in.readInt();
+                break;
+            case RECORD_RESULT:
+                int id = in.readInt();
+                int status = in.readInt();
+                int legacyStatus = in.readInt();
+                String message = null;
+                int messageLength = in.readInt();
+                if (messageLength >= 0) {
+                    byte[] messageBytes = new byte[messageLength];
+                    in.readFully(messageBytes);
+                    message = new String(messageBytes, StandardCharsets.UTF_8);
+                }
+
+                mResults.put(id, new EventResult(status, legacyStatus, message));
+                break;
+            case RECORD_CONSUMED:
+                mResults.delete(in.readInt());
+                break;
+            default:
+                throw new IOException("unexpected record type " + type);
         }
     }
 
@@ -207,79 +265,177 @@ class EventResultPersister {
                 observerToCall.onResult(status, legacyStatus, statusMessage);
             } else {
                 mResults.put(id, new EventResult(status, legacyStatus, statusMessage));
-                writeState();
+                writeRecord(encodeResult(id, status, legacyStatus, statusMessage));
             }
         }
     }
 
     /**
-     * Persist current state. The persistence might be delayed.
+     * Read the next record from the log.
+     *
+     * @param in The log positioned at the start of a record
+     *
+     * @return The payload of the record, or {@code null} at the end of the log or at a record
+     *         that was not completely written
      */
-    private void writeState() {
+    private static @Nullable byte[] readRecord(@NonNull DataInputStream in) throws IOException {
+        try {
+            int length = in.readInt();
+            long checksum = in.readLong();
+            if (length <= 0 || length > in.available()) {
+                return null;
+            }
+
+            byte[] record = new byte[length];
+            in.readFully(record);
+
+            CRC32 crc = new CRC32();
+            crc.update(record);
+            if (crc.getValue() != checksum) {
+                return null;
+            }
+
+            return record;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Frame a record with its length and checksum.
+     *
+     * @param record The payload of the record
+     *
+     * @return The record as written to the log
+     */
+    private static byte[] frameRecord(@NonNull ByteArrayOutputStream record) throws IOException {
+        byte[] payload = record.toByteArray();
+
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+
+        ByteArrayOutputStream framed = new ByteArrayOutputStream(RECORD_HEADER_SIZE
+                + payload.length);
+        DataOutputStream out = new DataOutputStream(framed);
+        out.writeInt(payload.length);
+        out.writeLong(crc.getValue());
+        out.write(payload);
+        out.flush();
+
+        return framed.toByteArray();
+    }
+
+    private static byte[] encodeCounter(int counter) {
+        try {
+            ByteArrayOutputStream record = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(record);
+            out.writeByte(RECORD_COUNTER);
+            out.writeInt(counter);
+            out.flush();
+
+            return frameRecord(record);
+        } catch (IOException e) {
+            // Cannot happen when writing to memory
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] encodeResult(int id, int status, int legacyStatus,
+            @Nullable String message) {
+        try {
+            ByteArrayOutputStream record = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(record);
+            out.writeByte(RECORD_RESULT);
+            out.writeInt(id);
+            out.writeInt(status);
+            out.writeInt(legacyStatus);
+            if (message == null) {
+                out.writeInt(-1);
+            } else {
+                byte[] messageBytes = message.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(messageBytes.length);
+                out.write(messageBytes);
+            }
+            out.flush();
+
+            return frameRecord(record);
+        } catch (IOException e) {
+            // Cannot happen when writing to memory
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] encodeConsumed(int id) {
+        try {
+            ByteArrayOutputStream record = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(record);
+            out.writeByte(RECORD_CONSUMED);
+            out.writeInt(id);
+            out.flush();
+
+            return frameRecord(record);
+        } catch (IOException e) {
+            // Cannot happen when writing to memory
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Persist a change of the state. The persistence might be delayed.
+     *
+     * @param record The encoded change, or {@code null} to only persist pending changes
+     */
+    private void writeRecord(@Nullable byte[] record) {
         synchronized (mLock) {
-            mIsPersistingStateValid = false;
+            if (record != null) {
+                mPendingRecords.add(record);
+            }
 
             if (!mIsPersistScheduled) {
                 mIsPersistScheduled = true;
 
-                AsyncTask.execute(() -> {
-                    int counter;
-                    SparseArray<EventResult> results;
-
+                mWriteExecutor.execute(() -> {
                     while (true) {
-                        // Take snapshot of state
-                        synchronized (mLock) {
-                            counter = mCounter;
-                            results = mResults.clone();
-                            mIsPersistingStateValid = true;
-                        }
+                        ArrayList<byte[]> records;
+                        int counter = 0;
+                        SparseArray<EventResult> results = null;
 
-                        FileOutputStream stream = null;
-                        try {
-                            stream = mResultsFile.startWrite();
-                            XmlSerializer serializer = Xml.newSerializer();
-                            serializer.setOutput(stream, StandardCharsets.UTF_8.name());
-                            serializer.startDocument(null, true);
-                            serializer.setFeature(
-                                    "http://xmlpull.org/v1/doc/features.html#indent-output", true);
-                            serializer.startTag(null, "results");
-                            serializer.attribute(null, "counter", Integer.toString(counter));
-
-                            int numResults = results.size();
-                            for (int i = 0; i < numResults; i++) {
-                                serializer.startTag(null, "result");
-                                serializer.attribute(null, "id",
-                                        Integer.toString(results.keyAt(i)));
-                                serializer.attribute(null, "status",
-                                        Integer.toString(results.valueAt(i).status));
-                                serializer.attribute(null, "legacyStatus",
-                                        Integer.toString(results.valueAt(i).legacyStatus));
-                                if (results.valueAt(i).message != null) {
-                                    serializer.attribute(null, "statusMessage",
-                                            results.valueAt(i).message);
-                                }
-                                serializer.endTag(null, "result");
+                        synchronized (mLock) {
+                            if (mPendingRecords.isEmpty() && !mIsSnapshotRequired) {
+                                mIsPersistScheduled = false;
+                                break;
                             }
 
-                            serializer.endTag(null, "results");
-                            serializer.endDocument();
-
-                            mResultsFile.finishWrite(stream);
-                        } catch (IOException e) {
-                            if (stream != null) {
-                                mResultsFile.failWrite(stream);
+                            records = new ArrayList<>(mPendingRecords);
+                            mPendingRecords.clear();
+
+                            // Only the last counter and the unconsumed results are still needed
+                            int numRecords = mNumLoggedRecords + records.size();
+                            int numObsoleteRecords = numRecords - 1 - mResults.size();
+                            if (mIsSnapshotRequired || (numRecords >= MIN_RECORDS_TO_COMPACT
+                                    && numObsoleteRecords * 100
+                                    >= numRecords * COMPACT_OBSOLETE_PERCENT)) {
+                                // Take snapshot of state
+                                counter = mCounter;
+                                results = mResults.clone();
+                                mIsSnapshotRequired = false;
                             }
-
-                            Log.e(LOG_TAG, "error writing results", e);
-                            mResultsFile.delete();
                         }
 
-                        // Check if there was changed state since we persisted. If so, we need to
-                        // persist again.
+                        boolean wasWritten = results != null ? writeSnapshot(counter, results)
+                                : appendRecords(records);
+
                         synchronized (mLock) {
-                            if (mIsPersistingStateValid) {
+                            if (!wasWritten) {
+                                mIsSnapshotRequired = true;
+                                mNumLoggedRecords = 0;
+                                // Retried with the next change
                                 mIsPersistScheduled = false;
                                 break;
+                            } else if (results != null) {
+                                mNumLoggedRecords = 1 + results.size();
+                            } else {
+                                mNumLoggedRecords += records.size();
                             }
                         }
                     }
@@ -288,6 +444,88 @@ class EventResultPersister {
         }
     }
 
+    /**
+     * @return The number of records in the log
+     */
+    @VisibleForTesting
+    int getNumLoggedRecords() {
+        synchronized (mLock) {
+            return mNumLoggedRecords;
+        }
+    }
+
+    /**
+     * Append records to the end of the log.
+     *
+     * @param records The encoded records
+     *
+     * @return {@code true} iff the records were durably written
+     */
+    private boolean appendRecords(@NonNull ArrayList<byte[]> records) {
+        File logFile = mResultsFile.getBaseFile();
+        long lengthBefore = logFile.length();
+
+        try (FileOutputStream stream = new FileOutputStream(logFile, true)) {
+            int numRecords = records.size();
+            for (int i = 0; i < numRecords; i++) {
+                stream.write(records.get(i));
+            }
+            stream.getFD().sync();
+
+            return true;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "error appending results", e);
+
+            // Do not leave a partial record in front of the next append
+            try (RandomAccessFile file = new RandomAccessFile(logFile, "rw")) {
+                file.setLength(lengthBefore);
+            } catch (IOException e2) {
+                Log.e(LOG_TAG, "error truncating results", e2);
+            }
+
+            return false;
+        }
+    }
+
+    /**
+     * Replace the log by a snapshot of the state.
+     *
+     * @param counter The event id counter
+     * @param results The results not yet called back
+     *
+     * @return {@code true} iff the snapshot was durably written
+     */
+    private boolean writeSnapshot(int counter, @NonNull SparseArray<EventResult> results) {
+        FileOutputStream stream = null;
+        try {
+            stream = mResultsFile.startWrite();
+            DataOutputStream out = new DataOutputStream(stream);
+            out.writeInt(LOG_MAGIC);
+            out.write(encodeCounter(counter));
+
+            int numResults = results.size();
+            for (int i = 0; i < numResults; i++) {
+                EventResult result = results.valueAt(i);
+                out.write(encodeResult(results.keyAt(i), result.status, result.legacyStatus,
+                        result.message));
+            }
+            out.flush();
+
+            mResultsFile.finishWrite(stream);
+
+            return true;
+        } catch (IOException e) {
+            if (stream != null) {
+                mResultsFile.failWrite(stream);
+            }
+
+            Log.e(LOG_TAG, "error writing results", e);
+            mResultsFile.delete();
+
+            return false;
+        }
+    }
+
     /**
      * Add an observer. If there is already an event for this id, call back inside of this call.
      *
@@ -313,7 +551,7 @@ class EventResultPersister {
 
                 observer.onResult(result.status, result.legacyStatus, result.message);
                 mResults.removeAt(resultIndex);
-                writeState();
+                writeRecord(encodeConsumed(id));
             } else {
                 mObservers.put(id, observer);
             }
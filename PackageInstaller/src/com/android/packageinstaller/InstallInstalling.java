@@ -326,7 +326,7 @@ public class InstallInstalling extends Activity {
 
         @Override
         protected PackageInstaller.Session doInBackground(Void... params) {
-            PackageInstaller.Session session;
+            final PackageInstaller.Session session;
             try {
                 session = getPackageManager().getPackageInstaller().openSession(mSessionId);
             } catch (IOException e) {
@@ -342,25 +342,23 @@ public class InstallInstalling extends Activity {
                     long sizeBytes = file.length();
                     try (OutputStream out = session
                             .openWrite("PackageInstaller", 0, sizeBytes)) {
-                        byte[] buffer = new byte[1024 * 1024];
-                        while (true) {
-                            int numRead = in.read(buffer);
-
-                            if (numRead == -1) {
-                                session.fsync(out);
-                                break;
-                            }
-
-                            if (isCancelled()) {
-                                session.close();
-                                break;
-                            }
-
-                            out.write(buffer, 0, numRead);
-                            if (sizeBytes > 0) {
-                                float fraction = ((float) numRead / (float) sizeBytes);
-                                session.addProgress(fraction);
-                            }
+                        boolean completed = PackageCopier.copy(in, out, sizeBytes,
+                                new PackageCopier.Callback() {
+                                    @Override
+                                    public boolean isCancelled() {
+                                        return InstallingAsyncTask.this.isCancelled();
+                                    }
+
+                                    @Override
+                                    public void onProgress(float fraction) {
+                                        session.addProgress(fraction);
+                                    }
+                                });
+
+                        if (completed) {
+                            session.fsync(out);
+                        } else {
+                            session.close();
                         }
                     }
                 }
@@ -185,21 +185,22 @@ public class InstallStaging extends Activity {
                 }
 
                 try (OutputStream out = new FileOutputStream(mStagedFile)) {
-                    byte[] buffer = new byte[1024 * 1024];
-                    int bytesRead;
-                    while ((bytesRead = in.read(buffer)) >= 0) {
-                        // Be nice and respond to a cancellation
-                        if (isCancelled()) {
-                            return false;
+                    return PackageCopier.copy(in, out, -1, new PackageCopier.Callback() {
+                        @Override
+                        public boolean isCancelled() {
+                            return StagingAsyncTask.this.isCancelled();
                         }
-                        out.write(buffer, 0, bytesRead);
-                    }
+
+                        @Override
+                        public void onProgress(float fraction) {
+                            // empty, staging shows no progress
+                        }
+                    });
                 }
             } catch (IOException | SecurityException e) {
                 Log.w(LOG_TAG, "Error staging apk from content URI", e);
                 return false;
             }
-            return true;
         }
 
         @Override
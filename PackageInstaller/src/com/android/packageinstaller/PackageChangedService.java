@@ -10,7 +10,11 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Process;
+import android.util.ArraySet;
 import android.util.Log;
 import android.net.Uri;
 
@@ -18,10 +22,37 @@ public class PackageChangedService extends Service {
 
     private final String TAG = "permission";
 
+    /** How long to collect package events before granting, so install storms are batched. */
+    private static final long GRANT_BATCH_DELAY_MS = 500;
+
+    private Handler mGrantHandler;
+
+    /** Packages added since the last batch; only touched on the grant thread. */
+    private final ArraySet<String> mPendingPackages = new ArraySet<>();
+    private boolean mBatchScheduled;
+
+    private final Runnable mGrantBatch = new Runnable() {
+        @Override
+        public void run() {
+            mBatchScheduled = false;
+            if (mPendingPackages.isEmpty()) {
+                return;
+            }
+            ArraySet<String> batch = new ArraySet<>(mPendingPackages);
+            mPendingPackages.clear();
+            Log.i(TAG, "grant batch size==" + batch.size());
+            PermissionGrantHelper.slientGrantRuntimePermissions(PackageChangedService.this, batch);
+        }
+    };
+
     @Override
     public void onCreate() {
         super.onCreate();
         Log.i(TAG, "onCreate OK");
+        HandlerThread thread = new HandlerThread("PermissionGrantThread",
+                Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mGrantHandler = new Handler(thread.getLooper());
     }
 
     @Override
@@ -33,6 +64,10 @@ public class PackageChangedService extends Service {
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         Log.e(TAG, "onStartCommand OK");
+        if (packageChangedBroadcastReceiver != null) {
+            // Already listening; the service is restarted on every boot completed.
+            return super.onStartCommand(intent, flags, startId);
+        }
         packageChangedBroadcastReceiver = new PackageChangedBroadcastReceiver();
         IntentFilter intentFilter = new IntentFilter();
         intentFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
@@ -52,6 +87,7 @@ public class PackageChangedService extends Service {
         }catch(Exception e){
             e.printStackTrace();
         }
+        mGrantHandler.getLooper().quitSafely();
         super.onDestroy();
     }
 
@@ -70,10 +106,21 @@ public class PackageChangedService extends Service {
                 Log.i(TAG, "PackageChangedBroadcastReceiver packageName==" + packageName);
 
                 if (Intent.ACTION_PACKAGE_ADDED.equals(action)) {
-                    PermissionGrantHelper.slientGrantRuntimePermission(context, packageName);
+                    mGrantHandler.post(() -> {
+                        mPendingPackages.add(packageName);
+                        if (!mBatchScheduled) {
+                            mBatchScheduled = true;
+                            mGrantHandler.postDelayed(mGrantBatch, GRANT_BATCH_DELAY_MS);
+                        }
+                    });
 
                 } else if (Intent.ACTION_PACKAGE_REMOVED.equals(action)) {
-
+                    if (!intent.getBooleanExtra(Intent.EXTRA_REPLACING, false)) {
+                        mGrantHandler.post(() -> {
+                            mPendingPackages.remove(packageName);
+                            PermissionGrantHelper.onPackageRemoved(packageName);
+                        });
+                    }
                 } else if (Intent.ACTION_PACKAGE_REPLACED.equals(action)) {
                     Intent ccIntent = new Intent();
                     ccIntent.setAction("android.intent.action.MY_PACKAGE_REPLACED");
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.packageinstaller;
+
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+
+/**
+ * Copies a package from one stream to another. When the input is the whole rest of a file and
+ * the output is backed by a file descriptor the data is moved with
+ * {@link FileChannel#transferTo} and never enters the Java heap; otherwise it goes through a
+ * single reused buffer. Progress is reported at most once per {@link #PROGRESS_INTERVAL_MS}.
+ */
+class PackageCopier {
+    private static final String LOG_TAG = PackageCopier.class.getSimpleName();
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    /** Upper bound of a single transfer, so cancellation and progress are noticed in time */
+    private static final long TRANSFER_SIZE = 8 * 1024 * 1024;
+
+    /** Minimum time between two progress reports */
+    static final long PROGRESS_INTERVAL_MS = 100;
+
+    /**
+     * Receives the state of a copy.
+     */
+    interface Callback {
+        /**
+         * @return {@code true} if the copy should stop
+         */
+        boolean isCancelled();
+
+        /**
+         * @param fraction The part of the expected size copied since the last report
+         */
+        void onProgress(float fraction);
+    }
+
+    private PackageCopier() {
+    }
+
+    /**
+     * Copy the whole of {@code in} to {@code out}. The streams are not closed.
+     *
+     * @param sizeBytes The expected size used to compute progress, or {@code -1} if unknown
+     * @param callback  Receives progress and is asked for cancellation, can be {@code null}
+     *
+     * @return {@code false} if the copy was cancelled
+     */
+    static boolean copy(@NonNull InputStream in, @NonNull OutputStream out, long sizeBytes,
+            @Nullable Callback callback) throws IOException {
+        long startTime = SystemClock.elapsedRealtime();
+        Progress progress = new Progress(sizeBytes, callback);
+
+        boolean transferred = false;
+        boolean readRest = true;
+        if (isWholeFileStream(in) && out instanceof FileOutputStream) {
+            FileChannel inChannel = ((FileInputStream) in).getChannel();
+            FileChannel outChannel = ((FileOutputStream) out).getChannel();
+
+            // Pipes and sockets report a size of 0, they have to be read
+            long inSize = inChannel.size();
+            if (inSize > 0) {
+                long position = inChannel.position();
+                while (position < inSize) {
+                    if (progress.isCancelled()) {
+                        return false;
+                    }
+
+                    long numTransferred = inChannel.transferTo(position,
+                            Math.min(TRANSFER_SIZE, inSize - position), outChannel);
+                    if (numTransferred <= 0) {
+                        break;
+                    }
+                    position += numTransferred;
+                    progress.add(numTransferred);
+                }
+                // Read whatever could not be transferred, e.g. if the file grew
+                inChannel.position(position);
+                transferred = true;
+                readRest = position < inChannel.size();
+            }
+        }
+
+        if (readRest) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int numRead;
+            while ((numRead = in.read(buffer)) >= 0) {
+                // Be nice and respond to a cancellation
+                if (progress.isCancelled()) {
+                    return false;
+                }
+                out.write(buffer, 0, numRead);
+                progress.add(numRead);
+            }
+        }
+        progress.flush();
+
+        long duration = SystemClock.elapsedRealtime() - startTime;
+        Log.i(LOG_TAG, "Copied " + progress.mTotalBytes + " bytes in " + duration + " ms"
+                + (transferred ? " using transferTo" : ""));
+        return true;
+    }
+
+    /**
+     * @return {@code true} if {@code in} reads its descriptor up to the end of the file.
+     * Subclasses such as {@link android.content.res.AssetFileDescriptor.AutoCloseInputStream}
+     * may only expose a range of it, so copying up to {@link FileChannel#size} would take too
+     * much.
+     */
+    private static boolean isWholeFileStream(@NonNull InputStream in) {
+        Class<?> inClass = in.getClass();
+        return inClass == FileInputStream.class
+                || inClass == ParcelFileDescriptor.AutoCloseInputStream.class;
+    }
+
+    /**
+     * Accumulates copied bytes and reports them at a fixed rate.
+     */
+    private static class Progress {
+        private final long mSizeBytes;
+        private final @Nullable Callback mCallback;
+
+        long mTotalBytes;
+        private long mUnreportedBytes;
+        private long mLastReportTime;
+
+        Progress(long sizeBytes, @Nullable Callback callback) {
+            mSizeBytes = sizeBytes;
+            mCallback = callback;
+        }
+
+        boolean isCancelled() {
+            return mCallback != null && mCallback.isCancelled();
+        }
+
+        void add(long numBytes) {
+            mTotalBytes += numBytes;
+            mUnreportedBytes += numBytes;
+
+            long now = SystemClock.elapsedRealtime();
+            if (now - mLastReportTime >= PROGRESS_INTERVAL_MS) {
+                mLastReportTime = now;
+                flush();
+            }
+        }
+
+        void flush() {
+            if (mCallback != null && mSizeBytes > 0 && mUnreportedBytes > 0) {
+                mCallback.onProgress((float) mUnreportedBytes / (float) mSizeBytes);
+            }
+            mUnreportedBytes = 0;
+        }
+    }
+}
@@ -1,20 +1,140 @@
 
 package com.android.packageinstaller;
 
+import android.app.AppOpsManager;
 import android.content.Context;
+import android.os.Build;
+import android.os.UserHandle;
+import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.Log;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
+import android.content.pm.PermissionInfo;
 import com.android.packageinstaller.permission.model.AppPermissionGroup;
 import com.android.packageinstaller.permission.model.AppPermissions;
 import com.android.packageinstaller.permission.model.Permission;
 import com.android.packageinstaller.permission.utils.ArrayUtils;
 import com.android.packageinstaller.permission.utils.Utils;
+import java.util.Collection;
 import java.util.List;
 
 
 public class PermissionGrantHelper{
 
+    private static final String TAG = "permission";
+
+    /** Grants already done per package, keyed by the version they were done for. */
+    private static final ArrayMap<String, GrantRecord> sGrantRecords = new ArrayMap<>();
+
+    private static final class GrantRecord {
+        final int versionCode;
+        final ArraySet<String> granted;
+
+        GrantRecord(int versionCode, ArraySet<String> granted) {
+            this.versionCode = versionCode;
+            this.granted = granted;
+        }
+    }
+
+    /**
+     * Grants every requested dangerous permission of a batch of packages, working only from
+     * {@link PackageInfo#requestedPermissions} and {@link PackageInfo#requestedPermissionsFlags}
+     * instead of building a full {@link AppPermissions} model per package. A package that was
+     * already handled at its current version is skipped. Must be called on a background thread.
+     */
+    public static void slientGrantRuntimePermissions(Context context,
+            Collection<String> packageNames) {
+        final PackageManager pm = context.getPackageManager();
+        final AppOpsManager appOps = context.getSystemService(AppOpsManager.class);
+        final UserHandle user = android.os.Process.myUserHandle();
+        // Permission definitions do not change within a batch, look each one up once.
+        final ArrayMap<String, PermissionInfo> permissionInfos = new ArrayMap<>();
+
+        for (String packageName : packageNames) {
+            final PackageInfo packageInfo;
+            try {
+                packageInfo = pm.getPackageInfo(packageName, PackageManager.GET_PERMISSIONS);
+            } catch (PackageManager.NameNotFoundException e) {
+                Log.e(TAG, "can't get PackageInfo for packageName=" + packageName);
+                continue;
+            }
+
+            final GrantRecord record = sGrantRecords.get(packageName);
+            if (record != null && record.versionCode == packageInfo.versionCode) {
+                continue;
+            }
+            if (packageInfo.requestedPermissions == null) {
+                sGrantRecords.put(packageName,
+                        new GrantRecord(packageInfo.versionCode, new ArraySet<>()));
+                continue;
+            }
+
+            // Legacy apps are granted through app ops and instant apps may only get instant
+            // permissions; the full model already knows how to handle both.
+            if (packageInfo.applicationInfo.targetSdkVersion < Build.VERSION_CODES.M
+                    || packageInfo.applicationInfo.isInstantApp()) {
+                slientGrantRuntimePermission(context, packageName);
+                sGrantRecords.put(packageName,
+                        new GrantRecord(packageInfo.versionCode, new ArraySet<>()));
+                continue;
+            }
+
+            final ArraySet<String> granted = new ArraySet<>();
+            final int uid = packageInfo.applicationInfo.uid;
+            for (int i = 0; i < packageInfo.requestedPermissions.length; i++) {
+                final String name = packageInfo.requestedPermissions[i];
+                if ((packageInfo.requestedPermissionsFlags[i]
+                        & PackageInfo.REQUESTED_PERMISSION_GRANTED) != 0) {
+                    continue;
+                }
+
+                PermissionInfo permissionInfo = permissionInfos.get(name);
+                if (permissionInfo == null && !permissionInfos.containsKey(name)) {
+                    try {
+                        permissionInfo = pm.getPermissionInfo(name, 0);
+                    } catch (PackageManager.NameNotFoundException e) {
+                        permissionInfo = null;
+                    }
+                    permissionInfos.put(name, permissionInfo);
+                }
+                if (permissionInfo == null || (permissionInfo.protectionLevel
+                        & PermissionInfo.PROTECTION_MASK_BASE)
+                        != PermissionInfo.PROTECTION_DANGEROUS) {
+                    continue;
+                }
+
+                final int flags = pm.getPermissionFlags(name, packageName, user);
+                if ((flags & (PackageManager.FLAG_PERMISSION_SYSTEM_FIXED
+                        | PackageManager.FLAG_PERMISSION_POLICY_FIXED)) != 0) {
+                    continue;
+                }
+
+                // Same order as AppPermissionGroup: enable the app op before the grant.
+                final String appOp = AppOpsManager.permissionToOp(name);
+                if (appOp != null && appOps.checkOpNoThrow(appOp, uid, packageName)
+                        != AppOpsManager.MODE_ALLOWED) {
+                    appOps.setUidMode(appOp, uid, AppOpsManager.MODE_ALLOWED);
+                }
+                pm.grantRuntimePermission(packageName, name, user);
+                if ((flags & (PackageManager.FLAG_PERMISSION_USER_FIXED
+                        | PackageManager.FLAG_PERMISSION_USER_SET)) != 0) {
+                    pm.updatePermissionFlags(name, packageName,
+                            PackageManager.FLAG_PERMISSION_USER_FIXED
+                                    | PackageManager.FLAG_PERMISSION_USER_SET, 0, user);
+                }
+                granted.add(name);
+            }
+            Log.i(TAG, packageName + " granted " + granted);
+            sGrantRecords.put(packageName, new GrantRecord(packageInfo.versionCode, granted));
+        }
+    }
+
+    /** Forgets what was granted to a package that is gone, so a reinstall is handled again. */
+    public static void onPackageRemoved(String packageName) {
+        sGrantRecords.remove(packageName);
+    }
+
 	//pjz 20190404 [S]
     public static void slientGrantRuntimePermission(Context context, String packageName){
         PackageInfo packageInfo;
@@ -61,7 +61,7 @@ public class TemporaryFileManager extends BroadcastReceiver {
      */
     @NonNull
     public static File getInstallStateFile(@NonNull Context context) {
-        return new File(context.getNoBackupFilesDir(), "install_results.xml");
+        return new File(context.getNoBackupFilesDir(), "install_results.log");
     }
 
     /**
@@ -73,7 +73,7 @@ public class TemporaryFileManager extends BroadcastReceiver {
      */
     @NonNull
     public static File getUninstallStateFile(@NonNull Context context) {
-        return new File(context.getNoBackupFilesDir(), "uninstall_results.xml");
+        return new File(context.getNoBackupFilesDir(), "uninstall_results.log");
     }
 
     @Override
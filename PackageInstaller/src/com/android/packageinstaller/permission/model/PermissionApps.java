@@ -29,7 +29,6 @@ import android.os.UserManager;
 import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.Log;
-import android.util.SparseArray;
 
 import com.android.packageinstaller.R;
 import com.android.packageinstaller.permission.utils.Utils;
@@ -46,8 +45,6 @@ public class PermissionApps {
     private final PackageManager mPm;
     private final Callback mCallback;
 
-    private final PmCache mCache;
-
     private CharSequence mLabel;
     private Drawable mIcon;
     private List<PermissionApp> mPermApps;
@@ -58,11 +55,6 @@ public class PermissionApps {
     private boolean mRefreshing;
 
     public PermissionApps(Context context, String groupName, Callback callback) {
-        this(context, groupName, callback, null);
-    }
-
-    public PermissionApps(Context context, String groupName, Callback callback, PmCache cache) {
-        mCache = cache;
         mContext = context;
         mPm = mContext.getPackageManager();
         mGroupName = groupName;
@@ -154,83 +146,42 @@ public class PermissionApps {
     }
 
     private List<PermissionApp> loadPermissionApps() {
-        PackageItemInfo groupInfo = getGroupInfo(mGroupName);
-        if (groupInfo == null) {
-            return Collections.emptyList();
-        }
-
-        List<PermissionInfo> groupPermInfos = getGroupPermissionInfos(mGroupName);
-        if (groupPermInfos == null) {
-            return Collections.emptyList();
-        }
+        PermissionModel model = PermissionModel.getInstance(mContext);
 
         ArrayList<PermissionApp> permApps = new ArrayList<>();
 
         UserManager userManager = mContext.getSystemService(UserManager.class);
         for (UserHandle user : userManager.getUserProfiles()) {
-            List<PackageInfo> apps = mCache != null ? mCache.getPackages(user.getIdentifier())
-                    : mPm.getInstalledPackagesAsUser(PackageManager.GET_PERMISSIONS,
-                            user.getIdentifier());
+            List<PackageInfo> apps = model.getPackages(user.getIdentifier());
 
             final int N = apps.size();
             for (int i = 0; i < N; i++) {
                 PackageInfo app = apps.get(i);
-                if (app.requestedPermissions == null) {
+
+                AppPermissionGroup group = model.getAppPermissionGroup(user.getIdentifier(),
+                        app.packageName, mGroupName);
+
+                if (group == null) {
                     continue;
                 }
 
-                for (int j = 0; j < app.requestedPermissions.length; j++) {
-                    String requestedPerm = app.requestedPermissions[j];
-
-                    PermissionInfo requestedPermissionInfo = null;
-
-                    for (PermissionInfo groupPermInfo : groupPermInfos) {
-                        if (requestedPerm.equals(groupPermInfo.name)) {
-                            requestedPermissionInfo = groupPermInfo;
-                            break;
-                        }
-                    }
-
-                    if (requestedPermissionInfo == null) {
-                        continue;
-                    }
-
-                    if ((requestedPermissionInfo.protectionLevel
-                                & PermissionInfo.PROTECTION_MASK_BASE)
-                                    != PermissionInfo.PROTECTION_DANGEROUS
-                            || (requestedPermissionInfo.flags
-                                & PermissionInfo.FLAG_INSTALLED) == 0
-                            || (requestedPermissionInfo.flags
-                                & PermissionInfo.FLAG_REMOVED) != 0) {
-                        continue;
-                    }
-
-                    AppPermissionGroup group = AppPermissionGroup.create(mContext,
-                            app, groupInfo, groupPermInfos, user);
-
-                    if (group == null) {
-                        continue;
-                    }
-
-                    String label = mSkipUi ? app.packageName
-                            : app.applicationInfo.loadLabel(mPm).toString();
-
-                    Drawable icon = null;
-                    if (!mSkipUi) {
-                        UserHandle userHandle = new UserHandle(
-                                UserHandle.getUserId(group.getApp().applicationInfo.uid));
-
-                        icon = mPm.getUserBadgedIcon(
-                                mPm.loadUnbadgedItemIcon(app.applicationInfo, app.applicationInfo),
-                                userHandle);
-                    }
-
-                    PermissionApp permApp = new PermissionApp(app.packageName, group, label, icon,
-                            app.applicationInfo);
-
-                    permApps.add(permApp);
-                    break; // move to the next app.
+                String label = mSkipUi ? app.packageName
+                        : app.applicationInfo.loadLabel(mPm).toString();
+
+                Drawable icon = null;
+                if (!mSkipUi) {
+                    UserHandle userHandle = new UserHandle(
+                            UserHandle.getUserId(group.getApp().applicationInfo.uid));
+
+                    icon = mPm.getUserBadgedIcon(
+                            mPm.loadUnbadgedItemIcon(app.applicationInfo, app.applicationInfo),
+                            userHandle);
                 }
+
+                PermissionApp permApp = new PermissionApp(app.packageName, group, label, icon,
+                        app.applicationInfo);
+
+                permApps.add(permApp);
             }
         }
 
@@ -247,38 +198,6 @@ public class PermissionApps {
         mPermApps = result;
     }
 
-    private PackageItemInfo getGroupInfo(String groupName) {
-        try {
-            return mContext.getPackageManager().getPermissionGroupInfo(groupName, 0);
-        } catch (NameNotFoundException e) {
-            /* ignore */
-        }
-        try {
-            return mContext.getPackageManager().getPermissionInfo(groupName, 0);
-        } catch (NameNotFoundException e2) {
-            /* ignore */
-        }
-        return null;
-    }
-
-    private List<PermissionInfo> getGroupPermissionInfos(String groupName) {
-        try {
-            return mContext.getPackageManager().queryPermissionsByGroup(groupName, 0);
-        } catch (NameNotFoundException e) {
-            /* ignore */
-        }
-        try {
-            PermissionInfo permissionInfo = mContext.getPackageManager()
-                    .getPermissionInfo(groupName, 0);
-            List<PermissionInfo> permissions = new ArrayList<>();
-            permissions.add(permissionInfo);
-            return permissions;
-        } catch (NameNotFoundException e2) {
-            /* ignore */
-        }
-        return null;
-    }
-
     private void loadGroupInfo() {
         PackageItemInfo info;
         try {
@@ -414,29 +333,6 @@ public class PermissionApps {
         }
     }
 
-    /**
-     * Class used to reduce the number of calls to the package manager.
-     * This caches app information so it should only be used across parallel PermissionApps
-     * instances, and should not be retained across UI refresh.
-     */
-    public static class PmCache {
-        private final SparseArray<List<PackageInfo>> mPackageInfoCache = new SparseArray<>();
-        private final PackageManager mPm;
-
-        public PmCache(PackageManager pm) {
-            mPm = pm;
-        }
-
-        public synchronized List<PackageInfo> getPackages(int userId) {
-            List<PackageInfo> ret = mPackageInfoCache.get(userId);
-            if (ret == null) {
-                ret = mPm.getInstalledPackagesAsUser(PackageManager.GET_PERMISSIONS, userId);
-                mPackageInfoCache.put(userId, ret);
-            }
-            return ret;
-        }
-    }
-
     public interface Callback {
         void onPermissionsLoaded(PermissionApps permissionApps);
     }
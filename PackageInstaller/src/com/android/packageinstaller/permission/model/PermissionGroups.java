@@ -28,6 +28,7 @@ import android.content.pm.PermissionGroupInfo;
 import android.content.pm.PermissionInfo;
 import android.graphics.drawable.Drawable;
 import android.os.Bundle;
+import android.os.UserHandle;
 import android.util.ArraySet;
 
 import com.android.packageinstaller.R;
@@ -92,28 +93,28 @@ public final class PermissionGroups implements LoaderCallbacks<List<PermissionGr
     }
 
     private static final class PermissionsLoader extends AsyncTaskLoader<List<PermissionGroup>>
-            implements PackageManager.OnPermissionsChangedListener {
+            implements PermissionModel.Listener {
+        private final PermissionModel mModel;
 
         public PermissionsLoader(Context context) {
             super(context);
+            mModel = PermissionModel.getInstance(context);
         }
 
         @Override
         protected void onStartLoading() {
-            getContext().getPackageManager().addOnPermissionsChangeListener(this);
+            mModel.addListener(this);
             forceLoad();
         }
 
         @Override
         protected void onStopLoading() {
-            getContext().getPackageManager().removeOnPermissionsChangeListener(this);
+            mModel.removeListener(this);
         }
 
         @Override
         public List<PermissionGroup> loadInBackground() {
             ArraySet<String> launcherPkgs = Utils.getLauncherPackages(getContext());
-            PermissionApps.PmCache pmCache = new PermissionApps.PmCache(
-                    getContext().getPackageManager());
 
             List<PermissionGroup> groups = new ArrayList<>();
             Set<String> seenPermissions = new ArraySet<>();
@@ -156,8 +157,7 @@ public final class PermissionGroups implements LoaderCallbacks<List<PermissionGr
                 CharSequence label = loadItemInfoLabel(groupInfo);
                 Drawable icon = loadItemInfoIcon(groupInfo);
 
-                PermissionApps permApps = new PermissionApps(getContext(), groupInfo.name, null,
-                        pmCache);
+                PermissionApps permApps = new PermissionApps(getContext(), groupInfo.name, null);
                 permApps.refreshSync();
 
                 // Create the group and add to the list.
@@ -169,8 +169,7 @@ public final class PermissionGroups implements LoaderCallbacks<List<PermissionGr
 
 
             // Make sure we add groups for lone runtime permissions.
-            List<PackageInfo> installedPackages = getContext().getPackageManager()
-                    .getInstalledPackages(PackageManager.GET_PERMISSIONS);
+            List<PackageInfo> installedPackages = mModel.getPackages(UserHandle.myUserId());
 
 
             // We will filter out permissions that no package requests.
@@ -211,7 +210,7 @@ public final class PermissionGroups implements LoaderCallbacks<List<PermissionGr
                     Drawable icon = loadItemInfoIcon(permissionInfo);
 
                     PermissionApps permApps = new PermissionApps(getContext(), permissionInfo.name,
-                            null, pmCache);
+                            null);
                     permApps.refreshSync();
 
                     // Create the group and add to the list.
@@ -248,8 +247,8 @@ public final class PermissionGroups implements LoaderCallbacks<List<PermissionGr
         }
 
         @Override
-        public void onPermissionsChanged(int uid) {
-            forceLoad();
+        public void onPermissionModelChanged() {
+            onContentChanged();
         }
     }
 }
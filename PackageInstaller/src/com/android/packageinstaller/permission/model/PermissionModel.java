@@ -0,0 +1,462 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.packageinstaller.permission.model;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageItemInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.content.pm.PermissionInfo;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.UserHandle;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Process wide model of the installed packages and of the permission groups they request,
+ * shared by all {@link PermissionApps} and {@link PermissionGroups}.
+ *
+ * <p>The packages of a user are loaded once, then only the packages named by package broadcasts
+ * and permission change callbacks are loaded again. The {@link AppPermissionGroup} of a package
+ * is created the first time it is asked for and kept until the package or its permissions
+ * change. Groups of all packages are dropped when a package that defines permissions changes.
+ */
+public final class PermissionModel {
+    private static PermissionModel sInstance;
+
+    public interface Listener {
+        /**
+         * Called on the main thread after packages or permissions changed.
+         */
+        void onPermissionModelChanged();
+    }
+
+    private static final class PackageEntry {
+        final PackageInfo info;
+
+        /** Group name -> group of this package, null if no permission of the group is used */
+        final ArrayMap<String, AppPermissionGroup> groups = new ArrayMap<>();
+
+        PackageEntry(PackageInfo info) {
+            this.info = info;
+        }
+    }
+
+    private static final class GroupDefinition {
+        final PackageItemInfo info;
+        final List<PermissionInfo> permissions;
+
+        GroupDefinition(PackageItemInfo info, List<PermissionInfo> permissions) {
+            this.info = info;
+            this.permissions = permissions;
+        }
+    }
+
+    private final Context mContext;
+    private final PackageManager mPm;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private final Object mLock = new Object();
+
+    /** User id -> package name -> package, a user is missing until first asked for */
+    private final SparseArray<ArrayMap<String, PackageEntry>> mPackages = new SparseArray<>();
+
+    /** Group name -> definition, null if there is no such group */
+    private final ArrayMap<String, GroupDefinition> mGroups = new ArrayMap<>();
+
+    /**
+     * Changes are queued under their own lock so the main thread never waits for a load in
+     * progress, and applied before the next read.
+     */
+    private final Object mChangesLock = new Object();
+
+    /** User id -> names of packages to load again */
+    private SparseArray<ArraySet<String>> mChangedPackages = new SparseArray<>();
+
+    /** Uids whose permissions changed */
+    private ArraySet<Integer> mChangedUids = new ArraySet<>();
+
+    private final ArraySet<Listener> mListeners = new ArraySet<>();
+
+    private final Runnable mNotifyListeners = new Runnable() {
+        @Override
+        public void run() {
+            ArrayList<Listener> listeners;
+            synchronized (mListeners) {
+                listeners = new ArrayList<>(mListeners);
+            }
+            for (Listener listener : listeners) {
+                listener.onPermissionModelChanged();
+            }
+        }
+    };
+
+    private final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (Intent.ACTION_PACKAGE_REMOVED.equals(intent.getAction())
+                    && intent.getBooleanExtra(Intent.EXTRA_REPLACING, false)) {
+                // The package is added again right after
+                return;
+            }
+            onPackageChanged(getSendingUserId(), intent.getData().getSchemeSpecificPart());
+        }
+    };
+
+    private final PackageManager.OnPermissionsChangedListener mPermissionsListener =
+            this::onPermissionsChanged;
+
+    /**
+     * @return The model of this process
+     */
+    public static PermissionModel getInstance(Context context) {
+        synchronized (PermissionModel.class) {
+            if (sInstance == null) {
+                sInstance = new PermissionModel(context.getApplicationContext());
+            }
+            return sInstance;
+        }
+    }
+
+    @VisibleForTesting
+    PermissionModel(Context context) {
+        mContext = context;
+        mPm = context.getPackageManager();
+
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addDataScheme("package");
+        mContext.registerReceiverAsUser(mPackageReceiver, UserHandle.ALL, filter, null, null);
+        mPm.addOnPermissionsChangeListener(mPermissionsListener);
+    }
+
+    public void addListener(Listener listener) {
+        synchronized (mListeners) {
+            mListeners.add(listener);
+        }
+    }
+
+    public void removeListener(Listener listener) {
+        synchronized (mListeners) {
+            mListeners.remove(listener);
+        }
+    }
+
+    /**
+     * Load a package again before the next read.
+     *
+     * @param userId The user the package changed for
+     * @param packageName The package that was added, removed or changed
+     */
+    @VisibleForTesting
+    void onPackageChanged(int userId, String packageName) {
+        synchronized (mChangesLock) {
+            ArraySet<String> packageNames = mChangedPackages.get(userId);
+            if (packageNames == null) {
+                packageNames = new ArraySet<>();
+                mChangedPackages.put(userId, packageNames);
+            }
+            packageNames.add(packageName);
+        }
+        notifyListeners();
+    }
+
+    /**
+     * Load the packages of a uid again before the next read.
+     *
+     * @param uid The uid whose permissions changed
+     */
+    @VisibleForTesting
+    void onPermissionsChanged(int uid) {
+        synchronized (mChangesLock) {
+            mChangedUids.add(uid);
+        }
+        notifyListeners();
+    }
+
+    private void notifyListeners() {
+        // A burst of changes results in one callback
+        mMainHandler.removeCallbacks(mNotifyListeners);
+        mMainHandler.post(mNotifyListeners);
+    }
+
+    /**
+     * Get the installed packages of a user including their permissions.
+     *
+     * <p>Might call into the package manager, hence do not call on the main thread.
+     *
+     * @param userId The user to get the packages for
+     *
+     * @return The packages, the {@link PackageInfo}s must not be modified
+     */
+    public List<PackageInfo> getPackages(int userId) {
+        synchronized (mLock) {
+            applyChangesLocked();
+
+            ArrayMap<String, PackageEntry> packages = getPackagesLocked(userId);
+            int numPackages = packages.size();
+            List<PackageInfo> packageInfos = new ArrayList<>(numPackages);
+            for (int i = 0; i < numPackages; i++) {
+                packageInfos.add(packages.valueAt(i).info);
+            }
+            return packageInfos;
+        }
+    }
+
+    /**
+     * Get the permission group of a package.
+     *
+     * <p>Might call into the package manager, hence do not call on the main thread.
+     *
+     * @param userId The user the package is installed for
+     * @param packageName The package
+     * @param groupName The permission group, or a lone runtime permission
+     *
+     * @return The group, or {@code null} if the package uses no runtime permission of the group
+     */
+    public AppPermissionGroup getAppPermissionGroup(int userId, String packageName,
+            String groupName) {
+        synchronized (mLock) {
+            applyChangesLocked();
+
+            PackageEntry entry = getPackagesLocked(userId).get(packageName);
+            if (entry == null) {
+                return null;
+            }
+
+            int index = entry.groups.indexOfKey(groupName);
+            if (index >= 0) {
+                return entry.groups.valueAt(index);
+            }
+
+            AppPermissionGroup group = createAppPermissionGroupLocked(entry.info, groupName,
+                    UserHandle.of(userId));
+            entry.groups.put(groupName, group);
+            return group;
+        }
+    }
+
+    private ArrayMap<String, PackageEntry> getPackagesLocked(int userId) {
+        ArrayMap<String, PackageEntry> packages = mPackages.get(userId);
+        if (packages == null) {
+            List<PackageInfo> packageInfos = mPm.getInstalledPackagesAsUser(
+                    PackageManager.GET_PERMISSIONS, userId);
+
+            int numPackages = packageInfos.size();
+            packages = new ArrayMap<>(numPackages);
+            for (int i = 0; i < numPackages; i++) {
+                PackageInfo packageInfo = packageInfos.get(i);
+                packages.put(packageInfo.packageName, new PackageEntry(packageInfo));
+            }
+            mPackages.put(userId, packages);
+        }
+        return packages;
+    }
+
+    private void applyChangesLocked() {
+        SparseArray<ArraySet<String>> changedPackages;
+        ArraySet<Integer> changedUids;
+        synchronized (mChangesLock) {
+            if (mChangedPackages.size() == 0 && mChangedUids.isEmpty()) {
+                return;
+            }
+            changedPackages = mChangedPackages;
+            changedUids = mChangedUids;
+            mChangedPackages = new SparseArray<>();
+            mChangedUids = new ArraySet<>();
+        }
+
+        // The grant state is part of the package info, load the packages of the uids again
+        int numUids = changedUids.size();
+        for (int i = 0; i < numUids; i++) {
+            int uid = changedUids.valueAt(i);
+            int userId = UserHandle.getUserId(uid);
+            ArrayMap<String, PackageEntry> packages = mPackages.get(userId);
+            if (packages == null) {
+                continue;
+            }
+
+            int numPackages = packages.size();
+            for (int j = 0; j < numPackages; j++) {
+                if (packages.valueAt(j).info.applicationInfo.uid == uid) {
+                    ArraySet<String> packageNames = changedPackages.get(userId);
+                    if (packageNames == null) {
+                        packageNames = new ArraySet<>();
+                        changedPackages.put(userId, packageNames);
+                    }
+                    packageNames.add(packages.keyAt(j));
+                }
+            }
+        }
+
+        boolean definitionsChanged = false;
+        int numUsers = changedPackages.size();
+        for (int i = 0; i < numUsers; i++) {
+            int userId = changedPackages.keyAt(i);
+            ArrayMap<String, PackageEntry> packages = mPackages.get(userId);
+            if (packages == null) {
+                // Loaded in full when first asked for
+                continue;
+            }
+
+            ArraySet<String> packageNames = changedPackages.valueAt(i);
+            int numPackages = packageNames.size();
+            for (int j = 0; j < numPackages; j++) {
+                String packageName = packageNames.valueAt(j);
+
+                PackageInfo packageInfo;
+                try {
+                    packageInfo = mPm.getPackageInfoAsUser(packageName,
+                            PackageManager.GET_PERMISSIONS, userId);
+                } catch (NameNotFoundException e) {
+                    packageInfo = null;
+                }
+
+                PackageEntry oldEntry = packages.remove(packageName);
+                if (packageInfo != null) {
+                    packages.put(packageName, new PackageEntry(packageInfo));
+                }
+
+                if ((oldEntry != null && definesPermissions(oldEntry.info))
+                        || (packageInfo != null && definesPermissions(packageInfo))) {
+                    definitionsChanged = true;
+                }
+            }
+        }
+
+        if (definitionsChanged) {
+            mGroups.clear();
+
+            int numLoadedUsers = mPackages.size();
+            for (int i = 0; i < numLoadedUsers; i++) {
+                ArrayMap<String, PackageEntry> packages = mPackages.valueAt(i);
+                int numPackages = packages.size();
+                for (int j = 0; j < numPackages; j++) {
+                    packages.valueAt(j).groups.clear();
+                }
+            }
+        }
+    }
+
+    private static boolean definesPermissions(PackageInfo packageInfo) {
+        return packageInfo.permissions != null && packageInfo.permissions.length > 0;
+    }
+
+    private AppPermissionGroup createAppPermissionGroupLocked(PackageInfo app, String groupName,
+            UserHandle user) {
+        if (app.requestedPermissions == null) {
+            return null;
+        }
+
+        GroupDefinition definition = getGroupDefinitionLocked(groupName);
+        if (definition == null) {
+            return null;
+        }
+
+        for (String requestedPerm : app.requestedPermissions) {
+            PermissionInfo requestedPermissionInfo = null;
+
+            for (PermissionInfo groupPermInfo : definition.permissions) {
+                if (requestedPerm.equals(groupPermInfo.name)) {
+                    requestedPermissionInfo = groupPermInfo;
+                    break;
+                }
+            }
+
+            if (requestedPermissionInfo == null) {
+                continue;
+            }
+
+            if ((requestedPermissionInfo.protectionLevel
+                        & PermissionInfo.PROTECTION_MASK_BASE)
+                            != PermissionInfo.PROTECTION_DANGEROUS
+                    || (requestedPermissionInfo.flags
+                        & PermissionInfo.FLAG_INSTALLED) == 0
+                    || (requestedPermissionInfo.flags
+                        & PermissionInfo.FLAG_REMOVED) != 0) {
+                continue;
+            }
+
+            return AppPermissionGroup.create(mContext, app, definition.info,
+                    definition.permissions, user);
+        }
+
+        return null;
+    }
+
+    private GroupDefinition getGroupDefinitionLocked(String groupName) {
+        int index = mGroups.indexOfKey(groupName);
+        if (index >= 0) {
+            return mGroups.valueAt(index);
+        }
+
+        GroupDefinition definition = null;
+        PackageItemInfo groupInfo = getGroupInfo(groupName);
+        if (groupInfo != null) {
+            List<PermissionInfo> permissions = getGroupPermissionInfos(groupName);
+            if (permissions != null) {
+                definition = new GroupDefinition(groupInfo, permissions);
+            }
+        }
+        mGroups.put(groupName, definition);
+        return definition;
+    }
+
+    private PackageItemInfo getGroupInfo(String groupName) {
+        try {
+            return mPm.getPermissionGroupInfo(groupName, 0);
+        } catch (NameNotFoundException e) {
+            /* ignore */
+        }
+        try {
+            return mPm.getPermissionInfo(groupName, 0);
+        } catch (NameNotFoundException e2) {
+            /* ignore */
+        }
+        return null;
+    }
+
+    private List<PermissionInfo> getGroupPermissionInfos(String groupName) {
+        try {
+            return mPm.queryPermissionsByGroup(groupName, 0);
+        } catch (NameNotFoundException e) {
+            /* ignore */
+        }
+        try {
+            PermissionInfo permissionInfo = mPm.getPermissionInfo(groupName, 0);
+            List<PermissionInfo> permissions = new ArrayList<>();
+            permissions.add(permissionInfo);
+            return permissions;
+        } catch (NameNotFoundException e2) {
+            /* ignore */
+        }
+        return null;
+    }
+}
@@ -26,7 +26,6 @@ import android.util.ArraySet;
 import android.util.Log;
 
 import com.android.packageinstaller.R;
-import com.android.packageinstaller.permission.model.PermissionApps.PmCache;
 import com.android.packageinstaller.permission.model.PermissionGroup;
 import com.android.packageinstaller.permission.model.PermissionGroups;
 import com.android.packageinstaller.permission.utils.Utils;
@@ -122,9 +121,6 @@ abstract class ManagePermissionsFragment extends PermissionsFrameFragment
             screen.removeAll();
         }
 
-        // Use this to speed up getting the info for all of the PermissionApps below.
-        // Create a new one for each refresh to make sure it has fresh data.
-        PmCache cache = new PmCache(getContext().getPackageManager());
         for (PermissionGroup group : groups) {
             // / M: CTA requirement - permission control @{
             CtaManager manager = CtaManagerFactory.getInstance().makeCtaManager();
@@ -0,0 +1,314 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.packageinstaller;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageInstaller;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Writes the result log of {@link EventResultPersister} synchronously and reads it back the way
+ * the package installer does after its process was killed, and measures how long persisting a
+ * change takes while many results are waiting to be delivered.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class EventResultPersisterTest {
+    private static final String LOG_TAG = EventResultPersisterTest.class.getSimpleName();
+    private static final int BENCHMARK_RESULTS = 1000;
+    private static final int BENCHMARK_CHANGES = 50;
+
+    private Context mContext;
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mFile = new File(mContext.getCacheDir(), "EventResultPersisterTest.log");
+        deleteFiles();
+    }
+
+    @After
+    public void tearDown() {
+        deleteFiles();
+    }
+
+    @Test
+    public void testReplay() throws Exception {
+        EventResultPersister persister = newPersister();
+        int first = persister.getNewId();
+        int second = persister.getNewId();
+        storeResult(persister, first, PackageInstaller.STATUS_SUCCESS, "first");
+        storeResult(persister, second, PackageInstaller.STATUS_FAILURE, null);
+
+        persister = newPersister();
+        assertResult(persister, first, PackageInstaller.STATUS_SUCCESS, "first");
+        assertEquals(second + 1, persister.getNewId());
+
+        // The delivered result is consumed, the other one is still there
+        persister = newPersister();
+        assertNoResult(persister, first);
+        assertResult(persister, second, PackageInstaller.STATUS_FAILURE, null);
+    }
+
+    @Test
+    public void testTruncatedTailIsDropped() throws Exception {
+        EventResultPersister persister = newPersister();
+        int first = persister.getNewId();
+        int second = persister.getNewId();
+        storeResult(persister, first, PackageInstaller.STATUS_SUCCESS, "first");
+        byte[] complete = Files.readAllBytes(mFile.toPath());
+        storeResult(persister, second, PackageInstaller.STATUS_FAILURE, "second");
+        byte[] withTail = Files.readAllBytes(mFile.toPath());
+
+        // A crash can interrupt the append of the last record after any byte
+        for (int length = complete.length + 1; length < withTail.length; length++) {
+            writeFile(Arrays.copyOf(withTail, length));
+
+            // Replaced by a snapshot of the counter and the first result
+            persister = newPersister();
+            assertEquals("length " + length, 2, persister.getNumLoggedRecords());
+            assertNoResult(persister, second);
+
+            // Records appended later must not end up behind the torn one
+            storeResult(persister, second, PackageInstaller.STATUS_FAILURE, "again");
+            persister = newPersister();
+            assertResult(persister, first, PackageInstaller.STATUS_SUCCESS, "first");
+            assertResult(persister, second, PackageInstaller.STATUS_FAILURE, "again");
+        }
+    }
+
+    @Test
+    public void testCorruptTailIsDropped() throws Exception {
+        EventResultPersister persister = newPersister();
+        int first = persister.getNewId();
+        int second = persister.getNewId();
+        storeResult(persister, first, PackageInstaller.STATUS_SUCCESS, "first");
+        storeResult(persister, second, PackageInstaller.STATUS_FAILURE, "second");
+
+        // Flip a bit in the payload of the last record so that its checksum does not match
+        byte[] log = Files.readAllBytes(mFile.toPath());
+        log[log.length - 1] ^= 1;
+        writeFile(log);
+
+        persister = newPersister();
+        assertNoResult(persister, second);
+        assertResult(persister, first, PackageInstaller.STATUS_SUCCESS, "first");
+
+        storeResult(persister, second, PackageInstaller.STATUS_FAILURE, "again");
+        persister = newPersister();
+        assertResult(persister, second, PackageInstaller.STATUS_FAILURE, "again");
+    }
+
+    @Test
+    public void testGarbageLogIsDiscarded() throws Exception {
+        writeFile(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9 });
+
+        EventResultPersister persister = newPersister();
+        int id = persister.getNewId();
+        storeResult(persister, id, PackageInstaller.STATUS_SUCCESS, null);
+
+        persister = newPersister();
+        assertResult(persister, id, PackageInstaller.STATUS_SUCCESS, null);
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        EventResultPersister persister = newPersister();
+        int kept = persister.getNewId();
+        storeResult(persister, kept, PackageInstaller.STATUS_SUCCESS, "kept");
+
+        // Every install adds three records of which none is needed once the result is delivered
+        int lastId = kept;
+        for (int i = 0; i < EventResultPersister.MIN_RECORDS_TO_COMPACT; i++) {
+            lastId = persister.getNewId();
+            storeResult(persister, lastId, PackageInstaller.STATUS_SUCCESS, "install " + i);
+            assertResult(persister, lastId, PackageInstaller.STATUS_SUCCESS, "install " + i);
+        }
+        assertTrue("log was not compacted",
+                persister.getNumLoggedRecords() < EventResultPersister.MIN_RECORDS_TO_COMPACT);
+
+        persister = newPersister();
+        assertEquals(lastId + 1, persister.getNewId());
+        assertResult(persister, kept, PackageInstaller.STATUS_SUCCESS, "kept");
+    }
+
+    @Test
+    public void testFailedAppendFallsBackToSnapshot() throws Exception {
+        EventResultPersister persister = newPersister();
+        int first = persister.getNewId();
+        int second = persister.getNewId();
+
+        // Nothing can be appended to a directory
+        assertTrue(mFile.delete());
+        assertTrue(mFile.mkdir());
+        storeResult(persister, first, PackageInstaller.STATUS_SUCCESS, "first");
+        assertEquals(0, persister.getNumLoggedRecords());
+
+        // The next change replaces the log by a snapshot that includes the lost record
+        storeResult(persister, second, PackageInstaller.STATUS_FAILURE, "second");
+        persister = newPersister();
+        assertResult(persister, first, PackageInstaller.STATUS_SUCCESS, "first");
+        assertResult(persister, second, PackageInstaller.STATUS_FAILURE, "second");
+        assertEquals(second + 1, persister.getNewId());
+    }
+
+    /**
+     * Logs the time to persist one more result while {@link #BENCHMARK_RESULTS} results are
+     * waiting to be delivered, which appends a record, against writing a snapshot of all of
+     * them, which is what every change cost when the state was rewritten as a whole. Also logs
+     * the time to persist {@link #BENCHMARK_RESULTS} results queued while the writer was busy,
+     * and to read them back.
+     */
+    @LargeTest
+    @Test
+    public void testPersistLatency() throws Exception {
+        // The writer is busy until the queue is run
+        ArrayList<Runnable> queue = new ArrayList<>();
+        EventResultPersister persister = new EventResultPersister(mFile, queue::add);
+        int[] ids = new int[BENCHMARK_RESULTS];
+        for (int i = 0; i < BENCHMARK_RESULTS; i++) {
+            ids[i] = persister.getNewId();
+            storeResult(persister, ids[i], PackageInstaller.STATUS_SUCCESS, "install " + i);
+        }
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (Runnable write : queue) {
+            write.run();
+        }
+        long queuedNs = SystemClock.elapsedRealtimeNanos() - start;
+        int numQueuedWrites = queue.size();
+        // All of them went out together
+        assertEquals(1, numQueuedWrites);
+
+        start = SystemClock.elapsedRealtimeNanos();
+        persister = newPersister();
+        long replayNs = SystemClock.elapsedRealtimeNanos() - start;
+        int lastId = ids[BENCHMARK_RESULTS - 1];
+
+        start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < BENCHMARK_CHANGES; i++) {
+            lastId = persister.getNewId();
+            storeResult(persister, lastId, PackageInstaller.STATUS_SUCCESS, "append " + i);
+        }
+        long appendNs = (SystemClock.elapsedRealtimeNanos() - start) / BENCHMARK_CHANGES;
+
+        // A corrupt tail, here the last result, makes the log be replaced by a snapshot
+        long snapshotNs = 0;
+        for (int i = 0; i < BENCHMARK_CHANGES; i++) {
+            byte[] log = Files.readAllBytes(mFile.toPath());
+            log[log.length - 1] ^= 1;
+            writeFile(log);
+            queue.clear();
+            persister = new EventResultPersister(mFile, queue::add);
+            start = SystemClock.elapsedRealtimeNanos();
+            for (Runnable write : queue) {
+                write.run();
+            }
+            snapshotNs += SystemClock.elapsedRealtimeNanos() - start;
+            assertEquals(BENCHMARK_RESULTS + BENCHMARK_CHANGES, persister.getNumLoggedRecords());
+
+            persister = newPersister();
+            storeResult(persister, lastId, PackageInstaller.STATUS_SUCCESS, "again " + i);
+        }
+        snapshotNs /= BENCHMARK_CHANGES;
+
+        Log.d(LOG_TAG, "With " + BENCHMARK_RESULTS + " results: " + numQueuedWrites
+                + " writes of queued results " + queuedNs / 1000 + " us, replay "
+                + replayNs / 1000 + " us; per change: append " + appendNs / 1000
+                + " us, snapshot " + snapshotNs / 1000 + " us (" + mFile.length() / 1024
+                + " KB)");
+        persister = newPersister();
+        assertResult(persister, ids[0], PackageInstaller.STATUS_SUCCESS, "install 0");
+    }
+
+    private EventResultPersister newPersister() {
+        // Write on the calling thread so that the log is complete when a call returns
+        return new EventResultPersister(mFile, Runnable::run);
+    }
+
+    private void storeResult(EventResultPersister persister, int id, int status,
+            String message) {
+        Intent intent = new Intent();
+        intent.putExtra(EventResultPersister.EXTRA_ID, id);
+        intent.putExtra(PackageInstaller.EXTRA_STATUS, status);
+        intent.putExtra(PackageInstaller.EXTRA_STATUS_MESSAGE, message);
+        persister.onEventReceived(mContext, intent);
+    }
+
+    private static void assertResult(EventResultPersister persister, int id, int status,
+            String message) throws Exception {
+        RecordingObserver observer = new RecordingObserver();
+        persister.addObserver(id, observer);
+        assertTrue("no result for " + id, observer.mCalled);
+        assertEquals(status, observer.mStatus);
+        assertEquals(message, observer.mMessage);
+    }
+
+    private static void assertNoResult(EventResultPersister persister, int id)
+            throws Exception {
+        RecordingObserver observer = new RecordingObserver();
+        persister.addObserver(id, observer);
+        persister.removeObserver(id);
+        assertFalse("unexpected result for " + id, observer.mCalled);
+    }
+
+    private void writeFile(byte[] content) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(mFile)) {
+            out.write(content);
+        }
+    }
+
+    private void deleteFiles() {
+        mFile.delete();
+        new File(mFile.getPath() + ".bak").delete();
+    }
+
+    private static class RecordingObserver implements EventResultPersister.EventResultObserver {
+        boolean mCalled;
+        int mStatus;
+        String mMessage;
+
+        @Override
+        public void onResult(int status, int legacyStatus, String message) {
+            mCalled = true;
+            mStatus = status;
+            mMessage = message;
+        }
+    }
+}
@@ -0,0 +1,308 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.packageinstaller;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.content.res.AssetFileDescriptor;
+import android.os.Debug;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Copies files, asset ranges, pipes and slow streams with {@link PackageCopier} and compares the
+ * throughput and heap use of the transferTo path with the buffered copy it replaced.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class PackageCopierTest {
+    private static final String LOG_TAG = PackageCopierTest.class.getSimpleName();
+    private static final long SEED = 1213;
+    private static final int MB = 1024 * 1024;
+
+    /** Crosses the 8 MB transfer steps and does not end on a block */
+    private static final int PACKAGE_SIZE = 9 * MB + 17;
+    private static final int[] BENCHMARK_SIZES_MB = { 50, 200, 800 };
+
+    private File mDir;
+    private File mSource;
+    private File mTarget;
+    private byte[] mContent;
+
+    @Before
+    public void setUp() throws Exception {
+        mDir = new File(InstrumentationRegistry.getTargetContext().getCacheDir(),
+                "PackageCopierTest");
+        assertTrue(mDir.isDirectory() || mDir.mkdirs());
+        mSource = new File(mDir, "source.apk");
+        mTarget = new File(mDir, "target.apk");
+        mContent = new byte[PACKAGE_SIZE];
+        new Random(SEED).nextBytes(mContent);
+        Files.write(mSource.toPath(), mContent);
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : mDir.listFiles()) {
+            file.delete();
+        }
+        mDir.delete();
+    }
+
+    @Test
+    public void testFileIsTransferred() throws Exception {
+        RecordingCallback callback = new RecordingCallback();
+        try (InputStream in = new FileInputStream(mSource);
+                OutputStream out = new NoWriteOutputStream(mTarget)) {
+            assertTrue(PackageCopier.copy(in, out, mContent.length, callback));
+        }
+        assertArrayEquals(mContent, Files.readAllBytes(mTarget.toPath()));
+        assertEquals(1f, callback.getTotalFraction(), 1e-3f);
+    }
+
+    @Test
+    public void testTransferStartsAtStreamPosition() throws Exception {
+        try (InputStream in = new FileInputStream(mSource);
+                OutputStream out = new NoWriteOutputStream(mTarget)) {
+            assertEquals(100, in.skip(100));
+            assertTrue(PackageCopier.copy(in, out, -1, null));
+        }
+        assertArrayEquals(Arrays.copyOfRange(mContent, 100, mContent.length),
+                Files.readAllBytes(mTarget.toPath()));
+    }
+
+    @Test
+    public void testOtherStreamsAreBuffered() throws Exception {
+        RecordingCallback callback = new RecordingCallback();
+        int[] numWrites = new int[1];
+        // E.g. a stream that decrypts, or only exposes part of the file
+        try (InputStream in = new FileInputStream(mSource) { };
+                OutputStream out = new FileOutputStream(mTarget) {
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        numWrites[0]++;
+                        super.write(b, off, len);
+                    }
+                }) {
+            assertTrue(PackageCopier.copy(in, out, mContent.length, callback));
+        }
+        assertTrue(numWrites[0] > 0);
+        assertArrayEquals(mContent, Files.readAllBytes(mTarget.toPath()));
+        assertEquals(1f, callback.getTotalFraction(), 1e-3f);
+    }
+
+    /** What a provider that serves an APK out of a larger file returns. */
+    @Test
+    public void testAssetRangeIsCopiedOnly() throws Exception {
+        int start = 4096 + 3;
+        int length = 2 * MB + 5;
+        AssetFileDescriptor asset = new AssetFileDescriptor(
+                ParcelFileDescriptor.open(mSource, ParcelFileDescriptor.MODE_READ_ONLY),
+                start, length);
+        try (InputStream in = asset.createInputStream();
+                OutputStream out = new FileOutputStream(mTarget)) {
+            assertTrue(PackageCopier.copy(in, out, length, null));
+        }
+        assertArrayEquals(Arrays.copyOfRange(mContent, start, start + length),
+                Files.readAllBytes(mTarget.toPath()));
+    }
+
+    /** What a provider that streams the APK returns; the pipe reports a size of 0. */
+    @Test
+    public void testPipeIsRead() throws Exception {
+        ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
+        Thread writer = new Thread(() -> {
+            try (OutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(pipe[1])) {
+                out.write(mContent);
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Could not write to pipe", e);
+            }
+        });
+        writer.start();
+        try (InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(pipe[0]);
+                OutputStream out = new FileOutputStream(mTarget)) {
+            assertTrue(PackageCopier.copy(in, out, -1, null));
+        }
+        writer.join();
+        assertArrayEquals(mContent, Files.readAllBytes(mTarget.toPath()));
+    }
+
+    @Test
+    public void testCancelledTransferStops() throws Exception {
+        RecordingCallback callback = new RecordingCallback();
+        callback.mCancelAfterChecks = 1;
+        try (InputStream in = new FileInputStream(mSource);
+                OutputStream out = new FileOutputStream(mTarget)) {
+            assertFalse(PackageCopier.copy(in, out, mContent.length, callback));
+        }
+        assertTrue(mTarget.length() < mContent.length);
+    }
+
+    @Test
+    public void testCancelledBufferedCopyStops() throws Exception {
+        RecordingCallback callback = new RecordingCallback();
+        callback.mCancelAfterChecks = 1;
+        try (InputStream in = new ByteArrayInputStream(mContent);
+                OutputStream out = new FileOutputStream(mTarget)) {
+            assertFalse(PackageCopier.copy(in, out, mContent.length, callback));
+        }
+        assertTrue(mTarget.length() < mContent.length);
+    }
+
+    @Test
+    public void testProgressIsThrottled() throws Exception {
+        RecordingCallback callback = new RecordingCallback();
+        long start = SystemClock.elapsedRealtime();
+        try (InputStream in = new SlowInputStream(Arrays.copyOf(mContent, 2 * MB));
+                OutputStream out = new FileOutputStream(mTarget)) {
+            assertTrue(PackageCopier.copy(in, out, 2 * MB, callback));
+        }
+        long duration = SystemClock.elapsedRealtime() - start;
+
+        // One report right away, at most one per interval, and the rest when done
+        assertTrue(callback.mFractions.size() + " reports in " + duration + " ms",
+                callback.mFractions.size() <= duration / PackageCopier.PROGRESS_INTERVAL_MS + 2);
+        assertTrue(callback.mFractions.size() >= 2);
+        assertEquals(1f, callback.getTotalFraction(), 1e-3f);
+    }
+
+    /**
+     * Logs the throughput and the bytes allocated on the copying thread for the transferTo path
+     * and for the buffered copy that every stream used before, for packages of
+     * {@link #BENCHMARK_SIZES_MB}. Sizes that do not fit twice into the cache are skipped.
+     */
+    @LargeTest
+    @Test
+    public void testCopyThroughput() throws Exception {
+        byte[] chunk = Arrays.copyOf(mContent, MB);
+        for (int sizeMb : BENCHMARK_SIZES_MB) {
+            long size = (long) sizeMb * MB;
+            if (mDir.getUsableSpace() < 2 * size + 64 * MB) {
+                Log.w(LOG_TAG, "Skipping " + sizeMb + " MB, only "
+                        + mDir.getUsableSpace() / MB + " MB free");
+                continue;
+            }
+            try (OutputStream out = new FileOutputStream(mSource)) {
+                for (int i = 0; i < sizeMb; i++) {
+                    out.write(chunk);
+                }
+            }
+
+            long[] transferred = measureCopy(new FileInputStream(mSource), size);
+            long[] buffered = measureCopy(new FileInputStream(mSource) { }, size);
+            Log.d(LOG_TAG, sizeMb + " MB: transferTo " + transferred[0] + " MB/s, "
+                    + transferred[1] / 1024 + " KB allocated; buffered " + buffered[0]
+                    + " MB/s, " + buffered[1] / 1024 + " KB allocated");
+            assertTrue(transferred[1] < MB);
+        }
+    }
+
+    /** @return the throughput in MB/s and the bytes allocated by the copy */
+    private long[] measureCopy(InputStream in, long size) throws IOException {
+        mTarget.delete();
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocSize();
+        long start = SystemClock.elapsedRealtimeNanos();
+        try (InputStream autoClose = in; OutputStream out = new FileOutputStream(mTarget)) {
+            assertTrue(PackageCopier.copy(autoClose, out, size, new RecordingCallback()));
+        }
+        long durationNs = Math.max(1, SystemClock.elapsedRealtimeNanos() - start);
+        long allocated = Debug.getThreadAllocSize();
+        Debug.stopAllocCounting();
+        assertEquals(size, mTarget.length());
+        return new long[] { size * 1000000000L / durationNs / MB, allocated };
+    }
+
+    /** Only accepts data through its channel, i.e. by transferTo. */
+    private static class NoWriteOutputStream extends FileOutputStream {
+        NoWriteOutputStream(File file) throws IOException {
+            super(file);
+        }
+
+        @Override
+        public void write(int b) {
+            fail("copied through the buffer");
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            fail("copied through the buffer");
+        }
+    }
+
+    /** Returns at most 4 KB per read and takes a millisecond for each, like a slow provider. */
+    private static class SlowInputStream extends ByteArrayInputStream {
+        SlowInputStream(byte[] content) {
+            super(content);
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            SystemClock.sleep(1);
+            return super.read(b, off, Math.min(len, 4096));
+        }
+    }
+
+    private static class RecordingCallback implements PackageCopier.Callback {
+        final ArrayList<Float> mFractions = new ArrayList<>();
+        int mCancelAfterChecks = Integer.MAX_VALUE;
+
+        @Override
+        public boolean isCancelled() {
+            return mCancelAfterChecks-- <= 0;
+        }
+
+        @Override
+        public void onProgress(float fraction) {
+            mFractions.add(fraction);
+        }
+
+        float getTotalFraction() {
+            float total = 0;
+            for (float fraction : mFractions) {
+                total += fraction;
+            }
+            return total;
+        }
+    }
+}
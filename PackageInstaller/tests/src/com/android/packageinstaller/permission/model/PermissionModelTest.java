@@ -0,0 +1,365 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.packageinstaller.permission.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.content.pm.PermissionGroupInfo;
+import android.content.pm.PermissionInfo;
+import android.os.Build;
+import android.os.Handler;
+import android.os.UserHandle;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.ArrayMap;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Changes the packages of a fake package manager and checks that the incrementally updated
+ * {@link PermissionModel} matches a model that is built from scratch.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class PermissionModelTest {
+    private static final int USER_ID = 0;
+    private static final int FIRST_APP_ID = 10100;
+    private static final int NUM_APPS = 6;
+    private static final int CHANGES = 300;
+
+    private static final String DEFINER = "com.example.definer";
+    private static final String GROUP_A = "com.example.permission-group.A";
+    private static final String GROUP_B = "com.example.permission-group.B";
+    private static final String PERM_A1 = "com.example.permission.A1";
+    private static final String PERM_A2 = "com.example.permission.A2";
+    private static final String PERM_B1 = "com.example.permission.B1";
+    private static final String PERM_NORMAL = "android.permission.INTERNET";
+
+    private static final String[] GROUPS = { GROUP_A, GROUP_B };
+    private static final String[] PERMISSIONS = { PERM_A1, PERM_A2, PERM_B1, PERM_NORMAL };
+
+    /** Package name -> currently installed package of the fake package manager */
+    private final ArrayMap<String, PackageInfo> mInstalled = new ArrayMap<>();
+
+    private Context mContext;
+
+    @Before
+    public void setUp() throws Exception {
+        PackageManager packageManager = createPackageManager();
+        mContext = new ContextWrapper(InstrumentationRegistry.getTargetContext()) {
+            @Override
+            public PackageManager getPackageManager() {
+                return packageManager;
+            }
+
+            @Override
+            public Intent registerReceiverAsUser(BroadcastReceiver receiver, UserHandle user,
+                    IntentFilter filter, String broadcastPermission, Handler scheduler) {
+                // Changes are delivered by the test
+                return null;
+            }
+        };
+        installDefiner(PERM_A1, PERM_B1);
+    }
+
+    @Test
+    public void testPermissionChangeReloadsPackagesOfUid() {
+        // Two packages sharing a uid
+        installApp(0, FIRST_APP_ID, new String[] { PERM_A1 }, new boolean[] { false });
+        installApp(1, FIRST_APP_ID, new String[] { PERM_A1 }, new boolean[] { false });
+        PermissionModel model = new PermissionModel(mContext);
+        assertGranted(model, 0, GROUP_A, PERM_A1, false);
+        assertGranted(model, 1, GROUP_A, PERM_A1, false);
+
+        installApp(0, FIRST_APP_ID, new String[] { PERM_A1 }, new boolean[] { true });
+        installApp(1, FIRST_APP_ID, new String[] { PERM_A1 }, new boolean[] { true });
+        model.onPermissionsChanged(UserHandle.getUid(USER_ID, FIRST_APP_ID));
+        assertGranted(model, 0, GROUP_A, PERM_A1, true);
+        assertGranted(model, 1, GROUP_A, PERM_A1, true);
+        assertMatchesFullRebuild(model);
+    }
+
+    @Test
+    public void testDefinitionChangeDropsGroups() {
+        installApp(0, FIRST_APP_ID, new String[] { PERM_A2 }, new boolean[] { true });
+        PermissionModel model = new PermissionModel(mContext);
+        assertNull(model.getAppPermissionGroup(USER_ID, appName(0), GROUP_A));
+
+        installDefiner(PERM_A1, PERM_A2, PERM_B1);
+        model.onPackageChanged(USER_ID, DEFINER);
+        assertGranted(model, 0, GROUP_A, PERM_A2, true);
+
+        mInstalled.remove(DEFINER);
+        model.onPackageChanged(USER_ID, DEFINER);
+        assertNull(model.getAppPermissionGroup(USER_ID, appName(0), GROUP_A));
+        assertMatchesFullRebuild(model);
+    }
+
+    @Test
+    public void testRandomChangesMatchFullRebuild() {
+        Random random = new Random(0);
+        PermissionModel model = new PermissionModel(mContext);
+
+        for (int i = 0; i < CHANGES; i++) {
+            // Fill the caches of the model so that the change has something to invalidate
+            readAll(model);
+
+            int app = random.nextInt(NUM_APPS);
+            switch (random.nextInt(4)) {
+                case 0:
+                    installRandomApp(random, app);
+                    model.onPackageChanged(USER_ID, appName(app));
+                    break;
+                case 1:
+                    mInstalled.remove(appName(app));
+                    model.onPackageChanged(USER_ID, appName(app));
+                    break;
+                case 2:
+                    // Grants change for all packages of the uid at once
+                    int appId = appId(app);
+                    for (int j = 0; j < NUM_APPS; j++) {
+                        if (appId(j) == appId && mInstalled.containsKey(appName(j))) {
+                            PackageInfo packageInfo = mInstalled.get(appName(j));
+                            installApp(j, appId, packageInfo.requestedPermissions,
+                                    randomGrants(random, packageInfo.requestedPermissions));
+                        }
+                    }
+                    model.onPermissionsChanged(UserHandle.getUid(USER_ID, appId));
+                    break;
+                case 3:
+                    ArrayList<String> defined = new ArrayList<>();
+                    for (String permission : new String[] { PERM_A1, PERM_A2, PERM_B1 }) {
+                        if (random.nextBoolean()) {
+                            defined.add(permission);
+                        }
+                    }
+                    if (defined.isEmpty()) {
+                        mInstalled.remove(DEFINER);
+                    } else {
+                        installDefiner(defined.toArray(new String[defined.size()]));
+                    }
+                    model.onPackageChanged(USER_ID, DEFINER);
+                    break;
+            }
+
+            assertMatchesFullRebuild(model);
+        }
+    }
+
+    private void assertMatchesFullRebuild(PermissionModel model) {
+        assertEquals(describe(new PermissionModel(mContext)), describe(model));
+
+        // The model holds the packages as last loaded from the package manager
+        for (PackageInfo packageInfo : model.getPackages(USER_ID)) {
+            assertSame(mInstalled.get(packageInfo.packageName), packageInfo);
+        }
+    }
+
+    private void assertGranted(PermissionModel model, int app, String groupName,
+            String permissionName, boolean granted) {
+        AppPermissionGroup group = model.getAppPermissionGroup(USER_ID, appName(app),
+                groupName);
+        assertNotNull(group);
+        assertEquals(granted, group.getPermission(permissionName).isGranted());
+    }
+
+    private static void readAll(PermissionModel model) {
+        for (PackageInfo packageInfo : model.getPackages(USER_ID)) {
+            for (String groupName : GROUPS) {
+                model.getAppPermissionGroup(USER_ID, packageInfo.packageName, groupName);
+            }
+        }
+    }
+
+    /**
+     * @return The packages and the permission groups with their grant state as seen by a model
+     */
+    private static String describe(PermissionModel model) {
+        ArrayList<String> packageNames = new ArrayList<>();
+        for (PackageInfo packageInfo : model.getPackages(USER_ID)) {
+            packageNames.add(packageInfo.packageName);
+        }
+        Collections.sort(packageNames);
+
+        StringBuilder description = new StringBuilder();
+        for (String packageName : packageNames) {
+            description.append(packageName).append(':');
+            for (String groupName : GROUPS) {
+                AppPermissionGroup group = model.getAppPermissionGroup(USER_ID, packageName,
+                        groupName);
+                if (group == null) {
+                    continue;
+                }
+                description.append(' ').append(group.getName()).append('[');
+                for (Permission permission : group.getPermissions()) {
+                    description.append(permission.getName()).append('=')
+                            .append(permission.isGranted()).append(',');
+                }
+                description.append(']');
+            }
+            description.append('\n');
+        }
+        return description.toString();
+    }
+
+    private void installRandomApp(Random random, int app) {
+        ArrayList<String> requested = new ArrayList<>();
+        for (String permission : PERMISSIONS) {
+            if (random.nextBoolean()) {
+                requested.add(permission);
+            }
+        }
+        String[] requestedPermissions = requested.toArray(new String[requested.size()]);
+        installApp(app, appId(app), requestedPermissions,
+                randomGrants(random, requestedPermissions));
+    }
+
+    private static boolean[] randomGrants(Random random, String[] requested) {
+        boolean[] granted = new boolean[requested.length];
+        for (int i = 0; i < granted.length; i++) {
+            granted[i] = random.nextBoolean();
+        }
+        return granted;
+    }
+
+    private void installApp(int app, int appId, String[] requested, boolean[] granted) {
+        PackageInfo packageInfo = createPackage(appName(app), appId);
+        packageInfo.requestedPermissions = requested;
+        packageInfo.requestedPermissionsFlags = new int[requested.length];
+        for (int i = 0; i < requested.length; i++) {
+            if (granted[i]) {
+                packageInfo.requestedPermissionsFlags[i] =
+                        PackageInfo.REQUESTED_PERMISSION_GRANTED;
+            }
+        }
+        mInstalled.put(packageInfo.packageName, packageInfo);
+    }
+
+    private void installDefiner(String... permissionNames) {
+        PackageInfo packageInfo = createPackage(DEFINER, FIRST_APP_ID + NUM_APPS);
+        packageInfo.permissions = new PermissionInfo[permissionNames.length];
+        for (int i = 0; i < permissionNames.length; i++) {
+            PermissionInfo permissionInfo = new PermissionInfo();
+            permissionInfo.name = permissionNames[i];
+            permissionInfo.packageName = DEFINER;
+            permissionInfo.group = permissionNames[i].equals(PERM_B1) ? GROUP_B : GROUP_A;
+            permissionInfo.protectionLevel = PermissionInfo.PROTECTION_DANGEROUS;
+            permissionInfo.flags = PermissionInfo.FLAG_INSTALLED;
+            packageInfo.permissions[i] = permissionInfo;
+        }
+        mInstalled.put(DEFINER, packageInfo);
+    }
+
+    private static PackageInfo createPackage(String packageName, int appId) {
+        PackageInfo packageInfo = new PackageInfo();
+        packageInfo.packageName = packageName;
+        packageInfo.applicationInfo = new ApplicationInfo();
+        packageInfo.applicationInfo.packageName = packageName;
+        packageInfo.applicationInfo.uid = UserHandle.getUid(USER_ID, appId);
+        packageInfo.applicationInfo.targetSdkVersion = Build.VERSION_CODES.O_MR1;
+        return packageInfo;
+    }
+
+    private static String appName(int app) {
+        return "com.example.app" + app;
+    }
+
+    /** The last two apps share a uid */
+    private static int appId(int app) {
+        return FIRST_APP_ID + Math.min(app, NUM_APPS - 2);
+    }
+
+    /**
+     * @return The permissions of a group defined by the installed packages
+     */
+    private List<PermissionInfo> getGroupPermissions(String groupName) {
+        ArrayList<PermissionInfo> permissions = new ArrayList<>();
+        for (PackageInfo packageInfo : mInstalled.values()) {
+            if (packageInfo.permissions == null) {
+                continue;
+            }
+            for (PermissionInfo permissionInfo : packageInfo.permissions) {
+                if (groupName.equals(permissionInfo.group)) {
+                    permissions.add(permissionInfo);
+                }
+            }
+        }
+        return permissions;
+    }
+
+    private PackageManager createPackageManager() throws Exception {
+        PackageManager packageManager = mock(PackageManager.class);
+        when(packageManager.getInstalledPackagesAsUser(anyInt(), eq(USER_ID))).thenAnswer(
+                invocation -> new ArrayList<>(mInstalled.values()));
+        when(packageManager.getPackageInfoAsUser(anyString(), anyInt(), eq(USER_ID)))
+                .thenAnswer(invocation -> {
+                    PackageInfo packageInfo = mInstalled.get(invocation.getArgument(0));
+                    if (packageInfo == null) {
+                        throw new NameNotFoundException();
+                    }
+                    return packageInfo;
+                });
+        when(packageManager.getPermissionGroupInfo(anyString(), anyInt())).thenAnswer(
+                invocation -> {
+                    String groupName = invocation.getArgument(0);
+                    if (getGroupPermissions(groupName).isEmpty()) {
+                        throw new NameNotFoundException();
+                    }
+                    PermissionGroupInfo groupInfo = new PermissionGroupInfo();
+                    groupInfo.name = groupName;
+                    groupInfo.packageName = DEFINER;
+                    return groupInfo;
+                });
+        when(packageManager.queryPermissionsByGroup(anyString(), anyInt())).thenAnswer(
+                invocation -> {
+                    List<PermissionInfo> permissions =
+                            getGroupPermissions(invocation.getArgument(0));
+                    if (permissions.isEmpty()) {
+                        throw new NameNotFoundException();
+                    }
+                    return permissions;
+                });
+        when(packageManager.getPermissionInfo(anyString(), anyInt())).thenThrow(
+                new NameNotFoundException());
+        return packageManager;
+    }
+}
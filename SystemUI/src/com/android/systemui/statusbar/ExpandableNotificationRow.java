@@ -828,6 +828,7 @@ public class ExpandableNotificationRow extends ActivatableNotificationView
     protected void onDetachedFromWindow() {
         super.onDetachedFromWindow();
         Dependency.get(PluginManager.class).removePluginListener(this);
+        mNotificationInflater.onRowDetached();
     }
 
     @Override
@@ -1216,6 +1217,10 @@ public class ExpandableNotificationRow extends ActivatableNotificationView
         mNotificationInflater.setRemoteViewClickHandler(remoteViewClickHandler);
     }
 
+    public void setInflationPriority(int priority) {
+        mNotificationInflater.setInflationPriority(priority);
+    }
+
     public void setInflationCallback(InflationCallback callback) {
         mNotificationInflater.setInflationCallback(callback);
     }
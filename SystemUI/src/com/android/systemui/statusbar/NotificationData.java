@@ -52,6 +52,7 @@ import com.android.systemui.statusbar.policy.HeadsUpManager;
 
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
@@ -91,6 +92,13 @@ public class NotificationData {
         private InflationTask mRunningTask = null;
         private Throwable mDebugThrowable;
 
+        // Sort inputs, the ranking ones are updated with the ranking, the others when sorting
+        private int mRankingImportance = NotificationManager.IMPORTANCE_DEFAULT;
+        private int mRankingRank;
+        private long mSortKey;
+        private long mSortWhen;
+        private boolean mIsSortedAndFiltered;
+
         public Entry(StatusBarNotification n) {
             this.key = n.getKey();
             this.notification = n;
@@ -277,62 +285,77 @@ public class NotificationData {
         mHeadsUpManager = headsUpManager;
     }
 
-    private final Comparator<Entry> mRankingComparator = new Comparator<Entry>() {
-        private final Ranking mRankingA = new Ranking();
-        private final Ranking mRankingB = new Ranking();
+    /** Entries shown by the last {@link #filterAndSort()}, reused to avoid allocations */
+    private final ArrayList<Entry> mPreviousSortedAndFiltered = new ArrayList<>();
 
-        @Override
-        public int compare(Entry a, Entry b) {
-            final StatusBarNotification na = a.notification;
-            final StatusBarNotification nb = b.notification;
-            int aImportance = NotificationManager.IMPORTANCE_DEFAULT;
-            int bImportance = NotificationManager.IMPORTANCE_DEFAULT;
-            int aRank = 0;
-            int bRank = 0;
-
-            if (mRankingMap != null) {
-                // RankingMap as received from NoMan
-                getRanking(a.key, mRankingA);
-                getRanking(b.key, mRankingB);
-                aImportance = mRankingA.getImportance();
-                bImportance = mRankingB.getImportance();
-                aRank = mRankingA.getRank();
-                bRank = mRankingB.getRank();
-            }
+    /** Indices into {@link #mEntries} of the entries filtered out, reused like the above */
+    private final BitSet mFilteredOut = new BitSet();
 
-            String mediaNotification = mEnvironment.getCurrentMediaNotificationKey();
+    private ForegroundServiceController mForegroundServiceController;
 
-            // IMPORTANCE_MIN media streams are allowed to drift to the bottom
-            final boolean aMedia = a.key.equals(mediaNotification)
-                    && aImportance > NotificationManager.IMPORTANCE_MIN;
-            final boolean bMedia = b.key.equals(mediaNotification)
-                    && bImportance > NotificationManager.IMPORTANCE_MIN;
+    /** Up to this many newly shown entries are inserted instead of sorting the whole list */
+    private static final int MAX_INCREMENTAL_INSERTS = 4;
 
-            boolean aSystemMax = aImportance >= NotificationManager.IMPORTANCE_HIGH &&
-                    isSystemNotification(na);
-            boolean bSystemMax = bImportance >= NotificationManager.IMPORTANCE_HIGH &&
-                    isSystemNotification(nb);
+    // Sort tiers, the upper half of Entry#mSortKey
+    private static final int TIER_HEADS_UP = 0;
+    private static final int TIER_MEDIA = 1;
+    private static final int TIER_SYSTEM_MAX = 2;
+    private static final int TIER_OTHER = 3;
 
-            boolean isHeadsUp = a.row.isHeadsUp();
-            if (isHeadsUp != b.row.isHeadsUp()) {
-                return isHeadsUp ? -1 : 1;
-            } else if (isHeadsUp) {
+    /**
+     * Orders by {@link Entry#mSortKey} which has to be updated by {@link #updateSortKey}
+     * before, so comparing does not need to look up rankings.
+     */
+    private final Comparator<Entry> mRankingComparator = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            if (getTier(a) == TIER_HEADS_UP && getTier(b) == TIER_HEADS_UP) {
                 // Provide consistent ranking with headsUpManager
                 return mHeadsUpManager.compare(a, b);
-            } else if (aMedia != bMedia) {
-                // Upsort current media notification.
-                return aMedia ? -1 : 1;
-            } else if (aSystemMax != bSystemMax) {
-                // Upsort PRIORITY_MAX system notifications
-                return aSystemMax ? -1 : 1;
-            } else if (aRank != bRank) {
-                return aRank - bRank;
+            } else if (a.mSortKey != b.mSortKey) {
+                return Long.compare(a.mSortKey, b.mSortKey);
             } else {
-                return Long.compare(nb.getNotification().when, na.getNotification().when);
+                return Long.compare(b.mSortWhen, a.mSortWhen);
             }
         }
     };
 
+    @VisibleForTesting
+    Comparator<Entry> getRankingComparator() {
+        return mRankingComparator;
+    }
+
+    private static int getTier(Entry entry) {
+        return (int) (entry.mSortKey >>> 32);
+    }
+
+    /**
+     * Pack the tier and the rank of an entry into its sort key.
+     *
+     * @param mediaNotification the key of the current media notification
+     */
+    private void updateSortKey(Entry entry, String mediaNotification) {
+        final int importance = entry.mRankingImportance;
+        final int tier;
+        if (entry.row.isHeadsUp()) {
+            tier = TIER_HEADS_UP;
+        } else if (entry.key.equals(mediaNotification)
+                && importance > NotificationManager.IMPORTANCE_MIN) {
+            // Upsort current media notification, IMPORTANCE_MIN media streams are allowed to
+            // drift to the bottom
+            tier = TIER_MEDIA;
+        } else if (importance >= NotificationManager.IMPORTANCE_HIGH
+                && isSystemNotification(entry.notification)) {
+            // Upsort PRIORITY_MAX system notifications
+            tier = TIER_SYSTEM_MAX;
+        } else {
+            tier = TIER_OTHER;
+        }
+        // Shift the rank so that it sorts correctly as an unsigned value
+        entry.mSortKey = ((long) tier << 32) | ((long) entry.mRankingRank - Integer.MIN_VALUE);
+        entry.mSortWhen = entry.notification.getNotification().when;
+    }
+
     public NotificationData(Environment environment) {
         mEnvironment = environment;
         mGroupManager = environment.getGroupManager();
@@ -453,11 +476,17 @@ public class NotificationData {
                 for (int i = 0; i < N; i++) {
                     Entry entry = mEntries.valueAt(i);
                     if (!getRanking(entry.key, mTmpRanking)) {
+                        entry.mRankingImportance = NotificationManager.IMPORTANCE_DEFAULT;
+                        entry.mRankingRank = 0;
                         continue;
                     }
-                    final StatusBarNotification oldSbn = entry.notification.cloneLight();
-                    final String overrideGroupKey = getOverrideGroupKey(entry.key);
-                    if (!Objects.equals(oldSbn.getOverrideGroupKey(), overrideGroupKey)) {
+                    entry.mRankingImportance = mTmpRanking.getImportance();
+                    entry.mRankingRank = mTmpRanking.getRank();
+                    // mTmpRanking holds the ranking of the entry, no need to look the key up again
+                    final String overrideGroupKey = mTmpRanking.getOverrideGroupKey();
+                    if (!Objects.equals(entry.notification.getOverrideGroupKey(),
+                            overrideGroupKey)) {
+                        final StatusBarNotification oldSbn = entry.notification.cloneLight();
                         entry.notification.setOverrideGroupKey(overrideGroupKey);
                         mGroupManager.onEntryUpdated(entry, oldSbn);
                     }
@@ -485,23 +514,70 @@ public class NotificationData {
     // TODO: This should not be public. Instead the Environment should notify this class when
     // anything changed, and this class should call back the UI so it updates itself.
     public void filterAndSort() {
+        final String mediaNotification = mEnvironment.getCurrentMediaNotificationKey();
+
+        // addAll() would copy through a temporary array
+        final ArrayList<Entry> previous = mPreviousSortedAndFiltered;
+        for (int i = 0; i < mSortedAndFiltered.size(); i++) {
+            previous.add(mSortedAndFiltered.get(i));
+        }
         mSortedAndFiltered.clear();
 
         synchronized (mEntries) {
             final int N = mEntries.size();
+            mFilteredOut.clear();
             for (int i = 0; i < N; i++) {
-                Entry entry = mEntries.valueAt(i);
-                StatusBarNotification sbn = entry.notification;
+                if (shouldFilterOut(mEntries.valueAt(i).notification)) {
+                    mFilteredOut.set(i);
+                }
+            }
+
+            // Entries that are still shown keep their order, usually it is still sorted
+            final int numPrevious = previous.size();
+            for (int i = 0; i < numPrevious; i++) {
+                Entry entry = previous.get(i);
+                final int index = mEntries.indexOfKey(entry.key);
+                entry.mIsSortedAndFiltered = index >= 0 && mEntries.valueAt(index) == entry
+                        && !mFilteredOut.get(index);
+                if (entry.mIsSortedAndFiltered) {
+                    updateSortKey(entry, mediaNotification);
+                    mSortedAndFiltered.add(entry);
+                }
+            }
+            previous.clear();
+
+            boolean isSorted = true;
+            for (int i = 1; isSorted && i < mSortedAndFiltered.size(); i++) {
+                isSorted = mRankingComparator.compare(mSortedAndFiltered.get(i - 1),
+                        mSortedAndFiltered.get(i)) <= 0;
+            }
 
-                if (shouldFilterOut(sbn)) {
+            for (int i = 0; i < N; i++) {
+                Entry entry = mEntries.valueAt(i);
+                if (entry.mIsSortedAndFiltered || mFilteredOut.get(i)) {
                     continue;
                 }
 
-                mSortedAndFiltered.add(entry);
+                updateSortKey(entry, mediaNotification);
+                entry.mIsSortedAndFiltered = true;
+                previous.add(entry);
             }
-        }
 
-        Collections.sort(mSortedAndFiltered, mRankingComparator);
+            if (isSorted && previous.size() <= MAX_INCREMENTAL_INSERTS) {
+                for (int i = 0; i < previous.size(); i++) {
+                    Entry entry = previous.get(i);
+                    int index = Collections.binarySearch(mSortedAndFiltered, entry,
+                            mRankingComparator);
+                    mSortedAndFiltered.add(index < 0 ? -index - 1 : index, entry);
+                }
+            } else {
+                for (int i = 0; i < previous.size(); i++) {
+                    mSortedAndFiltered.add(previous.get(i));
+                }
+                Collections.sort(mSortedAndFiltered, mRankingComparator);
+            }
+            previous.clear();
+        }
     }
 
     /**
@@ -530,7 +606,10 @@ public class NotificationData {
             return true;
         }
 
-        final ForegroundServiceController fsc = Dependency.get(ForegroundServiceController.class);
+        if (mForegroundServiceController == null) {
+            mForegroundServiceController = Dependency.get(ForegroundServiceController.class);
+        }
+        final ForegroundServiceController fsc = mForegroundServiceController;
         if (fsc.isDungeonNotification(sbn) && !fsc.isDungeonNeededForUser(sbn.getUserId())) {
             // this is a foreground-service disclosure for a user that does not need to show one
             return true;
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.systemui.statusbar;
+
+import android.content.BroadcastReceiver;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.res.Configuration;
+import android.graphics.drawable.Drawable;
+import android.graphics.drawable.Icon;
+import android.net.Uri;
+import android.os.UserHandle;
+import android.text.TextUtils;
+import android.util.LruCache;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.Objects;
+
+/**
+ * Shares the drawables of resource icons between all {@link StatusBarIconView}s showing the
+ * same icon, e.g. the icon of a notification in the status bar, the shelf and on AOD.
+ * Only the {@link Drawable.ConstantState} is kept, every caller gets its own drawable.
+ */
+class StatusBarIconDrawableCache implements ComponentCallbacks2 {
+
+    @VisibleForTesting
+    static final int MAX_SIZE = 64;
+
+    private final LruCache<Key, Drawable.ConstantState> mCache = new LruCache<>(MAX_SIZE);
+    private final Object mLock = new Object();
+    private boolean mRegistered;
+
+    private final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Uri data = intent.getData();
+            if (data != null) {
+                removePackage(data.getSchemeSpecificPart());
+            }
+        }
+    };
+
+    /**
+     * Load the drawable of an icon for a user, or create a new one from a cached one.
+     *
+     * @return the drawable or null if it couldn't be loaded
+     */
+    Drawable getDrawable(Context context, Icon icon, int userId) {
+        if (icon.getType() != Icon.TYPE_RESOURCE || icon.hasTint()) {
+            return icon.loadDrawableAsUser(context, userId);
+        }
+        registerIfNeeded(context);
+        String resPackage = icon.getResPackage();
+        if (TextUtils.isEmpty(resPackage)) {
+            resPackage = context.getPackageName();
+        }
+        Key key = new Key(resPackage, icon.getResId(), userId,
+                context.getResources().getConfiguration().densityDpi);
+        Drawable.ConstantState state = mCache.get(key);
+        if (state != null) {
+            return state.newDrawable();
+        }
+        Drawable drawable = icon.loadDrawableAsUser(context, userId);
+        if (drawable != null && drawable.getConstantState() != null) {
+            mCache.put(key, drawable.getConstantState());
+        }
+        return drawable;
+    }
+
+    private void registerIfNeeded(Context context) {
+        synchronized (mLock) {
+            if (mRegistered) {
+                return;
+            }
+            mRegistered = true;
+        }
+        Context appContext = context.getApplicationContext();
+        appContext.registerComponentCallbacks(this);
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addDataScheme("package");
+        appContext.registerReceiverAsUser(mPackageReceiver, UserHandle.ALL, filter,
+                null /* permission */, null /* scheduler */);
+    }
+
+    @VisibleForTesting
+    void removePackage(String packageName) {
+        for (Key key : mCache.snapshot().keySet()) {
+            if (key.packageName.equals(packageName)) {
+                mCache.remove(key);
+            }
+        }
+    }
+
+    @VisibleForTesting
+    int size() {
+        return mCache.size();
+    }
+
+    @VisibleForTesting
+    int hitCount() {
+        return mCache.hitCount();
+    }
+
+    @VisibleForTesting
+    int missCount() {
+        return mCache.missCount();
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_MODERATE || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+            mCache.evictAll();
+        } else if (level >= TRIM_MEMORY_BACKGROUND || level == TRIM_MEMORY_RUNNING_LOW) {
+            mCache.trimToSize(MAX_SIZE / 2);
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        mCache.evictAll();
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+        // Resources may resolve to different drawables now, e.g. for night mode
+        mCache.evictAll();
+    }
+
+    void dump(PrintWriter pw, String prefix) {
+        pw.print(prefix);
+        pw.print("icon drawable cache: size=");
+        pw.print(mCache.size());
+        pw.print(" hits=");
+        pw.print(mCache.hitCount());
+        pw.print(" misses=");
+        pw.println(mCache.missCount());
+    }
+
+    private static class Key {
+        final String packageName;
+        final int resId;
+        final int userId;
+        final int densityDpi;
+
+        Key(String packageName, int resId, int userId, int densityDpi) {
+            this.packageName = packageName;
+            this.resId = resId;
+            this.userId = userId;
+            this.densityDpi = densityDpi;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return resId == other.resId && userId == other.userId
+                    && densityDpi == other.densityDpi
+                    && packageName.equals(other.packageName);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(packageName, resId, userId, densityDpi);
+        }
+    }
+}
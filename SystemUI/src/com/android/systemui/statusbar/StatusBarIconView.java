@@ -55,6 +55,7 @@ import com.android.systemui.R;
 import com.android.systemui.statusbar.notification.NotificationIconDozeHelper;
 import com.android.systemui.statusbar.notification.NotificationUtils;
 
+import java.io.PrintWriter;
 import java.text.NumberFormat;
 import java.util.Arrays;
 
@@ -73,6 +74,8 @@ public class StatusBarIconView extends AnimatedImageView {
     public static final int STATE_HIDDEN = 2;
 
     private static final String TAG = "StatusBarIconView";
+    private static final StatusBarIconDrawableCache DRAWABLE_CACHE =
+            new StatusBarIconDrawableCache();
     private static final Property<StatusBarIconView, Float> ICON_APPEAR_AMOUNT
             = new FloatProperty<StatusBarIconView>("iconAppearAmount") {
 
@@ -356,7 +359,7 @@ public class StatusBarIconView extends AnimatedImageView {
             userId = UserHandle.USER_SYSTEM;
         }
 
-        Drawable icon = statusBarIcon.icon.loadDrawableAsUser(context, userId);
+        Drawable icon = DRAWABLE_CACHE.getDrawable(context, statusBarIcon.icon, userId);
 
         TypedValue typedValue = new TypedValue();
         context.getResources().getValue(R.dimen.status_bar_icon_scale_factor, typedValue, true);
@@ -374,6 +377,11 @@ public class StatusBarIconView extends AnimatedImageView {
         return mIcon;
     }
 
+    public static void dump(PrintWriter pw) {
+        pw.println("StatusBarIconView:");
+        DRAWABLE_CACHE.dump(pw, "  ");
+    }
+
     @Override
     public void onInitializeAccessibilityEvent(AccessibilityEvent event) {
         super.onInitializeAccessibilityEvent(event);
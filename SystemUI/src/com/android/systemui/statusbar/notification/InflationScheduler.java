@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.systemui.statusbar.notification;
+
+import android.annotation.Nullable;
+import android.os.SystemClock;
+import android.util.ArrayMap;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * Hands inflation work to an executor in order of priority instead of in order of submission.
+ * At most a fixed number of jobs are running at a time, the others wait in a queue where a job
+ * for a key is dropped as soon as a newer job for the same key arrives.
+ */
+class InflationScheduler {
+
+    interface Clock {
+        long uptimeMillis();
+    }
+
+    private static final Comparator<Job> COMPARATOR = (a, b) -> {
+        if (a.priority != b.priority) {
+            return Integer.compare(b.priority, a.priority);
+        }
+        return Long.compare(a.sequence, b.sequence);
+    };
+
+    private final Executor mExecutor;
+    private final int mMaxRunning;
+    private final String[] mTypeNames;
+    private final Stats[] mStats;
+    private final Clock mClock;
+
+    private final Object mLock = new Object();
+    private final PriorityQueue<Job> mQueue = new PriorityQueue<>(11, COMPARATOR);
+    private final ArrayMap<String, Job> mQueuedByKey = new ArrayMap<>();
+    private int mRunning;
+    private long mSequence;
+
+    /**
+     * @param executor the executor running the jobs
+     * @param maxRunning how many jobs may be handed to the executor at the same time
+     * @param typeNames the names of the types of jobs, used for the statistics
+     */
+    InflationScheduler(Executor executor, int maxRunning, String... typeNames) {
+        this(executor, maxRunning, SystemClock::uptimeMillis, typeNames);
+    }
+
+    @VisibleForTesting
+    InflationScheduler(Executor executor, int maxRunning, Clock clock, String... typeNames) {
+        mExecutor = executor;
+        mMaxRunning = maxRunning;
+        mClock = clock;
+        mTypeNames = typeNames;
+        mStats = new Stats[typeNames.length];
+        for (int i = 0; i < mStats.length; i++) {
+            mStats[i] = new Stats();
+        }
+    }
+
+    /**
+     * @return an executor which schedules everything it is given with the given priority
+     */
+    Executor executorFor(int type, int priority) {
+        return runnable -> schedule(runnable, type, priority, null /* key */);
+    }
+
+    /**
+     * Schedule a job. Higher priorities run first, jobs of the same priority in the order they
+     * were scheduled.
+     *
+     * @param key if not null, a job for this key which is still waiting is dropped. The caller
+     *            has to make sure that the newer job makes the older one obsolete, e.g. by
+     *            cancelling it.
+     */
+    void schedule(Runnable runnable, int type, int priority, @Nullable String key) {
+        synchronized (mLock) {
+            Job job = new Job(runnable, type, priority, key, mClock.uptimeMillis(),
+                    mSequence++);
+            if (key != null) {
+                Job superseded = mQueuedByKey.put(key, job);
+                if (superseded != null) {
+                    mQueue.remove(superseded);
+                    mStats[superseded.type].superseded++;
+                }
+            }
+            mQueue.add(job);
+        }
+        dispatch();
+    }
+
+    private void dispatch() {
+        while (true) {
+            final Job job;
+            synchronized (mLock) {
+                if (mRunning >= mMaxRunning) {
+                    return;
+                }
+                job = mQueue.poll();
+                if (job == null) {
+                    return;
+                }
+                if (job.key != null && mQueuedByKey.get(job.key) == job) {
+                    mQueuedByKey.remove(job.key);
+                }
+                mRunning++;
+            }
+            mExecutor.execute(() -> run(job));
+        }
+    }
+
+    private void run(Job job) {
+        long start = mClock.uptimeMillis();
+        try {
+            job.runnable.run();
+        } finally {
+            long end = mClock.uptimeMillis();
+            synchronized (mLock) {
+                mRunning--;
+                mStats[job.type].add(start - job.scheduleTime, end - start);
+            }
+            dispatch();
+        }
+    }
+
+    @VisibleForTesting
+    Stats getStats(int type) {
+        synchronized (mLock) {
+            return new Stats(mStats[type]);
+        }
+    }
+
+    void dump(PrintWriter pw, String prefix) {
+        synchronized (mLock) {
+            pw.print(prefix);
+            pw.print("running=");
+            pw.print(mRunning);
+            pw.print(" queued=");
+            pw.println(mQueue.size());
+            for (int i = 0; i < mStats.length; i++) {
+                pw.print(prefix);
+                pw.print("  ");
+                pw.print(mTypeNames[i]);
+                pw.print(": ");
+                pw.println(mStats[i]);
+            }
+        }
+    }
+
+    @VisibleForTesting
+    static class Stats {
+        int count;
+        int superseded;
+        long totalWaitMillis;
+        long maxWaitMillis;
+        long totalRunMillis;
+        long maxRunMillis;
+
+        Stats() {
+        }
+
+        Stats(Stats other) {
+            count = other.count;
+            superseded = other.superseded;
+            totalWaitMillis = other.totalWaitMillis;
+            maxWaitMillis = other.maxWaitMillis;
+            totalRunMillis = other.totalRunMillis;
+            maxRunMillis = other.maxRunMillis;
+        }
+
+        void add(long waitMillis, long runMillis) {
+            count++;
+            totalWaitMillis += waitMillis;
+            maxWaitMillis = Math.max(maxWaitMillis, waitMillis);
+            totalRunMillis += runMillis;
+            maxRunMillis = Math.max(maxRunMillis, runMillis);
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + count + " superseded=" + superseded
+                    + " wait avg=" + (count == 0 ? 0 : totalWaitMillis / count) + "ms"
+                    + " max=" + maxWaitMillis + "ms"
+                    + " inflate avg=" + (count == 0 ? 0 : totalRunMillis / count) + "ms"
+                    + " max=" + maxRunMillis + "ms";
+        }
+    }
+
+    private static class Job {
+        final Runnable runnable;
+        final int type;
+        final int priority;
+        final String key;
+        final long scheduleTime;
+        final long sequence;
+
+        Job(Runnable runnable, int type, int priority, String key, long scheduleTime,
+                long sequence) {
+            this.runnable = runnable;
+            this.type = type;
+            this.priority = priority;
+            this.key = key;
+            this.scheduleTime = scheduleTime;
+            this.sequence = sequence;
+        }
+    }
+}
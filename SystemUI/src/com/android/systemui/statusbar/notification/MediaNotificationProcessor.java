@@ -26,6 +26,7 @@ import android.graphics.drawable.Icon;
 import android.support.annotation.VisibleForTesting;
 import android.support.v7.graphics.Palette;
 import android.util.LayoutDirection;
+import android.util.LruCache;
 
 import com.android.internal.util.NotificationColorUtil;
 import com.android.systemui.R;
@@ -66,6 +67,19 @@ public class MediaNotificationProcessor {
     private static final float BLACK_MAX_LIGHTNESS = 0.08f;
     private static final float WHITE_MIN_LIGHTNESS = 0.90f;
     private static final int RESIZE_BITMAP_AREA = 150 * 150;
+
+    /**
+     * The number of pixels sampled along each side of an image for its fingerprint
+     */
+    private static final int FINGERPRINT_SAMPLES = 16;
+
+    /**
+     * Colors (background in the upper, foreground in the lower half) of recently seen images by
+     * fingerprint. Players update their notification every second while the image stays the
+     * same, and a new processor is created for each update.
+     */
+    private static final LruCache<Long, Long> sColorCache = new LruCache<>(32);
+
     private final ImageGradientColorizer mColorizer;
     private final Context mContext;
     private float[] mFilteredBackgroundHsl = null;
@@ -121,30 +135,14 @@ public class MediaNotificationProcessor {
                 drawable.setBounds(0, 0, width, height);
                 drawable.draw(canvas);
 
-                // for the background we only take the left side of the image to ensure
-                // a smooth transition
-                Palette.Builder paletteBuilder = Palette.from(bitmap)
-                        .setRegion(0, 0, bitmap.getWidth() / 2, bitmap.getHeight())
-                        .clearFilters() // we want all colors, red / white / black ones too!
-                        .resizeBitmapArea(RESIZE_BITMAP_AREA);
-                Palette palette = paletteBuilder.generate();
-                backgroundColor = findBackgroundColorAndFilter(palette);
-                // we want most of the full region again, slightly shifted to the right
-                float textColorStartWidthFraction = 0.4f;
-                paletteBuilder.setRegion((int) (bitmap.getWidth() * textColorStartWidthFraction), 0,
-                        bitmap.getWidth(),
-                        bitmap.getHeight());
-                if (mFilteredBackgroundHsl != null) {
-                    paletteBuilder.addFilter((rgb, hsl) -> {
-                        // at least 10 degrees hue difference
-                        float diff = Math.abs(hsl[0] - mFilteredBackgroundHsl[0]);
-                        return diff > 10 && diff < 350;
-                    });
+                long fingerprint = computeFingerprint(bitmap);
+                Long colors = sColorCache.get(fingerprint);
+                if (colors == null) {
+                    colors = computeColors(bitmap);
+                    sColorCache.put(fingerprint, colors);
                 }
-                paletteBuilder.addFilter(mBlackWhiteFilter);
-                palette = paletteBuilder.generate();
-                int foregroundColor = selectForegroundColor(backgroundColor, palette);
-                builder.setColorPalette(backgroundColor, foregroundColor);
+                backgroundColor = (int) (colors >>> 32);
+                builder.setColorPalette(backgroundColor, (int) (long) colors);
             } else {
                 int id = mIsLowPriority
                         ? R.color.notification_material_background_low_priority_color
@@ -158,6 +156,63 @@ public class MediaNotificationProcessor {
         }
     }
 
+    /**
+     * Quantizes the image to pick its colors, which is the expensive part of processing.
+     *
+     * @return the background color in the upper and the foreground color in the lower half
+     */
+    @VisibleForTesting
+    long computeColors(Bitmap bitmap) {
+        // for the background we only take the left side of the image to ensure
+        // a smooth transition
+        Palette.Builder paletteBuilder = Palette.from(bitmap)
+                .setRegion(0, 0, bitmap.getWidth() / 2, bitmap.getHeight())
+                .clearFilters() // we want all colors, red / white / black ones too!
+                .resizeBitmapArea(RESIZE_BITMAP_AREA);
+        Palette palette = paletteBuilder.generate();
+        int backgroundColor = findBackgroundColorAndFilter(palette);
+        // we want most of the full region again, slightly shifted to the right
+        float textColorStartWidthFraction = 0.4f;
+        paletteBuilder.setRegion((int) (bitmap.getWidth() * textColorStartWidthFraction), 0,
+                bitmap.getWidth(),
+                bitmap.getHeight());
+        if (mFilteredBackgroundHsl != null) {
+            paletteBuilder.addFilter((rgb, hsl) -> {
+                // at least 10 degrees hue difference
+                float diff = Math.abs(hsl[0] - mFilteredBackgroundHsl[0]);
+                return diff > 10 && diff < 350;
+            });
+        }
+        paletteBuilder.addFilter(mBlackWhiteFilter);
+        palette = paletteBuilder.generate();
+        int foregroundColor = selectForegroundColor(backgroundColor, palette);
+        return ((long) backgroundColor << 32) | (foregroundColor & 0xffffffffL);
+    }
+
+    @VisibleForTesting
+    static void clearColorCache() {
+        sColorCache.evictAll();
+    }
+
+    /**
+     * @return a cheap fingerprint of an image: its dimensions and a hash of a grid of its pixels
+     */
+    @VisibleForTesting
+    static long computeFingerprint(Bitmap bitmap) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int hash = 17;
+        for (int i = 0; i < FINGERPRINT_SAMPLES; i++) {
+            int y = (2 * i + 1) * height / (2 * FINGERPRINT_SAMPLES);
+            for (int j = 0; j < FINGERPRINT_SAMPLES; j++) {
+                int x = (2 * j + 1) * width / (2 * FINGERPRINT_SAMPLES);
+                hash = 31 * hash + bitmap.getPixel(x, y);
+            }
+        }
+        return ((long) (width & 0xffff) << 48) | ((long) (height & 0xffff) << 32)
+                | (hash & 0xffffffffL);
+    }
+
     private int selectForegroundColor(int backgroundColor, Palette palette) {
         if (NotificationColorUtil.isColorLight(backgroundColor)) {
             return selectForegroundColorForSwatches(palette.getDarkVibrantSwatch(),
@@ -27,6 +27,7 @@ import android.view.View;
 import android.widget.RemoteViews;
 
 import com.android.internal.annotations.VisibleForTesting;
+import com.android.systemui.Dependency;
 import com.android.systemui.R;
 import com.android.systemui.statusbar.InflationTask;
 import com.android.systemui.statusbar.ExpandableNotificationRow;
@@ -35,6 +36,7 @@ import com.android.systemui.statusbar.NotificationData;
 import com.android.systemui.statusbar.phone.StatusBar;
 import com.android.systemui.util.Assert;
 
+import java.io.PrintWriter;
 import java.util.HashMap;
 import java.util.concurrent.Executor;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -57,7 +59,28 @@ public class NotificationInflater {
     private static final int FLAG_REINFLATE_HEADS_UP_VIEW = 1<<2;
     private static final int FLAG_REINFLATE_PUBLIC_VIEW = 1<<3;
     private static final int FLAG_REINFLATE_AMBIENT_VIEW = 1<<4;
+
+    /** The row is not visible, e.g. because it is a child in a collapsed group */
+    public static final int PRIORITY_DEFERRED = -1;
+    public static final int PRIORITY_DEFAULT = 0;
+    /** The row is visible in the shade */
+    public static final int PRIORITY_VISIBLE = 1;
+    /** The notification is or is about to be heads up */
+    public static final int PRIORITY_HEADS_UP = 2;
+
     private static final InflationExecutor EXECUTOR = new InflationExecutor();
+    /**
+     * Creates the RemoteViews of one notification at a time, like the serial default executor
+     * of AsyncTask did, but in order of priority.
+     */
+    private static final InflationScheduler CREATE_SCHEDULER = new InflationScheduler(
+            AsyncTask.THREAD_POOL_EXECUTOR, 1 /* maxRunning */, "remote views");
+    /** Applies the RemoteViews, the types are indexed by the bit of their flag */
+    private static final InflationScheduler APPLY_SCHEDULER = new InflationScheduler(EXECUTOR,
+            InflationExecutor.CORE_POOL_SIZE, "contracted", "expanded", "heads up", "public",
+            "ambient");
+    /** Contracted and public views of removed notifications, for reuse by new ones */
+    private static final NotificationViewPool VIEW_POOL = new NotificationViewPool();
 
     private final ExpandableNotificationRow mRow;
     private boolean mIsLowPriority;
@@ -67,6 +90,7 @@ public class NotificationInflater {
     private boolean mIsChildInGroup;
     private InflationCallback mCallback;
     private boolean mRedactAmbient;
+    private int mPriority = PRIORITY_DEFAULT;
 
     public NotificationInflater(ExpandableNotificationRow row) {
         mRow = row;
@@ -103,6 +127,16 @@ public class NotificationInflater {
         mRemoteViewClickHandler = remoteViewClickHandler;
     }
 
+    /**
+     * Set how urgently the views are needed. Inflations with a higher priority are started
+     * first; children in a group are deferred unless they are heads up.
+     *
+     * @param priority one of the {@code PRIORITY_} constants
+     */
+    public void setInflationPriority(int priority) {
+        mPriority = priority;
+    }
+
     public void setRedactAmbient(boolean redactAmbient) {
         if (mRedactAmbient != redactAmbient) {
             mRedactAmbient = redactAmbient;
@@ -137,9 +171,70 @@ public class NotificationInflater {
             return;
         }
         StatusBarNotification sbn = mRow.getEntry().notification;
-        new AsyncInflationTask(sbn, reInflateFlags, mRow, mIsLowPriority,
-                mIsChildInGroup, mUsesIncreasedHeight, mUsesIncreasedHeadsUpHeight, mRedactAmbient,
-                mCallback, mRemoteViewClickHandler).execute();
+        int priority = mPriority;
+        if (mRow.isHeadsUp()) {
+            priority = PRIORITY_HEADS_UP;
+        } else if (mIsChildInGroup) {
+            priority = PRIORITY_DEFERRED;
+        }
+        AsyncInflationTask task = new AsyncInflationTask(sbn, reInflateFlags, mRow,
+                mIsLowPriority, mIsChildInGroup, mUsesIncreasedHeight,
+                mUsesIncreasedHeadsUpHeight, mRedactAmbient, mCallback, mRemoteViewClickHandler,
+                priority);
+        // The previous task of this notification was aborted by the new one and can be dropped
+        task.executeOnExecutor(runnable -> CREATE_SCHEDULER.schedule(runnable,
+                0 /* type */, task.mPriority, sbn.getKey()));
+    }
+
+    /**
+     * Dump how long inflations waited and took, per type of content view.
+     */
+    public static void dump(PrintWriter pw) {
+        pw.println("  NotificationInflater:");
+        CREATE_SCHEDULER.dump(pw, "    ");
+        APPLY_SCHEDULER.dump(pw, "    ");
+        VIEW_POOL.dump(pw, "    ");
+    }
+
+    /**
+     * Called when the row was detached from its window. Once a removed row stays detached,
+     * e.g. after its disappear animation ended, its content views can be reused.
+     */
+    public void onRowDetached() {
+        if (mRow.isRemoved() && !mRow.wasChildInGroupWhenRemoved()) {
+            Dependency.get(Dependency.MAIN_HANDLER).post(() -> {
+                if (!mRow.isAttachedToWindow()) {
+                    recycleContractedChild(mRow, mRow.getPrivateLayout());
+                    recycleContractedChild(mRow, mRow.getPublicLayout());
+                }
+            });
+        }
+    }
+
+    private static void recycleContractedChild(ExpandableNotificationRow row,
+            NotificationContentView layout) {
+        View child = layout.getContractedChild();
+        if (child != null && child.getParent() == layout) {
+            layout.removeView(child);
+            recycleView(row, child);
+        }
+    }
+
+    /**
+     * Offer a content view that was removed from its layout for reuse.
+     */
+    private static void recycleView(ExpandableNotificationRow row, View view) {
+        // The wrappers of dark views and the group header of children changed the view in ways
+        // reapplying the RemoteViews does not undo
+        if (view != null && !row.isDark() && !row.isChildInGroup()
+                && !row.wasChildInGroupWhenRemoved()) {
+            VIEW_POOL.release(view);
+        }
+    }
+
+    private static String getTemplate(NotificationData.Entry entry) {
+        return entry.notification.getNotification().extras.getString(
+                Notification.EXTRA_TEMPLATE);
     }
 
     @VisibleForTesting
@@ -370,19 +465,34 @@ public class NotificationInflater {
                 }
             }
         };
+        Executor executor = APPLY_SCHEDULER.executorFor(Integer.numberOfTrailingZeros(inflationId),
+                result.priority);
+        View recycledView = null;
+        if (isNewView && (inflationId == FLAG_REINFLATE_CONTENT_VIEW
+                || inflationId == FLAG_REINFLATE_PUBLIC_VIEW)) {
+            recycledView = VIEW_POOL.acquire(newContentView, getTemplate(entry), inflationId);
+        }
         CancellationSignal cancellationSignal;
-        if (isNewView) {
+        if (recycledView != null) {
+            // The result is handled like a newly inflated view
+            cancellationSignal = newContentView.reapplyAsync(
+                    result.packageContext,
+                    recycledView,
+                    executor,
+                    listener,
+                    remoteViewClickHandler);
+        } else if (isNewView) {
             cancellationSignal = newContentView.applyAsync(
                     result.packageContext,
                     parentLayout,
-                    EXECUTOR,
+                    executor,
                     listener,
                     remoteViewClickHandler);
         } else {
             cancellationSignal = newContentView.reapplyAsync(
                     result.packageContext,
                     existingView,
-                    EXECUTOR,
+                    executor,
                     listener,
                     remoteViewClickHandler);
         }
@@ -398,6 +508,14 @@ public class NotificationInflater {
         }
     }
 
+    private static void setPoolKey(NotificationContentView layout, RemoteViews remoteViews,
+            NotificationData.Entry entry, int flag) {
+        View child = layout.getContractedChild();
+        if (child != null) {
+            VIEW_POOL.setKey(child, remoteViews, getTemplate(entry), flag);
+        }
+    }
+
     /**
      * Finish the inflation of the views
      *
@@ -414,9 +532,13 @@ public class NotificationInflater {
         if (runningInflations.isEmpty()) {
             if ((reInflateFlags & FLAG_REINFLATE_CONTENT_VIEW) != 0) {
                 if (result.inflatedContentView != null) {
+                    View previous = privateLayout.getContractedChild();
                     privateLayout.setContractedChild(result.inflatedContentView);
+                    recycleView(row, previous);
                 }
                 entry.cachedContentView = result.newContentView;
+                setPoolKey(privateLayout, result.newContentView, entry,
+                        FLAG_REINFLATE_CONTENT_VIEW);
             }
 
             if ((reInflateFlags & FLAG_REINFLATE_EXPANDED_VIEW) != 0) {
@@ -440,9 +562,13 @@ public class NotificationInflater {
 
             if ((reInflateFlags & FLAG_REINFLATE_PUBLIC_VIEW) != 0) {
                 if (result.inflatedPublicView != null) {
+                    View previous = publicLayout.getContractedChild();
                     publicLayout.setContractedChild(result.inflatedPublicView);
+                    recycleView(row, previous);
                 }
                 entry.cachedPublicContentView = result.newPublicView;
+                setPoolKey(publicLayout, result.newPublicView, entry,
+                        FLAG_REINFLATE_PUBLIC_VIEW);
             }
 
             if ((reInflateFlags & FLAG_REINFLATE_AMBIENT_VIEW) != 0) {
@@ -544,13 +670,14 @@ public class NotificationInflater {
         private Exception mError;
         private RemoteViews.OnClickHandler mRemoteViewClickHandler;
         private CancellationSignal mCancellationSignal;
+        private final int mPriority;
 
         private AsyncInflationTask(StatusBarNotification notification,
                 int reInflateFlags, ExpandableNotificationRow row, boolean isLowPriority,
                 boolean isChildInGroup, boolean usesIncreasedHeight,
                 boolean usesIncreasedHeadsUpHeight, boolean redactAmbient,
                 InflationCallback callback,
-                RemoteViews.OnClickHandler remoteViewClickHandler) {
+                RemoteViews.OnClickHandler remoteViewClickHandler, int priority) {
             mRow = row;
             mSbn = notification;
             mReInflateFlags = reInflateFlags;
@@ -562,6 +689,7 @@ public class NotificationInflater {
             mRedactAmbient = redactAmbient;
             mRemoteViewClickHandler = remoteViewClickHandler;
             mCallback = callback;
+            mPriority = priority;
             NotificationData.Entry entry = row.getEntry();
             entry.setInflationTask(this);
         }
@@ -603,6 +731,7 @@ public class NotificationInflater {
         @Override
         protected void onPostExecute(InflationProgress result) {
             if (mError == null) {
+                result.priority = mPriority;
                 mCancellationSignal = apply(result, mReInflateFlags, mRow, mRedactAmbient,
                         mRemoteViewClickHandler, this);
             } else {
@@ -659,6 +788,8 @@ public class NotificationInflater {
 
         @VisibleForTesting
         Context packageContext;
+        /** The priority with which the views are applied */
+        private int priority = PRIORITY_DEFAULT;
 
         private View inflatedContentView;
         private View inflatedHeadsUpView;
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.systemui.statusbar.notification;
+
+import android.annotation.Nullable;
+import android.content.ComponentCallbacks2;
+import android.content.res.Configuration;
+import android.view.View;
+import android.widget.RemoteViews;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.systemui.R;
+import com.android.systemui.util.Assert;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Objects;
+
+/**
+ * Keeps content views of notifications that are no longer shown, so that a new notification
+ * using the same layout can reapply its RemoteViews to one of them instead of inflating the
+ * layout again. Views are only reused for the same package, layout, template and content type.
+ */
+class NotificationViewPool implements ComponentCallbacks2 {
+
+    @VisibleForTesting
+    static final int MAX_VIEWS_PER_KEY = 2;
+    @VisibleForTesting
+    static final int MAX_VIEWS = 12;
+
+    /** The pooled views, the least recently released first */
+    private final ArrayList<View> mViews = new ArrayList<>();
+    private boolean mRegistered;
+    private int mHits;
+    private int mMisses;
+
+    /**
+     * Remember under which key a view may be reused once it is released.
+     *
+     * @param template the style class of the notification, see
+     *                 {@link android.app.Notification#EXTRA_TEMPLATE}
+     * @param type the flag of the content type the view is used for
+     */
+    void setKey(View view, RemoteViews remoteViews, @Nullable String template, int type) {
+        Key key = null;
+        if (remoteViews != null && remoteViews.getPackage() != null
+                && !remoteViews.isReapplyDisallowed()) {
+            key = new Key(remoteViews.getPackage(), remoteViews.getLayoutId(), template, type);
+        }
+        view.setTag(R.id.notification_view_pool_key, key);
+    }
+
+    /**
+     * Take a view which the given RemoteViews can be reapplied to.
+     *
+     * @return the view or null if there is none
+     */
+    View acquire(RemoteViews remoteViews, @Nullable String template, int type) {
+        Assert.isMainThread();
+        if (remoteViews.getPackage() != null && !remoteViews.isReapplyDisallowed()) {
+            for (int i = mViews.size() - 1; i >= 0; i--) {
+                Key key = getKey(mViews.get(i));
+                if (key.matches(remoteViews.getPackage(), remoteViews.getLayoutId(), template,
+                        type)) {
+                    mHits++;
+                    return mViews.remove(i);
+                }
+            }
+        }
+        mMisses++;
+        return null;
+    }
+
+    /**
+     * Offer a view that was detached from its parent for reuse. Views without a key are
+     * dropped.
+     */
+    void release(View view) {
+        Assert.isMainThread();
+        Key key = getKey(view);
+        if (key == null || view.getParent() != null) {
+            return;
+        }
+        if (!mRegistered) {
+            view.getContext().getApplicationContext().registerComponentCallbacks(this);
+            mRegistered = true;
+        }
+        view.animate().cancel();
+        view.setAlpha(1.0f);
+        view.setTranslationX(0);
+        view.setTranslationY(0);
+        view.setVisibility(View.VISIBLE);
+
+        int sameKey = 0;
+        for (int i = mViews.size() - 1; i >= 0; i--) {
+            if (key.equals(getKey(mViews.get(i))) && ++sameKey >= MAX_VIEWS_PER_KEY) {
+                mViews.remove(i);
+            }
+        }
+        mViews.add(view);
+        trimToSize(MAX_VIEWS);
+    }
+
+    @VisibleForTesting
+    void trimToSize(int size) {
+        while (mViews.size() > size) {
+            mViews.remove(0);
+        }
+    }
+
+    @VisibleForTesting
+    int size() {
+        return mViews.size();
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_MODERATE || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+            trimToSize(0);
+        } else if (level >= TRIM_MEMORY_BACKGROUND || level == TRIM_MEMORY_RUNNING_LOW) {
+            trimToSize(MAX_VIEWS / 4);
+        } else if (level == TRIM_MEMORY_RUNNING_MODERATE) {
+            trimToSize(MAX_VIEWS / 2);
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        trimToSize(0);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+        // The views were inflated for the old configuration
+        trimToSize(0);
+    }
+
+    void dump(PrintWriter pw, String prefix) {
+        pw.print(prefix);
+        pw.print("view pool: size=");
+        pw.print(mViews.size());
+        pw.print(" hits=");
+        pw.print(mHits);
+        pw.print(" misses=");
+        pw.println(mMisses);
+    }
+
+    private static Key getKey(View view) {
+        return (Key) view.getTag(R.id.notification_view_pool_key);
+    }
+
+    private static class Key {
+        final String packageName;
+        final int layoutId;
+        final String template;
+        final int type;
+
+        Key(String packageName, int layoutId, String template, int type) {
+            this.packageName = packageName;
+            this.layoutId = layoutId;
+            this.template = template;
+            this.type = type;
+        }
+
+        boolean matches(String packageName, int layoutId, String template, int type) {
+            return this.layoutId == layoutId && this.type == type
+                    && this.packageName.equals(packageName)
+                    && Objects.equals(this.template, template);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return matches(other.packageName, other.layoutId, other.template, other.type);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(packageName, layoutId, template, type);
+        }
+    }
+}
@@ -217,9 +217,11 @@ import com.android.systemui.statusbar.NotificationSnooze;
 import com.android.systemui.statusbar.RemoteInputController;
 import com.android.systemui.statusbar.ScrimView;
 import com.android.systemui.statusbar.SignalClusterView;
+import com.android.systemui.statusbar.StatusBarIconView;
 import com.android.systemui.statusbar.StatusBarState;
 import com.android.systemui.statusbar.notification.AboveShelfObserver;
 import com.android.systemui.statusbar.notification.InflationException;
+import com.android.systemui.statusbar.notification.NotificationInflater;
 import com.android.systemui.statusbar.notification.RowInflaterTask;
 import com.android.systemui.statusbar.notification.VisualStabilityManager;
 import com.android.systemui.statusbar.phone.UnlockMethodCache.OnUnlockMethodChangedListener;
@@ -3675,6 +3677,9 @@ public class StatusBar extends SystemUI implements DemoMode,
 
         DozeLog.dump(pw);
 
+        NotificationInflater.dump(pw);
+        StatusBarIconView.dump(pw);
+
         if (mFingerprintUnlockController != null) {
             mFingerprintUnlockController.dump(pw);
         }
@@ -7026,9 +7031,29 @@ public class StatusBar extends SystemUI implements DemoMode,
         boolean useIncreasedHeadsUp = useIncreasedCollapsedHeight && mPanelExpanded;
         row.setUseIncreasedCollapsedHeight(useIncreasedCollapsedHeight);
         row.setUseIncreasedHeadsUpHeight(useIncreasedHeadsUp);
+        row.setInflationPriority(getInflationPriority(entry, isUpdate, isLowPriority));
         row.updateNotification(entry);
     }
 
+    /**
+     * @return how urgently the views of the entry are needed, one of the {@code PRIORITY_}
+     *         constants of {@link NotificationInflater}
+     */
+    private int getInflationPriority(Entry entry, boolean isUpdate, boolean isLowPriority) {
+        if (!isLowPriority && mNotificationData.getImportance(entry.key)
+                >= NotificationManager.IMPORTANCE_HIGH) {
+            // It may be heads up as soon as it is inflated
+            return NotificationInflater.PRIORITY_HEADS_UP;
+        }
+        if (!isUpdate) {
+            return NotificationInflater.PRIORITY_DEFAULT;
+        }
+        boolean shadeVisible = mPanelExpanded || mState == StatusBarState.KEYGUARD;
+        return shadeVisible && mStackScroller.isInVisibleLocation(entry.row)
+                ? NotificationInflater.PRIORITY_VISIBLE
+                : NotificationInflater.PRIORITY_DEFERRED;
+    }
+
     /**
      * Adds RemoteInput actions from the WearableExtender; to be removed once more apps support this
      * via first-class API.
@@ -20,6 +20,7 @@ import android.os.Looper;
 import android.os.Message;
 import android.telephony.SubscriptionInfo;
 import android.util.Log;
+import android.util.SparseArray;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.systemui.statusbar.policy.NetworkController.EmergencyListener;
@@ -28,6 +29,7 @@ import com.android.systemui.statusbar.policy.NetworkController.SignalCallback;
 
 import com.mediatek.systemui.statusbar.util.FeatureOptions;
 
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -35,6 +37,10 @@ import java.util.List;
 /**
  * Implements network listeners and forwards the calls along onto other listeners but on
  * the current or specified Looper.
+ *
+ * Wifi and mobile indicators only keep their latest value until they are dispatched: an update
+ * which arrives while the previous one for the same wifi or subscription is still queued
+ * replaces it, unless other calls were queued in between.
  */
 public class CallbackHandler extends Handler implements EmergencyListener, SignalCallback {
 
@@ -51,11 +57,25 @@ public class CallbackHandler extends Handler implements EmergencyListener, Signa
     private static final int MSG_MOBILE_DATA_ENABLED_CHANGED = 5;
     private static final int MSG_ADD_REMOVE_EMERGENCY        = 6;
     private static final int MSG_ADD_REMOVE_SIGNAL           = 7;
+    private static final int MSG_WIFI_INDICATORS             = 8;
+    private static final int MSG_MOBILE_INDICATORS           = 9;
 
     // All the callbacks.
     private final ArrayList<EmergencyListener> mEmergencyListeners = new ArrayList<>();
     private final ArrayList<SignalCallback> mSignalCallbacks = new ArrayList<>();
 
+    // The pending indicators, guarded by mLock
+    private final Object mLock = new Object();
+    private final WifiIndicators mPendingWifi = new WifiIndicators();
+    private final SparseArray<MobileIndicators> mPendingMobile = new SparseArray<>();
+    private int mSequence;
+    private int mRawUpdates;
+    private int mDispatchedUpdates;
+
+    // The indicators being dispatched, only used on the looper
+    private final WifiIndicators mDispatchWifi = new WifiIndicators();
+    private final MobileIndicators mDispatchMobile = new MobileIndicators();
+
     public CallbackHandler() {
         super(Looper.getMainLooper());
     }
@@ -69,6 +89,29 @@ public class CallbackHandler extends Handler implements EmergencyListener, Signa
     @SuppressWarnings("unchecked")
     public void handleMessage(Message msg) {
         switch (msg.what) {
+            case MSG_WIFI_INDICATORS:
+                synchronized (mLock) {
+                    mDispatchWifi.copyFrom(mPendingWifi);
+                    mPendingWifi.pending = false;
+                    mDispatchedUpdates++;
+                }
+                for (SignalCallback callback : mSignalCallbacks) {
+                    mDispatchWifi.dispatchTo(callback);
+                }
+                mDispatchWifi.clear();
+                break;
+            case MSG_MOBILE_INDICATORS:
+                synchronized (mLock) {
+                    MobileIndicators pending = (MobileIndicators) msg.obj;
+                    mDispatchMobile.copyFrom(pending);
+                    pending.pending = false;
+                    mDispatchedUpdates++;
+                }
+                for (SignalCallback signalCluster : mSignalCallbacks) {
+                    mDispatchMobile.dispatchTo(signalCluster);
+                }
+                mDispatchMobile.clear();
+                break;
             case MSG_EMERGENCE_CHANGED:
                 for (EmergencyListener listener : mEmergencyListeners) {
                     listener.setEmergencyCallsOnly(msg.arg1 != 0);
@@ -128,15 +171,17 @@ public class CallbackHandler extends Handler implements EmergencyListener, Signa
     public void setWifiIndicators(final boolean enabled, final IconState statusIcon,
             final IconState qsIcon, final boolean activityIn, final boolean activityOut,
             final String description, boolean isTransient) {
-        post(new Runnable() {
-            @Override
-            public void run() {
-                for (SignalCallback callback : mSignalCallbacks) {
-                    callback.setWifiIndicators(enabled, statusIcon, qsIcon, activityIn, activityOut,
-                            description, isTransient);
-                }
-            }
-        });
+        synchronized (mLock) {
+            WifiIndicators wifi = mPendingWifi;
+            wifi.enabled = enabled;
+            wifi.statusIcon = statusIcon;
+            wifi.qsIcon = qsIcon;
+            wifi.activityIn = activityIn;
+            wifi.activityOut = activityOut;
+            wifi.description = description;
+            wifi.isTransient = isTransient;
+            schedule(wifi, MSG_WIFI_INDICATORS);
+        }
     }
     /// M: Modify to support [Network Type and volte on Statusbar], change the implement methods,
     /// add more parameter for network type and volte.
@@ -146,18 +191,55 @@ public class CallbackHandler extends Handler implements EmergencyListener, Signa
             final int qsType,final boolean activityIn,
             final boolean activityOut, final String typeContentDescription,
             final String description, final boolean isWide, final int subId, boolean roaming) {
-        post(new Runnable() {
-            @Override
-            public void run() {
-                for (SignalCallback signalCluster : mSignalCallbacks) {
-                    ///M: Support[Network Type and volte on StatusBar].
-                    /// add more parameter networkIcon and volte.
-                    signalCluster.setMobileDataIndicators(statusIcon, qsIcon, statusType,
-                            networkIcon, volteType, qsType, activityIn, activityOut,
-                            typeContentDescription, description, isWide, subId, roaming);
-                }
+        synchronized (mLock) {
+            MobileIndicators mobile = mPendingMobile.get(subId);
+            if (mobile == null) {
+                mobile = new MobileIndicators();
+                mPendingMobile.put(subId, mobile);
             }
-        });
+            mobile.statusIcon = statusIcon;
+            mobile.qsIcon = qsIcon;
+            mobile.statusType = statusType;
+            mobile.networkIcon = networkIcon;
+            mobile.volteType = volteType;
+            mobile.qsType = qsType;
+            mobile.activityIn = activityIn;
+            mobile.activityOut = activityOut;
+            mobile.typeContentDescription = typeContentDescription;
+            mobile.description = description;
+            mobile.isWide = isWide;
+            mobile.subId = subId;
+            mobile.roaming = roaming;
+            schedule(mobile, MSG_MOBILE_INDICATORS);
+        }
+    }
+
+    /**
+     * Make sure the given indicators are dispatched. If they are still queued and no other
+     * message was sent since, they are dispatched with their new values. Otherwise they are
+     * queued again to be dispatched after those messages.
+     */
+    private void schedule(Indicators indicators, int what) {
+        mRawUpdates++;
+        if (indicators.pending) {
+            if (indicators.sequence == mSequence) {
+                return;
+            }
+            removeMessages(what, indicators);
+        }
+        indicators.pending = true;
+        indicators.sequence = mSequence;
+        obtainMessage(what, indicators).sendToTarget();
+    }
+
+    /**
+     * Send a message which has to be dispatched after all indicators that were set before.
+     */
+    private void sendOrdered(Message msg) {
+        synchronized (mLock) {
+            mSequence++;
+            msg.sendToTarget();
+        }
     }
 
     @Override
@@ -165,36 +247,36 @@ public class CallbackHandler extends Handler implements EmergencyListener, Signa
         if (DEBUG) {
             Log.d(TAG, "setSubs, subs = " + subs);
         }
-        obtainMessage(MSG_SUBS_CHANGED, subs).sendToTarget();
+        sendOrdered(obtainMessage(MSG_SUBS_CHANGED, subs));
     }
 
     @Override
     public void setNoSims(boolean show, boolean simDetected) {
-        obtainMessage(MSG_NO_SIM_VISIBLE_CHANGED, show ? 1 : 0, simDetected ? 1 : 0).sendToTarget();
+        sendOrdered(obtainMessage(MSG_NO_SIM_VISIBLE_CHANGED, show ? 1 : 0, simDetected ? 1 : 0));
     }
 
     @Override
     public void setMobileDataEnabled(boolean enabled) {
-        obtainMessage(MSG_MOBILE_DATA_ENABLED_CHANGED, enabled ? 1 : 0, 0).sendToTarget();
+        sendOrdered(obtainMessage(MSG_MOBILE_DATA_ENABLED_CHANGED, enabled ? 1 : 0, 0));
     }
 
     @Override
     public void setEmergencyCallsOnly(boolean emergencyOnly) {
-        obtainMessage(MSG_EMERGENCE_CHANGED, emergencyOnly ? 1 : 0, 0).sendToTarget();
+        sendOrdered(obtainMessage(MSG_EMERGENCE_CHANGED, emergencyOnly ? 1 : 0, 0));
     }
 
     @Override
     public void setEthernetIndicators(IconState icon) {
-        obtainMessage(MSG_ETHERNET_CHANGED, icon).sendToTarget();;
+        sendOrdered(obtainMessage(MSG_ETHERNET_CHANGED, icon));
     }
 
     @Override
     public void setIsAirplaneMode(IconState icon) {
-        obtainMessage(MSG_AIRPLANE_MODE_CHANGED, icon).sendToTarget();;
+        sendOrdered(obtainMessage(MSG_AIRPLANE_MODE_CHANGED, icon));
     }
 
     public void setListening(EmergencyListener listener, boolean listening) {
-        obtainMessage(MSG_ADD_REMOVE_EMERGENCY, listening ? 1 : 0, 0, listener).sendToTarget();
+        sendOrdered(obtainMessage(MSG_ADD_REMOVE_EMERGENCY, listening ? 1 : 0, 0, listener));
     }
 
     public void setListening(SignalCallback listener, boolean listening) {
@@ -202,11 +284,122 @@ public class CallbackHandler extends Handler implements EmergencyListener, Signa
             Log.d(TAG, "setListening, listener = " + listener
                 + ", listening = " + listening);
         }
-        obtainMessage(MSG_ADD_REMOVE_SIGNAL, listening ? 1 : 0, 0, listener).sendToTarget();
+        sendOrdered(obtainMessage(MSG_ADD_REMOVE_SIGNAL, listening ? 1 : 0, 0, listener));
     }
 
     public int getSignalCallbackCount() {
         return mSignalCallbacks.size();
     }
 
+    /**
+     * @return how many wifi and mobile indicator updates were set
+     */
+    @VisibleForTesting
+    int getRawUpdateCount() {
+        synchronized (mLock) {
+            return mRawUpdates;
+        }
+    }
+
+    /**
+     * @return how many wifi and mobile indicator updates were dispatched to the callbacks
+     */
+    @VisibleForTesting
+    int getDispatchedUpdateCount() {
+        synchronized (mLock) {
+            return mDispatchedUpdates;
+        }
+    }
+
+    public void dump(PrintWriter pw) {
+        synchronized (mLock) {
+            pw.print("  CallbackHandler: indicator updates=");
+            pw.print(mRawUpdates);
+            pw.print(" dispatched=");
+            pw.println(mDispatchedUpdates);
+        }
+    }
+
+    private static class Indicators {
+        boolean pending;
+        int sequence;
+    }
+
+    private static class WifiIndicators extends Indicators {
+        boolean enabled;
+        IconState statusIcon;
+        IconState qsIcon;
+        boolean activityIn;
+        boolean activityOut;
+        String description;
+        boolean isTransient;
+
+        void copyFrom(WifiIndicators other) {
+            enabled = other.enabled;
+            statusIcon = other.statusIcon;
+            qsIcon = other.qsIcon;
+            activityIn = other.activityIn;
+            activityOut = other.activityOut;
+            description = other.description;
+            isTransient = other.isTransient;
+        }
+
+        void dispatchTo(SignalCallback callback) {
+            callback.setWifiIndicators(enabled, statusIcon, qsIcon, activityIn, activityOut,
+                    description, isTransient);
+        }
+
+        void clear() {
+            statusIcon = null;
+            qsIcon = null;
+            description = null;
+        }
+    }
+
+    private static class MobileIndicators extends Indicators {
+        IconState statusIcon;
+        IconState qsIcon;
+        int statusType;
+        int networkIcon;
+        int volteType;
+        int qsType;
+        boolean activityIn;
+        boolean activityOut;
+        String typeContentDescription;
+        String description;
+        boolean isWide;
+        int subId;
+        boolean roaming;
+
+        void copyFrom(MobileIndicators other) {
+            statusIcon = other.statusIcon;
+            qsIcon = other.qsIcon;
+            statusType = other.statusType;
+            networkIcon = other.networkIcon;
+            volteType = other.volteType;
+            qsType = other.qsType;
+            activityIn = other.activityIn;
+            activityOut = other.activityOut;
+            typeContentDescription = other.typeContentDescription;
+            description = other.description;
+            isWide = other.isWide;
+            subId = other.subId;
+            roaming = other.roaming;
+        }
+
+        void dispatchTo(SignalCallback callback) {
+            ///M: Support[Network Type and volte on StatusBar].
+            /// add more parameter networkIcon and volte.
+            callback.setMobileDataIndicators(statusIcon, qsIcon, statusType, networkIcon,
+                    volteType, qsType, activityIn, activityOut, typeContentDescription,
+                    description, isWide, subId, roaming);
+        }
+
+        void clear() {
+            statusIcon = null;
+            qsIcon = null;
+            typeContentDescription = null;
+            description = null;
+        }
+    }
 }
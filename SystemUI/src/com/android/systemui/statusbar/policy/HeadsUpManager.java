@@ -31,6 +31,7 @@ import android.view.View;
 import android.view.ViewTreeObserver;
 import android.view.accessibility.AccessibilityEvent;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.logging.MetricsLogger;
 import com.android.systemui.R;
 import com.android.systemui.statusbar.ExpandableNotificationRow;
@@ -58,6 +59,7 @@ public class HeadsUpManager implements ViewTreeObserver.OnComputeInternalInsetsL
     private static final boolean DEBUG = false;
     private static final String SETTING_HEADS_UP_SNOOZE_LENGTH_MS = "heads_up_snooze_length_ms";
     private static final int TAG_CLICKED_NOTIFICATION = R.id.is_clicked_heads_up_tag;
+    private static final long NO_REMOVAL = Long.MAX_VALUE;
 
     private final int mHeadsUpNotificationDecay;
     private final int mMinimumDisplayTime;
@@ -114,6 +116,14 @@ public class HeadsUpManager implements ViewTreeObserver.OnComputeInternalInsetsL
     private VisualStabilityManager mVisualStabilityManager;
     private int mStatusBarState;
 
+    /**
+     * All entries expire from this one callback, which is posted for the earliest removal time
+     * of all entries.
+     */
+    private final Runnable mRemoveExpiredRunnable = this::removeExpiredEntries;
+    private long mScheduledRemovalTime = NO_REMOVAL;
+    private final ArrayList<HeadsUpEntry> mTmpExpiredEntries = new ArrayList<>();
+
     public HeadsUpManager(final Context context, View statusBarWindowView,
                           NotificationGroupManager groupManager) {
         mContext = context;
@@ -215,6 +225,7 @@ public class HeadsUpManager implements ViewTreeObserver.OnComputeInternalInsetsL
         // This will also add the entry to the sortedList
         headsUpEntry.setEntry(entry);
         mHeadsUpEntries.put(entry.key, headsUpEntry);
+        updateRemovalCallback();
         entry.row.setHeadsUp(true);
         setEntryPinned(headsUpEntry, shouldHeadsUpBecomePinned(entry));
         for (OnHeadsUpChangedListener listener : mListeners) {
@@ -249,6 +260,7 @@ public class HeadsUpManager implements ViewTreeObserver.OnComputeInternalInsetsL
 
     private void removeHeadsUpEntry(NotificationData.Entry entry) {
         HeadsUpEntry remove = mHeadsUpEntries.remove(entry.key);
+        updateRemovalCallback();
         entry.row.sendAccessibilityEvent(AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED);
         entry.row.setHeadsUp(false);
         setEntryPinned(remove, false /* isPinned */);
@@ -259,9 +271,69 @@ public class HeadsUpManager implements ViewTreeObserver.OnComputeInternalInsetsL
     }
 
     public void removeAllHeadsUpEntries() {
-        for (String key : mHeadsUpEntries.keySet()) {
-            removeHeadsUpEntry(mHeadsUpEntries.get(key).entry);
+        ArrayList<HeadsUpEntry> entries = new ArrayList<>(mHeadsUpEntries.values());
+        for (HeadsUpEntry entry : entries) {
+            removeHeadsUpEntry(entry.entry);
+        }
+    }
+
+    /**
+     * Post the removal callback for the earliest removal time of all entries, if it isn't
+     * posted for that time already.
+     */
+    private void updateRemovalCallback() {
+        long removalTime = NO_REMOVAL;
+        for (HeadsUpEntry entry : mHeadsUpEntries.values()) {
+            removalTime = Math.min(removalTime, entry.removalTime);
+        }
+        if (removalTime == mScheduledRemovalTime) {
+            return;
+        }
+        mHandler.removeCallbacks(mRemoveExpiredRunnable);
+        mScheduledRemovalTime = removalTime;
+        if (removalTime != NO_REMOVAL) {
+            mHandler.postDelayed(mRemoveExpiredRunnable,
+                    Math.max(removalTime - mClock.currentTimeMillis(), 0));
+        }
+    }
+
+    @VisibleForTesting
+    void removeExpiredEntries() {
+        mScheduledRemovalTime = NO_REMOVAL;
+        long currentTime = mClock.currentTimeMillis();
+        for (HeadsUpEntry entry : mHeadsUpEntries.values()) {
+            if (entry.removalTime <= currentTime) {
+                mTmpExpiredEntries.add(entry);
+            }
         }
+        // Removing an entry changes mHeadsUpEntries
+        for (int i = 0; i < mTmpExpiredEntries.size(); i++) {
+            HeadsUpEntry entry = mTmpExpiredEntries.get(i);
+            if (entry.entry == null || entry.removalTime > currentTime) {
+                // Removed or updated by a listener of an earlier removal
+                continue;
+            }
+            entry.removalTime = NO_REMOVAL;
+            removeExpiredEntry(entry.entry);
+        }
+        mTmpExpiredEntries.clear();
+        updateRemovalCallback();
+    }
+
+    private void removeExpiredEntry(NotificationData.Entry entry) {
+        if (!mVisualStabilityManager.isReorderingAllowed()) {
+            mEntriesToRemoveWhenReorderingAllowed.add(entry);
+            mVisualStabilityManager.addReorderingAllowedCallback(this);
+        } else if (!mTrackingHeadsUp) {
+            removeHeadsUpEntry(entry);
+        } else {
+            mEntriesToRemoveAfterExpand.add(entry);
+        }
+    }
+
+    @VisibleForTesting
+    void setClock(Clock clock) {
+        mClock = clock;
     }
 
     private void updatePinnedMode() {
@@ -338,21 +410,20 @@ public class HeadsUpManager implements ViewTreeObserver.OnComputeInternalInsetsL
         final String key = snoozeKey(packageName, mUser);
         Long snoozedUntil = mSnoozedPackages.get(key);
         if (snoozedUntil != null) {
-            if (snoozedUntil > SystemClock.elapsedRealtime()) {
+            if (snoozedUntil > mClock.currentTimeMillis()) {
                 if (DEBUG) Log.v(TAG, key + " snoozed");
                 return true;
             }
-            mSnoozedPackages.remove(packageName);
+            mSnoozedPackages.remove(key);
         }
         return false;
     }
 
     public void snooze() {
-        for (String key : mHeadsUpEntries.keySet()) {
-            HeadsUpEntry entry = mHeadsUpEntries.get(key);
+        long snoozedUntil = mClock.currentTimeMillis() + mSnoozeLengthMs;
+        for (HeadsUpEntry entry : mHeadsUpEntries.values()) {
             String packageName = entry.entry.notification.getPackageName();
-            mSnoozedPackages.put(snoozeKey(packageName, mUser),
-                    SystemClock.elapsedRealtime() + mSnoozeLengthMs);
+            mSnoozedPackages.put(snoozeKey(packageName, mUser), snoozedUntil);
         }
         mReleaseOnExpandFinish = true;
     }
@@ -436,10 +507,12 @@ public class HeadsUpManager implements ViewTreeObserver.OnComputeInternalInsetsL
         pw.println("HeadsUpManager state:");
         pw.print("  mTouchAcceptanceDelay="); pw.println(mTouchAcceptanceDelay);
         pw.print("  mSnoozeLengthMs="); pw.println(mSnoozeLengthMs);
-        pw.print("  now="); pw.println(SystemClock.elapsedRealtime());
+        pw.print("  now="); pw.println(mClock.currentTimeMillis());
         pw.print("  mUser="); pw.println(mUser);
+        pw.print("  mScheduledRemovalTime="); pw.println(mScheduledRemovalTime);
         for (HeadsUpEntry entry: mHeadsUpEntries.values()) {
-            pw.print("  HeadsUpEntry="); pw.println(entry.entry);
+            pw.print("  HeadsUpEntry="); pw.print(entry.entry);
+            pw.print(" removalTime="); pw.println(entry.removalTime);
         }
         int N = mSnoozedPackages.size();
         pw.println("  snoozed packages: " + N);
@@ -454,8 +527,7 @@ public class HeadsUpManager implements ViewTreeObserver.OnComputeInternalInsetsL
     }
 
     private boolean hasPinnedNotificationInternal() {
-        for (String key : mHeadsUpEntries.keySet()) {
-            HeadsUpEntry entry = mHeadsUpEntries.get(key);
+        for (HeadsUpEntry entry : mHeadsUpEntries.values()) {
             if (entry.entry.row.isPinned()) {
                 return true;
             }
@@ -473,8 +545,7 @@ public class HeadsUpManager implements ViewTreeObserver.OnComputeInternalInsetsL
     }
 
     public void unpinAll() {
-        for (String key : mHeadsUpEntries.keySet()) {
-            HeadsUpEntry entry = mHeadsUpEntries.get(key);
+        for (HeadsUpEntry entry : mHeadsUpEntries.values()) {
             setEntryPinned(entry, false /* isPinned */);
             // maybe it got un sticky
             entry.updateEntry(false /* updatePostTime */);
@@ -652,7 +723,8 @@ public class HeadsUpManager implements ViewTreeObserver.OnComputeInternalInsetsL
         public NotificationData.Entry entry;
         public long postTime;
         public long earliestRemovaltime;
-        private Runnable mRemoveHeadsUpRunnable;
+        /** When this entry is removed by {@link #removeExpiredEntries}, if it isn't sticky */
+        private long removalTime = NO_REMOVAL;
         public boolean remoteInputActive;
         public boolean expanded;
 
@@ -661,19 +733,6 @@ public class HeadsUpManager implements ViewTreeObserver.OnComputeInternalInsetsL
 
             // The actual post time will be just after the heads-up really slided in
             postTime = mClock.currentTimeMillis() + mTouchAcceptanceDelay;
-            mRemoveHeadsUpRunnable = new Runnable() {
-                @Override
-                public void run() {
-                    if (!mVisualStabilityManager.isReorderingAllowed()) {
-                        mEntriesToRemoveWhenReorderingAllowed.add(entry);
-                        mVisualStabilityManager.addReorderingAllowedCallback(HeadsUpManager.this);
-                    } else if (!mTrackingHeadsUp) {
-                        removeHeadsUpEntry(entry);
-                    } else {
-                        mEntriesToRemoveAfterExpand.add(entry);
-                    }
-                }
-            };
             updateEntry();
         }
 
@@ -697,7 +756,15 @@ public class HeadsUpManager implements ViewTreeObserver.OnComputeInternalInsetsL
             if (!isSticky()) {
                 long finishTime = postTime + mHeadsUpNotificationDecay;
                 long removeDelay = Math.max(finishTime - currentTime, mMinimumDisplayTime);
-                mHandler.postDelayed(mRemoveHeadsUpRunnable, removeDelay);
+                setRemovalTime(currentTime + removeDelay);
+            }
+        }
+
+        private void setRemovalTime(long time) {
+            removalTime = time;
+            // Not in mHeadsUpEntries yet while it's being set up
+            if (mHeadsUpEntries.get(entry.key) == this) {
+                updateRemovalCallback();
             }
         }
 
@@ -735,7 +802,9 @@ public class HeadsUpManager implements ViewTreeObserver.OnComputeInternalInsetsL
         }
 
         public void removeAutoRemovalCallbacks() {
-            mHandler.removeCallbacks(mRemoveHeadsUpRunnable);
+            if (removalTime != NO_REMOVAL) {
+                setRemovalTime(NO_REMOVAL);
+            }
         }
 
         public boolean wasShownLongEnough() {
@@ -743,15 +812,12 @@ public class HeadsUpManager implements ViewTreeObserver.OnComputeInternalInsetsL
         }
 
         public void removeAsSoonAsPossible() {
-            removeAutoRemovalCallbacks();
-            mHandler.postDelayed(mRemoveHeadsUpRunnable,
-                    earliestRemovaltime - mClock.currentTimeMillis());
+            setRemovalTime(earliestRemovaltime);
         }
 
         public void reset() {
-            removeAutoRemovalCallbacks();
+            removalTime = NO_REMOVAL;
             entry = null;
-            mRemoveHeadsUpRunnable = null;
             expanded = false;
             remoteInputActive = false;
         }
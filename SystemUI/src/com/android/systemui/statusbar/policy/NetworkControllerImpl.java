@@ -40,6 +40,7 @@ import android.telephony.SubscriptionManager;
 import android.telephony.SubscriptionManager.OnSubscriptionsChangedListener;
 import android.telephony.TelephonyManager;
 import android.text.TextUtils;
+import android.util.ArrayMap;
 import android.util.Log;
 import android.util.MathUtils;
 import android.util.SparseArray;
@@ -150,6 +151,16 @@ public class NetworkControllerImpl extends BroadcastReceiver
     // Handler that all callbacks are made on.
     private final CallbackHandler mCallbackHandler;
 
+    /**
+     * Handles the broadcasts of one action, see {@link #addBroadcastHandlers}.
+     */
+    private interface BroadcastHandler {
+        void handleBroadcast(Intent intent);
+    }
+
+    // The handlers of all broadcasts this controller registers for, by action.
+    private final ArrayMap<String, BroadcastHandler> mBroadcastHandlers = new ArrayMap<>();
+
     private int mEmergencySource;
     private boolean mIsEmergency;
     private int mCellularSubId = SubscriptionManager.INVALID_SUBSCRIPTION_ID;
@@ -239,6 +250,7 @@ public class NetworkControllerImpl extends BroadcastReceiver
                 mCallbackHandler, this);
 
         mEthernetSignalController = new EthernetSignalController(mContext, mCallbackHandler, this);
+        addBroadcastHandlers();
 
         // AIRPLANE_MODE_CHANGED is sent at boot; we've probably already missed it
         updateAirplaneMode(true /* force callback */);
@@ -281,33 +293,71 @@ public class NetworkControllerImpl extends BroadcastReceiver
 
         // broadcasts
         IntentFilter filter = new IntentFilter();
-        filter.addAction(WifiManager.RSSI_CHANGED_ACTION);
-        filter.addAction(WifiManager.WIFI_STATE_CHANGED_ACTION);
-        filter.addAction(WifiManager.NETWORK_STATE_CHANGED_ACTION);
-        filter.addAction(TelephonyIntents.ACTION_SIM_STATE_CHANGED);
-        filter.addAction(TelephonyIntents.ACTION_DEFAULT_DATA_SUBSCRIPTION_CHANGED);
-        filter.addAction(TelephonyIntents.ACTION_DEFAULT_VOICE_SUBSCRIPTION_CHANGED);
-        filter.addAction(TelephonyIntents.ACTION_SERVICE_STATE_CHANGED);
-        filter.addAction(TelephonyIntents.SPN_STRINGS_UPDATED_ACTION);
-        filter.addAction(ConnectivityManager.CONNECTIVITY_ACTION);
-        filter.addAction(ConnectivityManager.INET_CONDITION_ACTION);
-        filter.addAction(Intent.ACTION_AIRPLANE_MODE_CHANGED);
-        /// M: Add mtk
-        addCustomizedAction(filter);
+        for (int i = 0; i < mBroadcastHandlers.size(); i++) {
+            filter.addAction(mBroadcastHandlers.keyAt(i));
+        }
         mContext.registerReceiver(this, filter, null, mReceiverHandler);
         mListening = true;
 
         updateMobileControllers();
     }
 
-    /// M: Add MTK more filter action
-    private void addCustomizedAction(IntentFilter filter) {
-        filter.addAction(TelephonyIntents.ACTION_SUBINFO_RECORD_UPDATED);
+    /**
+     * Register what to do for each broadcast action. Each handler only updates the signal
+     * controllers that are affected by its action.
+     */
+    private void addBroadcastHandlers() {
+        mBroadcastHandlers.put(WifiManager.RSSI_CHANGED_ACTION,
+                mWifiSignalController::handleBroadcast);
+        mBroadcastHandlers.put(WifiManager.WIFI_STATE_CHANGED_ACTION,
+                mWifiSignalController::handleBroadcast);
+        mBroadcastHandlers.put(WifiManager.NETWORK_STATE_CHANGED_ACTION,
+                mWifiSignalController::handleBroadcast);
+        // Might have different subscriptions now.
+        mBroadcastHandlers.put(TelephonyIntents.ACTION_SIM_STATE_CHANGED,
+                intent -> updateMobileControllers());
+        // Notify every MobileSignalController so they can know whether they are the
+        // data sim or not.
+        mBroadcastHandlers.put(TelephonyIntents.ACTION_DEFAULT_DATA_SUBSCRIPTION_CHANGED,
+                this::handleBroadcastForAllMobile);
+        // We are using different subs now, we might be able to make calls.
+        mBroadcastHandlers.put(TelephonyIntents.ACTION_DEFAULT_VOICE_SUBSCRIPTION_CHANGED,
+                intent -> recalculateEmergency());
+        mBroadcastHandlers.put(TelephonyIntents.ACTION_SERVICE_STATE_CHANGED,
+                this::handleServiceStateChanged);
+        mBroadcastHandlers.put(TelephonyIntents.SPN_STRINGS_UPDATED_ACTION,
+                this::handleBroadcastForSubscription);
+        mBroadcastHandlers.put(ConnectivityManager.CONNECTIVITY_ACTION,
+                intent -> updateConnectivity());
+        mBroadcastHandlers.put(ConnectivityManager.INET_CONDITION_ACTION,
+                intent -> updateConnectivity());
+        mBroadcastHandlers.put(Intent.ACTION_AIRPLANE_MODE_CHANGED, intent -> {
+            refreshLocale();
+            updateAirplaneMode(false);
+        });
+        /// M: Add mtk
+        addCustomizedBroadcastHandlers();
+    }
+
+    /// M: Add MTK more broadcast actions
+    private void addCustomizedBroadcastHandlers() {
+        /// M: Support "subinfo record update". @{
+        mBroadcastHandlers.put(TelephonyIntents.ACTION_SUBINFO_RECORD_UPDATED, intent -> {
+            /// M: update plmn label
+            refreshPlmnCarrierLabel();
+            updateMobileControllersEx(intent);
+        });
+        /// @}
         /// Add for 4G+W.
-        filter.addAction(NetworkTypeUtils.LWA_STATE_CHANGE_ACTION);
+        mBroadcastHandlers.put(NetworkTypeUtils.LWA_STATE_CHANGE_ACTION, this::handleLwaAction);
     }
     /// @ }
 
+    @VisibleForTesting
+    List<String> getBroadcastActions() {
+        return new ArrayList<>(mBroadcastHandlers.keySet());
+    }
+
     private void unregisterListeners() {
         mListening = false;
         for (int i = 0; i < mMobileSignalControllers.size(); i++) {
@@ -483,71 +533,56 @@ public class NetworkControllerImpl extends BroadcastReceiver
         if (CHATTY) {
             Log.d(TAG, "onReceive: intent=" + intent);
         }
-        final String action = intent.getAction();
-        if (action.equals(ConnectivityManager.CONNECTIVITY_ACTION) ||
-                action.equals(ConnectivityManager.INET_CONDITION_ACTION)) {
-            updateConnectivity();
-        } else if (action.equals(Intent.ACTION_AIRPLANE_MODE_CHANGED)) {
-            refreshLocale();
-            updateAirplaneMode(false);
-        } else if (action.equals(TelephonyIntents.ACTION_DEFAULT_VOICE_SUBSCRIPTION_CHANGED)) {
-            // We are using different subs now, we might be able to make calls.
-            recalculateEmergency();
-        } else if (action.equals(TelephonyIntents.ACTION_DEFAULT_DATA_SUBSCRIPTION_CHANGED)) {
-            // Notify every MobileSignalController so they can know whether they are the
-            // data sim or not.
-            for (int i = 0; i < mMobileSignalControllers.size(); i++) {
-                MobileSignalController controller = mMobileSignalControllers.valueAt(i);
-                controller.handleBroadcast(intent);
-            }
-        } else if (action.equals(TelephonyIntents.ACTION_SIM_STATE_CHANGED)) {
-            // Might have different subscriptions now.
-            updateMobileControllers();
-        /// M: Support "subinfo record update". @{
-        } else if (action.equals(TelephonyIntents.ACTION_SUBINFO_RECORD_UPDATED)) {
-            /// M: update plmn label @{
-            refreshPlmnCarrierLabel();
-            /// @}
-            updateMobileControllersEx(intent);
-       /// @}
-        } else if (action.equals(TelephonyIntents.ACTION_SERVICE_STATE_CHANGED)) {
-            mLastServiceState = ServiceState.newFromBundle(intent.getExtras());
-            /// M:[ALPS02809725]Always save ecc state not only no sim
-            /// M: [ALPS02614114] Check all phone's emergency state when no sims @{
-            if (mLastServiceState != null) {
-               int phoneId = intent.getIntExtra(PhoneConstants.PHONE_KEY,
-                     PhoneConstants.SIM_ID_1);
-               mEmergencyPhone[phoneId] = mLastServiceState.isEmergencyOnly();
-               if (DEBUG) {
-                   Log.d(TAG, "Service State changed...phoneId: " + phoneId
-                           + " ,isEmergencyOnly: " + mEmergencyPhone[phoneId]);
-               }
-               if (mMobileSignalControllers.size() == 0) {
-                  // If none of the subscriptions are active, we might need to recalculate
-                  // emergency state.
-                  recalculateEmergency();
-               }
-               // @}
-            }
-        }  else if (action.equals(NetworkTypeUtils.LWA_STATE_CHANGE_ACTION)) {
-            /// M: Add for 4G+W
-            handleLwaAction(intent);
+        BroadcastHandler handler = mBroadcastHandlers.get(intent.getAction());
+        if (handler != null) {
+            handler.handleBroadcast(intent);
+        } else {
+            handleBroadcastForSubscription(intent);
         }
-        else {
-            int subId = intent.getIntExtra(PhoneConstants.SUBSCRIPTION_KEY,
-                    SubscriptionManager.INVALID_SUBSCRIPTION_ID);
-            if (SubscriptionManager.isValidSubscriptionId(subId)) {
-                if (mMobileSignalControllers.indexOfKey(subId) >= 0) {
-                    mMobileSignalControllers.get(subId).handleBroadcast(intent);
-                } else {
-                    // Can't find this subscription...  We must be out of date.
-                    updateMobileControllers();
-                }
+    }
+
+    private void handleBroadcastForAllMobile(Intent intent) {
+        for (int i = 0; i < mMobileSignalControllers.size(); i++) {
+            MobileSignalController controller = mMobileSignalControllers.valueAt(i);
+            controller.handleBroadcast(intent);
+        }
+    }
+
+    private void handleBroadcastForSubscription(Intent intent) {
+        int subId = intent.getIntExtra(PhoneConstants.SUBSCRIPTION_KEY,
+                SubscriptionManager.INVALID_SUBSCRIPTION_ID);
+        if (SubscriptionManager.isValidSubscriptionId(subId)) {
+            if (mMobileSignalControllers.indexOfKey(subId) >= 0) {
+                mMobileSignalControllers.get(subId).handleBroadcast(intent);
             } else {
-                // No sub id, must be for the wifi.
-                mWifiSignalController.handleBroadcast(intent);
+                // Can't find this subscription...  We must be out of date.
+                updateMobileControllers();
+            }
+        } else {
+            // No sub id, must be for the wifi.
+            mWifiSignalController.handleBroadcast(intent);
+        }
+    }
+
+    private void handleServiceStateChanged(Intent intent) {
+        mLastServiceState = ServiceState.newFromBundle(intent.getExtras());
+        /// M:[ALPS02809725]Always save ecc state not only no sim
+        /// M: [ALPS02614114] Check all phone's emergency state when no sims @{
+        if (mLastServiceState != null) {
+            int phoneId = intent.getIntExtra(PhoneConstants.PHONE_KEY,
+                    PhoneConstants.SIM_ID_1);
+            mEmergencyPhone[phoneId] = mLastServiceState.isEmergencyOnly();
+            if (DEBUG) {
+                Log.d(TAG, "Service State changed...phoneId: " + phoneId
+                        + " ,isEmergencyOnly: " + mEmergencyPhone[phoneId]);
+            }
+            if (mMobileSignalControllers.size() == 0) {
+                // If none of the subscriptions are active, we might need to recalculate
+                // emergency state.
+                recalculateEmergency();
             }
         }
+        // @}
     }
 
     public void onConfigurationChanged(Configuration newConfig) {
@@ -909,6 +944,8 @@ public class NetworkControllerImpl extends BroadcastReceiver
         mEthernetSignalController.dump(pw);
 
         mAccessPoints.dump(pw);
+
+        mCallbackHandler.dump(pw);
     }
 
     private static final String emergencyToString(int emergencySource) {
@@ -16,8 +16,10 @@
 
 package com.android.systemui.statusbar;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
@@ -25,36 +27,70 @@ import static org.mockito.Mockito.when;
 import android.Manifest;
 import android.app.Notification;
 import android.app.NotificationChannel;
+import android.app.NotificationManager;
 import android.content.pm.IPackageManager;
 import android.content.pm.PackageManager;
 import android.os.Bundle;
+import android.os.Debug;
 import android.service.notification.NotificationListenerService;
 import android.service.notification.StatusBarNotification;
+import android.support.test.InstrumentationRegistry;
 import android.support.test.annotation.UiThreadTest;
+import android.support.test.filters.LargeTest;
 import android.support.test.filters.SmallTest;
 import android.support.test.runner.AndroidJUnit4;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.Log;
 
+import com.android.systemui.ForegroundServiceController;
 import com.android.systemui.SysuiTestCase;
 import com.android.systemui.statusbar.phone.NotificationGroupManager;
+import com.android.systemui.statusbar.policy.HeadsUpManager;
 
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
 @SmallTest
 @RunWith(AndroidJUnit4.class)
 public class NotificationDataTest extends SysuiTestCase {
 
+    private static final String TAG = "NotificationDataTest";
     private static final int UID_NORMAL = 123;
     private static final int UID_ALLOW_DURING_SETUP = 456;
+    private static final long SEED = 20171019;
+    private static final int PROPERTY_STEPS = 400;
+    private static final int PROPERTY_ROWS = 24;
+    private static final int[] BENCHMARK_SIZES = { 20, 100, 300 };
+    private static final int BENCHMARK_ROUNDS = 200;
+    private static final int[] ALLOCATION_SIZES = { 10, 100 };
+    private static final int ALLOCATION_ROUNDS = 50;
+    private static final int[] IMPORTANCES = {
+            NotificationManager.IMPORTANCE_MIN,
+            NotificationManager.IMPORTANCE_LOW,
+            NotificationManager.IMPORTANCE_DEFAULT,
+            NotificationManager.IMPORTANCE_HIGH,
+    };
 
     private final StatusBarNotification mMockStatusBarNotification =
             mock(StatusBarNotification.class);
 
     private final IPackageManager mMockPackageManager = mock(IPackageManager.class);
-    private NotificationData mNotificationData;
+    private TestableNotificationData mNotificationData;
     private ExpandableNotificationRow mRow;
+    private NotificationData.Environment mEnvironment;
+    private String mMediaKey;
+    /** Keys the environment filters out, as for another profile */
+    private final ArraySet<String> mHiddenKeys = new ArraySet<>();
+    /** The heads up notifications from the one shown longest, as HeadsUpManager orders them */
+    private final ArrayList<String> mHeadsUpKeys = new ArrayList<>();
 
     @Before
     public void setUp() throws Exception {
@@ -69,10 +105,15 @@ public class NotificationDataTest extends SysuiTestCase {
                 eq(UID_ALLOW_DURING_SETUP)))
                 .thenReturn(PackageManager.PERMISSION_GRANTED);
 
-        NotificationData.Environment mock = mock(NotificationData.Environment.class);
-        when(mock.getGroupManager()).thenReturn(new NotificationGroupManager());
-        mNotificationData = new TestableNotificationData(mock);
-        mNotificationData.updateRanking(mock(NotificationListenerService.RankingMap.class));
+        mDependency.injectMockDependency(ForegroundServiceController.class);
+        mEnvironment = mock(NotificationData.Environment.class);
+        when(mEnvironment.getGroupManager()).thenReturn(new NotificationGroupManager());
+        when(mEnvironment.isDeviceProvisioned()).thenReturn(true);
+        when(mEnvironment.isNotificationForCurrentProfiles(any())).thenAnswer(invocation ->
+                !mHiddenKeys.contains(
+                        ((StatusBarNotification) invocation.getArguments()[0]).getKey()));
+        when(mEnvironment.getCurrentMediaNotificationKey()).thenAnswer(invocation -> mMediaKey);
+        mNotificationData = newNotificationData();
         mRow = new NotificationTestHelper(getContext()).createRow();
     }
 
@@ -117,6 +158,302 @@ public class NotificationDataTest extends SysuiTestCase {
         Assert.assertTrue(mRow.getEntry().channel != null);
     }
 
+    @Test
+    public void testSortedByRankWhenAddedOneByOne() throws Exception {
+        NotificationTestHelper helper = new NotificationTestHelper(getContext());
+        int[] ranks = {3, 0, 5, 1, 4, 2};
+        for (int rank : ranks) {
+            ExpandableNotificationRow row = helper.createRow();
+            mNotificationData.setRank(row.getEntry().key, rank);
+            mNotificationData.add(row.getEntry());
+            assertSortedByRank();
+        }
+        assertEquals(ranks.length, mNotificationData.getActiveNotifications().size());
+    }
+
+    @Test
+    public void testSortedByRankAfterRankingUpdate() throws Exception {
+        NotificationTestHelper helper = new NotificationTestHelper(getContext());
+        ArrayList<String> keys = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            ExpandableNotificationRow row = helper.createRow();
+            keys.add(row.getEntry().key);
+            mNotificationData.setRank(row.getEntry().key, i);
+            mNotificationData.add(row.getEntry());
+        }
+        assertSortedByRank();
+
+        // Reverse the order, which cannot be done by inserting
+        for (int i = 0; i < keys.size(); i++) {
+            mNotificationData.setRank(keys.get(i), keys.size() - i);
+        }
+        mNotificationData.updateRanking(mock(NotificationListenerService.RankingMap.class));
+        assertSortedByRank();
+        assertEquals(keys.get(keys.size() - 1),
+                mNotificationData.getActiveNotifications().get(0).key);
+
+        mNotificationData.remove(keys.get(2),
+                mock(NotificationListenerService.RankingMap.class));
+        assertSortedByRank();
+        assertEquals(keys.size() - 1, mNotificationData.getActiveNotifications().size());
+    }
+
+    /**
+     * Posts, removes, re-ranks, heads up and picks media notifications at random, and checks
+     * after every step that the incrementally kept order is the one a full sort gives.
+     */
+    @Test
+    public void testIncrementalOrderMatchesFullSort() throws Exception {
+        NotificationTestHelper helper = new NotificationTestHelper(getContext());
+        Random random = new Random(SEED);
+        ArrayList<ExpandableNotificationRow> unposted = new ArrayList<>();
+        for (int i = 0; i < PROPERTY_ROWS; i++) {
+            unposted.add(helper.createRow());
+        }
+        ArrayList<ExpandableNotificationRow> posted = new ArrayList<>();
+
+        for (int step = 0; step < PROPERTY_STEPS; step++) {
+            String action;
+            int choice = posted.isEmpty() ? 0 : random.nextInt(8);
+            if (choice <= 1 && unposted.isEmpty()) {
+                choice = 2;
+            }
+            switch (choice) {
+                case 0:
+                case 1: {
+                    ExpandableNotificationRow row = unposted.remove(
+                            random.nextInt(unposted.size()));
+                    String key = row.getEntry().key;
+                    mNotificationData.setRank(key, uniqueRank(random, posted));
+                    mNotificationData.setImportance(key,
+                            IMPORTANCES[random.nextInt(IMPORTANCES.length)]);
+                    mNotificationData.add(row.getEntry());
+                    posted.add(row);
+                    action = "post " + key;
+                    break;
+                }
+                case 2: {
+                    ExpandableNotificationRow row = posted.remove(random.nextInt(posted.size()));
+                    String key = row.getEntry().key;
+                    setHeadsUp(row, false);
+                    mNotificationData.remove(key,
+                            mock(NotificationListenerService.RankingMap.class));
+                    unposted.add(row);
+                    action = "remove " + key;
+                    break;
+                }
+                case 3: {
+                    ArrayList<Integer> ranks = new ArrayList<>();
+                    for (int i = 0; i < posted.size(); i++) {
+                        ranks.add(i);
+                    }
+                    Collections.shuffle(ranks, random);
+                    for (int i = 0; i < posted.size(); i++) {
+                        mNotificationData.setRank(posted.get(i).getEntry().key, ranks.get(i));
+                    }
+                    mNotificationData.updateRanking(
+                            mock(NotificationListenerService.RankingMap.class));
+                    action = "re-rank all";
+                    break;
+                }
+                case 4: {
+                    String key = posted.get(random.nextInt(posted.size())).getEntry().key;
+                    mNotificationData.setRank(key, uniqueRank(random, posted));
+                    mNotificationData.setImportance(key,
+                            IMPORTANCES[random.nextInt(IMPORTANCES.length)]);
+                    mNotificationData.updateRanking(
+                            mock(NotificationListenerService.RankingMap.class));
+                    action = "re-rank " + key;
+                    break;
+                }
+                case 5:
+                case 6: {
+                    ExpandableNotificationRow row = posted.get(random.nextInt(posted.size()));
+                    boolean headsUp = !row.isHeadsUp();
+                    setHeadsUp(row, headsUp);
+                    mNotificationData.filterAndSort();
+                    action = (headsUp ? "heads up " : "no heads up ") + row.getEntry().key;
+                    break;
+                }
+                default: {
+                    mMediaKey = random.nextInt(4) == 0 ? null
+                            : posted.get(random.nextInt(posted.size())).getEntry().key;
+                    mNotificationData.filterAndSort();
+                    action = "media " + mMediaKey;
+                    break;
+                }
+            }
+            assertMatchesFullSort("step " + step + ": " + action, posted, random);
+        }
+    }
+
+    /**
+     * Logs what keeping the list sorted costs with {@link #BENCHMARK_SIZES} notifications, for
+     * one notification that is shown again, which is inserted, for five at once, which are
+     * sorted in with the rest, and for sorting the list from scratch as every update did
+     * before.
+     */
+    @LargeTest
+    @Test
+    public void testSortCost() throws Exception {
+        NotificationTestHelper helper = new NotificationTestHelper(getContext());
+        Random random = new Random(SEED);
+        ArrayList<ExpandableNotificationRow> rows = new ArrayList<>();
+        for (int size : BENCHMARK_SIZES) {
+            while (rows.size() < size) {
+                rows.add(helper.createRow());
+            }
+            mHiddenKeys.clear();
+            TestableNotificationData data = newNotificationData();
+            for (int i = 0; i < size; i++) {
+                NotificationData.Entry entry = rows.get(i).getEntry();
+                data.setRank(entry.key, random.nextInt());
+                data.add(entry);
+            }
+            List<NotificationData.Entry> active = data.getActiveNotifications();
+            assertEquals(size, active.size());
+
+            long insertNs = 0;
+            long sortInNs = 0;
+            long fullSortNs = 0;
+            for (int round = 0; round < BENCHMARK_ROUNDS; round++) {
+                mHiddenKeys.add(active.get(random.nextInt(size)).key);
+                data.filterAndSort();
+                mHiddenKeys.clear();
+                long start = System.nanoTime();
+                data.filterAndSort();
+                insertNs += System.nanoTime() - start;
+
+                for (int i = 0; i < 5; i++) {
+                    mHiddenKeys.add(active.get(random.nextInt(size)).key);
+                }
+                data.filterAndSort();
+                mHiddenKeys.clear();
+                start = System.nanoTime();
+                data.filterAndSort();
+                sortInNs += System.nanoTime() - start;
+
+                ArrayList<NotificationData.Entry> shuffled = new ArrayList<>(active);
+                Collections.shuffle(shuffled, random);
+                start = System.nanoTime();
+                Collections.sort(shuffled, data.getRankingComparator());
+                fullSortNs += System.nanoTime() - start;
+                assertEquals(active, shuffled);
+            }
+            Log.d(TAG, size + " notifications: insert one " + insertNs / BENCHMARK_ROUNDS / 1000
+                    + " us, sort in five " + sortInNs / BENCHMARK_ROUNDS / 1000
+                    + " us, full sort " + fullSortNs / BENCHMARK_ROUNDS / 1000 + " us");
+        }
+    }
+
+    /**
+     * Counts the objects allocated by repeated {@link NotificationData#filterAndSort()} and
+     * {@link NotificationData#updateRanking} once nothing changes any more, which is what most
+     * updates of a full shade are. Mockito allocates on every call of a mock, so the
+     * environment and the foreground service controller are plain fakes here.
+     */
+    @Test
+    public void testSteadyStateDoesNotAllocatePerEntry() throws Exception {
+        // Before the first filterAndSort() looks it up
+        mDependency.injectTestDependency(ForegroundServiceController.class,
+                new NoDungeonController());
+        NotificationTestHelper helper = new NotificationTestHelper(getContext());
+        NotificationListenerService.RankingMap rankingMap =
+                mock(NotificationListenerService.RankingMap.class);
+        int[] counts = new int[ALLOCATION_SIZES.length];
+        for (int s = 0; s < ALLOCATION_SIZES.length; s++) {
+            TestableNotificationData data = new TestableNotificationData(
+                    new FakeEnvironment(new NotificationGroupManager()));
+            data.updateRanking(rankingMap);
+            for (int i = 0; i < ALLOCATION_SIZES[s]; i++) {
+                NotificationData.Entry entry = helper.createRow().getEntry();
+                data.setRank(entry.key, ALLOCATION_SIZES[s] - i);
+                data.add(entry);
+            }
+            // Grows the reused lists and loads every class on the way
+            data.updateRanking(rankingMap);
+            data.filterAndSort();
+
+            Debug.startAllocCounting();
+            Debug.resetThreadAllocCount();
+            for (int round = 0; round < ALLOCATION_ROUNDS; round++) {
+                data.filterAndSort();
+                data.updateRanking(rankingMap);
+            }
+            counts[s] = Debug.getThreadAllocCount();
+            Debug.stopAllocCounting();
+            assertEquals(ALLOCATION_SIZES[s], data.getActiveNotifications().size());
+            Log.d(TAG, ALLOCATION_SIZES[s] + " notifications: " + counts[s]
+                    + " objects allocated in " + ALLOCATION_ROUNDS + " rounds");
+        }
+        assertEquals("allocations grow with the number of notifications", counts[0], counts[1]);
+    }
+
+    private TestableNotificationData newNotificationData() {
+        TestableNotificationData data = new TestableNotificationData(mEnvironment);
+        HeadsUpManager headsUpManager = mock(HeadsUpManager.class);
+        when(headsUpManager.compare(any(), any())).thenAnswer(invocation -> Integer.compare(
+                mHeadsUpKeys.indexOf(
+                        ((NotificationData.Entry) invocation.getArguments()[0]).key),
+                mHeadsUpKeys.indexOf(
+                        ((NotificationData.Entry) invocation.getArguments()[1]).key)));
+        data.setHeadsUpManager(headsUpManager);
+        data.updateRanking(mock(NotificationListenerService.RankingMap.class));
+        return data;
+    }
+
+    private void setHeadsUp(ExpandableNotificationRow row, boolean headsUp) {
+        mHeadsUpKeys.remove(row.getEntry().key);
+        if (headsUp) {
+            mHeadsUpKeys.add(row.getEntry().key);
+        }
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(
+                () -> row.setHeadsUp(headsUp));
+    }
+
+    /** A rank no posted notification has, so that no two entries compare as equal. */
+    private int uniqueRank(Random random, List<ExpandableNotificationRow> posted) {
+        while (true) {
+            int rank = random.nextInt(1000);
+            boolean isUnique = true;
+            for (ExpandableNotificationRow row : posted) {
+                isUnique &= mNotificationData.getRank(row.getEntry().key) != rank;
+            }
+            if (isUnique) {
+                return rank;
+            }
+        }
+    }
+
+    private void assertMatchesFullSort(String message, List<ExpandableNotificationRow> posted,
+            Random random) {
+        ArrayList<NotificationData.Entry> active = mNotificationData.getActiveNotifications();
+        assertEquals(message, posted.size(), active.size());
+        for (ExpandableNotificationRow row : posted) {
+            assertTrue(message, active.contains(row.getEntry()));
+        }
+        ArrayList<NotificationData.Entry> expected = new ArrayList<>(active);
+        Collections.shuffle(expected, random);
+        Collections.sort(expected, mNotificationData.getRankingComparator());
+        assertEquals(message, keys(expected), keys(active));
+    }
+
+    private static List<String> keys(List<NotificationData.Entry> entries) {
+        ArrayList<String> keys = new ArrayList<>();
+        for (NotificationData.Entry entry : entries) {
+            keys.add(entry.key);
+        }
+        return keys;
+    }
+
+    private void assertSortedByRank() {
+        ArrayList<NotificationData.Entry> active = mNotificationData.getActiveNotifications();
+        for (int i = 1; i < active.size(); i++) {
+            assertTrue(mNotificationData.getRank(active.get(i - 1).key)
+                    < mNotificationData.getRank(active.get(i).key));
+        }
+    }
+
     private void initStatusBarNotification(boolean allowDuringSetup) {
         Bundle bundle = new Bundle();
         bundle.putBoolean(Notification.EXTRA_ALLOW_DURING_SETUP, allowDuringSetup);
@@ -126,19 +463,113 @@ public class NotificationDataTest extends SysuiTestCase {
         when(mMockStatusBarNotification.getNotification()).thenReturn(notification);
     }
 
+    private static class FakeEnvironment implements NotificationData.Environment {
+        private final NotificationGroupManager mGroupManager;
+
+        FakeEnvironment(NotificationGroupManager groupManager) {
+            mGroupManager = groupManager;
+        }
+
+        @Override
+        public boolean isSecurelyLocked(int userId) {
+            return false;
+        }
+
+        @Override
+        public boolean shouldHideNotifications(int userid) {
+            return false;
+        }
+
+        @Override
+        public boolean shouldHideNotifications(String key) {
+            return false;
+        }
+
+        @Override
+        public boolean isDeviceProvisioned() {
+            return true;
+        }
+
+        @Override
+        public boolean isNotificationForCurrentProfiles(StatusBarNotification sbn) {
+            return true;
+        }
+
+        @Override
+        public String getCurrentMediaNotificationKey() {
+            return null;
+        }
+
+        @Override
+        public NotificationGroupManager getGroupManager() {
+            return mGroupManager;
+        }
+    }
+
+    private static class NoDungeonController implements ForegroundServiceController {
+        @Override
+        public void addNotification(StatusBarNotification sbn, int importance) {
+        }
+
+        @Override
+        public void updateNotification(StatusBarNotification sbn, int newImportance) {
+        }
+
+        @Override
+        public boolean removeNotification(StatusBarNotification sbn) {
+            return false;
+        }
+
+        @Override
+        public boolean isDungeonNeededForUser(int userId) {
+            return false;
+        }
+
+        @Override
+        public boolean isDungeonNotification(StatusBarNotification sbn) {
+            return false;
+        }
+    }
+
     private class TestableNotificationData extends NotificationData {
+        private final ArrayMap<String, Integer> mRanks = new ArrayMap<>();
+        private final ArrayMap<String, Integer> mImportances = new ArrayMap<>();
+        private final NotificationChannel mChannel = new NotificationChannel(null, null, 0);
+
         public TestableNotificationData(Environment environment) {
             super(environment);
         }
 
+        public void setRank(String key, int rank) {
+            mRanks.put(key, rank);
+        }
+
+        public int getRank(String key) {
+            return mRanks.get(key);
+        }
+
+        public void setImportance(String key, int importance) {
+            mImportances.put(key, importance);
+        }
+
         @Override
         public NotificationChannel getChannel(String key) {
-            return new NotificationChannel(null, null, 0);
+            return mChannel;
         }
 
         @Override
         protected boolean getRanking(String key, NotificationListenerService.Ranking outRanking) {
-            super.getRanking(key, outRanking);
+            if (!mRanks.containsKey(key)) {
+                super.getRanking(key, outRanking);
+            } else {
+                outRanking.populate(key, mRanks.get(key), false /* matchesInterruptionFilter */,
+                        0 /* visibilityOverride */, 0 /* suppressedVisualEffects */,
+                        mImportances.containsKey(key) ? mImportances.get(key)
+                                : NotificationManager.IMPORTANCE_DEFAULT, null /* explanation */,
+                        null /* overrideGroupKey */, null /* channel */,
+                        null /* overridePeople */, null /* snoozeCriteria */,
+                        false /* showBadge */);
+            }
             return true;
         }
     }
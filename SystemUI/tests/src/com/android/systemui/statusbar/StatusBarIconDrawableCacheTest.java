@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.systemui.statusbar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.when;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.pm.PackageManager;
+import android.content.res.Resources;
+import android.graphics.Color;
+import android.graphics.drawable.ColorDrawable;
+import android.graphics.drawable.Drawable;
+import android.graphics.drawable.Icon;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.android.systemui.R;
+import com.android.systemui.SysuiTestCase;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class StatusBarIconDrawableCacheTest extends SysuiTestCase {
+
+    private static final String PACKAGE = "mockPackage";
+    private static final int USER_OWNER = 0;
+    private static final int USER_OTHER = 10;
+
+    private StatusBarIconDrawableCache mCache;
+    private Context mContext;
+
+    @Before
+    public void setUp() throws Exception {
+        // Every user gets its own resources of the package, with a different drawable
+        PackageManager packageManagerSpy = spy(getContext().getPackageManager());
+        doReturn(createResources(Color.RED)).when(packageManagerSpy)
+                .getResourcesForApplicationAsUser(eq(PACKAGE), eq(USER_OWNER));
+        doReturn(createResources(Color.BLUE)).when(packageManagerSpy)
+                .getResourcesForApplicationAsUser(eq(PACKAGE), eq(USER_OTHER));
+        mContext = new ContextWrapper(getContext()) {
+            @Override
+            public PackageManager getPackageManager() {
+                return packageManagerSpy;
+            }
+        };
+        mCache = new StatusBarIconDrawableCache();
+    }
+
+    @Test
+    public void testSecondLoadIsHit() {
+        Drawable first = mCache.getDrawable(mContext, createIcon(), USER_OWNER);
+        Drawable second = mCache.getDrawable(mContext, createIcon(), USER_OWNER);
+        assertEquals(1, mCache.missCount());
+        assertEquals(1, mCache.hitCount());
+        assertNotSame(first, second);
+        assertEquals(Color.RED, ((ColorDrawable) second).getColor());
+    }
+
+    @Test
+    public void testUsersAreIsolated() {
+        Drawable owner = mCache.getDrawable(mContext, createIcon(), USER_OWNER);
+        Drawable other = mCache.getDrawable(mContext, createIcon(), USER_OTHER);
+        assertEquals(2, mCache.missCount());
+        assertEquals(Color.RED, ((ColorDrawable) owner).getColor());
+        assertEquals(Color.BLUE, ((ColorDrawable) other).getColor());
+
+        other = mCache.getDrawable(mContext, createIcon(), USER_OTHER);
+        owner = mCache.getDrawable(mContext, createIcon(), USER_OWNER);
+        assertEquals(2, mCache.hitCount());
+        assertEquals(Color.RED, ((ColorDrawable) owner).getColor());
+        assertEquals(Color.BLUE, ((ColorDrawable) other).getColor());
+    }
+
+    @Test
+    public void testPackageChangeInvalidates() {
+        mCache.getDrawable(mContext, createIcon(), USER_OWNER);
+        mCache.getDrawable(mContext, createIcon(), USER_OTHER);
+        mCache.removePackage("otherPackage");
+        assertEquals(2, mCache.size());
+        mCache.removePackage(PACKAGE);
+        assertEquals(0, mCache.size());
+    }
+
+    @Test
+    public void testConfigurationChangeInvalidates() {
+        mCache.getDrawable(mContext, createIcon(), USER_OWNER);
+        mCache.onConfigurationChanged(mContext.getResources().getConfiguration());
+        assertEquals(0, mCache.size());
+    }
+
+    @Test
+    public void testTintedIconIsNotCached() {
+        Icon icon = createIcon().setTint(Color.GREEN);
+        mCache.getDrawable(mContext, icon, USER_OWNER);
+        assertEquals(0, mCache.size());
+    }
+
+    private Icon createIcon() {
+        // Icons keep the resources they were loaded with, so every load needs a new one
+        return Icon.createWithResource(PACKAGE, R.drawable.ic_android);
+    }
+
+    private static Resources createResources(int color) {
+        Resources resources = mock(Resources.class);
+        when(resources.getDrawable(anyInt(), any())).thenReturn(new ColorDrawable(color));
+        return resources;
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.systemui.statusbar.notification;
+
+import static com.android.systemui.statusbar.notification.NotificationInflater.PRIORITY_DEFAULT;
+import static com.android.systemui.statusbar.notification.NotificationInflater.PRIORITY_DEFERRED;
+import static com.android.systemui.statusbar.notification.NotificationInflater.PRIORITY_HEADS_UP;
+import static com.android.systemui.statusbar.notification.NotificationInflater.PRIORITY_VISIBLE;
+
+import static org.junit.Assert.assertEquals;
+
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.android.systemui.SysuiTestCase;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class InflationSchedulerTest extends SysuiTestCase {
+
+    private static final int TYPE_CONTRACTED = 0;
+    private static final int TYPE_EXPANDED = 1;
+
+    private final ArrayList<Runnable> mPending = new ArrayList<>();
+    private final ArrayList<String> mRan = new ArrayList<>();
+    private long mTime;
+    private InflationScheduler mScheduler;
+
+    @Before
+    public void setUp() {
+        mScheduler = new InflationScheduler(mPending::add, 1 /* maxRunning */, () -> mTime,
+                "contracted", "expanded");
+    }
+
+    @Test
+    public void testHigherPriorityRunsFirst() {
+        schedule("first", PRIORITY_DEFAULT, null);
+        schedule("child", PRIORITY_DEFERRED, null);
+        schedule("default", PRIORITY_DEFAULT, null);
+        schedule("visible", PRIORITY_VISIBLE, null);
+        schedule("headsUp", PRIORITY_HEADS_UP, null);
+        assertEquals(1, mPending.size());
+
+        runAll();
+        assertEquals(Arrays.asList("first", "headsUp", "visible", "default", "child"), mRan);
+    }
+
+    @Test
+    public void testRunsUpToMaxAtTheSameTime() {
+        mScheduler = new InflationScheduler(mPending::add, 2 /* maxRunning */, () -> mTime,
+                "contracted", "expanded");
+        schedule("a", PRIORITY_DEFAULT, null);
+        schedule("b", PRIORITY_DEFAULT, null);
+        schedule("c", PRIORITY_DEFAULT, null);
+        assertEquals(2, mPending.size());
+
+        runNext();
+        assertEquals(2, mPending.size());
+        runAll();
+        assertEquals(Arrays.asList("a", "b", "c"), mRan);
+    }
+
+    @Test
+    public void testSupersededJobIsDropped() {
+        schedule("running", PRIORITY_DEFAULT, "key");
+        schedule("old", PRIORITY_DEFAULT, "other");
+        schedule("new", PRIORITY_DEFAULT, "other");
+
+        runAll();
+        assertEquals(Arrays.asList("running", "new"), mRan);
+        assertEquals(1, mScheduler.getStats(TYPE_CONTRACTED).superseded);
+        assertEquals(2, mScheduler.getStats(TYPE_CONTRACTED).count);
+    }
+
+    @Test
+    public void testRunningJobIsNotSuperseded() {
+        schedule("running", PRIORITY_DEFAULT, "key");
+        schedule("new", PRIORITY_DEFAULT, "key");
+
+        runAll();
+        assertEquals(Arrays.asList("running", "new"), mRan);
+        assertEquals(0, mScheduler.getStats(TYPE_CONTRACTED).superseded);
+    }
+
+    @Test
+    public void testWaitAndInflateTimeTrackedPerType() {
+        mScheduler.schedule(() -> mTime += 30, TYPE_CONTRACTED, PRIORITY_DEFAULT, null);
+        mTime = 10;
+        mScheduler.schedule(() -> mTime += 5, TYPE_EXPANDED, PRIORITY_DEFAULT, null);
+        mTime = 20;
+
+        runAll();
+        InflationScheduler.Stats contracted = mScheduler.getStats(TYPE_CONTRACTED);
+        assertEquals(1, contracted.count);
+        assertEquals(20, contracted.totalWaitMillis);
+        assertEquals(30, contracted.totalRunMillis);
+
+        // Waited from 10 until the contracted view finished at 50
+        InflationScheduler.Stats expanded = mScheduler.getStats(TYPE_EXPANDED);
+        assertEquals(1, expanded.count);
+        assertEquals(40, expanded.maxWaitMillis);
+        assertEquals(5, expanded.maxRunMillis);
+    }
+
+    private void schedule(String name, int priority, String key) {
+        mScheduler.schedule(() -> mRan.add(name), TYPE_CONTRACTED, priority, key);
+    }
+
+    private void runNext() {
+        mPending.remove(0).run();
+    }
+
+    private void runAll() {
+        while (!mPending.isEmpty()) {
+            runNext();
+        }
+    }
+}
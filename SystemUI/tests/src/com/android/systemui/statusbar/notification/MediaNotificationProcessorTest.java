@@ -16,40 +16,71 @@
 
 package com.android.systemui.statusbar.notification;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyBoolean;
 import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyZeroInteractions;
 
 import android.app.Notification;
 import android.graphics.Bitmap;
+import android.graphics.Color;
 import android.graphics.drawable.Drawable;
+import android.media.session.MediaSession;
+import android.support.test.filters.LargeTest;
 import android.support.test.runner.AndroidJUnit4;
 import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
 import android.widget.RemoteViews;
 
 import com.android.systemui.R;
 import com.android.systemui.SysuiTestCase;
 
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+
+import java.util.Random;
 
 @SmallTest
 @RunWith(AndroidJUnit4.class)
 public class MediaNotificationProcessorTest extends SysuiTestCase {
+    private static final String TAG = "MediaNotificationProcessorTest";
+    private static final long SEED = 4242;
+    private static final int BENCHMARK_ROUNDS = 50;
 
     private MediaNotificationProcessor mProcessor;
     private Bitmap mBitmap = Bitmap.createBitmap(1, 1, Bitmap.Config.ARGB_8888);
     private ImageGradientColorizer mColorizer;
+    private MediaSession mMediaSession;
+    private int mNumComputed;
 
     @Before
     public void setUp() {
+        MediaNotificationProcessor.clearColorCache();
         mColorizer = spy(new TestableColorizer(mBitmap));
-        mProcessor = new MediaNotificationProcessor(getContext(), getContext(), mColorizer);
+        mProcessor = new MediaNotificationProcessor(getContext(), getContext(), mColorizer) {
+            @Override
+            long computeColors(Bitmap bitmap) {
+                mNumComputed++;
+                return super.computeColors(bitmap);
+            }
+        };
+        mMediaSession = new MediaSession(getContext(), TAG);
+    }
+
+    @After
+    public void tearDown() {
+        mMediaSession.release();
+        MediaNotificationProcessor.clearColorCache();
     }
 
     @Test
@@ -99,6 +130,135 @@ public class MediaNotificationProcessorTest extends SysuiTestCase {
         assertNotSame(contentView, remoteViews);
     }
 
+    @Test
+    public void testFingerprintSameForEqualPixels() {
+        Bitmap first = Bitmap.createBitmap(64, 64, Bitmap.Config.ARGB_8888);
+        first.eraseColor(Color.RED);
+        Bitmap second = Bitmap.createBitmap(64, 64, Bitmap.Config.ARGB_8888);
+        second.eraseColor(Color.RED);
+        assertEquals(MediaNotificationProcessor.computeFingerprint(first),
+                MediaNotificationProcessor.computeFingerprint(second));
+    }
+
+    @Test
+    public void testFingerprintDiffersForOtherPixels() {
+        Bitmap first = Bitmap.createBitmap(64, 64, Bitmap.Config.ARGB_8888);
+        first.eraseColor(Color.RED);
+        Bitmap second = Bitmap.createBitmap(64, 64, Bitmap.Config.ARGB_8888);
+        second.eraseColor(Color.RED);
+        second.setPixel(2, 2, Color.BLUE);
+        assertNotEquals(MediaNotificationProcessor.computeFingerprint(first),
+                MediaNotificationProcessor.computeFingerprint(second));
+    }
+
+    @Test
+    public void testFingerprintDiffersForOtherSize() {
+        Bitmap first = Bitmap.createBitmap(64, 64, Bitmap.Config.ARGB_8888);
+        first.eraseColor(Color.RED);
+        Bitmap second = Bitmap.createBitmap(64, 32, Bitmap.Config.ARGB_8888);
+        second.eraseColor(Color.RED);
+        assertNotEquals(MediaNotificationProcessor.computeFingerprint(first),
+                MediaNotificationProcessor.computeFingerprint(second));
+    }
+
+    @Test
+    public void testEqualImageReusesColors() {
+        int[] first = processColorized(createAlbumArt(1));
+        assertEquals(1, mNumComputed);
+
+        // Another bitmap with the same pixels, as a player posts for every progress update
+        int[] second = processColorized(createAlbumArt(1));
+        assertEquals(1, mNumComputed);
+        assertEquals(first[0], second[0]);
+        assertEquals(first[1], second[1]);
+    }
+
+    @Test
+    public void testOtherImageIsProcessed() {
+        processColorized(createAlbumArt(1));
+        int[] expected = processColorized(createAlbumArt(2));
+        assertEquals(2, mNumComputed);
+
+        // Without the cache the colors of the second image come out the same
+        MediaNotificationProcessor.clearColorCache();
+        int[] uncached = processColorized(createAlbumArt(2));
+        assertEquals(3, mNumComputed);
+        assertEquals(expected[0], uncached[0]);
+        assertEquals(expected[1], uncached[1]);
+    }
+
+    /**
+     * Logs how long processing an update of a colorized media notification takes when the
+     * colors of its image are cached and when the image has to be quantized, as for every
+     * update before the cache.
+     */
+    @LargeTest
+    @Test
+    public void testUpdateCost() {
+        Bitmap albumArt = createAlbumArt(3);
+        // Loads every class on the way
+        processColorized(albumArt);
+
+        long hitNs = 0;
+        long missNs = 0;
+        for (int round = 0; round < BENCHMARK_ROUNDS; round++) {
+            long start = System.nanoTime();
+            processColorized(albumArt);
+            hitNs += System.nanoTime() - start;
+
+            MediaNotificationProcessor.clearColorCache();
+            start = System.nanoTime();
+            processColorized(albumArt);
+            missNs += System.nanoTime() - start;
+        }
+        assertEquals(1 + BENCHMARK_ROUNDS, mNumComputed);
+        Log.d(TAG, albumArt.getWidth() + "x" + albumArt.getHeight() + " image, per update: "
+                + "cached " + hitNs / BENCHMARK_ROUNDS / 1000 + " us, quantized "
+                + missNs / BENCHMARK_ROUNDS / 1000 + " us");
+    }
+
+    /**
+     * Processes a colorized media notification with the given large icon.
+     *
+     * @return the background and the foreground color it is given
+     */
+    private int[] processColorized(Bitmap largeIcon) {
+        Notification.Builder builder = spy(new Notification.Builder(getContext())
+                .setSmallIcon(R.drawable.ic_person)
+                .setContentTitle("Title")
+                .setStyle(new Notification.MediaStyle()
+                        .setMediaSession(mMediaSession.getSessionToken()))
+                .setLargeIcon(largeIcon)
+                .setContentText("Text"));
+        Notification notification = builder.build();
+        assertTrue(notification.isColorizedMedia());
+        mProcessor.processNotification(notification, builder);
+
+        ArgumentCaptor<Integer> backgroundColor = ArgumentCaptor.forClass(Integer.class);
+        ArgumentCaptor<Integer> foregroundColor = ArgumentCaptor.forClass(Integer.class);
+        verify(builder, times(1)).setColorPalette(backgroundColor.capture(),
+                foregroundColor.capture());
+        return new int[] { backgroundColor.getValue(), foregroundColor.getValue() };
+    }
+
+    /** A new album art bitmap of colored blocks, equal for equal seeds. */
+    private static Bitmap createAlbumArt(long seed) {
+        Random random = new Random(SEED + seed);
+        Bitmap bitmap = Bitmap.createBitmap(120, 120, Bitmap.Config.ARGB_8888);
+        for (int y = 0; y < bitmap.getHeight(); y += 8) {
+            for (int x = 0; x < bitmap.getWidth(); x += 8) {
+                int color = Color.rgb(random.nextInt(256), random.nextInt(256),
+                        random.nextInt(256));
+                for (int i = y; i < y + 8; i++) {
+                    for (int j = x; j < x + 8; j++) {
+                        bitmap.setPixel(j, i, color);
+                    }
+                }
+            }
+        }
+        return bitmap;
+    }
+
     public static class TestableColorizer extends ImageGradientColorizer {
         private final Bitmap mBitmap;
 
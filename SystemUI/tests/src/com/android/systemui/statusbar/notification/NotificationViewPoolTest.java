@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.systemui.statusbar.notification;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import android.content.ComponentCallbacks2;
+import android.support.test.annotation.UiThreadTest;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.view.View;
+import android.widget.FrameLayout;
+import android.widget.RemoteViews;
+
+import com.android.systemui.R;
+import com.android.systemui.SysuiTestCase;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class NotificationViewPoolTest extends SysuiTestCase {
+
+    private static final String TEMPLATE = "android.app.Notification$BigTextStyle";
+    private static final int TYPE = 1;
+
+    private NotificationViewPool mPool;
+    private RemoteViews mRemoteViews;
+
+    @Before
+    public void setUp() {
+        mPool = new NotificationViewPool();
+        mRemoteViews = new RemoteViews(mContext.getPackageName(), R.layout.custom_view_dark);
+    }
+
+    @Test
+    @UiThreadTest
+    public void testAcquireReleasedView() {
+        View view = createView(mRemoteViews, TEMPLATE, TYPE);
+        mPool.release(view);
+        assertSame(view, mPool.acquire(mRemoteViews, TEMPLATE, TYPE));
+        assertNull(mPool.acquire(mRemoteViews, TEMPLATE, TYPE));
+    }
+
+    @Test
+    @UiThreadTest
+    public void testOnlySameKeyIsReused() {
+        mPool.release(createView(mRemoteViews, TEMPLATE, TYPE));
+        assertNull(mPool.acquire(mRemoteViews, null /* template */, TYPE));
+        assertNull(mPool.acquire(mRemoteViews, TEMPLATE, TYPE + 1));
+        RemoteViews otherLayout = new RemoteViews(mContext.getPackageName(),
+                R.layout.status_bar);
+        assertNull(mPool.acquire(otherLayout, TEMPLATE, TYPE));
+        RemoteViews otherPackage = new RemoteViews("com.example", R.layout.custom_view_dark);
+        assertNull(mPool.acquire(otherPackage, TEMPLATE, TYPE));
+        assertEquals(1, mPool.size());
+    }
+
+    @Test
+    @UiThreadTest
+    public void testAttachedViewIsNotPooled() {
+        View view = createView(mRemoteViews, TEMPLATE, TYPE);
+        new FrameLayout(mContext).addView(view);
+        mPool.release(view);
+        assertEquals(0, mPool.size());
+    }
+
+    @Test
+    @UiThreadTest
+    public void testViewsPerKeyAreBounded() {
+        for (int i = 0; i < NotificationViewPool.MAX_VIEWS_PER_KEY + 2; i++) {
+            mPool.release(createView(mRemoteViews, TEMPLATE, TYPE));
+        }
+        assertEquals(NotificationViewPool.MAX_VIEWS_PER_KEY, mPool.size());
+    }
+
+    @Test
+    @UiThreadTest
+    public void testTotalViewsAreBounded() {
+        for (int i = 0; i < NotificationViewPool.MAX_VIEWS + 2; i++) {
+            mPool.release(createView(mRemoteViews, TEMPLATE, i));
+        }
+        assertEquals(NotificationViewPool.MAX_VIEWS, mPool.size());
+        // The least recently released views went first
+        assertNull(mPool.acquire(mRemoteViews, TEMPLATE, 0));
+        assertEquals(NotificationViewPool.MAX_VIEWS, mPool.size());
+    }
+
+    @Test
+    @UiThreadTest
+    public void testTrimMemory() {
+        for (int i = 0; i < NotificationViewPool.MAX_VIEWS; i++) {
+            mPool.release(createView(mRemoteViews, TEMPLATE, i));
+        }
+        mPool.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN);
+        assertEquals(NotificationViewPool.MAX_VIEWS, mPool.size());
+        mPool.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE);
+        assertEquals(NotificationViewPool.MAX_VIEWS / 2, mPool.size());
+        mPool.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+        assertEquals(0, mPool.size());
+    }
+
+    private View createView(RemoteViews remoteViews, String template, int type) {
+        View view = new FrameLayout(mContext);
+        mPool.setKey(view, remoteViews, template, type);
+        return view;
+    }
+}
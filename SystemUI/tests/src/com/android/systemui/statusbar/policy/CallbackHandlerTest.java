@@ -16,10 +16,12 @@
 package com.android.systemui.statusbar.policy;
 
 import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.support.test.runner.AndroidJUnit4;
 import android.telephony.SubscriptionInfo;
 import android.test.AndroidTestCase;
 import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
 import com.android.systemui.R;
 import com.android.systemui.SysuiTestCase;
 import com.android.systemui.statusbar.policy.NetworkController.EmergencyListener;
@@ -27,23 +29,34 @@ import com.android.systemui.statusbar.policy.NetworkController.IconState;
 import com.android.systemui.statusbar.policy.NetworkController.SignalCallback;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import org.junit.Before;
 import org.junit.runner.RunWith;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
+import org.mockito.verification.VerificationMode;
 
 import static junit.framework.Assert.assertTrue;
 import static junit.framework.Assert.assertEquals;
 
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 
 @SmallTest
 @RunWith(AndroidJUnit4.class)
 public class CallbackHandlerTest extends SysuiTestCase {
 
+    private static final String TAG = "CallbackHandlerTest";
+
     private CallbackHandler mHandler;
     private HandlerThread mHandlerThread;
 
@@ -205,6 +218,115 @@ public class CallbackHandlerTest extends SysuiTestCase {
         assertEquals(state, iconArg.getValue());
     }
 
+    @Test
+    public void testWifiIndicatorsCoalesced() throws Exception {
+        CountDownLatch blocked = blockLooper();
+        IconState state = new IconState(true, 0, "");
+        mHandler.setWifiIndicators(true, state, state, false, false, "1", false);
+        mHandler.setWifiIndicators(true, state, state, false, false, "2", false);
+        mHandler.setWifiIndicators(true, state, state, true, false, "3", false);
+        blocked.countDown();
+        waitForCallbacks();
+
+        Mockito.verify(mSignalCallback, times(1)).setWifiIndicators(anyBoolean(), any(), any(),
+                anyBoolean(), anyBoolean(), any(), anyBoolean());
+        Mockito.verify(mSignalCallback).setWifiIndicators(eq(true), eq(state), eq(state),
+                eq(true), eq(false), eq("3"), eq(false));
+        assertEquals(3, mHandler.getRawUpdateCount());
+        assertEquals(1, mHandler.getDispatchedUpdateCount());
+    }
+
+    @Test
+    public void testMobileIndicatorsCoalescedPerSubscription() throws Exception {
+        CountDownLatch blocked = blockLooper();
+        setMobileDataIndicators("old", 1);
+        setMobileDataIndicators("other", 2);
+        setMobileDataIndicators("new", 1);
+        blocked.countDown();
+        waitForCallbacks();
+
+        verifyMobileDataIndicators(never(), "old", 1);
+        verifyMobileDataIndicators(times(1), "new", 1);
+        verifyMobileDataIndicators(times(1), "other", 2);
+        assertEquals(3, mHandler.getRawUpdateCount());
+        assertEquals(2, mHandler.getDispatchedUpdateCount());
+    }
+
+    @Test
+    public void testIndicatorsNotMovedBeforeOtherCalls() throws Exception {
+        CountDownLatch blocked = blockLooper();
+        List<SubscriptionInfo> subs = new ArrayList<>();
+        setMobileDataIndicators("before", 1);
+        mHandler.setSubs(subs);
+        setMobileDataIndicators("after", 1);
+        blocked.countDown();
+        waitForCallbacks();
+
+        InOrder inOrder = Mockito.inOrder(mSignalCallback);
+        inOrder.verify(mSignalCallback).setSubs(subs);
+        inOrder.verify(mSignalCallback).setMobileDataIndicators(any(), any(), anyInt(),
+                anyInt(), anyInt(), anyInt(), anyBoolean(), anyBoolean(), any(), eq("after"),
+                anyBoolean(), eq(1), anyBoolean());
+        verifyMobileDataIndicators(never(), "before", 1);
+    }
+
+    @Test
+    public void testSignalChurnOnTwoSims() throws Exception {
+        // 10 updates per second on both SIMs for a minute, while the looper only gets to run
+        // every 300ms
+        final int ticks = 600;
+        long start = SystemClock.elapsedRealtimeNanos();
+        CountDownLatch blocked = blockLooper();
+        for (int i = 0; i < ticks; i++) {
+            setMobileDataIndicators("sim1 " + i, 1);
+            setMobileDataIndicators("sim2 " + i, 2);
+            if (i % 3 == 2) {
+                blocked.countDown();
+                blocked = blockLooper();
+            }
+        }
+        long micros = (SystemClock.elapsedRealtimeNanos() - start) / 1000;
+        blocked.countDown();
+        waitForCallbacks();
+
+        Log.d(TAG, "Signal churn: " + mHandler.getRawUpdateCount() + " updates, "
+                + mHandler.getDispatchedUpdateCount() + " dispatched in " + micros + "us");
+        assertEquals(ticks * 2, mHandler.getRawUpdateCount());
+        assertTrue(mHandler.getDispatchedUpdateCount() < mHandler.getRawUpdateCount());
+        verifyMobileDataIndicators(times(1), "sim1 " + (ticks - 1), 1);
+        verifyMobileDataIndicators(times(1), "sim2 " + (ticks - 1), 2);
+    }
+
+    private void setMobileDataIndicators(String description, int subId) {
+        IconState state = new IconState(true, 0, "");
+        mHandler.setMobileDataIndicators(state, state, 0, 0, 0, 0, false, false, "",
+                description, false, subId, false);
+    }
+
+    private void verifyMobileDataIndicators(VerificationMode mode, String description,
+            int subId) {
+        Mockito.verify(mSignalCallback, mode).setMobileDataIndicators(any(), any(), anyInt(),
+                anyInt(), anyInt(), anyInt(), anyBoolean(), anyBoolean(), any(),
+                eq(description), anyBoolean(), eq(subId), anyBoolean());
+    }
+
+    /**
+     * Keep the looper busy until the returned latch is counted down.
+     */
+    private CountDownLatch blockLooper() throws InterruptedException {
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch blocked = new CountDownLatch(1);
+        mHandler.post(() -> {
+            running.countDown();
+            try {
+                blocked.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+            }
+        });
+        running.await(5, TimeUnit.SECONDS);
+        return blocked;
+    }
+
     private void waitForCallbacks() {
         mHandlerThread.quitSafely();
         try {
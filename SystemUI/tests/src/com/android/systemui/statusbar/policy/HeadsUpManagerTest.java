@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.systemui.statusbar.policy;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import android.app.ActivityManager;
+import android.app.Notification;
+import android.os.SystemClock;
+import android.os.UserHandle;
+import android.service.notification.StatusBarNotification;
+import android.support.test.annotation.UiThreadTest;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.android.systemui.R;
+import com.android.systemui.SysuiTestCase;
+import com.android.systemui.statusbar.ExpandableNotificationRow;
+import com.android.systemui.statusbar.NotificationData;
+import com.android.systemui.statusbar.notification.VisualStabilityManager;
+import com.android.systemui.statusbar.phone.NotificationGroupManager;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class HeadsUpManagerTest extends SysuiTestCase {
+
+    private static final String TAG = "HeadsUpManagerTest";
+    private static final int CONCURRENT_HEADS_UPS = 50;
+
+    private HeadsUpManager mHeadsUpManager;
+    private long mTime;
+    private int mId;
+    private int mDecay;
+    private int mMinimumDisplayTime;
+    private int mTouchAcceptanceDelay;
+
+    @Before
+    public void setUp() {
+        mDecay = mContext.getResources().getInteger(R.integer.heads_up_notification_decay);
+        mMinimumDisplayTime = mContext.getResources().getInteger(
+                R.integer.heads_up_notification_minimum_time);
+        mTouchAcceptanceDelay = mContext.getResources().getInteger(
+                R.integer.touch_acceptance_delay);
+        mHeadsUpManager = new HeadsUpManager(mContext, null /* statusBarWindowView */,
+                new NotificationGroupManager());
+        mHeadsUpManager.setClock(new HeadsUpManager.Clock() {
+            @Override
+            public long currentTimeMillis() {
+                return mTime;
+            }
+        });
+        VisualStabilityManager visualStabilityManager = mock(VisualStabilityManager.class);
+        when(visualStabilityManager.isReorderingAllowed()).thenReturn(true);
+        mHeadsUpManager.setVisualStabilityManager(visualStabilityManager);
+        // Nothing gets pinned, so no window is needed for the touchable region
+        mHeadsUpManager.setIsExpanded(true);
+    }
+
+    @Test
+    @UiThreadTest
+    public void testRemovedAfterDecay() {
+        NotificationData.Entry entry = createEntry();
+        mHeadsUpManager.showNotification(entry);
+
+        advanceTo(mTouchAcceptanceDelay + mDecay - 1);
+        assertTrue(mHeadsUpManager.isHeadsUp(entry.key));
+        advanceTo(mTouchAcceptanceDelay + mDecay);
+        assertFalse(mHeadsUpManager.isHeadsUp(entry.key));
+    }
+
+    @Test
+    @UiThreadTest
+    public void testUpdateExtends() {
+        NotificationData.Entry entry = createEntry();
+        mHeadsUpManager.showNotification(entry);
+
+        long updateTime = mTouchAcceptanceDelay + mDecay / 2;
+        advanceTo(updateTime);
+        mHeadsUpManager.updateNotification(entry, true /* alert */);
+        advanceTo(mTouchAcceptanceDelay + mDecay);
+        assertTrue(mHeadsUpManager.isHeadsUp(entry.key));
+        advanceTo(updateTime + mDecay);
+        assertFalse(mHeadsUpManager.isHeadsUp(entry.key));
+    }
+
+    @Test
+    @UiThreadTest
+    public void testRemovalWaitsForMinimumDisplayTime() {
+        NotificationData.Entry entry = createEntry();
+        mHeadsUpManager.showNotification(entry);
+
+        advanceTo(1);
+        assertFalse(mHeadsUpManager.removeNotification(entry.key,
+                false /* ignoreEarliestRemovalTime */));
+        advanceTo(mMinimumDisplayTime - 1);
+        assertTrue(mHeadsUpManager.isHeadsUp(entry.key));
+        advanceTo(mMinimumDisplayTime);
+        assertFalse(mHeadsUpManager.isHeadsUp(entry.key));
+    }
+
+    @Test
+    @UiThreadTest
+    public void testStickyWhileRemoteInputActive() {
+        NotificationData.Entry entry = createEntry();
+        mHeadsUpManager.showNotification(entry);
+        mHeadsUpManager.setRemoteInputActive(entry, true);
+
+        advanceTo(mTouchAcceptanceDelay + mDecay * 2);
+        assertTrue(mHeadsUpManager.isHeadsUp(entry.key));
+
+        mHeadsUpManager.setRemoteInputActive(entry, false);
+        advanceTo(mTime + mMinimumDisplayTime);
+        assertFalse(mHeadsUpManager.isHeadsUp(entry.key));
+    }
+
+    @Test
+    @UiThreadTest
+    public void testReleaseImmediately() {
+        NotificationData.Entry entry = createEntry();
+        mHeadsUpManager.showNotification(entry);
+        mHeadsUpManager.releaseImmediately(entry.key);
+        assertFalse(mHeadsUpManager.isHeadsUp(entry.key));
+
+        // A new heads up of the same notification expires on its own time
+        mHeadsUpManager.showNotification(entry);
+        advanceTo(mTouchAcceptanceDelay + mDecay - 1);
+        assertTrue(mHeadsUpManager.isHeadsUp(entry.key));
+    }
+
+    @Test
+    @UiThreadTest
+    public void testSnooze() {
+        NotificationData.Entry entry = createEntry();
+        mHeadsUpManager.showNotification(entry);
+        mHeadsUpManager.snooze();
+        String packageName = entry.notification.getPackageName();
+        assertTrue(mHeadsUpManager.isSnoozed(packageName));
+
+        mTime += mDecay;
+        assertTrue(mHeadsUpManager.isSnoozed(packageName));
+        mTime += 24 * 60 * 60 * 1000;
+        assertFalse(mHeadsUpManager.isSnoozed(packageName));
+    }
+
+    @Test
+    @UiThreadTest
+    public void testConcurrentHeadsUps() {
+        ArrayList<NotificationData.Entry> entries = new ArrayList<>();
+        for (int i = 0; i < CONCURRENT_HEADS_UPS; i++) {
+            NotificationData.Entry entry = createEntry();
+            entries.add(entry);
+            mTime = i * 10;
+            mHeadsUpManager.showNotification(entry);
+        }
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        long end = mTouchAcceptanceDelay + mDecay + CONCURRENT_HEADS_UPS * 10;
+        for (long time = mTime; time <= end; time++) {
+            advanceTo(time);
+            if (time % 100 == 0) {
+                mHeadsUpManager.getTopEntry();
+            }
+        }
+        long micros = (SystemClock.elapsedRealtimeNanos() - start) / 1000;
+        Log.d(TAG, "Expired " + CONCURRENT_HEADS_UPS + " heads ups in " + micros + "us");
+
+        for (NotificationData.Entry entry : entries) {
+            assertFalse(mHeadsUpManager.isHeadsUp(entry.key));
+        }
+    }
+
+    private void advanceTo(long time) {
+        mTime = time;
+        mHeadsUpManager.removeExpiredEntries();
+    }
+
+    private NotificationData.Entry createEntry() {
+        Notification notification = new Notification.Builder(mContext)
+                .setSmallIcon(R.drawable.ic_person)
+                .setContentTitle("Title")
+                .build();
+        UserHandle user = UserHandle.of(ActivityManager.getCurrentUser());
+        StatusBarNotification sbn = new StatusBarNotification(mContext.getPackageName(),
+                mContext.getPackageName(), mId++, null, 1000, 2000, notification, user, null,
+                System.currentTimeMillis());
+        NotificationData.Entry entry = new NotificationData.Entry(sbn);
+        entry.row = mock(ExpandableNotificationRow.class);
+        return entry;
+    }
+}
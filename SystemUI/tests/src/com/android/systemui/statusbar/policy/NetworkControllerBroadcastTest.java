@@ -0,0 +1,96 @@
+package com.android.systemui.statusbar.policy;
+
+import android.content.Intent;
+import android.net.ConnectivityManager;
+import android.net.wifi.WifiManager;
+import android.os.SystemClock;
+import android.provider.Settings;
+import android.provider.Settings.Global;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import com.android.internal.telephony.TelephonyIntents;
+import com.android.systemui.statusbar.policy.NetworkController.IconState;
+
+import com.mediatek.systemui.statusbar.networktype.NetworkTypeUtils;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class NetworkControllerBroadcastTest extends NetworkControllerBaseTest {
+    private static final String TAG = "NetworkControllerBroadcastTest";
+    private static final int BROADCASTS = 1000;
+
+    @Test
+    public void testPreviouslyHandledActionsAreRegistered() {
+        List<String> actions = Arrays.asList(
+                WifiManager.RSSI_CHANGED_ACTION,
+                WifiManager.WIFI_STATE_CHANGED_ACTION,
+                WifiManager.NETWORK_STATE_CHANGED_ACTION,
+                TelephonyIntents.ACTION_SIM_STATE_CHANGED,
+                TelephonyIntents.ACTION_DEFAULT_DATA_SUBSCRIPTION_CHANGED,
+                TelephonyIntents.ACTION_DEFAULT_VOICE_SUBSCRIPTION_CHANGED,
+                TelephonyIntents.ACTION_SERVICE_STATE_CHANGED,
+                TelephonyIntents.SPN_STRINGS_UPDATED_ACTION,
+                ConnectivityManager.CONNECTIVITY_ACTION,
+                ConnectivityManager.INET_CONDITION_ACTION,
+                Intent.ACTION_AIRPLANE_MODE_CHANGED,
+                TelephonyIntents.ACTION_SUBINFO_RECORD_UPDATED,
+                NetworkTypeUtils.LWA_STATE_CHANGE_ACTION);
+        List<String> registered = mNetworkController.getBroadcastActions();
+        assertTrue(registered.containsAll(actions));
+        assertEquals(actions.size(), registered.size());
+    }
+
+    @Test
+    public void testAirplaneModeIsRouted() {
+        Settings.Global.putInt(mContext.getContentResolver(), Global.AIRPLANE_MODE_ON, 1);
+        mNetworkController.onReceive(mContext, new Intent(Intent.ACTION_AIRPLANE_MODE_CHANGED));
+
+        ArgumentCaptor<IconState> iconArg = ArgumentCaptor.forClass(IconState.class);
+        Mockito.verify(mCallbackHandler, Mockito.atLeastOnce()).setIsAirplaneMode(
+                iconArg.capture());
+        assertTrue("Airplane mode icon visible", iconArg.getValue().visible);
+    }
+
+    @Test
+    public void testWifiStateIsRoutedToWifi() {
+        Intent i = new Intent(WifiManager.WIFI_STATE_CHANGED_ACTION);
+        i.putExtra(WifiManager.EXTRA_WIFI_STATE, WifiManager.WIFI_STATE_ENABLED);
+        mNetworkController.onReceive(mContext, i);
+
+        ArgumentCaptor<Boolean> enabledArg = ArgumentCaptor.forClass(Boolean.class);
+        Mockito.verify(mCallbackHandler, Mockito.atLeastOnce()).setWifiIndicators(
+                enabledArg.capture(), any(), any(), anyBoolean(), anyBoolean(), any(),
+                anyBoolean());
+        assertTrue("WiFi enabled", enabledArg.getValue());
+    }
+
+    @Test
+    public void testDispatchCost() {
+        Intent rssi = new Intent(WifiManager.RSSI_CHANGED_ACTION);
+        Intent inetCondition = new Intent(ConnectivityManager.INET_CONDITION_ACTION);
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < BROADCASTS; i++) {
+            rssi.putExtra(WifiManager.EXTRA_NEW_RSSI, -100 + i % 50);
+            mNetworkController.onReceive(mContext, rssi);
+            mNetworkController.onReceive(mContext, inetCondition);
+        }
+        long micros = (SystemClock.elapsedRealtimeNanos() - start) / 1000;
+        Log.d(TAG, "Dispatched " + BROADCASTS * 2 + " broadcasts in " + micros + "us");
+    }
+}
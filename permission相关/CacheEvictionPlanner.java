@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.pm;
+
+import android.text.format.DateUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Decides whose app caches {@link PackageManagerService#freeStorage} clears once the caches
+ * above quota are gone. Instead of letting installd sweep every app, candidates are grouped
+ * into tiers by how long ago they were used and by a priority hint, the stalest tier is
+ * drained first, and within a tier the largest caches go first so the target is reached with
+ * as few apps losing their cache as possible. The plan only depends on its inputs.
+ *
+ * <p>Sizing a cache costs installd a walk of the app's data, so only a bounded set of the
+ * likeliest candidates, picked by {@link #selectForSizing} from use and priority alone, is
+ * sized and planned; what they cannot free is left to installd's own sweep.
+ */
+final class CacheEvictionPlanner {
+    /** Caches of apps not used for this long are the first to go. */
+    static final long STALE_AGE_MS = 7 * DateUtils.DAY_IN_MILLIS;
+    /** Apps used more recently than this are only touched when nothing else is left. */
+    static final long RECENT_AGE_MS = DateUtils.DAY_IN_MILLIS;
+
+    /** Priority hint for an ordinary app. */
+    static final int PRIORITY_NORMAL = 0;
+    /** Priority hint for an app the user is likely to notice, such as a persistent app. */
+    static final int PRIORITY_VISIBLE = 1;
+
+    /** How many candidates {@link PackageManagerService#freeStorage} sizes at most. */
+    static final int MAX_SIZED_CANDIDATES = 32;
+
+    static final class Candidate {
+        final String packageName;
+        final int userId;
+        /** 0 for a candidate that was not sized yet, see {@link #selectForSizing}. */
+        final long cacheBytes;
+        /** Last foreground use, or 0 if never used. */
+        final long lastUsedMillis;
+        final int priority;
+
+        Candidate(String packageName, int userId, long cacheBytes, long lastUsedMillis,
+                int priority) {
+            this.packageName = packageName;
+            this.userId = userId;
+            this.cacheBytes = cacheBytes;
+            this.lastUsedMillis = lastUsedMillis;
+            this.priority = priority;
+        }
+
+        @Override
+        public String toString() {
+            return packageName + "/u" + userId + " cache=" + cacheBytes
+                    + " lastUsed=" + lastUsedMillis + " priority=" + priority;
+        }
+    }
+
+    private CacheEvictionPlanner() {
+    }
+
+    /** Lower tiers are evicted first. */
+    static int tierOf(Candidate candidate, long nowMillis) {
+        final long age = nowMillis - candidate.lastUsedMillis;
+        final int ageTier;
+        if (age >= STALE_AGE_MS) {
+            ageTier = 0;
+        } else if (age >= RECENT_AGE_MS) {
+            ageTier = 1;
+        } else {
+            ageTier = 2;
+        }
+        return ageTier + Math.max(0, candidate.priority);
+    }
+
+    /**
+     * Picks the candidates worth sizing before a plan is made: the lowest tiers first, and
+     * the longest unused first within a tier. Cache sizes are ignored.
+     *
+     * @return at most {@code maxCount} candidates, in that order.
+     */
+    static List<Candidate> selectForSizing(List<Candidate> candidates, int maxCount,
+            final long nowMillis) {
+        final ArrayList<Candidate> sorted = new ArrayList<>(candidates);
+        Collections.sort(sorted, new Comparator<Candidate>() {
+            @Override
+            public int compare(Candidate a, Candidate b) {
+                final int cmp = Integer.compare(tierOf(a, nowMillis), tierOf(b, nowMillis));
+                if (cmp != 0) return cmp;
+                return compareByUse(a, b);
+            }
+        });
+        return sorted.size() > maxCount ? sorted.subList(0, maxCount) : sorted;
+    }
+
+    private static int compareByUse(Candidate a, Candidate b) {
+        int cmp = Long.compare(a.lastUsedMillis, b.lastUsedMillis);
+        if (cmp != 0) return cmp;
+        cmp = a.packageName.compareTo(b.packageName);
+        if (cmp != 0) return cmp;
+        return Integer.compare(a.userId, b.userId);
+    }
+
+    /**
+     * @param neededBytes how many bytes the plan must free.
+     * @return the candidates to clear, in order; all of them if they cannot free enough.
+     */
+    static List<Candidate> plan(List<Candidate> candidates, long neededBytes,
+            final long nowMillis) {
+        final ArrayList<Candidate> sorted = new ArrayList<>(candidates.size());
+        for (int i = 0; i < candidates.size(); i++) {
+            if (candidates.get(i).cacheBytes > 0) {
+                sorted.add(candidates.get(i));
+            }
+        }
+        Collections.sort(sorted, new Comparator<Candidate>() {
+            @Override
+            public int compare(Candidate a, Candidate b) {
+                int cmp = Integer.compare(tierOf(a, nowMillis), tierOf(b, nowMillis));
+                if (cmp != 0) return cmp;
+                cmp = Long.compare(b.cacheBytes, a.cacheBytes);
+                if (cmp != 0) return cmp;
+                return compareByUse(a, b);
+            }
+        });
+
+        final ArrayList<Candidate> plan = new ArrayList<>();
+        long planned = 0;
+        for (int i = 0; i < sorted.size() && planned < neededBytes; i++) {
+            final Candidate candidate = sorted.get(i);
+            plan.add(candidate);
+            planned += candidate.cacheBytes;
+        }
+        return plan;
+    }
+}
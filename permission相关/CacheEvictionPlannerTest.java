@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.pm;
+
+import static com.android.server.pm.CacheEvictionPlanner.PRIORITY_NORMAL;
+import static com.android.server.pm.CacheEvictionPlanner.PRIORITY_VISIBLE;
+import static com.android.server.pm.CacheEvictionPlanner.RECENT_AGE_MS;
+import static com.android.server.pm.CacheEvictionPlanner.STALE_AGE_MS;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.android.server.pm.CacheEvictionPlanner.Candidate;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+@RunWith(JUnit4.class)
+public class CacheEvictionPlannerTest {
+    private static final long NOW = 100 * STALE_AGE_MS;
+    private static final long MB = 1024 * 1024;
+    private static final int POPULATIONS = 200;
+
+    @Test
+    public void testStaleBeforeRecent() {
+        final Candidate recent = candidate("recent", 100 * MB, NOW - RECENT_AGE_MS / 2,
+                PRIORITY_NORMAL);
+        final Candidate stale = candidate("stale", 10 * MB, NOW - STALE_AGE_MS,
+                PRIORITY_NORMAL);
+        final List<Candidate> plan = CacheEvictionPlanner.plan(list(recent, stale), 5 * MB,
+                NOW);
+        assertEquals(list(stale), plan);
+    }
+
+    @Test
+    public void testVisibleAfterNormal() {
+        final Candidate visible = candidate("visible", 100 * MB, NOW - STALE_AGE_MS,
+                PRIORITY_VISIBLE);
+        final Candidate normal = candidate("normal", 10 * MB, NOW - STALE_AGE_MS,
+                PRIORITY_NORMAL);
+        assertEquals(list(normal, visible),
+                CacheEvictionPlanner.plan(list(visible, normal), 50 * MB, NOW));
+    }
+
+    @Test
+    public void testLargestFirstWithinTier() {
+        final Candidate small = candidate("small", 1 * MB, NOW - STALE_AGE_MS, PRIORITY_NORMAL);
+        final Candidate large = candidate("large", 8 * MB, NOW - STALE_AGE_MS, PRIORITY_NORMAL);
+        assertEquals(list(large), CacheEvictionPlanner.plan(list(small, large), 4 * MB, NOW));
+    }
+
+    @Test
+    public void testEmptyCachesAreSkipped() {
+        final Candidate empty = candidate("empty", 0, 0, PRIORITY_NORMAL);
+        final Candidate full = candidate("full", 1 * MB, 0, PRIORITY_NORMAL);
+        assertEquals(list(full), CacheEvictionPlanner.plan(list(empty, full), 10 * MB, NOW));
+    }
+
+    @Test
+    public void testSelectForSizingIsBoundedAndOrderedByUse() {
+        final ArrayList<Candidate> candidates = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            candidates.add(candidate("recent" + i, 0, NOW - i, PRIORITY_NORMAL));
+            candidates.add(candidate("stale" + i, 0, NOW - STALE_AGE_MS - i, PRIORITY_NORMAL));
+        }
+        final List<Candidate> selected = CacheEvictionPlanner.selectForSizing(candidates, 5,
+                NOW);
+        assertEquals(5, selected.size());
+        for (int i = 0; i < selected.size(); i++) {
+            // The longest unused stale apps, oldest first
+            assertEquals("stale" + (9 - i), selected.get(i).packageName);
+        }
+    }
+
+    @Test
+    public void testSimulatedPopulations() {
+        final Random random = new Random(0);
+        for (int run = 0; run < POPULATIONS; run++) {
+            final ArrayList<Candidate> candidates = createPopulation(random,
+                    20 + random.nextInt(300));
+            long total = 0;
+            for (Candidate candidate : candidates) {
+                total += candidate.cacheBytes;
+            }
+            final long neededBytes = (long) (total * random.nextDouble());
+            final List<Candidate> plan = CacheEvictionPlanner.plan(candidates, neededBytes,
+                    NOW);
+            assertPlanIsMinimal(candidates, plan, neededBytes);
+
+            // Deterministic: the input order does not matter
+            Collections.shuffle(candidates, random);
+            assertEquals(plan, CacheEvictionPlanner.plan(candidates, neededBytes, NOW));
+        }
+    }
+
+    @Test
+    public void testTargetOutOfReachPlansEverything() {
+        final ArrayList<Candidate> candidates = createPopulation(new Random(1), 50);
+        long total = 0;
+        int nonEmpty = 0;
+        for (Candidate candidate : candidates) {
+            total += candidate.cacheBytes;
+            nonEmpty += candidate.cacheBytes > 0 ? 1 : 0;
+        }
+        assertEquals(nonEmpty,
+                CacheEvictionPlanner.plan(candidates, total + 1, NOW).size());
+    }
+
+    /**
+     * Checks that the plan reaches the target, evicts a tier only after every lower one, and
+     * within the last tier it touches needs no more apps than the largest caches would.
+     */
+    private static void assertPlanIsMinimal(List<Candidate> candidates, List<Candidate> plan,
+            long neededBytes) {
+        long planned = 0;
+        int highestTier = -1;
+        for (Candidate candidate : plan) {
+            planned += candidate.cacheBytes;
+            final int tier = CacheEvictionPlanner.tierOf(candidate, NOW);
+            assertTrue("tiers out of order", tier >= highestTier);
+            highestTier = tier;
+        }
+        assertTrue("target not reached", planned >= neededBytes);
+        if (plan.isEmpty()) {
+            assertTrue(neededBytes <= 0);
+            return;
+        }
+        // Stops as soon as the target is reached
+        final long last = plan.get(plan.size() - 1).cacheBytes;
+        assertTrue("superfluous eviction", planned - last < neededBytes);
+
+        long lowerTierBytes = 0;
+        final ArrayList<Long> lastTierSizes = new ArrayList<>();
+        for (Candidate candidate : candidates) {
+            final int tier = CacheEvictionPlanner.tierOf(candidate, NOW);
+            if (candidate.cacheBytes <= 0) {
+                continue;
+            }
+            if (tier < highestTier) {
+                assertTrue("lower tier left out", plan.contains(candidate));
+                lowerTierBytes += candidate.cacheBytes;
+            } else if (tier == highestTier) {
+                lastTierSizes.add(candidate.cacheBytes);
+            } else {
+                assertFalse("higher tier evicted", plan.contains(candidate));
+            }
+        }
+        Collections.sort(lastTierSizes, Collections.reverseOrder());
+        int fewest = 0;
+        long freed = lowerTierBytes;
+        while (freed < neededBytes) {
+            freed += lastTierSizes.get(fewest++);
+        }
+        int lastTierCount = 0;
+        for (Candidate candidate : plan) {
+            if (CacheEvictionPlanner.tierOf(candidate, NOW) == highestTier) {
+                lastTierCount++;
+            }
+        }
+        assertEquals("more evictions than needed", fewest, lastTierCount);
+    }
+
+    private static ArrayList<Candidate> createPopulation(Random random, int size) {
+        final ArrayList<Candidate> candidates = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            // Mostly small caches with a long tail, some empty, some never used
+            final long cacheBytes = random.nextInt(10) == 0 ? 0
+                    : (long) (Math.pow(random.nextDouble(), 3) * 500 * MB);
+            final long lastUsed = random.nextInt(8) == 0 ? 0
+                    : NOW - (long) (random.nextDouble() * 3 * STALE_AGE_MS);
+            final int priority = random.nextInt(5) == 0 ? PRIORITY_VISIBLE : PRIORITY_NORMAL;
+            candidates.add(new Candidate("pkg" + i, random.nextInt(2) * 10, cacheBytes,
+                    lastUsed, priority));
+        }
+        return candidates;
+    }
+
+    private static Candidate candidate(String packageName, long cacheBytes, long lastUsed,
+            int priority) {
+        return new Candidate(packageName, 0, cacheBytes, lastUsed, priority);
+    }
+
+    private static List<Candidate> list(Candidate... candidates) {
+        final ArrayList<Candidate> list = new ArrayList<>();
+        Collections.addAll(list, candidates);
+        return list;
+    }
+}
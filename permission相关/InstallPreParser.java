@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.pm;
+
+import static android.os.Trace.TRACE_TAG_PACKAGE_MANAGER;
+
+import android.content.pm.PackageParser;
+import android.content.pm.PackageParser.PackageParserException;
+import android.os.Process;
+import android.os.SystemClock;
+import android.os.Trace;
+import android.util.ArrayMap;
+import android.util.DisplayMetrics;
+import android.util.Slog;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.ConcurrentUtils;
+
+import java.io.File;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Parses already staged installs while {@link PackageManagerService} is still busy installing
+ * the ones queued before them. Installs keep being committed one at a time, in the order they
+ * were queued, under {@code mInstallLock}; only the parse of the APK moves off that path, so
+ * two installs of the same package still replace each other in order.
+ */
+class InstallPreParser {
+    private static final String TAG = "PackageManagerTiming";
+
+    private final String[] mSeparateProcesses;
+    private final DisplayMetrics mMetrics;
+    private final PackageParser.Callback mCallback;
+    private final ExecutorService mService;
+
+    private static final class Entry {
+        final int parseFlags;
+        final long submitTime = SystemClock.uptimeMillis();
+        volatile long parseMillis;
+        Future<PackageParser.Package> future;
+
+        Entry(int parseFlags) {
+            this.parseFlags = parseFlags;
+        }
+    }
+
+    @GuardedBy("mEntries")
+    private final ArrayMap<File, Entry> mEntries = new ArrayMap<>();
+
+    InstallPreParser(String[] separateProcesses, DisplayMetrics metrics,
+            PackageParser.Callback callback, int maxThreads) {
+        mSeparateProcesses = separateProcesses;
+        mMetrics = metrics;
+        mCallback = callback;
+        mService = ConcurrentUtils.newFixedThreadPool(maxThreads, "install-parse-thread",
+                Process.THREAD_PRIORITY_FOREGROUND);
+    }
+
+    /** Starts parsing {@code codePath} with the flags the install is expected to use. */
+    void submit(File codePath, int parseFlags) {
+        final Entry entry = new Entry(parseFlags);
+        synchronized (mEntries) {
+            if (mEntries.containsKey(codePath)) {
+                return;
+            }
+            mEntries.put(codePath, entry);
+            entry.future = mService.submit(() -> {
+                final long start = SystemClock.uptimeMillis();
+                Trace.traceBegin(TRACE_TAG_PACKAGE_MANAGER, "installPreParse");
+                try {
+                    final PackageParser pp = new PackageParser();
+                    pp.setSeparateProcesses(mSeparateProcesses);
+                    pp.setDisplayMetrics(mMetrics);
+                    pp.setCallback(mCallback);
+                    return parsePackage(pp, codePath, parseFlags);
+                } finally {
+                    entry.parseMillis = SystemClock.uptimeMillis() - start;
+                    Trace.traceEnd(TRACE_TAG_PACKAGE_MANAGER);
+                }
+            });
+        }
+    }
+
+    @VisibleForTesting
+    protected PackageParser.Package parsePackage(PackageParser packageParser, File codePath,
+            int parseFlags) throws PackageParserException {
+        return packageParser.parsePackage(codePath, parseFlags);
+    }
+
+    /**
+     * Returns the package parsed ahead for {@code codePath}, waiting for it if the parse is
+     * still running.
+     *
+     * @return null if nothing was parsed ahead with these flags; the caller parses itself.
+     * @throws PackageParserException the parse ahead failed the same way the caller's would.
+     */
+    PackageParser.Package take(File codePath, int parseFlags) throws PackageParserException {
+        final Entry entry;
+        synchronized (mEntries) {
+            entry = mEntries.remove(codePath);
+        }
+        if (entry == null) {
+            return null;
+        }
+        if (entry.parseFlags != parseFlags) {
+            entry.future.cancel(false);
+            return null;
+        }
+        final long waitStart = SystemClock.uptimeMillis();
+        try {
+            final PackageParser.Package pkg = entry.future.get();
+            Slog.i(TAG, "Install of " + codePath.getName() + ": queued "
+                    + (waitStart - entry.submitTime) + "ms, parsed ahead in "
+                    + entry.parseMillis + "ms, waited "
+                    + (SystemClock.uptimeMillis() - waitStart) + "ms for it");
+            return pkg;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof PackageParserException) {
+                throw (PackageParserException) e.getCause();
+            }
+            Slog.w(TAG, "Parse ahead of " + codePath + " failed; parsing again", e);
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /** Drops the result for an install that ended before it was parsed for real. */
+    void discard(File codePath) {
+        final Entry entry;
+        synchronized (mEntries) {
+            entry = mEntries.remove(codePath);
+        }
+        if (entry != null) {
+            entry.future.cancel(true);
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.pm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.content.pm.PackageManager;
+import android.content.pm.PackageParser;
+import android.content.pm.PackageParser.PackageParserException;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Takes staged installs from an {@link InstallPreParser} whose parses finish in an order the
+ * test controls, one install at a time in queue order, as the install handler of
+ * {@code PackageManagerService} commits them.
+ */
+@RunWith(JUnit4.class)
+public class InstallPreParserTest {
+    private static final String PACKAGE = "com.example.app";
+    private static final int PARSE_FLAGS = PackageParser.PARSE_CHATTY;
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private final FakePreParser mPreParser = new FakePreParser();
+
+    @Test
+    public void testSamePackageCommitsInSubmissionOrder() throws Exception {
+        final File first = mPreParser.stage("vmdl1.tmp", 1);
+        final File second = mPreParser.stage("vmdl2.tmp", 2);
+        // The update queued first finishes parsing last
+        mPreParser.finishAfter(first, second);
+        mPreParser.submit(first, PARSE_FLAGS);
+        mPreParser.submit(second, PARSE_FLAGS);
+
+        final List<Integer> committed = commitInOrder(first, second);
+        assertEquals(Arrays.asList(second, first), mPreParser.mFinishOrder);
+        assertEquals(Arrays.asList(1, 2), committed);
+    }
+
+    @Test
+    public void testSamePackageCommitsInSubmissionOrderWhenParsedInOrder() throws Exception {
+        final File first = mPreParser.stage("vmdl1.tmp", 1);
+        final File second = mPreParser.stage("vmdl2.tmp", 2);
+        mPreParser.finishAfter(second, first);
+        mPreParser.submit(first, PARSE_FLAGS);
+        mPreParser.submit(second, PARSE_FLAGS);
+
+        assertEquals(Arrays.asList(1, 2), commitInOrder(first, second));
+        assertEquals(Arrays.asList(first, second), mPreParser.mFinishOrder);
+    }
+
+    @Test
+    public void testInstallThatWasNotParsedAheadIsParsedByCaller() throws Exception {
+        final File first = mPreParser.stage("vmdl1.tmp", 1);
+        final File second = mPreParser.stage("vmdl2.tmp", 2);
+        // e.g. a move, or an install that was not staged
+        mPreParser.submit(second, PARSE_FLAGS);
+
+        assertEquals(Arrays.asList(1, 2), commitInOrder(first, second));
+    }
+
+    @Test
+    public void testDifferentFlagsAreParsedAgain() throws Exception {
+        final File codePath = mPreParser.stage("vmdl1.tmp", 1);
+        mPreParser.submit(codePath, PARSE_FLAGS);
+        assertNull(mPreParser.take(codePath, PARSE_FLAGS | PackageParser.PARSE_FORWARD_LOCK));
+        // The result is gone either way
+        assertNull(mPreParser.take(codePath, PARSE_FLAGS));
+    }
+
+    @Test
+    public void testParseFailureIsReportedToInstall() throws Exception {
+        final File codePath = mPreParser.stage("vmdl1.tmp", 1);
+        mPreParser.mFailures.add(codePath);
+        mPreParser.submit(codePath, PARSE_FLAGS);
+        try {
+            mPreParser.take(codePath, PARSE_FLAGS);
+            fail("parse failure was not reported");
+        } catch (PackageParserException e) {
+            assertEquals(PackageManager.INSTALL_PARSE_FAILED_NOT_APK, e.error);
+        }
+    }
+
+    @Test
+    public void testDiscardedInstallIsNotReturned() throws Exception {
+        final File codePath = mPreParser.stage("vmdl1.tmp", 1);
+        mPreParser.submit(codePath, PARSE_FLAGS);
+        mPreParser.discard(codePath);
+        assertNull(mPreParser.take(codePath, PARSE_FLAGS));
+    }
+
+    @Test
+    public void testSubmittingTwiceParsesOnce() throws Exception {
+        final File codePath = mPreParser.stage("vmdl1.tmp", 1);
+        mPreParser.submit(codePath, PARSE_FLAGS);
+        mPreParser.submit(codePath, PARSE_FLAGS);
+        assertEquals(1, mPreParser.take(codePath, PARSE_FLAGS).mVersionCode);
+        assertNull(mPreParser.take(codePath, PARSE_FLAGS));
+        assertEquals(1, mPreParser.mFinishOrder.size());
+    }
+
+    /**
+     * Commits the installs one at a time, in the order given, the way the install handler
+     * processes its queue: the pre-parsed package if there is one, else a parse of its own.
+     *
+     * @return the version codes in commit order
+     */
+    private List<Integer> commitInOrder(File... codePaths) throws Exception {
+        final ArrayList<Integer> committed = new ArrayList<>();
+        for (File codePath : codePaths) {
+            PackageParser.Package pkg = mPreParser.take(codePath, PARSE_FLAGS);
+            if (pkg == null) {
+                pkg = mPreParser.parsePackage(new PackageParser(), codePath, PARSE_FLAGS);
+            }
+            assertEquals(PACKAGE, pkg.packageName);
+            committed.add(pkg.mVersionCode);
+        }
+        return committed;
+    }
+
+    private static class FakePreParser extends InstallPreParser {
+        final Map<File, Integer> mVersionCodes = new ConcurrentHashMap<>();
+        final Map<File, CountDownLatch> mFinished = new ConcurrentHashMap<>();
+        /** Code path -> the code path whose parse has to finish before its own can */
+        final Map<File, File> mFinishAfter = new ConcurrentHashMap<>();
+        final List<File> mFailures = Collections.synchronizedList(new ArrayList<>());
+        final List<File> mFinishOrder = Collections.synchronizedList(new ArrayList<>());
+
+        FakePreParser() {
+            super(null, null, null, 2 /* maxThreads */);
+        }
+
+        File stage(String name, int versionCode) {
+            final File codePath = new File("/data/app", name);
+            mVersionCodes.put(codePath, versionCode);
+            mFinished.put(codePath, new CountDownLatch(1));
+            return codePath;
+        }
+
+        void finishAfter(File codePath, File other) {
+            mFinishAfter.put(codePath, other);
+        }
+
+        @Override
+        protected PackageParser.Package parsePackage(PackageParser packageParser,
+                File codePath, int parseFlags) throws PackageParserException {
+            final File other = mFinishAfter.get(codePath);
+            if (other != null) {
+                try {
+                    assertTrue(mFinished.get(other).await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+            }
+            try {
+                if (mFailures.contains(codePath)) {
+                    throw new PackageParserException(PackageManager.INSTALL_PARSE_FAILED_NOT_APK,
+                            "Not an APK: " + codePath);
+                }
+                final PackageParser.Package pkg = new PackageParser.Package(PACKAGE);
+                pkg.mVersionCode = mVersionCodes.get(codePath);
+                return pkg;
+            } finally {
+                mFinishOrder.add(codePath);
+                mFinished.get(codePath).countDown();
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.pm;
+
+import android.annotation.Nullable;
+import android.content.pm.PackageInfo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * One page of installed packages returned by
+ * {@link PackageManagerService#getInstalledPackagesPage}.
+ */
+public final class InstalledPackagesPage {
+    public final List<PackageInfo> packages;
+    /** Pass to the next call to continue, or null when this was the last page. */
+    public final String nextToken;
+
+    InstalledPackagesPage(List<PackageInfo> packages, String nextToken) {
+        this.packages = packages;
+        this.nextToken = nextToken;
+    }
+
+    /** Builds the info of one listed package; called with the lock held. */
+    interface Generator {
+        /** @return the info, or null to leave the package out of the page. */
+        PackageInfo generateLocked(String packageName);
+    }
+
+    /**
+     * Builds the page of {@code sortedNames} that follows {@code startToken}, taking
+     * {@code lock} once per package instead of for the whole page, so installs and permission
+     * checks are not held off while a large list with GET_ACTIVITIES or GET_PERMISSIONS is
+     * generated.
+     *
+     * @param sortedNames package names copied under {@code lock}, in {@link Arrays#sort} order.
+     *         Packages installed or removed since are picked up or skipped by a later page
+     *         according to their name.
+     * @param startToken null for the first page, otherwise the {@link #nextToken} of the
+     *         previous page.
+     * @param pageSize the maximum number of names examined for this page; fewer packages are
+     *         returned when the generator leaves some out.
+     */
+    static InstalledPackagesPage generate(Object lock, String[] sortedNames,
+            @Nullable String startToken, int pageSize, Generator generator) {
+        int start = 0;
+        if (startToken != null) {
+            final int index = Arrays.binarySearch(sortedNames, startToken);
+            start = index >= 0 ? index + 1 : -index - 1;
+        }
+        final int end = (int) Math.min(sortedNames.length, (long) start + pageSize);
+        final ArrayList<PackageInfo> packages = new ArrayList<>(end - start);
+        for (int i = start; i < end; i++) {
+            final PackageInfo pi;
+            synchronized (lock) {
+                pi = generator.generateLocked(sortedNames[i]);
+            }
+            if (pi != null) {
+                packages.add(pi);
+            }
+        }
+        return new InstalledPackagesPage(packages,
+                end < sortedNames.length ? sortedNames[end - 1] : null);
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.pm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.content.pm.ActivityInfo;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.os.Debug;
+import android.util.ArrayMap;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Pages through synthetic package lists the way
+ * {@code PackageManagerService#getInstalledPackagesPage} does, and compares the cost of
+ * listing every package with the lock held throughout against listing them a page at a time.
+ */
+@RunWith(JUnit4.class)
+public class InstalledPackagesPageTest {
+    private static final String TAG = "InstalledPackagesPageTest";
+    private static final int[] PACKAGE_COUNTS = { 100, 500, 1000 };
+    private static final int PAGE_SIZE = 100;
+    /** Roughly what GET_ACTIVITIES adds to each PackageInfo of a large app */
+    private static final int ACTIVITIES_PER_PACKAGE = 20;
+
+    private final Object mLock = new Object();
+    private final ArrayMap<String, Integer> mPackages = new ArrayMap<>();
+
+    @Test
+    public void testPagesCoverEveryPackageOnce() {
+        installPackages(250);
+        final List<String> listed = new ArrayList<>();
+        String token = null;
+        int pages = 0;
+        do {
+            final InstalledPackagesPage page = getPage(token, 30);
+            assertTrue(page.packages.size() <= 30);
+            listed.addAll(packageNames(page.packages));
+            token = page.nextToken;
+            pages++;
+        } while (token != null);
+
+        assertEquals(9, pages);
+        assertEquals(Arrays.asList(sortedNames()), listed);
+    }
+
+    @Test
+    public void testChangesBetweenPagesFollowNameOrder() {
+        installPackages(20);
+        final InstalledPackagesPage first = getPage(null, 10);
+        assertEquals("com.example.app0009", first.nextToken);
+
+        synchronized (mLock) {
+            // Sorts before the token, so it is only seen by a new listing
+            mPackages.put("com.example.app0000a", 0);
+            // Sorts after the token, so the next page picks it up
+            mPackages.put("com.example.app0015a", 0);
+            mPackages.remove("com.example.app0012");
+            // The token itself may be removed too
+            mPackages.remove("com.example.app0009");
+        }
+
+        final InstalledPackagesPage second = getPage(first.nextToken, 10);
+        assertNull(second.nextToken);
+        assertEquals(Arrays.asList("com.example.app0010", "com.example.app0011",
+                "com.example.app0013", "com.example.app0014", "com.example.app0015",
+                "com.example.app0015a", "com.example.app0016", "com.example.app0017",
+                "com.example.app0018", "com.example.app0019"), packageNames(second.packages));
+    }
+
+    @Test
+    public void testFilteredPackagesStillAdvanceTheToken() {
+        installPackages(10);
+        final String[] names = sortedNames();
+        final InstalledPackagesPage page = InstalledPackagesPage.generate(mLock, names, null, 5,
+                packageName -> packageName.endsWith("2") ? newPackageInfo(packageName) : null);
+        assertEquals(Arrays.asList("com.example.app0002"), packageNames(page.packages));
+        assertEquals("com.example.app0004", page.nextToken);
+    }
+
+    @Test
+    public void testEmptyList() {
+        final InstalledPackagesPage page = getPage(null, PAGE_SIZE);
+        assertTrue(page.packages.isEmpty());
+        assertNull(page.nextToken);
+    }
+
+    /**
+     * Logs the longest time the lock is held, the bytes allocated and the PackageInfos alive at
+     * once, when all packages are listed under the lock as before and when they are listed a
+     * page at a time.
+     */
+    @Test
+    public void testListingCost() {
+        for (int count : PACKAGE_COUNTS) {
+            mPackages.clear();
+            installPackages(count);
+            // Warm up both paths before measuring
+            listAllLocked();
+            listAllPaged(new long[1]);
+
+            Debug.startAllocCounting();
+            Debug.resetThreadAllocSize();
+            final long start = System.nanoTime();
+            final int lockedAlive = listAllLocked().size();
+            final long lockedHoldNs = System.nanoTime() - start;
+            final int lockedBytes = Debug.getThreadAllocSize();
+
+            Debug.resetThreadAllocSize();
+            final long[] maxHoldNs = new long[1];
+            final int pagedAlive = listAllPaged(maxHoldNs);
+            final int pagedBytes = Debug.getThreadAllocSize();
+            Debug.stopAllocCounting();
+
+            Log.d(TAG, count + " packages, locked throughout: lock held " + lockedHoldNs / 1000
+                    + " us, " + lockedBytes / 1024 + " KB allocated, " + lockedAlive
+                    + " PackageInfos alive; paged: lock held at most " + maxHoldNs[0] / 1000
+                    + " us, " + pagedBytes / 1024 + " KB allocated, " + pagedAlive
+                    + " PackageInfos alive");
+            assertTrue(maxHoldNs[0] <= lockedHoldNs);
+            assertEquals(Math.min(count, PAGE_SIZE), pagedAlive);
+        }
+    }
+
+    /** What {@code getInstalledPackages} did before it was paged. */
+    private List<PackageInfo> listAllLocked() {
+        synchronized (mLock) {
+            final ArrayList<PackageInfo> list = new ArrayList<>(mPackages.size());
+            for (int i = 0; i < mPackages.size(); i++) {
+                list.add(newPackageInfo(mPackages.keyAt(i)));
+            }
+            return list;
+        }
+    }
+
+    /**
+     * Lists every package a page at a time, dropping each page before the next one.
+     *
+     * @return the most PackageInfos alive at once
+     */
+    private int listAllPaged(long[] maxHoldNs) {
+        int maxAlive = 0;
+        String token = null;
+        do {
+            final InstalledPackagesPage page = InstalledPackagesPage.generate(mLock,
+                    sortedNames(), token, PAGE_SIZE, packageName -> {
+                        final long start = System.nanoTime();
+                        final PackageInfo pi = newPackageInfo(packageName);
+                        maxHoldNs[0] = Math.max(maxHoldNs[0], System.nanoTime() - start);
+                        return pi;
+                    });
+            maxAlive = Math.max(maxAlive, page.packages.size());
+            token = page.nextToken;
+        } while (token != null);
+        return maxAlive;
+    }
+
+    private InstalledPackagesPage getPage(String startToken, int pageSize) {
+        return InstalledPackagesPage.generate(mLock, sortedNames(), startToken, pageSize,
+                packageName -> mPackages.containsKey(packageName)
+                        ? newPackageInfo(packageName) : null);
+    }
+
+    /** As {@code PackageManagerService#snapshotPackageNames}. */
+    private String[] sortedNames() {
+        final String[] names;
+        synchronized (mLock) {
+            names = mPackages.keySet().toArray(new String[mPackages.size()]);
+        }
+        Arrays.sort(names);
+        return names;
+    }
+
+    private void installPackages(int count) {
+        for (int i = 0; i < count; i++) {
+            mPackages.put(String.format("com.example.app%04d", i), i);
+        }
+    }
+
+    private static PackageInfo newPackageInfo(String packageName) {
+        final PackageInfo pi = new PackageInfo();
+        pi.packageName = packageName;
+        pi.applicationInfo = new ApplicationInfo();
+        pi.applicationInfo.packageName = packageName;
+        pi.activities = new ActivityInfo[ACTIVITIES_PER_PACKAGE];
+        for (int i = 0; i < ACTIVITIES_PER_PACKAGE; i++) {
+            pi.activities[i] = new ActivityInfo();
+            pi.activities[i].packageName = packageName;
+            pi.activities[i].name = packageName + ".Activity" + i;
+            pi.activities[i].applicationInfo = pi.applicationInfo;
+        }
+        return pi;
+    }
+
+    private static List<String> packageNames(List<PackageInfo> packages) {
+        final ArrayList<String> names = new ArrayList<>();
+        for (PackageInfo pi : packages) {
+            names.add(pi.packageName);
+        }
+        return names;
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.pm;
+
+import android.content.Intent;
+import android.content.pm.ResolveInfo;
+import android.net.Uri;
+import android.util.ArraySet;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Bounded LRU cache of implicit activity resolution results. Entries are tagged with the
+ * generation they were computed in; {@link #invalidate()} bumps the generation so every older
+ * entry becomes a miss without walking the map. Callers must hold {@code mPackages} for all
+ * methods, and must invalidate after any change that can alter what the activity resolver
+ * returns: packages added or removed, or per-user installed, enabled, hidden, suspended,
+ * stopped or instant app state.
+ */
+final class IntentResolutionCache {
+    private static final int MAX_ENTRIES = 256;
+
+    /** Intent flags that change which activities match. */
+    private static final int MATCHING_INTENT_FLAGS = Intent.FLAG_EXCLUDE_STOPPED_PACKAGES
+            | Intent.FLAG_INCLUDE_STOPPED_PACKAGES;
+
+    private final LinkedHashMap<Key, Entry> mEntries =
+            new LinkedHashMap<Key, Entry>(MAX_ENTRIES, 0.75f, true /* accessOrder */) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+
+    private int mGeneration;
+    private long mHits;
+    private long mMisses;
+    private long mStaleMisses;
+
+    /** Makes every cached result a miss. */
+    void invalidate() {
+        mGeneration++;
+    }
+
+    /**
+     * @return whether results for this intent may be cached. Explicit and package-restricted
+     * intents are not resolved through the shared resolver, and debug resolution must log.
+     */
+    static boolean isCacheable(Intent intent) {
+        return intent.getComponent() == null && intent.getPackage() == null
+                && (intent.getFlags() & Intent.FLAG_DEBUG_LOG_RESOLUTION) == 0;
+    }
+
+    /** @return a private copy of the cached result, or null on a miss. */
+    List<ResolveInfo> get(Intent intent, String resolvedType, int flags, int userId) {
+        final Key key = new Key(intent, resolvedType, flags, userId);
+        final Entry entry = mEntries.get(key);
+        if (entry == null) {
+            mMisses++;
+            return null;
+        }
+        if (entry.generation != mGeneration) {
+            mEntries.remove(key);
+            mStaleMisses++;
+            return null;
+        }
+        mHits++;
+        return copyOf(entry.results);
+    }
+
+    /** Stores a copy of {@code results}; the caller remains free to modify its list. */
+    void put(Intent intent, String resolvedType, int flags, int userId,
+            List<ResolveInfo> results) {
+        mEntries.put(new Key(intent, resolvedType, flags, userId),
+                new Entry(mGeneration, copyOf(results)));
+    }
+
+    /** Callers filter and sort the returned list and may tweak the entries in place. */
+    private static List<ResolveInfo> copyOf(List<ResolveInfo> source) {
+        final int size = source.size();
+        final List<ResolveInfo> copy = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            copy.add(new ResolveInfo(source.get(i)));
+        }
+        return copy;
+    }
+
+    void dump(PrintWriter pw) {
+        final long lookups = mHits + mMisses + mStaleMisses;
+        pw.print("  generation="); pw.print(mGeneration);
+        pw.print(" size="); pw.print(mEntries.size());
+        pw.print("/"); pw.println(MAX_ENTRIES);
+        pw.print("  hits="); pw.print(mHits);
+        pw.print(" misses="); pw.print(mMisses);
+        pw.print(" stale="); pw.print(mStaleMisses);
+        pw.print(" hitRate=");
+        pw.print(lookups == 0 ? 0 : (mHits * 100 / lookups));
+        pw.println("%");
+    }
+
+    private static final class Entry {
+        final int generation;
+        final List<ResolveInfo> results;
+
+        Entry(int generation, List<ResolveInfo> results) {
+            this.generation = generation;
+            this.results = results;
+        }
+    }
+
+    /** The parts of a resolution request that the activity resolver looks at. */
+    private static final class Key {
+        private final String mAction;
+        private final String mResolvedType;
+        private final Uri mData;
+        private final Set<String> mCategories;
+        private final int mIntentFlags;
+        private final int mFlags;
+        private final int mUserId;
+        private final int mHashCode;
+
+        Key(Intent intent, String resolvedType, int flags, int userId) {
+            mAction = intent.getAction();
+            mResolvedType = resolvedType;
+            mData = intent.getData();
+            final Set<String> categories = intent.getCategories();
+            // The intent belongs to the caller and may be modified after we return.
+            mCategories = categories != null ? new ArraySet<>(categories) : null;
+            mIntentFlags = intent.getFlags() & MATCHING_INTENT_FLAGS;
+            mFlags = flags;
+            mUserId = userId;
+            mHashCode = Objects.hash(mAction, mResolvedType, mData, mCategories, mIntentFlags,
+                    mFlags, mUserId);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return mHashCode == other.mHashCode
+                    && mIntentFlags == other.mIntentFlags
+                    && mFlags == other.mFlags
+                    && mUserId == other.mUserId
+                    && Objects.equals(mAction, other.mAction)
+                    && Objects.equals(mResolvedType, other.mResolvedType)
+                    && Objects.equals(mData, other.mData)
+                    && Objects.equals(mCategories, other.mCategories);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.pm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.content.ComponentName;
+import android.content.Intent;
+import android.content.pm.ActivityInfo;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.ResolveInfo;
+import android.net.Uri;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.ArraySet;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs {@link IntentResolutionCache} the way {@code queryActivitiesCachedLPr} does, against a
+ * fake resolver whose package state changes invalidate the cache like the corresponding
+ * {@link PackageManagerService} paths do.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class IntentResolutionCacheTest {
+    private static final int USER_OWNER = 0;
+    private static final int USER_OTHER = 10;
+    private static final String PACKAGE_A = "com.example.a";
+    private static final String PACKAGE_B = "com.example.b";
+
+    private IntentResolutionCache mCache;
+    private final ArrayList<String> mInstalled = new ArrayList<>();
+    private final ArraySet<String> mHidden = new ArraySet<>();
+    private final ArraySet<String> mSuspended = new ArraySet<>();
+    private final ArraySet<String> mInstantApps = new ArraySet<>();
+    private final ArraySet<String> mUpdateAvailable = new ArraySet<>();
+    private int mResolverQueries;
+
+    @Before
+    public void setUp() {
+        mCache = new IntentResolutionCache();
+        mInstalled.add(PACKAGE_A);
+        mInstalled.add(PACKAGE_B);
+    }
+
+    @Test
+    public void testRepeatedQueryIsServedFromCache() {
+        assertEquals(2, query(launcherIntent(), USER_OWNER).size());
+        assertEquals(2, query(launcherIntent(), USER_OWNER).size());
+        assertEquals(1, mResolverQueries);
+    }
+
+    @Test
+    public void testUninstalledPackageIsNeverServed() {
+        assertPackages(query(launcherIntent(), USER_OWNER), PACKAGE_A, PACKAGE_B);
+
+        // cleanPackageDataStructuresLILPw() invalidates once the activities are removed
+        mInstalled.remove(PACKAGE_A);
+        mCache.invalidate();
+
+        assertNull(mCache.get(launcherIntent(), null, 0, USER_OWNER));
+        assertPackages(query(launcherIntent(), USER_OWNER), PACKAGE_B);
+        assertEquals(2, mResolverQueries);
+    }
+
+    @Test
+    public void testHiddenPackageIsNeverServed() {
+        assertPackages(query(launcherIntent(), USER_OWNER), PACKAGE_A, PACKAGE_B);
+
+        // As setApplicationHiddenSettingAsUser() does after changing the setting
+        mHidden.add(PACKAGE_B);
+        mCache.invalidate();
+
+        assertNull(mCache.get(launcherIntent(), null, 0, USER_OWNER));
+        assertPackages(query(launcherIntent(), USER_OWNER), PACKAGE_A);
+    }
+
+    @Test
+    public void testSuspendedPackageIsNeverServed() {
+        assertPackages(query(launcherIntent(), USER_OWNER), PACKAGE_A, PACKAGE_B);
+
+        // As setPackagesSuspendedAsUser() does after changing the setting
+        mSuspended.add(PACKAGE_A);
+        mCache.invalidate();
+
+        assertNull(mCache.get(launcherIntent(), null, 0, USER_OWNER));
+        assertPackages(query(launcherIntent(), USER_OWNER), PACKAGE_B);
+    }
+
+    @Test
+    public void testInstantAppWithUpdateAvailableIsNeverServed() {
+        mInstantApps.add(PACKAGE_B);
+        assertPackages(query(launcherIntent(), USER_OWNER), PACKAGE_A, PACKAGE_B);
+
+        // As setUpdateAvailable() does after changing the setting
+        mUpdateAvailable.add(PACKAGE_B);
+        mCache.invalidate();
+        assertNull(mCache.get(launcherIntent(), null, 0, USER_OWNER));
+        assertPackages(query(launcherIntent(), USER_OWNER), PACKAGE_A);
+
+        // The update was installed
+        mUpdateAvailable.remove(PACKAGE_B);
+        mCache.invalidate();
+        assertPackages(query(launcherIntent(), USER_OWNER), PACKAGE_A, PACKAGE_B);
+        assertEquals(3, mResolverQueries);
+    }
+
+    @Test
+    public void testInvalidateDropsEveryEntry() {
+        query(launcherIntent(), USER_OWNER);
+        query(launcherIntent(), USER_OTHER);
+        query(viewIntent(), USER_OWNER);
+        mCache.invalidate();
+        assertNull(mCache.get(launcherIntent(), null, 0, USER_OWNER));
+        assertNull(mCache.get(launcherIntent(), null, 0, USER_OTHER));
+        assertNull(mCache.get(viewIntent(), null, 0, USER_OWNER));
+    }
+
+    @Test
+    public void testKeyCoversResolutionInputs() {
+        query(launcherIntent(), USER_OWNER);
+        assertNull(mCache.get(launcherIntent(), null, 0, USER_OTHER));
+        assertNull(mCache.get(launcherIntent(), null, 0x1 /* flags */, USER_OWNER));
+        assertNull(mCache.get(launcherIntent(), "text/plain", 0, USER_OWNER));
+        assertNull(mCache.get(launcherIntent().addCategory(Intent.CATEGORY_HOME), null, 0,
+                USER_OWNER));
+        assertNull(mCache.get(launcherIntent().addFlags(
+                Intent.FLAG_INCLUDE_STOPPED_PACKAGES), null, 0, USER_OWNER));
+        // Flags that do not affect matching share the entry
+        assertEquals(2, mCache.get(launcherIntent().addFlags(Intent.FLAG_ACTIVITY_NEW_TASK),
+                null, 0, USER_OWNER).size());
+    }
+
+    @Test
+    public void testCallerChangesDoNotLeakIntoCache() {
+        final Intent intent = launcherIntent();
+        final List<ResolveInfo> results = query(intent, USER_OWNER);
+        // The caller's intent and result list stay theirs to modify
+        intent.addCategory(Intent.CATEGORY_HOME);
+        results.clear();
+
+        final List<ResolveInfo> cached = mCache.get(launcherIntent(), null, 0, USER_OWNER);
+        assertEquals(2, cached.size());
+        assertNotSame(cached.get(0), mCache.get(launcherIntent(), null, 0, USER_OWNER).get(0));
+    }
+
+    @Test
+    public void testUncacheableIntents() {
+        assertTrue(IntentResolutionCache.isCacheable(launcherIntent()));
+        assertFalse(IntentResolutionCache.isCacheable(
+                launcherIntent().setPackage(PACKAGE_A)));
+        assertFalse(IntentResolutionCache.isCacheable(
+                launcherIntent().setComponent(new ComponentName(PACKAGE_A, "Main"))));
+        assertFalse(IntentResolutionCache.isCacheable(
+                launcherIntent().addFlags(Intent.FLAG_DEBUG_LOG_RESOLUTION)));
+    }
+
+    /** Same lookup as {@code PackageManagerService#queryActivitiesCachedLPr}. */
+    private List<ResolveInfo> query(Intent intent, int userId) {
+        List<ResolveInfo> result = mCache.get(intent, null, 0, userId);
+        if (result == null) {
+            result = resolve();
+            mCache.put(intent, null, 0, userId, result);
+        }
+        return result;
+    }
+
+    private List<ResolveInfo> resolve() {
+        mResolverQueries++;
+        final ArrayList<ResolveInfo> result = new ArrayList<>();
+        for (String packageName : mInstalled) {
+            if (mHidden.contains(packageName) || mSuspended.contains(packageName)) {
+                continue;
+            }
+            // ActivityIntentResolver.newResult() leaves out instant apps that need an update
+            if (mInstantApps.contains(packageName) && mUpdateAvailable.contains(packageName)) {
+                continue;
+            }
+            final ResolveInfo info = new ResolveInfo();
+            info.activityInfo = new ActivityInfo();
+            info.activityInfo.packageName = packageName;
+            info.activityInfo.name = packageName + ".Main";
+            info.activityInfo.applicationInfo = new ApplicationInfo();
+            info.activityInfo.applicationInfo.packageName = packageName;
+            result.add(info);
+        }
+        return result;
+    }
+
+    private static void assertPackages(List<ResolveInfo> results, String... packageNames) {
+        assertEquals(packageNames.length, results.size());
+        for (int i = 0; i < packageNames.length; i++) {
+            assertEquals(packageNames[i], results.get(i).activityInfo.packageName);
+        }
+    }
+
+    private static Intent launcherIntent() {
+        return new Intent(Intent.ACTION_MAIN).addCategory(Intent.CATEGORY_LAUNCHER);
+    }
+
+    private static Intent viewIntent() {
+        return new Intent(Intent.ACTION_VIEW, Uri.parse("http://example.com"));
+    }
+}
@@ -21,8 +21,9 @@ import android.content.Context;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.os.Environment;
-import android.os.Process;
+import android.os.UserHandle;
 import android.text.TextUtils;
+import android.util.AtomicFile;
 import android.util.Log;
 
 import android.content.pm.IPackageManager;
@@ -33,10 +34,16 @@ import com.android.internal.util.ArrayUtils;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.zip.CRC32;
 
 public class MTKPackageManagerUtil{
 
@@ -49,13 +56,28 @@ public class MTKPackageManagerUtil{
 
     private static HashSet<String> sGrantSystemAppSet = new HashSet<String>();
 
-    private static HashSet<String> sGrantPermissionSet = new HashSet<String>();
+    private static final File GRANT_STATE_FILE = new File(
+            Environment.getDataSystemDirectory(), "sysapp_grant_permission_state");
 
     private static  IPackageManager mIpm;
     private static  AppOpsManager mAppOpsManager;
 
-    public static void slientGrantRuntimePermission(Context mContext, Settings mSettings){
+    public static void slientGrantRuntimePermission(Context mContext, PackageManagerService pms){
         sGetGrantSystemAppFromFile(sGrantSystemAppSet, GRANT_SYS_APP_LIST_SYSTEM);
+        if (sGrantSystemAppSet.isEmpty()) {
+            return;
+        }
+
+        final String fingerprint = computeGrantFingerprint(pms);
+        if (fingerprint.equals(readGrantState())) {
+            Log.d(TAG, "grant list and packages unchanged, skip");
+            return;
+        }
+
+        final int changed = pms.grantRuntimePermissionsInternal(sGrantSystemAppSet,
+                null /* all requested */, UserHandle.USER_SYSTEM);
+        Log.d(TAG, "granted " + changed + " permissions to " + sGrantSystemAppSet.size()
+                + " packages");
 
         PackageManager mPackageManager = mContext.getPackageManager();
 
@@ -63,30 +85,10 @@ public class MTKPackageManagerUtil{
         mAppOpsManager = (AppOpsManager) mContext.getSystemService(Context.APP_OPS_SERVICE);
 
         Iterator<String> it = sGrantSystemAppSet.iterator();
-        Log.d(TAG, "sGrantSystemAppSet:");
         while (it.hasNext()) {
-            sGrantPermissionSet.clear();
             String pkgName = it.next();
-            Log.d(TAG, "pkgName="+pkgName);
             try {
-                PackageInfo mPackageInfo =   mPackageManager.getPackageInfo(pkgName, PackageManager.GET_PERMISSIONS);
-                 for (String permission : mPackageInfo.requestedPermissions){
-                     int status = mPackageManager.checkPermission(permission, pkgName);
-                     final BasePermission bp = mSettings.mPermissions.get(permission);
-                     if (status != PackageManager.PERMISSION_GRANTED && bp != null) {
-                        if (!bp.isRuntime() && !bp.isDevelopment()) {
-                            Log.d(TAG, "Permission " + bp.name + " is not a changeable permission type");
-                            continue;
-                        }
-                        sGrantPermissionSet.add(permission);
-                     }
-                 }
-                 Log.d(TAG, " need grantRuntimePermission size:"+sGrantPermissionSet.size());
-                 for (String permission : sGrantPermissionSet) {
-                    mPackageManager.grantRuntimePermission(pkgName,
-                            permission, Process.myUserHandle());
-                 }
-
+                PackageInfo mPackageInfo = mPackageManager.getPackageInfo(pkgName, 0);
                  if (checkInstallPackagesPermission(pkgName, mPackageInfo)) {
                      Log.e(TAG, pkgName + " need grant INSTALL_PACKAGES permission");
                      mAppOpsManager.setMode(AppOpsManager.OP_REQUEST_INSTALL_PACKAGES,
@@ -100,6 +102,53 @@ public class MTKPackageManagerUtil{
 
         }
 
+        writeGrantState(fingerprint);
+    }
+
+    /**
+     * Hash of the grant list plus the version of every listed package, so an OTA that changes
+     * either one triggers a new grant pass while a normal reboot does nothing.
+     */
+    private static String computeGrantFingerprint(PackageManagerService pms) {
+        final CRC32 crc = new CRC32();
+        try {
+            crc.update(Files.readAllBytes(GRANT_SYS_APP_LIST_SYSTEM.toPath()));
+        } catch (IOException io) {
+            Log.d(TAG, io.getMessage());
+        }
+        final StringBuilder sb = new StringBuilder(Long.toHexString(crc.getValue()));
+        final ArrayList<String> packages = new ArrayList<>(sGrantSystemAppSet);
+        Collections.sort(packages);
+        synchronized (pms.mPackages) {
+            for (String pkgName : packages) {
+                final PackageSetting ps = pms.mSettings.getPackageLPr(pkgName);
+                sb.append(' ').append(pkgName).append(':')
+                        .append(ps != null ? ps.versionCode : -1);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String readGrantState() {
+        try {
+            return new String(new AtomicFile(GRANT_STATE_FILE).readFully(),
+                    StandardCharsets.UTF_8);
+        } catch (IOException io) {
+            return null;
+        }
+    }
+
+    private static void writeGrantState(String fingerprint) {
+        final AtomicFile file = new AtomicFile(GRANT_STATE_FILE);
+        FileOutputStream out = null;
+        try {
+            out = file.startWrite();
+            out.write(fingerprint.getBytes(StandardCharsets.UTF_8));
+            file.finishWrite(out);
+        } catch (IOException io) {
+            Log.d(TAG, "failed to write " + GRANT_STATE_FILE + ": " + io.getMessage());
+            file.failWrite(out);
+        }
     }
 
     private static boolean checkInstallPackagesPermission(String packageName, PackageInfo mPackageInfo){
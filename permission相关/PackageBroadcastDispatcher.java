@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.pm;
+
+import android.app.ActivityManager;
+import android.app.AppOpsManager;
+import android.app.IActivityManager;
+import android.content.IIntentReceiver;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.RemoteException;
+import android.os.UserHandle;
+import android.util.ArrayMap;
+import android.util.Slog;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+/**
+ * Sends the package broadcasts of {@link PackageManagerService}. Component-level
+ * {@link Intent#ACTION_PACKAGE_CHANGED} requests are held for {@link #BATCH_DELAY_MS} and sent
+ * together in request order, with the set of running users looked up once per batch; requests
+ * for the same package and user are merged into one broadcast carrying the union of their
+ * components.
+ *
+ * <p>Every other broadcast is posted right away, so it keeps its order relative to other work
+ * on the handler, such as install observer callbacks. Any PACKAGE_CHANGED still queued for
+ * the same package is sent just before it.
+ */
+class PackageBroadcastDispatcher {
+    private static final String TAG = "PackageBroadcastDispatcher";
+    private static final boolean DEBUG_BROADCASTS = false;
+
+    private static final String PACKAGE_SCHEME = "package";
+
+    /** Short enough not to be noticed by launchers; long enough to catch an update storm. */
+    static final long BATCH_DELAY_MS = 50;
+
+    private final Handler mHandler;
+    private final Object mLock = new Object();
+
+    /** Queued mergeable PACKAGE_CHANGED requests, in request order. */
+    @GuardedBy("mLock")
+    private ArrayList<Request> mPending = new ArrayList<>();
+    /** userId -> package -> the queued PACKAGE_CHANGED request that later ones may join. */
+    @GuardedBy("mLock")
+    private final SparseArray<ArrayMap<String, Request>> mMergeable = new SparseArray<>();
+
+    // Counted per user a broadcast is addressed to; only touched on the handler thread.
+    private long mRawBroadcasts;
+    private long mEmittedBroadcasts;
+
+    private final Runnable mFlushRunnable = this::flush;
+
+    private static final class Request {
+        final String action;
+        final String pkg;
+        final Bundle extras;
+        int flags;
+        final String targetPkg;
+        final IIntentReceiver finishedReceiver;
+        final int[] userIds;
+        /** Components of a mergeable PACKAGE_CHANGED request, null otherwise. */
+        ArrayList<String> components;
+        /** How many requests were merged into this one. */
+        int requestCount = 1;
+
+        Request(String action, String pkg, Bundle extras, int flags, String targetPkg,
+                IIntentReceiver finishedReceiver, int[] userIds) {
+            this.action = action;
+            this.pkg = pkg;
+            this.extras = extras;
+            this.flags = flags;
+            this.targetPkg = targetPkg;
+            this.finishedReceiver = finishedReceiver;
+            this.userIds = userIds;
+        }
+    }
+
+    PackageBroadcastDispatcher(Handler handler) {
+        mHandler = handler;
+    }
+
+    /** Same contract as {@link PackageManagerService#sendPackageBroadcast}. */
+    void enqueue(String action, String pkg, Bundle extras, int flags, String targetPkg,
+            IIntentReceiver finishedReceiver, int[] userIds) {
+        final boolean mergeable = isMergeable(action, pkg, extras, targetPkg, finishedReceiver,
+                userIds);
+        // A mergeable request's extras are rewritten in place; keep them away from the caller.
+        final Request request = new Request(action, pkg, mergeable ? new Bundle(extras) : extras,
+                flags, targetPkg, finishedReceiver, userIds);
+        synchronized (mLock) {
+            if (!mergeable) {
+                final ArrayList<Request> batch = new ArrayList<>(1);
+                if (pkg != null) {
+                    // Anything queued for this package before this request must stay before it.
+                    takePendingLocked(pkg, batch);
+                }
+                batch.add(request);
+                // Posted under the lock so concurrent requests are sent in request order.
+                mHandler.post(() -> send(batch));
+                return;
+            }
+            final int userId = userIds[0];
+            ArrayMap<String, Request> byPackage = mMergeable.get(userId);
+            if (byPackage == null) {
+                byPackage = new ArrayMap<>();
+                mMergeable.put(userId, byPackage);
+            }
+            final Request queued = byPackage.get(pkg);
+            if (queued != null) {
+                merge(queued, request);
+                return;
+            }
+            request.components = toList(
+                    extras.getStringArray(Intent.EXTRA_CHANGED_COMPONENT_NAME_LIST));
+            byPackage.put(pkg, request);
+            mPending.add(request);
+            if (mPending.size() == 1) {
+                mHandler.postDelayed(mFlushRunnable, BATCH_DELAY_MS);
+            }
+        }
+    }
+
+    /** Moves the queued requests for {@code pkg} to {@code out}, keeping their order. */
+    @GuardedBy("mLock")
+    private void takePendingLocked(String pkg, ArrayList<Request> out) {
+        for (int i = mMergeable.size() - 1; i >= 0; i--) {
+            mMergeable.valueAt(i).remove(pkg);
+        }
+        for (int i = 0; i < mPending.size(); i++) {
+            final Request request = mPending.get(i);
+            if (pkg.equals(request.pkg)) {
+                out.add(request);
+                mPending.remove(i--);
+            }
+        }
+        if (mPending.isEmpty()) {
+            mHandler.removeCallbacks(mFlushRunnable);
+        }
+    }
+
+    private static boolean isMergeable(String action, String pkg, Bundle extras,
+            String targetPkg, IIntentReceiver finishedReceiver, int[] userIds) {
+        return Intent.ACTION_PACKAGE_CHANGED.equals(action)
+                && pkg != null
+                && extras != null
+                && extras.getStringArray(Intent.EXTRA_CHANGED_COMPONENT_NAME_LIST) != null
+                && targetPkg == null
+                && finishedReceiver == null
+                && userIds != null && userIds.length == 1;
+    }
+
+    private static ArrayList<String> toList(String[] array) {
+        final ArrayList<String> list = new ArrayList<>(array.length);
+        for (String s : array) {
+            list.add(s);
+        }
+        return list;
+    }
+
+    private static void merge(Request into, Request from) {
+        for (String component : from.extras.getStringArray(
+                Intent.EXTRA_CHANGED_COMPONENT_NAME_LIST)) {
+            if (!into.components.contains(component)) {
+                into.components.add(component);
+            }
+        }
+        into.extras.putStringArray(Intent.EXTRA_CHANGED_COMPONENT_NAME_LIST,
+                into.components.toArray(new String[into.components.size()]));
+        // Kill the app if any of the merged changes asked for it.
+        into.extras.putBoolean(Intent.EXTRA_DONT_KILL_APP,
+                into.extras.getBoolean(Intent.EXTRA_DONT_KILL_APP)
+                        && from.extras.getBoolean(Intent.EXTRA_DONT_KILL_APP));
+        // Registered-only unless one of them reports a change of the whole package.
+        if ((from.flags & Intent.FLAG_RECEIVER_REGISTERED_ONLY) == 0) {
+            into.flags &= ~Intent.FLAG_RECEIVER_REGISTERED_ONLY;
+        }
+        into.requestCount++;
+    }
+
+    @VisibleForTesting
+    IActivityManager getActivityManager() {
+        return ActivityManager.getService();
+    }
+
+    private void flush() {
+        final ArrayList<Request> batch;
+        synchronized (mLock) {
+            batch = mPending;
+            mPending = new ArrayList<>();
+            mMergeable.clear();
+        }
+        send(batch);
+    }
+
+    private void send(ArrayList<Request> batch) {
+        final IActivityManager am = getActivityManager();
+        if (am == null) return;
+        int[] runningUserIds = null;
+        for (int i = 0; i < batch.size(); i++) {
+            final Request request = batch.get(i);
+            try {
+                int[] userIds = request.userIds;
+                if (userIds == null) {
+                    if (runningUserIds == null) {
+                        runningUserIds = am.getRunningUserIds();
+                    }
+                    userIds = runningUserIds;
+                }
+                mRawBroadcasts += (long) request.requestCount * userIds.length;
+                for (int id : userIds) {
+                    send(am, request, id);
+                    mEmittedBroadcasts++;
+                }
+            } catch (RemoteException ex) {
+            }
+        }
+    }
+
+    private void send(IActivityManager am, Request request, int id) throws RemoteException {
+        final Intent intent = new Intent(request.action,
+                request.pkg != null ? Uri.fromParts(PACKAGE_SCHEME, request.pkg, null) : null);
+        if (request.extras != null) {
+            intent.putExtras(request.extras);
+        }
+        if (request.targetPkg != null) {
+            intent.setPackage(request.targetPkg);
+        }
+        // Modify the UID when posting to other users
+        int uid = intent.getIntExtra(Intent.EXTRA_UID, -1);
+        if (uid > 0 && UserHandle.getUserId(uid) != id) {
+            uid = UserHandle.getUid(id, UserHandle.getAppId(uid));
+            intent.putExtra(Intent.EXTRA_UID, uid);
+        }
+        intent.putExtra(Intent.EXTRA_USER_HANDLE, id);
+        intent.addFlags(Intent.FLAG_RECEIVER_REGISTERED_ONLY_BEFORE_BOOT | request.flags);
+        if (DEBUG_BROADCASTS) {
+            RuntimeException here = new RuntimeException("here");
+            here.fillInStackTrace();
+            Slog.d(TAG, "Sending to user " + id + ": "
+                    + intent.toShortString(false, true, false, false)
+                    + " " + intent.getExtras(), here);
+        }
+        am.broadcastIntent(null, intent, null, request.finishedReceiver,
+                0, null, null, null, AppOpsManager.OP_NONE,
+                null, request.finishedReceiver != null, false, id);
+    }
+
+    void dump(PrintWriter pw) {
+        pw.print("  raw="); pw.print(mRawBroadcasts);
+        pw.print(" emitted="); pw.println(mEmittedBroadcasts);
+    }
+}
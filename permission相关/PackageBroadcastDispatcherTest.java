@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.pm;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.app.ActivityManager;
+import android.app.IActivityManager;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.test.TestLooper;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+
+/**
+ * Sends package broadcasts through a {@link PackageBroadcastDispatcher} whose activity manager
+ * records them, on a looper whose clock the test moves.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class PackageBroadcastDispatcherTest {
+    private static final String PACKAGE_A = "com.example.a";
+    private static final String PACKAGE_B = "com.example.b";
+    private static final int USER_OWNER = 0;
+    private static final int USER_OTHER = 10;
+    private static final int[] RUNNING_USER_IDS = { USER_OWNER, USER_OTHER };
+
+    private TestLooper mLooper;
+    private BroadcastRecorder mRecorder;
+    private PackageBroadcastDispatcher mDispatcher;
+
+    @Before
+    public void setUp() {
+        mLooper = new TestLooper();
+        mRecorder = new BroadcastRecorder();
+        final IActivityManager am = mRecorder.asActivityManager();
+        mDispatcher = new PackageBroadcastDispatcher(new Handler(mLooper.getLooper())) {
+            @Override
+            IActivityManager getActivityManager() {
+                return am;
+            }
+        };
+    }
+
+    @Test
+    public void testChangedIsMergedPerPackageAndUser() {
+        sendChanged(PACKAGE_A, USER_OWNER, true, "A1");
+        sendChanged(PACKAGE_B, USER_OWNER, true, "B1");
+        sendChanged(PACKAGE_A, USER_OWNER, true, "A2", "A1");
+        sendChanged(PACKAGE_A, USER_OTHER, true, "A3");
+        mLooper.dispatchAll();
+        assertEquals(0, mRecorder.mIntents.size());
+
+        mLooper.moveTimeForward(PackageBroadcastDispatcher.BATCH_DELAY_MS);
+        mLooper.dispatchAll();
+        assertEquals(3, mRecorder.mIntents.size());
+        assertChanged(0, PACKAGE_A, USER_OWNER, "A1", "A2");
+        assertChanged(1, PACKAGE_B, USER_OWNER, "B1");
+        assertChanged(2, PACKAGE_A, USER_OTHER, "A3");
+    }
+
+    @Test
+    public void testMergedChangeKillsIfAnyRequestDid() {
+        sendChanged(PACKAGE_A, USER_OWNER, true, "A1");
+        sendChanged(PACKAGE_A, USER_OWNER, false, "A2");
+        sendChanged(PACKAGE_B, USER_OWNER, true, "B1");
+        sendChanged(PACKAGE_B, USER_OWNER, true, "B2");
+        flush();
+
+        assertEquals(2, mRecorder.mIntents.size());
+        assertFalse(mRecorder.mIntents.get(0).getBooleanExtra(Intent.EXTRA_DONT_KILL_APP, true));
+        assertTrue(mRecorder.mIntents.get(1).getBooleanExtra(Intent.EXTRA_DONT_KILL_APP, false));
+    }
+
+    @Test
+    public void testMergedChangeIsRegisteredOnlyIfEveryRequestWas() {
+        sendChanged(PACKAGE_A, USER_OWNER, true, Intent.FLAG_RECEIVER_REGISTERED_ONLY, "A1");
+        sendChanged(PACKAGE_A, USER_OWNER, true, 0, "A2");
+        sendChanged(PACKAGE_B, USER_OWNER, true, Intent.FLAG_RECEIVER_REGISTERED_ONLY, "B1");
+        sendChanged(PACKAGE_B, USER_OWNER, true, Intent.FLAG_RECEIVER_REGISTERED_ONLY, "B2");
+        flush();
+
+        assertEquals(0, mRecorder.mIntents.get(0).getFlags()
+                & Intent.FLAG_RECEIVER_REGISTERED_ONLY);
+        assertEquals(Intent.FLAG_RECEIVER_REGISTERED_ONLY, mRecorder.mIntents.get(1).getFlags()
+                & Intent.FLAG_RECEIVER_REGISTERED_ONLY);
+    }
+
+    @Test
+    public void testCallerExtrasAreNotModified() {
+        final Bundle extras = changedExtras(true, "A1");
+        mDispatcher.enqueue(Intent.ACTION_PACKAGE_CHANGED, PACKAGE_A, extras, 0, null, null,
+                new int[] { USER_OWNER });
+        sendChanged(PACKAGE_A, USER_OWNER, false, "A2");
+        flush();
+
+        assertArrayEquals(new String[] { "A1" },
+                extras.getStringArray(Intent.EXTRA_CHANGED_COMPONENT_NAME_LIST));
+        assertTrue(extras.getBoolean(Intent.EXTRA_DONT_KILL_APP));
+    }
+
+    @Test
+    public void testOtherBroadcastsAreSentRightAwayInOrder() {
+        send(Intent.ACTION_PACKAGE_REMOVED, PACKAGE_A, USER_OWNER);
+        send(Intent.ACTION_PACKAGE_ADDED, PACKAGE_B, USER_OWNER);
+        send(Intent.ACTION_PACKAGE_REPLACED, PACKAGE_B, USER_OWNER);
+        send(Intent.ACTION_PACKAGE_ADDED, PACKAGE_A, USER_OTHER);
+        mLooper.dispatchAll();
+
+        assertSent(0, Intent.ACTION_PACKAGE_REMOVED, PACKAGE_A, USER_OWNER);
+        assertSent(1, Intent.ACTION_PACKAGE_ADDED, PACKAGE_B, USER_OWNER);
+        assertSent(2, Intent.ACTION_PACKAGE_REPLACED, PACKAGE_B, USER_OWNER);
+        assertSent(3, Intent.ACTION_PACKAGE_ADDED, PACKAGE_A, USER_OTHER);
+        assertEquals(4, mRecorder.mIntents.size());
+    }
+
+    @Test
+    public void testQueuedChangeIsSentBeforeLaterBroadcastForPackage() {
+        sendChanged(PACKAGE_A, USER_OWNER, true, "A1");
+        sendChanged(PACKAGE_B, USER_OWNER, true, "B1");
+        send(Intent.ACTION_PACKAGE_REMOVED, PACKAGE_A, USER_OWNER);
+        mLooper.dispatchAll();
+
+        // Only the change of the removed package goes ahead of the batch
+        assertEquals(2, mRecorder.mIntents.size());
+        assertChanged(0, PACKAGE_A, USER_OWNER, "A1");
+        assertSent(1, Intent.ACTION_PACKAGE_REMOVED, PACKAGE_A, USER_OWNER);
+
+        // A later change of the package is no longer merged into the one that was sent
+        sendChanged(PACKAGE_A, USER_OWNER, true, "A2");
+        flush();
+        assertEquals(4, mRecorder.mIntents.size());
+        assertChanged(2, PACKAGE_B, USER_OWNER, "B1");
+        assertChanged(3, PACKAGE_A, USER_OWNER, "A2");
+    }
+
+    @Test
+    public void testBroadcastWithoutUsersGoesToRunningUsers() {
+        mDispatcher.enqueue(Intent.ACTION_PACKAGE_ADDED, PACKAGE_A, null, 0, null, null, null);
+        mDispatcher.enqueue(Intent.ACTION_PACKAGE_ADDED, PACKAGE_B, null, 0, null, null, null);
+        mLooper.dispatchAll();
+
+        assertEquals(4, mRecorder.mIntents.size());
+        assertSent(0, Intent.ACTION_PACKAGE_ADDED, PACKAGE_A, USER_OWNER);
+        assertSent(1, Intent.ACTION_PACKAGE_ADDED, PACKAGE_A, USER_OTHER);
+        assertSent(2, Intent.ACTION_PACKAGE_ADDED, PACKAGE_B, USER_OWNER);
+        assertSent(3, Intent.ACTION_PACKAGE_ADDED, PACKAGE_B, USER_OTHER);
+    }
+
+    @Test
+    public void testUidIsTranslatedPerUser() {
+        final Bundle extras = new Bundle();
+        extras.putInt(Intent.EXTRA_UID, 10042);
+        mDispatcher.enqueue(Intent.ACTION_PACKAGE_ADDED, PACKAGE_A, extras, 0, null, null,
+                RUNNING_USER_IDS);
+        mLooper.dispatchAll();
+
+        assertEquals(10042, mRecorder.mIntents.get(0).getIntExtra(Intent.EXTRA_UID, -1));
+        assertEquals(1010042, mRecorder.mIntents.get(1).getIntExtra(Intent.EXTRA_UID, -1));
+    }
+
+    private void flush() {
+        mLooper.moveTimeForward(PackageBroadcastDispatcher.BATCH_DELAY_MS);
+        mLooper.dispatchAll();
+    }
+
+    private void send(String action, String pkg, int userId) {
+        mDispatcher.enqueue(action, pkg, null, 0, null, null, new int[] { userId });
+    }
+
+    private void sendChanged(String pkg, int userId, boolean dontKill, String... components) {
+        sendChanged(pkg, userId, dontKill, 0, components);
+    }
+
+    private void sendChanged(String pkg, int userId, boolean dontKill, int flags,
+            String... components) {
+        mDispatcher.enqueue(Intent.ACTION_PACKAGE_CHANGED, pkg,
+                changedExtras(dontKill, components), flags, null, null, new int[] { userId });
+    }
+
+    /** As {@code PackageManagerService#sendPackageChangedBroadcast}. */
+    private static Bundle changedExtras(boolean dontKill, String... components) {
+        final Bundle extras = new Bundle(4);
+        extras.putString(Intent.EXTRA_CHANGED_COMPONENT_NAME, components[0]);
+        extras.putStringArray(Intent.EXTRA_CHANGED_COMPONENT_NAME_LIST, components);
+        extras.putBoolean(Intent.EXTRA_DONT_KILL_APP, dontKill);
+        return extras;
+    }
+
+    private void assertSent(int index, String action, String pkg, int userId) {
+        final Intent intent = mRecorder.mIntents.get(index);
+        assertEquals(action, intent.getAction());
+        assertEquals(pkg, intent.getData().getSchemeSpecificPart());
+        assertEquals(userId, (int) mRecorder.mUserIds.get(index));
+        assertEquals(userId, intent.getIntExtra(Intent.EXTRA_USER_HANDLE, -1));
+    }
+
+    private void assertChanged(int index, String pkg, int userId, String... components) {
+        assertSent(index, Intent.ACTION_PACKAGE_CHANGED, pkg, userId);
+        assertArrayEquals(components, mRecorder.mIntents.get(index)
+                .getStringArrayExtra(Intent.EXTRA_CHANGED_COMPONENT_NAME_LIST));
+    }
+
+    /** Stands in for the activity manager, recording the broadcasts it is asked to send. */
+    private static class BroadcastRecorder implements InvocationHandler {
+        final ArrayList<Intent> mIntents = new ArrayList<>();
+        final ArrayList<Integer> mUserIds = new ArrayList<>();
+
+        IActivityManager asActivityManager() {
+            return (IActivityManager) Proxy.newProxyInstance(
+                    IActivityManager.class.getClassLoader(),
+                    new Class<?>[] { IActivityManager.class }, this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            switch (method.getName()) {
+                case "broadcastIntent":
+                    mIntents.add((Intent) args[1]);
+                    mUserIds.add((Integer) args[args.length - 1]);
+                    return ActivityManager.BROADCAST_SUCCESS;
+                case "getRunningUserIds":
+                    return RUNNING_USER_IDS.clone();
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        }
+    }
+}
@@ -234,6 +234,7 @@ import android.util.TimingsTraceLog;
 import android.util.DisplayMetrics;
 import android.util.EventLog;
 import android.util.ExceptionUtils;
+import android.util.IntArray;
 import android.util.Log;
 import android.util.LogPrinter;
 import android.util.MathUtils;
@@ -257,6 +258,7 @@ import com.android.internal.content.NativeLibraryHelper;
 import com.android.internal.content.PackageHelper;
 import com.android.internal.logging.MetricsLogger;
 import com.android.internal.logging.nano.MetricsProto.MetricsEvent;
+import com.android.internal.os.BackgroundThread;
 import com.android.internal.os.IParcelFileDescriptorFactory;
 import com.android.internal.os.RoSystemProperties;
 import com.android.internal.os.SomeArgs;
@@ -354,6 +356,7 @@ import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.zip.GZIPInputStream;
 
 /**
@@ -407,6 +410,7 @@ public class PackageManagerService extends IPackageManager.Stub
     private static final boolean DEBUG_VERIFY = false;
     private static final boolean DEBUG_FILTERS = false;
     private static final boolean DEBUG_PERMISSIONS = false;
+    private static final boolean DEBUG_PERMISSION_SNAPSHOT = false;
     private static final boolean DEBUG_SHARED_LIBRARIES = false;
     private static final boolean DEBUG_COMPRESSION = Build.IS_DEBUGGABLE;
 
@@ -437,6 +441,9 @@ public class PackageManagerService extends IPackageManager.Stub
     // Cap the size of permission trees that 3rd party apps can define
     private static final int MAX_PERMISSION_TREE_FOOTPRINT = 32768;     // characters of text
 
+    // Packages per page when the system process lists every installed package
+    private static final int INSTALLED_PACKAGES_PAGE_SIZE = 100;
+
     // Suffix used during package installation when copying/moving
     // package apks to install directory.
     private static final String INSTALL_PACKAGE_SUFFIX = "-";
@@ -631,9 +638,30 @@ public class PackageManagerService extends IPackageManager.Stub
      */
     private static final boolean DEFAULT_PACKAGE_PARSER_CACHE_ENABLED = true;
 
+    /**
+     * Whether system partitions are parsed through one shared {@link PipelinedPackageParser}
+     * at boot, so parsing of a partition overlaps with committing the previous one. Set
+     * pm.boot.pipelined_scan=false to compare against the serial scan.
+     */
+    private static final boolean DEFAULT_PIPELINED_BOOT_SCAN = true;
+
+    /**
+     * How many staged installs {@link InstallPreParser} parses at once while earlier installs
+     * are still being committed. Overridden by pm.install.parse_threads; 0 turns it off.
+     */
+    private static final int DEFAULT_INSTALL_PARSE_THREADS = 2;
+
     final ServiceThread mHandlerThread;
 
     final PackageHandler mHandler;
+    private final PackageBroadcastDispatcher mPackageBroadcastDispatcher;
+    /** Null when parsing ahead of installs is disabled. */
+    private final InstallPreParser mInstallPreParser;
+
+    @GuardedBy("mPackages")
+    final PackageStateJournal mPackageStateJournal = new PackageStateJournal(
+            new File(Environment.getDataSystemDirectory(), "package-state.journal"),
+            BackgroundThread.getHandler());
 
     private final ProcessLoggingHandler mProcessLoggingHandler;
 
@@ -763,6 +791,17 @@ public class PackageManagerService extends IPackageManager.Stub
     // System configuration read by SystemConfig.
     final int[] mGlobalGids;
     final SparseArray<ArraySet<String>> mSystemPermissions;
+
+    /**
+     * Lock-free view of granted permissions for the hot permission checks, or null while a
+     * change has not been republished yet. See {@link #invalidatePermissionSnapshot}.
+     */
+    private volatile PermissionSnapshot mPermissionSnapshot;
+    /** The last snapshot built, whose permission indices the next one keeps. */
+    @GuardedBy("mPackages")
+    private PermissionSnapshot mLastPermissionSnapshot;
+    private final AtomicLong mPermissionSnapshotGeneration = new AtomicLong();
+    private final AtomicBoolean mPermissionSnapshotPublishPending = new AtomicBoolean();
     @GuardedBy("mAvailableFeatures")
     final ArrayMap<String, FeatureInfo> mAvailableFeatures;
 
@@ -926,6 +965,10 @@ public class PackageManagerService extends IPackageManager.Stub
     final ActivityIntentResolver mActivities =
             new ActivityIntentResolver();
 
+    // Recent implicit results from mActivities; see invalidateResolveCacheLocked().
+    @GuardedBy("mPackages")
+    final IntentResolutionCache mActivityResolveCache = new IntentResolutionCache();
+
     // All available receivers, for your resolving pleasure.
     final ActivityIntentResolver mReceivers =
             new ActivityIntentResolver();
@@ -1024,6 +1067,12 @@ public class PackageManagerService extends IPackageManager.Stub
 
     private File mCacheDir;
 
+    /**
+     * The boot scan of the system partitions after an upgrade, which ran without the package
+     * parser cache. Its packages are cached in the background once the system is ready.
+     */
+    private PipelinedPackageParser mPackageParserCacheWarmUp;
+
     private ArraySet<String> mPrivappPermissionsViolations;
 
     private Future<?> mPrepareAppDataFuture;
@@ -1333,8 +1382,11 @@ public class PackageManagerService extends IPackageManager.Stub
     static final int INTENT_FILTER_VERIFIED = 18;
     static final int WRITE_PACKAGE_LIST = 19;
     static final int INSTANT_APP_RESOLUTION_PHASE_TWO = 20;
+    static final int WRITE_JOURNALED_PACKAGE_RESTRICTIONS = 21;
 
     static final int WRITE_SETTINGS_DELAY = 10*1000;  // 10 seconds
+    // Enabled state changes are journaled, so their full write can wait longer
+    static final int JOURNALED_RESTRICTIONS_WRITE_DELAY = 60*1000;  // 60 seconds
 
     // Delay time in millisecs
     static final int BROADCAST_DELAY = 10 * 1000;
@@ -1473,6 +1525,9 @@ public class PackageManagerService extends IPackageManager.Stub
                     HandlerParams params = (HandlerParams) msg.obj;
                     int idx = mPendingInstalls.size();
                     if (DEBUG_INSTALL) Slog.i(TAG, "init_copy idx=" + idx + ": " + params);
+                    if (params instanceof InstallParams) {
+                        maybePreParseInstall((InstallParams) params);
+                    }
                     // If a bind was already initiated we dont really
                     // need to do anything. The pending install
                     // will be processed later on.
@@ -1762,17 +1817,20 @@ public class PackageManagerService extends IPackageManager.Stub
                     synchronized (mPackages) {
                         removeMessages(WRITE_SETTINGS);
                         removeMessages(WRITE_PACKAGE_RESTRICTIONS);
-                        mSettings.writeLPr();
+                        removeMessages(WRITE_JOURNALED_PACKAGE_RESTRICTIONS);
+                        writeSettingsLPr();
                         mDirtyUsers.clear();
                     }
                     Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
                 } break;
-                case WRITE_PACKAGE_RESTRICTIONS: {
+                case WRITE_PACKAGE_RESTRICTIONS:
+                case WRITE_JOURNALED_PACKAGE_RESTRICTIONS: {
                     Process.setThreadPriority(Process.THREAD_PRIORITY_DEFAULT);
                     synchronized (mPackages) {
                         removeMessages(WRITE_PACKAGE_RESTRICTIONS);
+                        removeMessages(WRITE_JOURNALED_PACKAGE_RESTRICTIONS);
                         for (int userId : mDirtyUsers) {
-                            mSettings.writePackageRestrictionsLPr(userId);
+                            writePackageRestrictionsLPr(userId);
                         }
                         mDirtyUsers.clear();
                     }
@@ -2226,7 +2284,7 @@ public class PackageManagerService extends IPackageManager.Stub
                 }
 
                 mSettings.onVolumeForgotten(fsUuid);
-                mSettings.writeLPr();
+                writeSettingsLPr();
             }
         }
     };
@@ -2310,6 +2368,36 @@ public class PackageManagerService extends IPackageManager.Stub
         }
     }
 
+    /**
+     * Drops the lock-free permission snapshot and schedules a new one. Must be called while
+     * holding {@link #mPackages} during a change to packages, users, instant app state or
+     * permission grants, or after such a change has completed; never before it.
+     */
+    void invalidatePermissionSnapshot() {
+        mPermissionSnapshotGeneration.incrementAndGet();
+        mPermissionSnapshot = null;
+        if (mSystemReady && mPermissionSnapshotPublishPending.compareAndSet(false, true)) {
+            // Off the package handler, which may be busy copying an install for seconds.
+            BackgroundThread.getHandler().post(this::publishPermissionSnapshot);
+        }
+    }
+
+    private void publishPermissionSnapshot() {
+        mPermissionSnapshotPublishPending.set(false);
+        synchronized (mPackages) {
+            final long generation = mPermissionSnapshotGeneration.get();
+            final PermissionSnapshot snapshot = PermissionSnapshot.buildLPr(generation,
+                    mLastPermissionSnapshot, mSettings, mPackages, sUserManager.getUserIds(),
+                    mSystemPermissions);
+            mLastPermissionSnapshot = snapshot;
+            // An invalidation made outside the lock while building has already queued
+            // another publish; do not expose a snapshot that may predate it.
+            if (mPermissionSnapshotGeneration.get() == generation) {
+                mPermissionSnapshot = snapshot;
+            }
+        }
+    }
+
     void scheduleWritePackageListLocked(int userId) {
         if (!mHandler.hasMessages(WRITE_PACKAGE_LIST)) {
             Message msg = mHandler.obtainMessage(WRITE_PACKAGE_LIST);
@@ -2323,7 +2411,64 @@ public class PackageManagerService extends IPackageManager.Stub
         scheduleWritePackageRestrictionsLocked(userId);
     }
 
+    /**
+     * Drops cached activity resolution results. Call with {@link #mPackages} held, in the
+     * same critical section as (or after) any change to the activity resolver or to per-user
+     * package state, never before it.
+     */
+    void invalidateResolveCacheLocked() {
+        mActivityResolveCache.invalidate();
+    }
+
+    /** Writes packages.xml and the restrictions of every user, superseding the journal. */
+    private void writeSettingsLPr() {
+        mSettings.writeLPr();
+        mPackageStateJournal.onUsersWrittenLPw(null /* all users */);
+    }
+
+    private void writePackageRestrictionsLPr(int userId) {
+        mSettings.writePackageRestrictionsLPr(userId);
+        mPackageStateJournal.onUsersWrittenLPw(new int[] { userId });
+    }
+
+    private void writeAllUsersPackageRestrictionsLPr() {
+        mSettings.writeAllUsersPackageRestrictionsLPr();
+        mPackageStateJournal.onUsersWrittenLPw(null /* all users */);
+    }
+
+    /**
+     * Records the current enabled state of {@code ps}, or of its component {@code className},
+     * in the journal and defers the full restrictions write. Falls back to
+     * {@link #scheduleWritePackageRestrictionsLocked} if the journal cannot be written.
+     */
+    private void scheduleWriteEnabledStateLocked(PackageSetting ps, String className,
+            int userId) {
+        final boolean journaled = className == null
+                ? mPackageStateJournal.appendLPw(userId, ps.name, null, ps.getEnabled(userId),
+                        ps.getLastDisabledAppCaller(userId))
+                : mPackageStateJournal.appendLPw(userId, ps.name, className,
+                        ps.getCurrentEnabledStateLPr(className, userId), null);
+        if (!journaled || !sUserManager.exists(userId)) {
+            scheduleWritePackageRestrictionsLocked(userId);
+            return;
+        }
+        invalidateResolveCacheLocked();
+        mDirtyUsers.add(userId);
+        // A separate message, so this longer delay never holds back the 10 second write that
+        // other, unjournaled restriction changes schedule.
+        if (mPackageStateJournal.needsCompaction()) {
+            mHandler.removeMessages(WRITE_PACKAGE_RESTRICTIONS);
+            mHandler.sendEmptyMessage(WRITE_PACKAGE_RESTRICTIONS);
+        } else if (!mHandler.hasMessages(WRITE_JOURNALED_PACKAGE_RESTRICTIONS)) {
+            mHandler.sendEmptyMessageDelayed(WRITE_JOURNALED_PACKAGE_RESTRICTIONS,
+                    JOURNALED_RESTRICTIONS_WRITE_DELAY);
+        }
+    }
+
     void scheduleWritePackageRestrictionsLocked(int userId) {
+        // Every per-user state change (enabled, hidden, suspended, stopped...) is persisted
+        // through here.
+        invalidateResolveCacheLocked();
         final int[] userIds = (userId == UserHandle.USER_ALL)
                 ? sUserManager.getUserIds() : new int[]{userId};
         for (int nextUserId : userIds) {
@@ -2513,6 +2658,13 @@ public class PackageManagerService extends IPackageManager.Stub
                     Process.THREAD_PRIORITY_BACKGROUND, true /*allowIo*/);
             mHandlerThread.start();
             mHandler = new PackageHandler(mHandlerThread.getLooper());
+            mPackageBroadcastDispatcher = new PackageBroadcastDispatcher(mHandler);
+            final int installParseThreads = SystemProperties.getInt(
+                    "pm.install.parse_threads", DEFAULT_INSTALL_PARSE_THREADS);
+            mInstallPreParser = installParseThreads > 0
+                    ? new InstallPreParser(mSeparateProcesses, mMetrics, mPackageParserCallback,
+                            installParseThreads)
+                    : null;
             mProcessLoggingHandler = new ProcessLoggingHandler();
             Watchdog.getInstance().addThread(mHandler, WATCHDOG_TIMEOUT);
 
@@ -2556,6 +2708,9 @@ public class PackageManagerService extends IPackageManager.Stub
 
             Trace.traceBegin(TRACE_TAG_PACKAGE_MANAGER, "read user settings");
             mFirstBoot = !mSettings.readLPw(sUserManager.getUsers(false));
+            // Enabled state changes made after the last restrictions write; the settings
+            // write at the end of boot folds them back into the XML.
+            mPackageStateJournal.replayLPw(mSettings, sUserManager.getUserIds());
             Trace.traceEnd(TRACE_TAG_PACKAGE_MANAGER);
 
             // Clean up orphaned packages for which the code path doesn't exist
@@ -2658,44 +2813,76 @@ public class PackageManagerService extends IPackageManager.Stub
 
             mParallelPackageParserCallback.findStaticOverlayPackages();
 
+            // Parse every remaining system partition on one shared pool. Each directory is
+            // still committed in the original order below; only the parsing runs ahead.
+            // After an upgrade the cache is empty; it is written after boot instead of while
+            // the system partitions are parsed, see warmPackageParserCache().
+            final TimingsTraceLog scanTraceLog = new TimingsTraceLog("PackageManagerTiming",
+                    Trace.TRACE_TAG_PACKAGE_MANAGER);
+            final boolean deferCacheWrites = mIsUpgrade && mCacheDir != null;
+            final PipelinedPackageParser bootParser = SystemProperties.getBoolean(
+                    "pm.boot.pipelined_scan", DEFAULT_PIPELINED_BOOT_SCAN)
+                    ? new PipelinedPackageParser(mSeparateProcesses, mOnlyCore, mMetrics,
+                            deferCacheWrites ? null : mCacheDir, mParallelPackageParserCallback)
+                    : null;
+            scanTraceLog.traceBegin(bootParser != null
+                    ? "scanSystemPartitionsPipelined" : "scanSystemPartitions");
+
+            final int frameworkParseFlags = mDefParseFlags
+                    | PackageParser.PARSE_IS_SYSTEM
+                    | PackageParser.PARSE_IS_SYSTEM_DIR
+                    | PackageParser.PARSE_IS_PRIVILEGED;
+            final File privilegedAppDir = new File(Environment.getRootDirectory(), "priv-app");
+            final int privilegedParseFlags = mDefParseFlags
+                    | PackageParser.PARSE_IS_SYSTEM
+                    | PackageParser.PARSE_IS_SYSTEM_DIR
+                    | PackageParser.PARSE_IS_PRIVILEGED;
+            final File systemAppDir = new File(Environment.getRootDirectory(), "app");
+            final int systemParseFlags = mDefParseFlags
+                    | PackageParser.PARSE_IS_SYSTEM
+                    | PackageParser.PARSE_IS_SYSTEM_DIR;
+            File vendorAppDir = new File("/vendor/app");
+            try {
+                vendorAppDir = vendorAppDir.getCanonicalFile();
+            } catch (IOException e) {
+                // failed to look up canonical path, continue with original one
+            }
+            final File oemAppDir = new File(Environment.getOemDirectory(), "app");
+
+            final PipelinedPackageParser.Batch frameworkBatch =
+                    submitBootScan(bootParser, frameworkDir, frameworkParseFlags);
+            final PipelinedPackageParser.Batch privilegedBatch =
+                    submitBootScan(bootParser, privilegedAppDir, privilegedParseFlags);
+            final PipelinedPackageParser.Batch systemBatch =
+                    submitBootScan(bootParser, systemAppDir, systemParseFlags);
+            final PipelinedPackageParser.Batch vendorBatch =
+                    submitBootScan(bootParser, vendorAppDir, systemParseFlags);
+            final PipelinedPackageParser.Batch oemBatch =
+                    submitBootScan(bootParser, oemAppDir, systemParseFlags);
+
             /// M: Support more dir parsing
             sPmsExt.scanDirLI(PmsExt.INDEX_CIP_FW, mDefParseFlags, scanFlags, 0);
             // Find base frameworks (resource packages without code).
-            scanDirTracedLI(frameworkDir, mDefParseFlags
-                    | PackageParser.PARSE_IS_SYSTEM
-                    | PackageParser.PARSE_IS_SYSTEM_DIR
-                    | PackageParser.PARSE_IS_PRIVILEGED,
-                    scanFlags | SCAN_NO_DEX, 0);
+            scanBootDirTracedLI(scanTraceLog, frameworkBatch, frameworkDir, frameworkParseFlags,
+                    scanFlags | SCAN_NO_DEX);
 
             /// M: Support more dir parsing
             sPmsExt.scanDirLI(PmsExt.INDEX_VENDOR_FW, mDefParseFlags, scanFlags, 0);
 
             // Collected privileged system packages.
-            final File privilegedAppDir = new File(Environment.getRootDirectory(), "priv-app");
-            scanDirTracedLI(privilegedAppDir, mDefParseFlags
-                    | PackageParser.PARSE_IS_SYSTEM
-                    | PackageParser.PARSE_IS_SYSTEM_DIR
-                    | PackageParser.PARSE_IS_PRIVILEGED, scanFlags, 0);
+            scanBootDirTracedLI(scanTraceLog, privilegedBatch, privilegedAppDir,
+                    privilegedParseFlags, scanFlags);
 
             // Collect ordinary system packages.
-            final File systemAppDir = new File(Environment.getRootDirectory(), "app");
-            scanDirTracedLI(systemAppDir, mDefParseFlags
-                    | PackageParser.PARSE_IS_SYSTEM
-                    | PackageParser.PARSE_IS_SYSTEM_DIR, scanFlags, 0);
+            scanBootDirTracedLI(scanTraceLog, systemBatch, systemAppDir, systemParseFlags,
+                    scanFlags);
 
             /// M: Support more dir parsing
             sPmsExt.scanDirLI(PmsExt.INDEX_VENDOR_PRIV, mDefParseFlags, scanFlags, 0);
 
             // Collect all vendor packages.
-            File vendorAppDir = new File("/vendor/app");
-            try {
-                vendorAppDir = vendorAppDir.getCanonicalFile();
-            } catch (IOException e) {
-                // failed to look up canonical path, continue with original one
-            }
-            scanDirTracedLI(vendorAppDir, mDefParseFlags
-                    | PackageParser.PARSE_IS_SYSTEM
-                    | PackageParser.PARSE_IS_SYSTEM_DIR, scanFlags, 0);
+            scanBootDirTracedLI(scanTraceLog, vendorBatch, vendorAppDir, systemParseFlags,
+                    scanFlags);
 
             /// M: Support more dir parsing @{
             sPmsExt.scanDirLI(PmsExt.INDEX_OP_APP, mDefParseFlags, scanFlags, 0);
@@ -2704,10 +2891,15 @@ public class PackageManagerService extends IPackageManager.Stub
             sPmsExt.carrierExpressInstall(mDefParseFlags, scanFlags, 0);
             /// M: @}
             // Collect all OEM packages.
-            final File oemAppDir = new File(Environment.getOemDirectory(), "app");
-            scanDirTracedLI(oemAppDir, mDefParseFlags
-                    | PackageParser.PARSE_IS_SYSTEM
-                    | PackageParser.PARSE_IS_SYSTEM_DIR, scanFlags, 0);
+            scanBootDirTracedLI(scanTraceLog, oemBatch, oemAppDir, systemParseFlags, scanFlags);
+
+            if (bootParser != null) {
+                bootParser.close();
+                if (deferCacheWrites) {
+                    mPackageParserCacheWarmUp = bootParser;
+                }
+            }
+            scanTraceLog.traceEnd();
 
             // Prune any system packages that no longer exist.
             final List<String> possiblyDeletedUpdatedSystemApps = new ArrayList<>();
@@ -3084,7 +3276,7 @@ public class PackageManagerService extends IPackageManager.Stub
 
             // can downgrade to reader
             Trace.traceBegin(TRACE_TAG_PACKAGE_MANAGER, "write settings");
-            mSettings.writeLPr();
+            writeSettingsLPr();
             Trace.traceEnd(TRACE_TAG_PACKAGE_MANAGER);
             EventLog.writeEvent(EventLogTags.BOOT_PROGRESS_PMS_READY,
                     SystemClock.uptimeMillis());
@@ -3146,7 +3338,15 @@ public class PackageManagerService extends IPackageManager.Stub
             final Map<Integer, List<PackageInfo>> userPackages = new HashMap<>();
             final int[] currentUserIds = UserManagerService.getInstance().getUserIds();
             for (int userId : currentUserIds) {
-                userPackages.put(userId, getInstalledPackages(/*flags*/ 0, userId).getList());
+                final ArrayList<PackageInfo> packages = new ArrayList<>();
+                String token = null;
+                do {
+                    final InstalledPackagesPage page = getInstalledPackagesPage(/*flags*/ 0,
+                            userId, token, INSTALLED_PACKAGES_PAGE_SIZE);
+                    packages.addAll(page.packages);
+                    token = page.nextToken;
+                } while (token != null);
+                userPackages.put(userId, packages);
             }
             mDexManager.load(userPackages);
             if (mIsUpgrade) {
@@ -3248,6 +3448,7 @@ public class PackageManagerService extends IPackageManager.Stub
                     UserHandle.USER_SYSTEM, "android");
             logCriticalInfo(Log.ERROR, "Stub disabled; pkg: " + pkgName);
         }
+        invalidateResolveCacheLocked();
     }
 
     private int decompressFile(File srcFile, File dstFile) throws ErrnoException {
@@ -3415,11 +3616,24 @@ public class PackageManagerService extends IPackageManager.Stub
             return null;
         }
 
-        // If this is a system upgrade scenario, delete the contents of the package cache dir.
+        // If this is a system upgrade scenario, drop the contents of the package cache dir.
         // This also serves to "GC" unused entries when the package cache version changes (which
-        // can only happen during upgrades).
+        // can only happen during upgrades). The old entries are moved aside and deleted off
+        // the boot path. The system partitions are cached again after boot by
+        // warmPackageParserCache(), other packages when they are next parsed.
+        final File staleCacheDir = new File(Environment.getDataSystemDirectory(),
+                "package_cache.stale");
         if (isUpgrade) {
-            FileUtils.deleteContents(cacheBaseDir);
+            if (!staleCacheDir.exists() && cacheBaseDir.renameTo(staleCacheDir)) {
+                FileUtils.createDir(Environment.getDataSystemDirectory(), "package_cache");
+            } else {
+                FileUtils.deleteContents(cacheBaseDir);
+            }
+        }
+        if (staleCacheDir.exists()) {
+            SystemServerInitThreadPool.get().submit(() -> {
+                FileUtils.deleteContentsAndDir(staleCacheDir);
+            }, "deleteStalePackageCache");
         }
 
 
@@ -4680,7 +4894,10 @@ public class PackageManagerService extends IPackageManager.Stub
                 return;
             }
 
-            // 8. Consider cached app data (below quotas)
+            // 8. Consider cached app data (below quotas), stalest and least visible apps first
+            if (internalVolume && freeCachesByPlan(volumeUuid, file, bytes)) {
+                return;
+            }
             try {
                 mInstaller.freeCache(volumeUuid, bytes, reservedBytes,
                         Installer.FLAG_FREE_CACHE_V2 | Installer.FLAG_FREE_CACHE_V2_DEFY_QUOTA);
@@ -4709,6 +4926,85 @@ public class PackageManagerService extends IPackageManager.Stub
         throw new IOException("Failed to free " + bytes + " on storage device at " + file);
     }
 
+    /**
+     * Clears app caches in the order chosen by {@link CacheEvictionPlanner} until
+     * {@code bytes} are usable on {@code file}.
+     *
+     * @return whether enough space was freed.
+     */
+    private boolean freeCachesByPlan(String volumeUuid, File file, long bytes) {
+        final long neededBytes = bytes - file.getUsableSpace();
+        if (neededBytes <= 0) {
+            return true;
+        }
+        final long now = System.currentTimeMillis();
+        final ArrayList<CacheEvictionPlanner.Candidate> unsized = new ArrayList<>();
+        synchronized (mPackages) {
+            final int[] allUserIds = sUserManager.getUserIds();
+            for (PackageParser.Package pkg : mPackages.values()) {
+                final PackageSetting ps = (PackageSetting) pkg.mExtras;
+                if (ps == null || !Objects.equals(ps.volumeUuid, volumeUuid)) {
+                    continue;
+                }
+                final boolean visible = isSystemApp(pkg)
+                        || (pkg.applicationInfo.flags & ApplicationInfo.FLAG_PERSISTENT) != 0;
+                for (int userId : allUserIds) {
+                    if (!ps.getInstalled(userId)) {
+                        continue;
+                    }
+                    unsized.add(new CacheEvictionPlanner.Candidate(pkg.packageName, userId,
+                            0 /* cacheBytes */, pkg.getLatestForegroundPackageUseTimeInMills(),
+                            visible ? CacheEvictionPlanner.PRIORITY_VISIBLE
+                                    : CacheEvictionPlanner.PRIORITY_NORMAL));
+                }
+            }
+        }
+
+        // Each size is an installd walk of the app's data; only size the likeliest ones.
+        final List<CacheEvictionPlanner.Candidate> selected = CacheEvictionPlanner
+                .selectForSizing(unsized, CacheEvictionPlanner.MAX_SIZED_CANDIDATES, now);
+        final ArrayList<CacheEvictionPlanner.Candidate> candidates =
+                new ArrayList<>(selected.size());
+        for (int i = 0; i < selected.size(); i++) {
+            final CacheEvictionPlanner.Candidate candidate = selected.get(i);
+            final PackageStats stats = new PackageStats(candidate.packageName, candidate.userId);
+            synchronized (mInstallLock) {
+                if (!getPackageSizeInfoLI(candidate.packageName, candidate.userId, stats)) {
+                    continue;
+                }
+            }
+            candidates.add(new CacheEvictionPlanner.Candidate(candidate.packageName,
+                    candidate.userId, stats.cacheSize, candidate.lastUsedMillis,
+                    candidate.priority));
+        }
+
+        final List<CacheEvictionPlanner.Candidate> plan =
+                CacheEvictionPlanner.plan(candidates, neededBytes, now);
+        Slog.i(TAG, "Clearing caches of up to " + plan.size() + " of " + candidates.size()
+                + " sized apps (" + unsized.size() + " installed) to free " + neededBytes
+                + " bytes");
+        final int flags = StorageManager.FLAG_STORAGE_DE | StorageManager.FLAG_STORAGE_CE
+                | Installer.FLAG_CLEAR_CACHE_ONLY;
+        for (int i = 0; i < plan.size(); i++) {
+            final CacheEvictionPlanner.Candidate candidate = plan.get(i);
+            final PackageParser.Package pkg;
+            synchronized (mPackages) {
+                pkg = mPackages.get(candidate.packageName);
+            }
+            if (pkg == null) {
+                continue;
+            }
+            if (DEBUG_INSTALL) Slog.d(TAG, "Clearing cache of " + candidate);
+            synchronized (mInstallLock) {
+                clearAppDataLIF(pkg, candidate.userId, flags);
+            }
+            if (file.getUsableSpace() >= bytes) {
+                return true;
+            }
+        }
+        return file.getUsableSpace() >= bytes;
+    }
+
     private boolean pruneUnusedStaticSharedLibraries(long neededSpace, long maxCachePeriod)
             throws IOException {
         final StorageManager storage = mContext.getSystemService(StorageManager.class);
@@ -5346,42 +5642,44 @@ public class PackageManagerService extends IPackageManager.Stub
         }
         final int callingUid = Binder.getCallingUid();
 
-        synchronized (mPackages) {
-            final PackageParser.Package p = mPackages.get(pkgName);
-            if (p != null && p.mExtras != null) {
-                final PackageSetting ps = (PackageSetting) p.mExtras;
-                if (filterAppAccessLPr(ps, callingUid, userId)) {
-                    return PackageManager.PERMISSION_DENIED;
-                }
-                final boolean instantApp = ps.getInstantApp(userId);
-                final PermissionsState permissionsState = ps.getPermissionsState();
-                if (permissionsState.hasPermission(permName, userId)) {
-                    if (instantApp) {
-                        BasePermission bp = mSettings.mPermissions.get(permName);
-                        if (bp != null && bp.isInstant()) {
-                            return PackageManager.PERMISSION_GRANTED;
-                        }
-                    } else {
-                        return PackageManager.PERMISSION_GRANTED;
+        final PermissionSnapshot snapshot = mPermissionSnapshot;
+        if (snapshot != null) {
+            final int result = snapshot.checkPermission(permName, pkgName, userId, callingUid);
+            if (result != PermissionSnapshot.RESULT_UNKNOWN) {
+                if (DEBUG_PERMISSION_SNAPSHOT) {
+                    synchronized (mPackages) {
+                        verifyPermissionSnapshotLPr(snapshot, result,
+                                checkPermissionLPr(permName, pkgName, userId, callingUid),
+                                permName + " for " + pkgName + " u" + userId);
                     }
                 }
-                // Special case: ACCESS_FINE_LOCATION permission includes ACCESS_COARSE_LOCATION
-                if (Manifest.permission.ACCESS_COARSE_LOCATION.equals(permName) && permissionsState
-                        .hasPermission(Manifest.permission.ACCESS_FINE_LOCATION, userId)) {
-                    return PackageManager.PERMISSION_GRANTED;
-                }
+                return result;
             }
         }
 
+        synchronized (mPackages) {
+            return checkPermissionLPr(permName, pkgName, userId, callingUid);
+        }
+    }
+
+    private int checkPermissionLPr(String permName, String pkgName, int userId,
+            int callingUid) {
+        final PackageParser.Package p = mPackages.get(pkgName);
+        if (p != null && p.mExtras != null) {
+            final PackageSetting ps = (PackageSetting) p.mExtras;
+            if (filterAppAccessLPr(ps, callingUid, userId)) {
+                return PackageManager.PERMISSION_DENIED;
+            }
+            return checkPermissionsStateLPr(ps.getPermissionsState(), permName, userId,
+                    ps.getInstantApp(userId), mSettings.mPermissions);
+        }
+
         return PackageManager.PERMISSION_DENIED;
     }
 
     @Override
     public int checkUidPermission(String permName, int uid) {
         final int callingUid = Binder.getCallingUid();
-        final int callingUserId = UserHandle.getUserId(callingUid);
-        final boolean isCallerInstantApp = getInstantAppPackageName(callingUid) != null;
-        final boolean isUidInstantApp = getInstantAppPackageName(uid) != null;
         final int userId = UserHandle.getUserId(uid);
         if (!sUserManager.exists(userId)) {
             return PackageManager.PERMISSION_DENIED;
@@ -5389,46 +5687,60 @@ public class PackageManagerService extends IPackageManager.Stub
         /// M: CTA requirement - permission control  @{
         sCtaManager.reportPermRequestUsage(permName, uid);
         //@}
-        synchronized (mPackages) {
-            Object obj = mSettings.getUserIdLPr(UserHandle.getAppId(uid));
-            if (obj != null) {
-                if (obj instanceof SharedUserSetting) {
-                    if (isCallerInstantApp) {
-                        return PackageManager.PERMISSION_DENIED;
-                    }
-                } else if (obj instanceof PackageSetting) {
-                    final PackageSetting ps = (PackageSetting) obj;
-                    if (filterAppAccessLPr(ps, callingUid, callingUserId)) {
-                        return PackageManager.PERMISSION_DENIED;
+        final PermissionSnapshot snapshot = mPermissionSnapshot;
+        if (snapshot != null) {
+            final int result = snapshot.checkUidPermission(permName, uid, callingUid);
+            if (result != PermissionSnapshot.RESULT_UNKNOWN) {
+                if (DEBUG_PERMISSION_SNAPSHOT) {
+                    final boolean isCallerInstantApp =
+                            getInstantAppPackageName(callingUid) != null;
+                    final boolean isUidInstantApp = getInstantAppPackageName(uid) != null;
+                    synchronized (mPackages) {
+                        verifyPermissionSnapshotLPr(snapshot, result,
+                                checkUidPermissionLPr(permName, uid, callingUid,
+                                        isCallerInstantApp, isUidInstantApp),
+                                permName + " for uid " + uid);
                     }
                 }
-                final SettingBase settingBase = (SettingBase) obj;
-                final PermissionsState permissionsState = settingBase.getPermissionsState();
-                if (permissionsState.hasPermission(permName, userId)) {
-                    if (isUidInstantApp) {
-                        BasePermission bp = mSettings.mPermissions.get(permName);
-                        if (bp != null && bp.isInstant()) {
-                            return PackageManager.PERMISSION_GRANTED;
-                        }
-                    } else {
-                        return PackageManager.PERMISSION_GRANTED;
-                    }
+                return result;
+            }
+        }
+        final boolean isCallerInstantApp = getInstantAppPackageName(callingUid) != null;
+        final boolean isUidInstantApp = getInstantAppPackageName(uid) != null;
+        synchronized (mPackages) {
+            return checkUidPermissionLPr(permName, uid, callingUid, isCallerInstantApp,
+                    isUidInstantApp);
+        }
+    }
+
+    private int checkUidPermissionLPr(String permName, int uid, int callingUid,
+            boolean isCallerInstantApp, boolean isUidInstantApp) {
+        final int callingUserId = UserHandle.getUserId(callingUid);
+        final int userId = UserHandle.getUserId(uid);
+        Object obj = mSettings.getUserIdLPr(UserHandle.getAppId(uid));
+        if (obj != null) {
+            if (obj instanceof SharedUserSetting) {
+                if (isCallerInstantApp) {
+                    return PackageManager.PERMISSION_DENIED;
+                }
+            } else if (obj instanceof PackageSetting) {
+                final PackageSetting ps = (PackageSetting) obj;
+                if (filterAppAccessLPr(ps, callingUid, callingUserId)) {
+                    return PackageManager.PERMISSION_DENIED;
                 }
-                // Special case: ACCESS_FINE_LOCATION permission includes ACCESS_COARSE_LOCATION
-                if (Manifest.permission.ACCESS_COARSE_LOCATION.equals(permName) && permissionsState
-                        .hasPermission(Manifest.permission.ACCESS_FINE_LOCATION, userId)) {
+            }
+            final SettingBase settingBase = (SettingBase) obj;
+            return checkPermissionsStateLPr(settingBase.getPermissionsState(), permName, userId,
+                    isUidInstantApp, mSettings.mPermissions);
+        } else {
+            ArraySet<String> perms = mSystemPermissions.get(uid);
+            if (perms != null) {
+                if (perms.contains(permName)) {
                     return PackageManager.PERMISSION_GRANTED;
                 }
-            } else {
-                ArraySet<String> perms = mSystemPermissions.get(uid);
-                if (perms != null) {
-                    if (perms.contains(permName)) {
-                        return PackageManager.PERMISSION_GRANTED;
-                    }
-                    if (Manifest.permission.ACCESS_COARSE_LOCATION.equals(permName) && perms
-                            .contains(Manifest.permission.ACCESS_FINE_LOCATION)) {
-                        return PackageManager.PERMISSION_GRANTED;
-                    }
+                if (Manifest.permission.ACCESS_COARSE_LOCATION.equals(permName) && perms
+                        .contains(Manifest.permission.ACCESS_FINE_LOCATION)) {
+                    return PackageManager.PERMISSION_GRANTED;
                 }
             }
         }
@@ -5436,6 +5748,43 @@ public class PackageManagerService extends IPackageManager.Stub
         return PackageManager.PERMISSION_DENIED;
     }
 
+    /**
+     * Check a permission in the permission state of a package or shared user, the part of
+     * {@link #checkPermission} and {@link #checkUidPermission} that {@link PermissionSnapshot}
+     * has to agree with.
+     */
+    static int checkPermissionsStateLPr(PermissionsState permissionsState, String permName,
+            int userId, boolean instantApp, ArrayMap<String, BasePermission> permissions) {
+        if (permissionsState.hasPermission(permName, userId)) {
+            if (instantApp) {
+                BasePermission bp = permissions.get(permName);
+                if (bp != null && bp.isInstant()) {
+                    return PackageManager.PERMISSION_GRANTED;
+                }
+            } else {
+                return PackageManager.PERMISSION_GRANTED;
+            }
+        }
+        // Special case: ACCESS_FINE_LOCATION permission includes ACCESS_COARSE_LOCATION
+        if (Manifest.permission.ACCESS_COARSE_LOCATION.equals(permName) && permissionsState
+                .hasPermission(Manifest.permission.ACCESS_FINE_LOCATION, userId)) {
+            return PackageManager.PERMISSION_GRANTED;
+        }
+        return PackageManager.PERMISSION_DENIED;
+    }
+
+    /**
+     * Reports a lock-free permission check whose answer differs from the locked path. Only
+     * a snapshot that is still current must agree; a stale one is about to be replaced.
+     */
+    private void verifyPermissionSnapshotLPr(PermissionSnapshot snapshot, int result,
+            int expected, String check) {
+        if (result != expected && snapshot.version == mPermissionSnapshotGeneration.get()) {
+            Slog.wtf(TAG, "Permission snapshot " + snapshot.version + " returned " + result
+                    + " instead of " + expected + " for " + check);
+        }
+    }
+
     @Override
     public boolean isPermissionRevokedByPolicy(String permission, String packageName, int userId) {
         if (UserHandle.getCallingUserId() != userId) {
@@ -5643,7 +5992,7 @@ public class PackageManagerService extends IPackageManager.Stub
         }
         if (changed) {
             if (!async) {
-                mSettings.writeLPr();
+                writeSettingsLPr();
             } else {
                 scheduleWriteSettingsLocked();
             }
@@ -5680,7 +6029,7 @@ public class PackageManagerService extends IPackageManager.Stub
                             + name);
                 }
                 mSettings.mPermissions.remove(name);
-                mSettings.writeLPr();
+                writeSettingsLPr();
             }
         }
     }
@@ -5768,6 +6117,7 @@ public class PackageManagerService extends IPackageManager.Stub
                 // normal runtime permissions.  For now they apply to all users.
                 if (permissionsState.grantInstallPermission(bp) !=
                         PermissionsState.PERMISSION_OPERATION_FAILURE) {
+                    invalidatePermissionSnapshot();
                     scheduleWriteSettingsLocked();
                 }
                 return;
@@ -5805,6 +6155,7 @@ public class PackageManagerService extends IPackageManager.Stub
                 logPermissionGranted(mContext, name, packageName);
             }
 
+            invalidatePermissionSnapshot();
             mOnPermissionChangeListeners.onPermissionsChanged(uid);
 
             // Not critical if that is lost - app has to request again.
@@ -5829,6 +6180,139 @@ public class PackageManagerService extends IPackageManager.Stub
         }
     }
 
+    /**
+     * Grants runtime (and development) permissions to a set of packages for one user under a
+     * single {@link #mPackages} acquisition. Unlike {@link #grantRuntimePermission} this skips
+     * the binder-facing checks and writes the permission state once for the whole batch, so it
+     * must only be used for trusted, system initiated grants.
+     *
+     * @param packageNames The packages to grant to; unknown packages are ignored.
+     * @param permissions The permissions to grant, or {@code null} for everything each package
+     *        requests. Permissions a package does not request, and permissions the user
+     *        set or fixed, are never granted.
+     * @param userId The user to grant for.
+     * @return The number of permissions whose state changed.
+     */
+    int grantRuntimePermissionsInternal(@NonNull Collection<String> packageNames,
+            @Nullable Collection<String> permissions, int userId) {
+        if (!sUserManager.exists(userId)) {
+            Log.e(TAG, "No such user:" + userId);
+            return 0;
+        }
+
+        int changedCount = 0;
+        final IntArray changedUids = new IntArray();
+        final IntArray gidsChangedAppIds = new IntArray();
+        final ArrayMap<String, Integer> storagePolicyChanged = new ArrayMap<>();
+
+        synchronized (mPackages) {
+            boolean installPermissionsChanged = false;
+            boolean runtimePermissionsChanged = false;
+
+            for (String packageName : packageNames) {
+                final PackageParser.Package pkg = mPackages.get(packageName);
+                if (pkg == null || pkg.mExtras == null) {
+                    continue;
+                }
+                final PackageSetting ps = (PackageSetting) pkg.mExtras;
+                final PermissionsState permissionsState = ps.getPermissionsState();
+                final boolean legacyApp =
+                        pkg.applicationInfo.targetSdkVersion < Build.VERSION_CODES.M;
+                final int uid = UserHandle.getUid(userId, pkg.applicationInfo.uid);
+                boolean packageChanged = false;
+
+                for (String name : pkg.requestedPermissions) {
+                    if (permissions != null && !permissions.contains(name)) {
+                        continue;
+                    }
+                    final BasePermission bp = mSettings.mPermissions.get(name);
+                    if (bp == null || (!bp.isRuntime() && !bp.isDevelopment())) {
+                        continue;
+                    }
+                    // Like default grants, never override a choice of the user, e.g. a
+                    // revoke that this batch would otherwise undo after every update.
+                    final int flags = permissionsState.getPermissionFlags(name, userId);
+                    if ((flags & (PackageManager.FLAG_PERMISSION_SYSTEM_FIXED
+                            | PackageManager.FLAG_PERMISSION_POLICY_FIXED
+                            | PackageManager.FLAG_PERMISSION_USER_SET
+                            | PackageManager.FLAG_PERMISSION_USER_FIXED)) != 0) {
+                        continue;
+                    }
+
+                    if (bp.isDevelopment()) {
+                        if (permissionsState.grantInstallPermission(bp)
+                                != PermissionsState.PERMISSION_OPERATION_FAILURE) {
+                            installPermissionsChanged = true;
+                            changedCount++;
+                        }
+                        continue;
+                    }
+
+                    // Legacy apps either see runtime permissions as always granted (review
+                    // required) or cannot have them granted at all.
+                    if (legacyApp || (ps.getInstantApp(userId) && !bp.isInstant())) {
+                        continue;
+                    }
+
+                    final int result = permissionsState.grantRuntimePermission(bp, userId);
+                    if (result == PermissionsState.PERMISSION_OPERATION_FAILURE) {
+                        continue;
+                    }
+                    if (result == PermissionsState.PERMISSION_OPERATION_SUCCESS_GIDS_CHANGED) {
+                        final int appId = UserHandle.getAppId(pkg.applicationInfo.uid);
+                        if (gidsChangedAppIds.indexOf(appId) < 0) {
+                            gidsChangedAppIds.add(appId);
+                        }
+                    }
+                    if (READ_EXTERNAL_STORAGE.equals(name)
+                            || WRITE_EXTERNAL_STORAGE.equals(name)) {
+                        storagePolicyChanged.put(packageName, uid);
+                    }
+                    logPermissionGranted(mContext, name, packageName);
+                    runtimePermissionsChanged = true;
+                    packageChanged = true;
+                    changedCount++;
+                }
+
+                if (packageChanged && changedUids.indexOf(uid) < 0) {
+                    changedUids.add(uid);
+                }
+            }
+
+            if (installPermissionsChanged || runtimePermissionsChanged) {
+                invalidatePermissionSnapshot();
+            }
+            for (int i = 0; i < changedUids.size(); i++) {
+                mOnPermissionChangeListeners.onPermissionsChanged(changedUids.get(i));
+            }
+            if (runtimePermissionsChanged) {
+                mSettings.writeRuntimePermissionsForUserLPr(userId, false);
+            }
+            if (installPermissionsChanged) {
+                scheduleWriteSettingsLocked();
+            }
+        }
+
+        for (int i = 0; i < gidsChangedAppIds.size(); i++) {
+            final int appId = gidsChangedAppIds.get(i);
+            mHandler.post(() -> killUid(appId, userId, KILL_APP_REASON_GIDS_CHANGED));
+        }
+        if (!storagePolicyChanged.isEmpty() && sUserManager.isInitialized(userId)) {
+            final long token = Binder.clearCallingIdentity();
+            try {
+                final StorageManagerInternal storageManagerInternal = LocalServices.getService(
+                        StorageManagerInternal.class);
+                for (int i = 0; i < storagePolicyChanged.size(); i++) {
+                    storageManagerInternal.onExternalStoragePolicyChanged(
+                            storagePolicyChanged.valueAt(i), storagePolicyChanged.keyAt(i));
+                }
+            } finally {
+                Binder.restoreCallingIdentity(token);
+            }
+        }
+        return changedCount;
+    }
+
     @Override
     public void revokeRuntimePermission(String packageName, String name, int userId) {
         revokeRuntimePermission(packageName, name, userId, false /* Only if not fixed by policy */);
@@ -5895,6 +6379,7 @@ public class PackageManagerService extends IPackageManager.Stub
                 // normal runtime permissions.  For now they apply to all users.
                 if (permissionsState.revokeInstallPermission(bp) !=
                         PermissionsState.PERMISSION_OPERATION_FAILURE) {
+                    invalidatePermissionSnapshot();
                     scheduleWriteSettingsLocked();
                 }
                 return;
@@ -5909,6 +6394,7 @@ public class PackageManagerService extends IPackageManager.Stub
                 logPermissionRevoked(mContext, name, packageName);
             }
 
+            invalidatePermissionSnapshot();
             mOnPermissionChangeListeners.onPermissionsChanged(pkg.applicationInfo.uid);
 
             // Critical, after this call app should never have the permission.
@@ -7459,7 +7945,7 @@ public class PackageManagerService extends IPackageManager.Stub
                 }
 
                 // Check for results in the current profile.
-                result = filterIfNotSystemUser(mActivities.queryIntent(
+                result = filterIfNotSystemUser(queryActivitiesCachedLPr(
                         intent, resolvedType, flags, userId), userId);
                 addEphemeral = !ephemeralDisabled
                         && isInstantAppAllowed(intent, result, userId, false /*skipPackageCheck*/);
@@ -7542,6 +8028,19 @@ public class PackageManagerService extends IPackageManager.Stub
                 result, instantAppPkgName, allowDynamicSplits, filterCallingUid, userId);
     }
 
+    private List<ResolveInfo> queryActivitiesCachedLPr(Intent intent, String resolvedType,
+            int flags, int userId) {
+        if (!IntentResolutionCache.isCacheable(intent)) {
+            return mActivities.queryIntent(intent, resolvedType, flags, userId);
+        }
+        List<ResolveInfo> result = mActivityResolveCache.get(intent, resolvedType, flags, userId);
+        if (result == null) {
+            result = mActivities.queryIntent(intent, resolvedType, flags, userId);
+            mActivityResolveCache.put(intent, resolvedType, flags, userId, result);
+        }
+        return result;
+    }
+
     private List<ResolveInfo> maybeAddInstantAppInstaller(List<ResolveInfo> result, Intent intent,
             String resolvedType, int flags, int userId, boolean resolveForStart) {
         // first, check to see if we've got an instant app already installed
@@ -8682,48 +9181,88 @@ public class PackageManagerService extends IPackageManager.Stub
         }
         if (!sUserManager.exists(userId)) return ParceledListSlice.emptyList();
         flags = updateFlagsForPackage(flags, userId, null);
+        enforceCrossUserPermission(callingUid, userId,
+                true /* requireFullPermission */, false /* checkShell */,
+                "get installed packages");
+
         final boolean listUninstalled = (flags & MATCH_KNOWN_PACKAGES) != 0;
+        final String[] names = snapshotPackageNames(listUninstalled);
+        return new ParceledListSlice<>(InstalledPackagesPage.generate(mPackages, names,
+                null /* startToken */, names.length,
+                newInstalledPackageInfoGenerator(flags, userId, callingUid, listUninstalled))
+                .packages);
+    }
+
+    /**
+     * Cursor-style variant of {@link #getInstalledPackages} for callers in the system process
+     * that only need part of the list at a time, or want to avoid building every
+     * {@link PackageInfo} at once. Packages are returned in name order.
+     *
+     * @param startToken null for the first page, otherwise the
+     *         {@link InstalledPackagesPage#nextToken} of the previous page.
+     * @param pageSize the maximum number of package names examined for this page; fewer
+     *         packages are returned when some are filtered out for the caller.
+     */
+    public InstalledPackagesPage getInstalledPackagesPage(int flags, int userId,
+            @Nullable String startToken, int pageSize) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("pageSize must be positive: " + pageSize);
+        }
+        final int callingUid = Binder.getCallingUid();
+        if (getInstantAppPackageName(callingUid) != null || !sUserManager.exists(userId)) {
+            return new InstalledPackagesPage(Collections.emptyList(), null);
+        }
+        flags = updateFlagsForPackage(flags, userId, null);
         enforceCrossUserPermission(callingUid, userId,
                 true /* requireFullPermission */, false /* checkShell */,
                 "get installed packages");
 
-        // writer
+        final boolean listUninstalled = (flags & MATCH_KNOWN_PACKAGES) != 0;
+        final String[] names = snapshotPackageNames(listUninstalled);
+        return InstalledPackagesPage.generate(mPackages, names, startToken, pageSize,
+                newInstalledPackageInfoGenerator(flags, userId, callingUid, listUninstalled));
+    }
+
+    /** @return the sorted names of the packages to list, copied under the lock. */
+    private String[] snapshotPackageNames(boolean listUninstalled) {
+        final String[] names;
         synchronized (mPackages) {
-            ArrayList<PackageInfo> list;
+            final ArrayMap<String, ?> source = listUninstalled ? mSettings.mPackages : mPackages;
+            names = new String[source.size()];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = source.keyAt(i);
+            }
+        }
+        Arrays.sort(names);
+        return names;
+    }
+
+    /**
+     * @return a generator that builds the {@link PackageInfo} of a listed package, or null
+     *         when it was removed since the names were copied or is filtered out for
+     *         {@code callingUid}.
+     */
+    private InstalledPackagesPage.Generator newInstalledPackageInfoGenerator(int flags,
+            int userId, int callingUid, boolean listUninstalled) {
+        return packageName -> {
+            final PackageSetting ps;
             if (listUninstalled) {
-                list = new ArrayList<>(mSettings.mPackages.size());
-                for (PackageSetting ps : mSettings.mPackages.values()) {
-                    if (filterSharedLibPackageLPr(ps, callingUid, userId, flags)) {
-                        continue;
-                    }
-                    if (filterAppAccessLPr(ps, callingUid, userId)) {
-                        continue;
-                    }
-                    final PackageInfo pi = generatePackageInfo(ps, flags, userId);
-                    if (pi != null) {
-                        list.add(pi);
-                    }
-                }
+                ps = mSettings.mPackages.get(packageName);
             } else {
-                list = new ArrayList<>(mPackages.size());
-                for (PackageParser.Package p : mPackages.values()) {
-                    final PackageSetting ps = (PackageSetting) p.mExtras;
-                    if (filterSharedLibPackageLPr(ps, callingUid, userId, flags)) {
-                        continue;
-                    }
-                    if (filterAppAccessLPr(ps, callingUid, userId)) {
-                        continue;
-                    }
-                    final PackageInfo pi = generatePackageInfo((PackageSetting)
-                            p.mExtras, flags, userId);
-                    if (pi != null) {
-                        list.add(pi);
-                    }
-                }
+                final PackageParser.Package p = mPackages.get(packageName);
+                ps = p != null ? (PackageSetting) p.mExtras : null;
             }
-
-            return new ParceledListSlice<>(list);
-        }
+            if (ps == null) {
+                return null;
+            }
+            if (filterSharedLibPackageLPr(ps, callingUid, userId, flags)) {
+                return null;
+            }
+            if (filterAppAccessLPr(ps, callingUid, userId)) {
+                return null;
+            }
+            return generatePackageInfo(ps, flags, userId);
+        };
     }
 
     private void addPackageHoldingPermissions(ArrayList<PackageInfo> list, PackageSetting ps,
@@ -9245,43 +9784,96 @@ public class PackageManagerService extends IPackageManager.Stub
 
         // Process results one by one
         for (; fileCount > 0; fileCount--) {
-            ParallelPackageParser.ParseResult parseResult = parallelPackageParser.take();
-            Throwable throwable = parseResult.throwable;
-            int errorCode = PackageManager.INSTALL_SUCCEEDED;
+            commitParseResultLI(parallelPackageParser.take(), parseFlags, scanFlags, currentTime);
+        }
+        parallelPackageParser.close();
+    }
 
-            if (throwable == null) {
-                // Static shared libraries have synthetic package names
-                if (parseResult.pkg.applicationInfo.isStaticSharedLibrary()) {
-                    renameStaticSharedLibraryPackage(parseResult.pkg);
-                }
-                try {
-                    if (errorCode == PackageManager.INSTALL_SUCCEEDED) {
-                        scanPackageLI(parseResult.pkg, parseResult.scanFile, parseFlags, scanFlags,
-                                currentTime, null);
-                    }
-                } catch (PackageManagerException e) {
-                    errorCode = e.error;
-                    Slog.w(TAG, "Failed to scan " + parseResult.scanFile + ": " + e.getMessage());
+    private void commitParseResultLI(ParallelPackageParser.ParseResult parseResult,
+            int parseFlags, int scanFlags, long currentTime) {
+        Throwable throwable = parseResult.throwable;
+        int errorCode = PackageManager.INSTALL_SUCCEEDED;
+
+        if (throwable == null) {
+            // Static shared libraries have synthetic package names
+            if (parseResult.pkg.applicationInfo.isStaticSharedLibrary()) {
+                renameStaticSharedLibraryPackage(parseResult.pkg);
+            }
+            try {
+                if (errorCode == PackageManager.INSTALL_SUCCEEDED) {
+                    scanPackageLI(parseResult.pkg, parseResult.scanFile, parseFlags, scanFlags,
+                            currentTime, null);
                 }
-            } else if (throwable instanceof PackageParser.PackageParserException) {
-                PackageParser.PackageParserException e = (PackageParser.PackageParserException)
-                        throwable;
+            } catch (PackageManagerException e) {
                 errorCode = e.error;
-                Slog.w(TAG, "Failed to parse " + parseResult.scanFile + ": " + e.getMessage());
-            } else {
-                throw new IllegalStateException("Unexpected exception occurred while parsing "
-                        + parseResult.scanFile, throwable);
+                Slog.w(TAG, "Failed to scan " + parseResult.scanFile + ": " + e.getMessage());
             }
+        } else if (throwable instanceof PackageParser.PackageParserException) {
+            PackageParser.PackageParserException e = (PackageParser.PackageParserException)
+                    throwable;
+            errorCode = e.error;
+            Slog.w(TAG, "Failed to parse " + parseResult.scanFile + ": " + e.getMessage());
+        } else {
+            throw new IllegalStateException("Unexpected exception occurred while parsing "
+                    + parseResult.scanFile, throwable);
+        }
 
-            // Delete invalid userdata apps
-            if ((parseFlags & PackageParser.PARSE_IS_SYSTEM) == 0 &&
-                    errorCode == PackageManager.INSTALL_FAILED_INVALID_APK) {
-                logCriticalInfo(Log.WARN,
-                        "Deleting invalid package at " + parseResult.scanFile);
-                removeCodePathLI(parseResult.scanFile);
+        // Delete invalid userdata apps
+        if ((parseFlags & PackageParser.PARSE_IS_SYSTEM) == 0 &&
+                errorCode == PackageManager.INSTALL_FAILED_INVALID_APK) {
+            logCriticalInfo(Log.WARN,
+                    "Deleting invalid package at " + parseResult.scanFile);
+            removeCodePathLI(parseResult.scanFile);
+        }
+    }
+
+    /**
+     * Populate the package parser cache for the system packages the boot scan parsed without
+     * it, so that the next boot after an upgrade reads them from the cache.
+     */
+    private void warmPackageParserCache() {
+        final PipelinedPackageParser warmUp = mPackageParserCacheWarmUp;
+        final File cacheDir = mCacheDir;
+        mPackageParserCacheWarmUp = null;
+        if (warmUp == null || cacheDir == null) {
+            return;
+        }
+        new Thread(() -> {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            final TimingsTraceLog traceLog = new TimingsTraceLog("PackageManagerTiming",
+                    Trace.TRACE_TAG_PACKAGE_MANAGER);
+            traceLog.traceBegin("warmPackageParserCache");
+            final int cached = warmUp.warmCache(cacheDir);
+            traceLog.traceEnd();
+            Slog.i(TAG, "Cached " + cached + " system packages after upgrade");
+        }, "package-cache-warmup").start();
+    }
+
+    private static PipelinedPackageParser.Batch submitBootScan(
+            @Nullable PipelinedPackageParser parser, File dir, int parseFlags) {
+        return parser != null ? parser.submit(dir, parseFlags) : null;
+    }
+
+    /**
+     * Commits a system directory at boot: from its pre-submitted batch when the pipelined
+     * scan is enabled, otherwise through the regular serial {@link #scanDirTracedLI}.
+     */
+    private void scanBootDirTracedLI(TimingsTraceLog traceLog,
+            @Nullable PipelinedPackageParser.Batch batch, File dir, int parseFlags,
+            int scanFlags) {
+        traceLog.traceBegin("scanDir [" + dir.getAbsolutePath() + "]");
+        if (batch == null) {
+            scanDirTracedLI(dir, parseFlags, scanFlags, 0);
+        } else if (!batch.hasNext()) {
+            Log.d(TAG, "No files in app dir " + dir);
+        } else {
+            /// M: Add for Mtprof tool
+            sMtkSystemServerIns.addBootEvent("Android:PMS_scan_data:" + dir.getPath());
+            while (batch.hasNext()) {
+                commitParseResultLI(batch.take(), parseFlags, scanFlags, 0);
             }
         }
-        parallelPackageParser.close();
+        traceLog.traceEnd();
     }
 
     private static File getSettingsProblemFile() {
@@ -9589,6 +10181,7 @@ public class PackageManagerService extends IPackageManager.Stub
                     synchronized (mPackages) {
                         // Just remove the loaded entries from package lists.
                         mPackages.remove(ps.name);
+                        invalidatePermissionSnapshot();
                     }
 
                     logCriticalInfo(Log.WARN, "Package " + ps.name + " at " + scanFile
@@ -11903,6 +12496,7 @@ public class PackageManagerService extends IPackageManager.Stub
             mSettings.insertPackageSettingLPw(pkgSetting, pkg);
             // Add the new setting to mPackages
             mPackages.put(pkg.applicationInfo.packageName, pkg);
+            invalidatePermissionSnapshot();
             // Make sure we don't accidentally delete its data.
             final Iterator<PackageCleanItem> iter = mSettings.mPackagesToBeCleaned.iterator();
             while (iter.hasNext()) {
@@ -12023,6 +12617,7 @@ public class PackageManagerService extends IPackageManager.Stub
                 a.info.processName = fixProcessName(pkg.applicationInfo.processName,
                         a.info.processName);
                 mActivities.addActivity(a, "activity");
+                invalidateResolveCacheLocked();
                 if (chatty) {
                     if (r == null) {
                         r = new StringBuilder(256);
@@ -12794,6 +13389,7 @@ public class PackageManagerService extends IPackageManager.Stub
         // writer
         synchronized (mPackages) {
             mPackages.remove(ps.name);
+            invalidatePermissionSnapshot();
             final PackageParser.Package pkg = ps.pkg;
             if (pkg != null) {
                 cleanPackageDataStructuresLILPw(pkg, chatty);
@@ -12811,6 +13407,7 @@ public class PackageManagerService extends IPackageManager.Stub
         synchronized (mPackages) {
             // Remove the parent package
             mPackages.remove(pkg.applicationInfo.packageName);
+            invalidatePermissionSnapshot();
             cleanPackageDataStructuresLILPw(pkg, chatty);
 
             // Remove the child packages
@@ -12904,6 +13501,7 @@ public class PackageManagerService extends IPackageManager.Stub
         for (i=0; i<N; i++) {
             PackageParser.Activity a = pkg.activities.get(i);
             mActivities.removeActivity(a, "activity");
+            invalidateResolveCacheLocked();
             if (DEBUG_REMOVE && chatty) {
                 if (r == null) {
                     r = new StringBuilder(256);
@@ -13057,6 +13655,7 @@ public class PackageManagerService extends IPackageManager.Stub
 
     private void updatePermissionsLPw(String changingPkg,
             PackageParser.Package pkgInfo, String replaceVolumeUuid, int flags) {
+        invalidatePermissionSnapshot();
         // Make sure there are no dangling permission trees.
         Iterator<BasePermission> it = mSettings.mPermissionTrees.values().iterator();
         while (it.hasNext()) {
@@ -13147,6 +13746,7 @@ public class PackageManagerService extends IPackageManager.Stub
 
     private void grantPermissionsLPw(PackageParser.Package pkg, boolean replace,
             String packageOfInterest) {
+        invalidatePermissionSnapshot();
         // IMPORTANT: There are two types of permissions: install and runtime.
         // Install time permissions are granted when the app is installed to
         // all device users and users added in the future. Runtime permissions
@@ -14816,50 +15416,8 @@ public class PackageManagerService extends IPackageManager.Stub
     public void sendPackageBroadcast(final String action, final String pkg, final Bundle extras,
             final int flags, final String targetPkg, final IIntentReceiver finishedReceiver,
             final int[] userIds) {
-        mHandler.post(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    final IActivityManager am = ActivityManager.getService();
-                    if (am == null) return;
-                    final int[] resolvedUserIds;
-                    if (userIds == null) {
-                        resolvedUserIds = am.getRunningUserIds();
-                    } else {
-                        resolvedUserIds = userIds;
-                    }
-                    for (int id : resolvedUserIds) {
-                        final Intent intent = new Intent(action,
-                                pkg != null ? Uri.fromParts(PACKAGE_SCHEME, pkg, null) : null);
-                        if (extras != null) {
-                            intent.putExtras(extras);
-                        }
-                        if (targetPkg != null) {
-                            intent.setPackage(targetPkg);
-                        }
-                        // Modify the UID when posting to other users
-                        int uid = intent.getIntExtra(Intent.EXTRA_UID, -1);
-                        if (uid > 0 && UserHandle.getUserId(uid) != id) {
-                            uid = UserHandle.getUid(id, UserHandle.getAppId(uid));
-                            intent.putExtra(Intent.EXTRA_UID, uid);
-                        }
-                        intent.putExtra(Intent.EXTRA_USER_HANDLE, id);
-                        intent.addFlags(Intent.FLAG_RECEIVER_REGISTERED_ONLY_BEFORE_BOOT | flags);
-                        if (DEBUG_BROADCASTS) {
-                            RuntimeException here = new RuntimeException("here");
-                            here.fillInStackTrace();
-                            Slog.d(TAG, "Sending to user " + id + ": "
-                                    + intent.toShortString(false, true, false, false)
-                                    + " " + intent.getExtras(), here);
-                        }
-                        am.broadcastIntent(null, intent, null, finishedReceiver,
-                                0, null, null, null, android.app.AppOpsManager.OP_NONE,
-                                null, finishedReceiver != null, false, id);
-                    }
-                } catch (RemoteException ex) {
-                }
-            }
-        });
+        mPackageBroadcastDispatcher.enqueue(action, pkg, extras, flags, targetPkg,
+                finishedReceiver, userIds);
     }
 
     /**
@@ -15239,7 +15797,8 @@ public class PackageManagerService extends IPackageManager.Stub
 
                 if (pkgSetting.getHidden(userId) != hidden) {
                     pkgSetting.setHidden(hidden, userId);
-                    mSettings.writePackageRestrictionsLPr(userId);
+                    invalidateResolveCacheLocked();
+                    writePackageRestrictionsLPr(userId);
                     if (hidden) {
                         sendRemoved = true;
                     } else {
@@ -15366,7 +15925,8 @@ public class PackageManagerService extends IPackageManager.Stub
                     pkgSetting.setInstalled(true, userId);
                     pkgSetting.setHidden(false, userId);
                     pkgSetting.setInstallReason(installReason, userId);
-                    mSettings.writePackageRestrictionsLPr(userId);
+                    invalidateResolveCacheLocked();
+                    writePackageRestrictionsLPr(userId);
                     mSettings.writeKernelMappingLPr(pkgSetting);
                     installed = true;
                 } else if (fullApp && pkgSetting.getInstantApp(userId)) {
@@ -15415,7 +15975,9 @@ public class PackageManagerService extends IPackageManager.Stub
                     pkgSetting.setInstantApp(false /*instantApp*/, currentUserId);
                 }
             }
+            invalidateResolveCacheLocked();
         }
+        invalidatePermissionSnapshot();
     }
 
     boolean isUserRestricted(int userId, String restrictionKey) {
@@ -15467,7 +16029,8 @@ public class PackageManagerService extends IPackageManager.Stub
                             continue;
                         }
                         pkgSetting.setSuspended(suspended, userId);
-                        mSettings.writePackageRestrictionsLPr(userId);
+                        invalidateResolveCacheLocked();
+                        writePackageRestrictionsLPr(userId);
                         changed = true;
                         changedPackages.add(packageName);
                     }
@@ -16097,6 +16660,10 @@ public class PackageManagerService extends IPackageManager.Stub
                     }
                     args.doPostInstall(res.returnCode, res.uid);
                 }
+                if (mInstallPreParser != null && args.origin.file != null) {
+                    // Nothing to do unless the install ended before parsing
+                    mInstallPreParser.discard(args.origin.file.getAbsoluteFile());
+                }
 
                 // A restore should be performed at this point if (a) the install
                 // succeeded, (b) the operation is not an update, and (c) the new
@@ -18220,7 +18787,7 @@ public class PackageManagerService extends IPackageManager.Stub
                     // Update permissions for restored package
                     updatePermissionsLPw(deletedPackage, UPDATE_PERMISSIONS_ALL);
 
-                    mSettings.writeLPr();
+                    writeSettingsLPr();
                 }
 
                 Slog.i(TAG, "Successfully restored package : " + pkgName + " after failed upgrade");
@@ -18374,7 +18941,7 @@ public class PackageManagerService extends IPackageManager.Stub
 
                 /// M: Customize replace system package
                 sPmsExt.replaceSysPkgDone(bundleData, mSettings.mPackages);
-                mSettings.writeLPr();
+                writeSettingsLPr();
             }
 
             Slog.i(TAG, "Successfully restored package : " + deletedPackage.packageName
@@ -18470,6 +19037,7 @@ public class PackageManagerService extends IPackageManager.Stub
     }
 
     private int[] revokeUnusedSharedUserPermissionsLPw(SharedUserSetting su, int[] allUserIds) {
+        invalidatePermissionSnapshot();
         // Collect all used permissions in the UID
         ArraySet<String> usedPermissions = new ArraySet<>();
         final int packageCount = su.packages.size();
@@ -18558,7 +19126,7 @@ public class PackageManagerService extends IPackageManager.Stub
             mSettings.setInstallStatus(pkgName, PackageSettingBase.PKG_INSTALL_INCOMPLETE);
             // TODO: Remove this write? It's also written at the end of this method
             Trace.traceBegin(TRACE_TAG_PACKAGE_MANAGER, "writeSettings");
-            mSettings.writeLPr();
+            writeSettingsLPr();
             Trace.traceEnd(TRACE_TAG_PACKAGE_MANAGER);
         }
 
@@ -18606,6 +19174,7 @@ public class PackageManagerService extends IPackageManager.Stub
                     ps.setInstalled(true, userId);
                     ps.setEnabled(COMPONENT_ENABLED_STATE_DEFAULT, userId, installerPackageName);
                 }
+                invalidateResolveCacheLocked();
                 /// M: Removable system app support
                 sPmsExt.updatePackageSettings(userId, pkgName, newPackage, ps, allUsers,
                         installerPackageName);
@@ -18643,7 +19212,7 @@ public class PackageManagerService extends IPackageManager.Stub
             res.setReturnCode(PackageManager.INSTALL_SUCCEEDED);
             //to update install status
             Trace.traceBegin(TRACE_TAG_PACKAGE_MANAGER, "writeSettings");
-            mSettings.writeLPr();
+            writeSettingsLPr();
             Trace.traceEnd(TRACE_TAG_PACKAGE_MANAGER);
         }
 
@@ -18659,6 +19228,35 @@ public class PackageManagerService extends IPackageManager.Stub
         }
     }
 
+    private int getInstallParseFlags(int installFlags, String volumeUuid) {
+        final boolean forwardLocked = ((installFlags & PackageManager.INSTALL_FORWARD_LOCK) != 0);
+        final boolean onExternal = (((installFlags & PackageManager.INSTALL_EXTERNAL) != 0)
+                || (volumeUuid != null));
+        final boolean instantApp = ((installFlags & PackageManager.INSTALL_INSTANT_APP) != 0);
+        final boolean forceSdk = ((installFlags & PackageManager.INSTALL_FORCE_SDK) != 0);
+        return mDefParseFlags | PackageParser.PARSE_CHATTY
+                | PackageParser.PARSE_ENFORCE_CODE
+                | (forwardLocked ? PackageParser.PARSE_FORWARD_LOCK : 0)
+                | (onExternal ? PackageParser.PARSE_EXTERNAL_STORAGE : 0)
+                | (instantApp ? PackageParser.PARSE_IS_EPHEMERAL : 0)
+                | (forceSdk ? PackageParser.PARSE_FORCE_SDK : 0);
+    }
+
+    /**
+     * Starts parsing an already staged install on {@link #mInstallPreParser}, so the parse
+     * overlaps with verification and with the installs queued before it. Only staged files
+     * qualify: they are installed from where they are, so the path parsed now is the one
+     * {@link #installPackageLI} will parse.
+     */
+    private void maybePreParseInstall(InstallParams params) {
+        if (mInstallPreParser == null || params.move != null || !params.origin.staged
+                || params.origin.file == null) {
+            return;
+        }
+        mInstallPreParser.submit(params.origin.file.getAbsoluteFile(),
+                getInstallParseFlags(params.installFlags, params.volumeUuid));
+    }
+
     private void installPackageLI(InstallArgs args, PackageInstalledInfo res) {
         final int installFlags = args.installFlags;
         final String installerPackageName = args.installerPackageName;
@@ -18669,7 +19267,6 @@ public class PackageManagerService extends IPackageManager.Stub
                 || (args.volumeUuid != null));
         final boolean instantApp = ((installFlags & PackageManager.INSTALL_INSTANT_APP) != 0);
         final boolean fullApp = ((installFlags & PackageManager.INSTALL_FULL_APP) != 0);
-        final boolean forceSdk = ((installFlags & PackageManager.INSTALL_FORCE_SDK) != 0);
         final boolean virtualPreload =
                 ((installFlags & PackageManager.INSTALL_VIRTUAL_PRELOAD) != 0);
         boolean replace = false;
@@ -18706,12 +19303,7 @@ public class PackageManagerService extends IPackageManager.Stub
         }
 
         // Retrieve PackageSettings and parse package
-        final int parseFlags = mDefParseFlags | PackageParser.PARSE_CHATTY
-                | PackageParser.PARSE_ENFORCE_CODE
-                | (forwardLocked ? PackageParser.PARSE_FORWARD_LOCK : 0)
-                | (onExternal ? PackageParser.PARSE_EXTERNAL_STORAGE : 0)
-                | (instantApp ? PackageParser.PARSE_IS_EPHEMERAL : 0)
-                | (forceSdk ? PackageParser.PARSE_FORCE_SDK : 0);
+        final int parseFlags = getInstallParseFlags(installFlags, volumeUuid);
         PackageParser pp = new PackageParser();
         pp.setSeparateProcesses(mSeparateProcesses);
         pp.setDisplayMetrics(mMetrics);
@@ -18720,7 +19312,10 @@ public class PackageManagerService extends IPackageManager.Stub
         Trace.traceBegin(TRACE_TAG_PACKAGE_MANAGER, "parsePackage");
         final PackageParser.Package pkg;
         try {
-            pkg = pp.parsePackage(tmpPackageFile, parseFlags);
+            final PackageParser.Package preParsed = mInstallPreParser != null
+                    ? mInstallPreParser.take(tmpPackageFile.getAbsoluteFile(), parseFlags)
+                    : null;
+            pkg = preParsed != null ? preParsed : pp.parsePackage(tmpPackageFile, parseFlags);
         } catch (PackageParserException e) {
             res.setError("Failed parse during installPackageLI", e);
             return;
@@ -20035,12 +20630,13 @@ public class PackageManagerService extends IPackageManager.Stub
                         }
                         ps.setInstalled(installed, userId);
                     }
+                    invalidateResolveCacheLocked();
                 }
             }
             // can downgrade to reader
             if (writeSettings) {
                 // Save settings now
-                mSettings.writeLPr();
+                writeSettingsLPr();
             }
             if (installedStateChanged) {
                 mSettings.writeKernelMappingLPr(ps);
@@ -20232,14 +20828,15 @@ public class PackageManagerService extends IPackageManager.Stub
                 }
                 // Regardless of writeSettings we need to ensure that this restriction
                 // state propagation is persisted
-                mSettings.writeAllUsersPackageRestrictionsLPr();
+                invalidateResolveCacheLocked();
+                writeAllUsersPackageRestrictionsLPr();
                 if (installedStateChanged) {
                     mSettings.writeKernelMappingLPr(ps);
                 }
             }
             // can downgrade to reader here
             if (writeSettings) {
-                mSettings.writeLPr();
+                writeSettingsLPr();
             }
         }
         return newPkg;
@@ -20323,7 +20920,7 @@ public class PackageManagerService extends IPackageManager.Stub
                 return false;
             }
             mSettings.setBlockUninstallLPw(userId, packageName, blockUninstall);
-            mSettings.writePackageRestrictionsLPr(userId);
+            writePackageRestrictionsLPr(userId);
         }
         return true;
     }
@@ -20353,7 +20950,7 @@ public class PackageManagerService extends IPackageManager.Stub
             } else {
                 ps.pkgPrivateFlags &= ~ApplicationInfo.PRIVATE_FLAG_REQUIRED_FOR_SYSTEM_USER;
             }
-            mSettings.writeLPr();
+            writeSettingsLPr();
         }
         return true;
     }
@@ -20522,6 +21119,7 @@ public class PackageManagerService extends IPackageManager.Stub
     }
 
     private void markPackageUninstalledForUserLPw(PackageSetting ps, UserHandle user) {
+        invalidateResolveCacheLocked();
         final int[] userIds = (user == null || user.getIdentifier() == UserHandle.USER_ALL)
                 ? sUserManager.getUserIds() : new int[] {user.getIdentifier()};
         for (int nextUserId : userIds) {
@@ -20807,6 +21405,7 @@ public class PackageManagerService extends IPackageManager.Stub
      */
     private void resetUserChangesToRuntimePermissionsAndFlagsLPw(
             final PackageSetting ps, final int userId) {
+        invalidatePermissionSnapshot();
         if (ps.pkg == null) {
             return;
         }
@@ -20928,7 +21527,7 @@ public class PackageManagerService extends IPackageManager.Stub
 
         // Synchronously write as we are taking permissions away.
         if (writeInstallPermissions) {
-            mSettings.writeLPr();
+            writeSettingsLPr();
         }
     }
 
@@ -21671,7 +22270,7 @@ Slog.v(TAG, ":: stepped forward, applying functor at tag " + parser.getName());
                                 throws XmlPullParserException, IOException {
                             synchronized (mPackages) {
                                 mSettings.readAllDomainVerificationsLPr(parser, userId);
-                                mSettings.writeLPr();
+                                writeSettingsLPr();
                             }
                         }
                     } );
@@ -21799,6 +22398,7 @@ Slog.v(TAG, ":: stepped forward, applying functor at tag " + parser.getName());
 
     private void processRestoredPermissionGrantsLPr(XmlPullParser parser, int userId)
             throws XmlPullParserException, IOException {
+        invalidatePermissionSnapshot();
         String pkgName = null;
         int outerDepth = parser.getDepth();
         int type;
@@ -22103,8 +22703,10 @@ Slog.v(TAG, ":: stepped forward, applying functor at tag " + parser.getName());
         mContext.enforceCallingOrSelfPermission(android.Manifest.permission.INSTALL_PACKAGES, null);
         synchronized (mPackages) {
             final PackageSetting pkgSetting = mSettings.mPackages.get(packageName);
-            if (pkgSetting != null) {
+            if (pkgSetting != null && pkgSetting.isUpdateAvailable() != updateAvailable) {
                 pkgSetting.setUpdateAvailable(updateAvailable);
+                // Instant apps with an update available are filtered from resolution results
+                invalidateResolveCacheLocked();
             }
         }
     }
@@ -22280,7 +22882,7 @@ Slog.v(TAG, ":: stepped forward, applying functor at tag " + parser.getName());
                             }
                             updatePermissionsLPw(newPkg.packageName, newPkg,
                                     UPDATE_PERMISSIONS_ALL | UPDATE_PERMISSIONS_REPLACE_PKG);
-                            mSettings.writeLPr();
+                            writeSettingsLPr();
                         }
                     } catch (PackageManagerException e) {
                         // Whoops! Something went wrong; try to roll back to the stub
@@ -22314,7 +22916,7 @@ Slog.v(TAG, ":: stepped forward, applying functor at tag " + parser.getName());
                             synchronized (mPackages) {
                                 mSettings.disableSystemPackageLPw(
                                         deletedPkg.packageName, true /*replaced*/);
-                                mSettings.writeLPr();
+                                writeSettingsLPr();
                             }
                         }
                         return;
@@ -22373,7 +22975,7 @@ Slog.v(TAG, ":: stepped forward, applying functor at tag " + parser.getName());
             }
         }
         synchronized (mPackages) {
-            scheduleWritePackageRestrictionsLocked(userId);
+            scheduleWriteEnabledStateLocked(pkgSetting, className, userId);
             updateSequenceNumberLP(pkgSetting, new int[] { userId });
             final long callingId = Binder.clearCallingIdentity();
             try {
@@ -22428,10 +23030,11 @@ Slog.v(TAG, ":: stepped forward, applying functor at tag " + parser.getName());
         enforceCrossUserPermission(Binder.getCallingUid(), userId, false /* requireFullPermission*/,
                 false /* checkShell */, "flushPackageRestrictions");
         synchronized (mPackages) {
-            mSettings.writePackageRestrictionsLPr(userId);
+            writePackageRestrictionsLPr(userId);
             mDirtyUsers.remove(userId);
             if (mDirtyUsers.isEmpty()) {
                 mHandler.removeMessages(WRITE_PACKAGE_RESTRICTIONS);
+                mHandler.removeMessages(WRITE_JOURNALED_PACKAGE_RESTRICTIONS);
             }
         }
     }
@@ -22547,12 +23150,14 @@ Slog.v(TAG, ":: stepped forward, applying functor at tag " + parser.getName());
         enforceSystemOrRoot("Only the system can claim the system is ready");
 
          //20191227 pjz add for system app grant permission S
-        if (mFirstBoot) {
-            MTKPackageManagerUtil.slientGrantRuntimePermission(mContext, mSettings);
-        }
+        // Runs every boot; it is a no-op unless the list or a listed package changed.
+        MTKPackageManagerUtil.slientGrantRuntimePermission(mContext, this);
         //20191227 pjz add for system app grant permission E
 
         mSystemReady = true;
+        // Boot-time changes were not published; build the first snapshot now.
+        invalidatePermissionSnapshot();
+        warmPackageParserCache();
         final ContentResolver resolver = mContext.getContentResolver();
         ContentObserver co = new ContentObserver(mHandler) {
             @Override
@@ -22610,7 +23215,7 @@ Slog.v(TAG, ":: stepped forward, applying functor at tag " + parser.getName());
                                 + pa.mPref.mComponent);
                         pir.removeFilter(pa);
                     }
-                    mSettings.writePackageRestrictionsLPr(
+                    writePackageRestrictionsLPr(
                             mSettings.mPreferredActivities.keyAt(i));
                 }
             }
@@ -23026,7 +23631,7 @@ Slog.v(TAG, ":: stepped forward, applying functor at tag " + parser.getName());
                 dumpState.setDump(DumpState.DUMP_CHANGES);
             } else if ("write".equals(cmd)) {
                 synchronized (mPackages) {
-                    mSettings.writeLPr();
+                    writeSettingsLPr();
                     pw.println("Settings written.");
                     return;
                 }
@@ -23403,6 +24008,32 @@ Slog.v(TAG, ":: stepped forward, applying functor at tag " + parser.getName());
                     }
                 }
                 ipw.decreaseIndent();
+
+                pw.println();
+                pw.println("Package broadcasts:");
+                mPackageBroadcastDispatcher.dump(pw);
+
+                pw.println();
+                pw.println("Package state journal:");
+                synchronized (mPackages) {
+                    mPackageStateJournal.dump(pw);
+                }
+
+                pw.println();
+                pw.println("Activity resolve cache:");
+                synchronized (mPackages) {
+                    mActivityResolveCache.dump(pw);
+                }
+
+                pw.println();
+                pw.println("Permission snapshot:");
+                final PermissionSnapshot snapshot = mPermissionSnapshot;
+                if (snapshot == null) {
+                    pw.print("  (pending) generation=");
+                    pw.println(mPermissionSnapshotGeneration.get());
+                } else {
+                    snapshot.dump(pw);
+                }
             }
 
             if (!checkin && dumpState.isDumping(DumpState.DUMP_VOLUMES) && packageName == null) {
@@ -23958,7 +24589,7 @@ Slog.v(TAG, ":: stepped forward, applying functor at tag " + parser.getName());
 
             // can downgrade to reader
             // Persist settings
-            mSettings.writeLPr();
+            writeSettingsLPr();
         }
         // Send a broadcast to let everyone know we are done processing
         if (pkgList.size() > 0) {
@@ -24021,7 +24652,7 @@ Slog.v(TAG, ":: stepped forward, applying functor at tag " + parser.getName());
         synchronized (mPackages) {
             // We didn't update the settings after removing each package;
             // write them now for all packages.
-            mSettings.writeLPr();
+            writeSettingsLPr();
         }
 
         // We have to absolutely send UPDATED_MEDIA_STATUS only
@@ -24130,7 +24761,7 @@ Slog.v(TAG, ":: stepped forward, applying functor at tag " + parser.getName());
             // Yay, everything is now upgraded
             ver.forceCurrent();
 
-            mSettings.writeLPr();
+            writeSettingsLPr();
         }
 
         for (PackageFreezer freezer : freezers) {
@@ -24185,7 +24816,7 @@ Slog.v(TAG, ":: stepped forward, applying functor at tag " + parser.getName());
                 AttributeCache.instance().removePackage(ps.name);
             }
 
-            mSettings.writeLPr();
+            writeSettingsLPr();
         }
         }
 
@@ -25057,6 +25688,10 @@ Slog.v(TAG, ":: stepped forward, applying functor at tag " + parser.getName());
     /** Called by UserManagerService */
     void cleanUpUser(UserManagerService userManager, int userHandle) {
         synchronized (mPackages) {
+            invalidatePermissionSnapshot();
+            invalidateResolveCacheLocked();
+            // Do not replay a removed user's changes onto a later user with the same id
+            mPackageStateJournal.onUsersWrittenLPw(new int[] { userHandle });
             mDirtyUsers.remove(userHandle);
             mUserNeedsBadging.delete(userHandle);
             mSettings.removeUserLPw(userHandle);
@@ -25125,6 +25760,7 @@ Slog.v(TAG, ":: stepped forward, applying functor at tag " + parser.getName());
             mSettings.createNewUserLI(this, mInstaller, userId, disallowedPackages);
         }
         synchronized (mPackages) {
+            invalidatePermissionSnapshot();
             scheduleWritePackageRestrictionsLocked(userId);
             scheduleWritePackageListLocked(userId);
             applyFactoryDefaultBrowserLPw(userId);
@@ -25166,7 +25802,7 @@ Slog.v(TAG, ":: stepped forward, applying functor at tag " + parser.getName());
                 if (mSettings.mReadExternalStorageEnforced == null
                         || mSettings.mReadExternalStorageEnforced != enforced) {
                     mSettings.mReadExternalStorageEnforced = enforced;
-                    mSettings.writeLPr();
+                    writeSettingsLPr();
                 }
             }
             // kill any non-foreground processes so we restart them and
@@ -0,0 +1,361 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.pm;
+
+import static android.content.pm.PackageManager.COMPONENT_ENABLED_STATE_DISABLED;
+import static android.content.pm.PackageManager.COMPONENT_ENABLED_STATE_ENABLED;
+
+import android.os.Handler;
+import android.util.AtomicFile;
+import android.util.Slog;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.ArrayUtils;
+
+import libcore.io.IoUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only binary log of application and component enabled state changes. Each change is
+ * appended as one small record, so the full package-restrictions XML of the user can be
+ * rewritten much later, once for many changes. The XML files stay the source of truth: after
+ * they are written for a user, that user's records are dropped from the journal, and on boot
+ * whatever is left is replayed on top of what {@link Settings#readLPw} loaded.
+ *
+ * <p>All methods must be called with {@code mPackages} held. Appends are synced to disk
+ * afterwards on the sync handler, without the lock, and a burst of appends shares one sync.
+ */
+final class PackageStateJournal {
+    private static final String TAG = "PackageStateJournal";
+
+    private static final int MAGIC = 0x50534a31; // "PSJ1"
+    private static final int HEADER_SIZE = 4;
+
+    /** Past this many records the owner should compact by writing the restrictions. */
+    static final int COMPACT_THRESHOLD = 128;
+
+    @VisibleForTesting
+    static final class Record {
+        final int userId;
+        final String packageName;
+        /** Null for a change of the whole application. */
+        final String className;
+        final int state;
+        final String callingPackage;
+
+        Record(int userId, String packageName, String className, int state,
+                String callingPackage) {
+            this.userId = userId;
+            this.packageName = packageName;
+            this.className = className;
+            this.state = state;
+            this.callingPackage = callingPackage;
+        }
+    }
+
+    private final File mFile;
+    private final Handler mSyncHandler;
+    private final AtomicBoolean mSyncPending = new AtomicBoolean();
+    private final Runnable mSyncRunnable = this::sync;
+    /** Mirror of the records on disk, so dropping a user does not need to read it back. */
+    private final ArrayList<Record> mRecords = new ArrayList<>();
+    private long mAppendedBytes;
+    private int mCompactions;
+    // Only written on the sync handler
+    private volatile int mSyncs;
+
+    PackageStateJournal(File file, Handler syncHandler) {
+        mFile = file;
+        mSyncHandler = syncHandler;
+    }
+
+    int size() {
+        return mRecords.size();
+    }
+
+    boolean needsCompaction() {
+        return mRecords.size() >= COMPACT_THRESHOLD;
+    }
+
+    /**
+     * Records the current enabled state of an application ({@code className} null) or one of
+     * its components. The record reaches the disk with the next sync on the sync handler.
+     *
+     * @return false if the record could not be written; the caller must then persist the
+     *         change through the XML files as before.
+     */
+    boolean appendLPw(int userId, String packageName, String className, int state,
+            String callingPackage) {
+        final Record record = new Record(userId, packageName, className, state,
+                callingPackage);
+        FileOutputStream out = null;
+        try {
+            final byte[] bytes = encode(record, mFile.length() == 0);
+            out = new FileOutputStream(mFile, true /* append */);
+            out.write(bytes);
+            mAppendedBytes += bytes.length;
+        } catch (IOException e) {
+            Slog.w(TAG, "Failed to append to " + mFile, e);
+            return false;
+        } finally {
+            IoUtils.closeQuietly(out);
+        }
+        mRecords.add(record);
+        if (mSyncPending.compareAndSet(false, true)) {
+            mSyncHandler.post(mSyncRunnable);
+        }
+        return true;
+    }
+
+    /** Flushes the appended records; runs on the sync handler without {@code mPackages}. */
+    private void sync() {
+        mSyncPending.set(false);
+        FileInputStream in = null;
+        try {
+            // Syncing any descriptor of the file flushes the data written through the others
+            in = new FileInputStream(mFile);
+            in.getFD().sync();
+            mSyncs++;
+        } catch (FileNotFoundException e) {
+            // Dropped after the restrictions were written; nothing left to sync
+        } catch (IOException e) {
+            Slog.w(TAG, "Failed to sync " + mFile, e);
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Applies the records left over from before the last shutdown.
+     *
+     * @return the user ids whose state was changed.
+     */
+    int[] replayLPw(Settings settings, int[] userIds) {
+        readLPw();
+        int[] changedUserIds = new int[0];
+        for (int i = 0; i < mRecords.size(); i++) {
+            final Record record = mRecords.get(i);
+            final PackageSetting ps = settings.mPackages.get(record.packageName);
+            if (ps == null || !ArrayUtils.contains(userIds, record.userId)) {
+                continue;
+            }
+            if (record.className == null) {
+                ps.setEnabled(record.state, record.userId, record.callingPackage);
+            } else if (record.state == COMPONENT_ENABLED_STATE_ENABLED) {
+                ps.enableComponentLPw(record.className, record.userId);
+            } else if (record.state == COMPONENT_ENABLED_STATE_DISABLED) {
+                ps.disableComponentLPw(record.className, record.userId);
+            } else {
+                ps.restoreComponentLPw(record.className, record.userId);
+            }
+            changedUserIds = ArrayUtils.appendInt(changedUserIds, record.userId);
+        }
+        Slog.i(TAG, "Replayed " + mRecords.size() + " package state changes");
+        return changedUserIds;
+    }
+
+    /**
+     * Loads the records left over from before the last shutdown, and drops anything after the
+     * last whole one from the file, so that records appended from now on are read back.
+     */
+    @VisibleForTesting
+    void readLPw() {
+        mRecords.clear();
+        final byte[] bytes;
+        try {
+            // Prefers the backup left by an interrupted rewrite
+            bytes = new AtomicFile(mFile).readFully();
+        } catch (FileNotFoundException e) {
+            // Nothing to replay
+            return;
+        } catch (IOException e) {
+            Slog.w(TAG, "Failed to read " + mFile, e);
+            return;
+        }
+        final int length = decode(bytes, mRecords);
+        if (length < 0) {
+            Slog.w(TAG, "Ignoring " + mFile + " with bad header");
+        } else if (length != bytes.length) {
+            Slog.w(TAG, "Dropping " + (bytes.length - length) + " torn bytes from " + mFile);
+        }
+        if (length != bytes.length) {
+            mCompactions++;
+            rewriteLPw();
+        }
+    }
+
+    /**
+     * Drops the records of users whose package restrictions were just written in full.
+     *
+     * @param userIds the users written, or null for all of them.
+     */
+    void onUsersWrittenLPw(int[] userIds) {
+        final int before = mRecords.size();
+        if (userIds != null) {
+            for (int i = mRecords.size() - 1; i >= 0; i--) {
+                if (ArrayUtils.contains(userIds, mRecords.get(i).userId)) {
+                    mRecords.remove(i);
+                }
+            }
+        } else {
+            mRecords.clear();
+        }
+        if (mRecords.size() == before && (before > 0 || !mFile.exists())) {
+            return;
+        }
+        mCompactions++;
+        // Keeps the records other users still need, if any
+        rewriteLPw();
+    }
+
+    /** Replaces the file by {@link #mRecords}. */
+    private void rewriteLPw() {
+        if (mRecords.isEmpty()) {
+            mFile.delete();
+            return;
+        }
+        final AtomicFile file = new AtomicFile(mFile);
+        FileOutputStream out = null;
+        try {
+            out = file.startWrite();
+            for (int i = 0; i < mRecords.size(); i++) {
+                out.write(encode(mRecords.get(i), i == 0));
+            }
+            file.finishWrite(out);
+        } catch (IOException e) {
+            Slog.w(TAG, "Failed to rewrite " + mFile, e);
+            file.failWrite(out);
+        }
+    }
+
+    @VisibleForTesting
+    static byte[] encode(Record record, boolean withHeader) throws IOException {
+        final ByteArrayOutputStream payload = new ByteArrayOutputStream(128);
+        final DataOutputStream data = new DataOutputStream(payload);
+        data.writeInt(record.userId);
+        data.writeUTF(record.packageName);
+        data.writeBoolean(record.className != null);
+        if (record.className != null) {
+            data.writeUTF(record.className);
+        }
+        data.writeInt(record.state);
+        data.writeBoolean(record.callingPackage != null);
+        if (record.callingPackage != null) {
+            data.writeUTF(record.callingPackage);
+        }
+        data.flush();
+
+        final CRC32 crc = new CRC32();
+        crc.update(payload.toByteArray());
+        final ByteArrayOutputStream framed = new ByteArrayOutputStream(payload.size() + 16);
+        final DataOutputStream out = new DataOutputStream(framed);
+        if (withHeader) {
+            out.writeInt(MAGIC);
+        }
+        out.writeInt(payload.size());
+        out.writeLong(crc.getValue());
+        payload.writeTo(out);
+        out.flush();
+        return framed.toByteArray();
+    }
+
+    /**
+     * Reads the records in the contents of a journal file, up to the end or to a record torn
+     * by a crash.
+     *
+     * @param out receives the records read.
+     * @return the number of bytes up to the end of the last whole record, or -1 if the file
+     *         does not start with the header.
+     */
+    @VisibleForTesting
+    static int decode(byte[] bytes, List<Record> out) {
+        if (bytes.length == 0) {
+            return 0;
+        }
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        int length = HEADER_SIZE;
+        try {
+            if (in.readInt() != MAGIC) {
+                return -1;
+            }
+            Record record;
+            while ((record = readRecord(in)) != null) {
+                out.add(record);
+                length = bytes.length - in.available();
+            }
+        } catch (EOFException e) {
+            if (length > bytes.length) {
+                // Torn within the header
+                return -1;
+            }
+        } catch (IOException e) {
+            // Cannot happen with a checksum that matched; treat as torn
+        }
+        return length;
+    }
+
+    /** @return the next record, or null at the end or at a record torn by a crash. */
+    private static Record readRecord(DataInputStream in) throws IOException {
+        final int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (length <= 0 || length > 4096) {
+            return null;
+        }
+        final long expectedCrc = in.readLong();
+        final byte[] payload = new byte[length];
+        in.readFully(payload);
+        final CRC32 crc = new CRC32();
+        crc.update(payload);
+        if (crc.getValue() != expectedCrc) {
+            return null;
+        }
+        final DataInputStream data = new DataInputStream(
+                new ByteArrayInputStream(payload));
+        final int userId = data.readInt();
+        final String packageName = data.readUTF();
+        final String className = data.readBoolean() ? data.readUTF() : null;
+        final int state = data.readInt();
+        final String callingPackage = data.readBoolean() ? data.readUTF() : null;
+        return new Record(userId, packageName, className, state, callingPackage);
+    }
+
+    void dump(PrintWriter pw) {
+        pw.print("  records="); pw.print(mRecords.size());
+        pw.print(" appendedBytes="); pw.print(mAppendedBytes);
+        pw.print(" syncs="); pw.print(mSyncs);
+        pw.print(" compactions="); pw.println(mCompactions);
+    }
+}
@@ -0,0 +1,332 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.pm;
+
+import static android.content.pm.PackageManager.COMPONENT_ENABLED_STATE_DEFAULT;
+import static android.content.pm.PackageManager.COMPONENT_ENABLED_STATE_DISABLED_USER;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.os.test.TestLooper;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import com.android.internal.util.FastXmlSerializer;
+import com.android.server.pm.PackageStateJournal.Record;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.xmlpull.v1.XmlSerializer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Encodes and decodes random {@link PackageStateJournal} records, reads journals cut short at
+ * every byte, and compares the cost of journaling one change with rewriting the restrictions
+ * of 1000 packages.
+ */
+@RunWith(JUnit4.class)
+public class PackageStateJournalTest {
+    private static final String TAG = "PackageStateJournalTest";
+    private static final long SEED = 5551212;
+    private static final int ROUNDS = 200;
+    private static final int BENCHMARK_PACKAGES = 1000;
+    private static final int BENCHMARK_CHANGES = 50;
+
+    private File mDir;
+    private File mFile;
+    private TestLooper mLooper;
+    private Random mRandom;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = Files.createTempDirectory("PackageStateJournalTest").toFile();
+        mFile = new File(mDir, "package-state-journal");
+        mLooper = new TestLooper();
+        mRandom = new Random(SEED);
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : mDir.listFiles()) {
+            file.delete();
+        }
+        mDir.delete();
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        for (int round = 0; round < ROUNDS; round++) {
+            final List<Record> records = randomRecords(1 + mRandom.nextInt(20));
+            final ArrayList<Record> decoded = new ArrayList<>();
+            final byte[] bytes = encodeAll(records, null);
+            assertEquals(bytes.length, PackageStateJournal.decode(bytes, decoded));
+            assertRecordsEqual(records, decoded);
+        }
+    }
+
+    @Test
+    public void testTornTailAtEveryOffset() throws IOException {
+        final List<Record> records = randomRecords(6);
+        final ArrayList<Integer> ends = new ArrayList<>();
+        final byte[] bytes = encodeAll(records, ends);
+
+        for (int length = 0; length <= bytes.length; length++) {
+            final ArrayList<Record> decoded = new ArrayList<>();
+            final int decodedLength = PackageStateJournal.decode(
+                    Arrays.copyOf(bytes, length), decoded);
+            if (length > 0 && length < 4) {
+                // Not even the header is complete
+                assertEquals("length " + length, -1, decodedLength);
+                assertTrue(decoded.isEmpty());
+                continue;
+            }
+            int whole = 0;
+            while (whole < ends.size() && ends.get(whole) <= length) {
+                whole++;
+            }
+            assertRecordsEqual(records.subList(0, whole), decoded);
+            assertEquals("length " + length,
+                    length == 0 ? 0 : whole > 0 ? ends.get(whole - 1) : 4, decodedLength);
+        }
+    }
+
+    @Test
+    public void testCorruptRecordEndsTheJournal() throws IOException {
+        final List<Record> records = randomRecords(4);
+        final ArrayList<Integer> ends = new ArrayList<>();
+        final byte[] bytes = encodeAll(records, ends);
+        // Flip a bit in the payload of the third record
+        bytes[ends.get(2) - 1] ^= 1;
+
+        final ArrayList<Record> decoded = new ArrayList<>();
+        assertEquals((int) ends.get(1), PackageStateJournal.decode(bytes, decoded));
+        assertRecordsEqual(records.subList(0, 2), decoded);
+    }
+
+    @Test
+    public void testBadHeader() {
+        final ArrayList<Record> decoded = new ArrayList<>();
+        assertEquals(-1, PackageStateJournal.decode(new byte[] { 1, 2, 3, 4, 5, 6 }, decoded));
+        assertTrue(decoded.isEmpty());
+    }
+
+    @Test
+    public void testAppendAfterTornTailIsRead() throws IOException {
+        PackageStateJournal journal = newJournal();
+        final List<Record> records = randomRecords(3);
+        for (Record record : records) {
+            append(journal, record);
+        }
+        final byte[] bytes = Files.readAllBytes(mFile.toPath());
+        final int lastLength = PackageStateJournal.encode(records.get(2), false).length;
+
+        // A crash can interrupt the append of the last record after any byte
+        for (int cut = 1; cut < lastLength; cut++) {
+            writeFile(Arrays.copyOf(bytes, bytes.length - cut));
+            journal = newJournal();
+            journal.readLPw();
+            assertEquals("cut " + cut, 2, journal.size());
+
+            // Records appended later must not end up behind the torn one
+            append(journal, records.get(2));
+            journal = newJournal();
+            journal.readLPw();
+            assertEquals("cut " + cut, 3, journal.size());
+        }
+    }
+
+    @Test
+    public void testBadHeaderIsDropped() throws IOException {
+        writeFile(new byte[] { 1, 2, 3, 4, 5, 6 });
+        PackageStateJournal journal = newJournal();
+        journal.readLPw();
+        assertEquals(0, journal.size());
+        assertFalse(mFile.exists());
+
+        append(journal, randomRecords(1).get(0));
+        journal = newJournal();
+        journal.readLPw();
+        assertEquals(1, journal.size());
+    }
+
+    /**
+     * Logs how long journaling one enabled state change takes, including its sync, and how
+     * long writing the restrictions of {@link #BENCHMARK_PACKAGES} packages takes, which is
+     * what every change cost before the journal.
+     */
+    @Test
+    public void testWriteLatency() throws IOException {
+        final PackageStateJournal journal = newJournal();
+        final File xml = new File(mDir, "package-restrictions.xml");
+        // Warm up both paths before measuring
+        append(journal, randomRecords(1).get(0));
+        writeRestrictions(xml);
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < BENCHMARK_CHANGES; i++) {
+            final String packageName = packageName(mRandom.nextInt(BENCHMARK_PACKAGES));
+            assertTrue(journal.appendLPw(0, packageName, null,
+                    COMPONENT_ENABLED_STATE_DISABLED_USER, "com.android.settings"));
+            // Each change synced on its own, as when changes come in one at a time
+            mLooper.dispatchAll();
+        }
+        final long journalNs = (SystemClock.elapsedRealtimeNanos() - start) / BENCHMARK_CHANGES;
+
+        start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < BENCHMARK_CHANGES; i++) {
+            writeRestrictions(xml);
+        }
+        final long xmlNs = (SystemClock.elapsedRealtimeNanos() - start) / BENCHMARK_CHANGES;
+
+        start = SystemClock.elapsedRealtimeNanos();
+        journal.readLPw();
+        final long readNs = SystemClock.elapsedRealtimeNanos() - start;
+
+        Log.d(TAG, "Per change with " + BENCHMARK_PACKAGES + " packages: journal append "
+                + journalNs / 1000 + " us, restrictions write " + xmlNs / 1000 + " us ("
+                + xml.length() / 1024 + " KB); reading " + journal.size() + " records "
+                + readNs / 1000 + " us");
+        assertEquals(BENCHMARK_CHANGES + 1, journal.size());
+    }
+
+    private PackageStateJournal newJournal() {
+        return new PackageStateJournal(mFile, new Handler(mLooper.getLooper()));
+    }
+
+    private void append(PackageStateJournal journal, Record record) {
+        assertTrue(journal.appendLPw(record.userId, record.packageName, record.className,
+                record.state, record.callingPackage));
+        mLooper.dispatchAll();
+    }
+
+    /** Roughly what {@code Settings#writePackageRestrictionsLPr} writes for each package. */
+    private static void writeRestrictions(File file) throws IOException {
+        final AtomicFile atomicFile = new AtomicFile(file);
+        final FileOutputStream out = atomicFile.startWrite();
+        try {
+            final XmlSerializer serializer = new FastXmlSerializer();
+            serializer.setOutput(out, StandardCharsets.UTF_8.name());
+            serializer.startDocument(null, true);
+            serializer.startTag(null, "package-restrictions");
+            for (int i = 0; i < BENCHMARK_PACKAGES; i++) {
+                serializer.startTag(null, "pkg");
+                serializer.attribute(null, "name", packageName(i));
+                serializer.attribute(null, "ceDataInode", Long.toString(100000L + i));
+                if (i % 10 == 0) {
+                    serializer.attribute(null, "enabled",
+                            Integer.toString(COMPONENT_ENABLED_STATE_DISABLED_USER));
+                    serializer.attribute(null, "enabledCaller", "com.android.settings");
+                }
+                serializer.endTag(null, "pkg");
+            }
+            serializer.endTag(null, "package-restrictions");
+            serializer.endDocument();
+            atomicFile.finishWrite(out);
+        } catch (IOException e) {
+            atomicFile.failWrite(out);
+            throw e;
+        }
+    }
+
+    private void writeFile(byte[] content) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(mFile)) {
+            out.write(content);
+        }
+    }
+
+    /** @param ends if not null, receives the offset just past each record */
+    private static byte[] encodeAll(List<Record> records, List<Integer> ends)
+            throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < records.size(); i++) {
+            out.write(PackageStateJournal.encode(records.get(i), i == 0));
+            if (ends != null) {
+                ends.add(out.size());
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private List<Record> randomRecords(int count) {
+        final ArrayList<Record> records = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            records.add(new Record(mRandom.nextInt(20) * 10,
+                    randomName(),
+                    mRandom.nextBoolean() ? randomName() + ".Component" : null,
+                    COMPONENT_ENABLED_STATE_DEFAULT + mRandom.nextInt(5),
+                    mRandom.nextBoolean() ? randomName() : null));
+        }
+        return records;
+    }
+
+    /** Package and class names may use any letters, not just ASCII. */
+    private String randomName() {
+        final StringBuilder name = new StringBuilder("com.example.");
+        final int length = mRandom.nextInt(40);
+        for (int i = 0; i < length; i++) {
+            switch (mRandom.nextInt(4)) {
+                case 0:
+                    name.append((char) ('0' + mRandom.nextInt(10)));
+                    break;
+                case 1:
+                    name.append((char) ('\u00c0' + mRandom.nextInt(0x100)));
+                    break;
+                case 2:
+                    name.append((char) ('\u4e00' + mRandom.nextInt(0x1000)));
+                    break;
+                default:
+                    name.append((char) ('a' + mRandom.nextInt(26)));
+                    break;
+            }
+        }
+        return name.toString();
+    }
+
+    private static String packageName(int index) {
+        return String.format("com.example.app%04d", index);
+    }
+
+    private static void assertRecordsEqual(List<Record> expected, List<Record> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            final Record e = expected.get(i);
+            final Record a = actual.get(i);
+            assertEquals(e.userId, a.userId);
+            assertEquals(e.packageName, a.packageName);
+            assertEquals(e.className, a.className);
+            assertEquals(e.state, a.state);
+            assertEquals(e.callingPackage, a.callingPackage);
+        }
+    }
+}
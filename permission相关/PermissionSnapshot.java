@@ -0,0 +1,286 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.pm;
+
+import android.Manifest;
+import android.annotation.Nullable;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageParser;
+import android.os.Process;
+import android.os.UserHandle;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Immutable copy of the granted permission state, built under {@code mPackages} and published
+ * by {@link PackageManagerService} after the state changes. Permission checks read it without
+ * taking {@code mPackages}, so they are not blocked by installs or
+ * {@code updatePermissionsLPw}.
+ *
+ * <p>Every granted permission name is interned into a dense index while the snapshot is built,
+ * and the grants of each app and user are kept as a bitset over those indices. A check by name
+ * costs one index lookup and one word test, location included. An index stays the same in
+ * every later snapshot built from this one, so a caller that checks the same permission over
+ * and over can look it up once with {@link #getPermissionIndex} and check by index.
+ *
+ * <p>Instant apps, either as caller or as target, need visibility filtering that is only
+ * available under the lock; those checks return {@link #RESULT_UNKNOWN} and the caller falls
+ * back to the locked path.
+ */
+final class PermissionSnapshot {
+    /** The snapshot cannot answer; use the locked path. */
+    static final int RESULT_UNKNOWN = Integer.MIN_VALUE;
+
+    /** Returned by {@link #getPermissionIndex} for a permission nobody has been granted. */
+    static final int NO_INDEX = -1;
+
+    private static final long[] EMPTY_BITS = new long[0];
+
+    final long version;
+
+    /** Permission name -> bit index; only ever grows from one snapshot to the next. */
+    private final ArrayMap<String, Integer> mPermissionIndices;
+    private final int mFineLocationIndex;
+    private final int mCoarseLocationIndex;
+    /** appId -> userId -> bitset of granted permission indices. */
+    private final SparseArray<SparseArray<long[]>> mGrantedPermissions;
+    /** Packages in {@code mPackages} -> appId. */
+    private final ArrayMap<String, Integer> mPackageAppIds;
+    /** appIds that are an instant app for at least one user. */
+    private final SparseBooleanArray mInstantAppIds;
+    /** uid -> bitset of the permissions SystemConfig grants it. */
+    private final SparseArray<long[]> mSystemPermissions;
+
+    private PermissionSnapshot(long version, ArrayMap<String, Integer> permissionIndices,
+            SparseArray<SparseArray<long[]>> grantedPermissions,
+            ArrayMap<String, Integer> packageAppIds, SparseBooleanArray instantAppIds,
+            SparseArray<long[]> systemPermissions) {
+        this.version = version;
+        mPermissionIndices = permissionIndices;
+        mFineLocationIndex = indexOf(permissionIndices, Manifest.permission.ACCESS_FINE_LOCATION);
+        mCoarseLocationIndex = indexOf(permissionIndices,
+                Manifest.permission.ACCESS_COARSE_LOCATION);
+        mGrantedPermissions = grantedPermissions;
+        mPackageAppIds = packageAppIds;
+        mInstantAppIds = instantAppIds;
+        mSystemPermissions = systemPermissions;
+    }
+
+    /**
+     * Must be called with {@code mPackages} held.
+     *
+     * @param previous The last snapshot built, whose permission indices are kept, or null
+     */
+    static PermissionSnapshot buildLPr(long version, @Nullable PermissionSnapshot previous,
+            Settings settings, ArrayMap<String, PackageParser.Package> packages, int[] userIds,
+            SparseArray<ArraySet<String>> systemPermissions) {
+        return build(version, previous, settings.mPackages, settings.mSharedUsers, packages,
+                userIds, systemPermissions);
+    }
+
+    /**
+     * @param previous The last snapshot built, whose permission indices are kept, or null
+     * @param packageSettings Package name -> setting, as {@code Settings.mPackages}
+     * @param sharedUsers Shared user name -> setting, as {@code Settings.mSharedUsers}
+     * @param packages Package name -> package, as {@code PackageManagerService.mPackages}
+     */
+    @VisibleForTesting
+    static PermissionSnapshot build(long version, @Nullable PermissionSnapshot previous,
+            ArrayMap<String, PackageSetting> packageSettings,
+            ArrayMap<String, SharedUserSetting> sharedUsers,
+            ArrayMap<String, PackageParser.Package> packages, int[] userIds,
+            SparseArray<ArraySet<String>> systemPermissions) {
+        final ArrayMap<String, Integer> permissionIndices = previous != null
+                ? new ArrayMap<>(previous.mPermissionIndices) : new ArrayMap<>();
+        // Always indexed, so that no unknown permission can pass for COARSE below
+        intern(Manifest.permission.ACCESS_FINE_LOCATION, permissionIndices);
+        intern(Manifest.permission.ACCESS_COARSE_LOCATION, permissionIndices);
+        final SparseArray<SparseArray<long[]>> granted = new SparseArray<>();
+        final ArrayMap<String, Integer> packageAppIds = new ArrayMap<>(packages.size());
+        final SparseBooleanArray instantAppIds = new SparseBooleanArray();
+
+        for (int i = 0; i < packageSettings.size(); i++) {
+            final PackageSetting ps = packageSettings.valueAt(i);
+            for (int userId : userIds) {
+                if (ps.getInstantApp(userId)) {
+                    instantAppIds.put(ps.appId, true);
+                }
+            }
+            if (granted.get(ps.appId) == null) {
+                granted.put(ps.appId,
+                        copyGrants(ps.getPermissionsState(), userIds, permissionIndices));
+            }
+        }
+        for (int i = 0; i < sharedUsers.size(); i++) {
+            final SharedUserSetting sus = sharedUsers.valueAt(i);
+            if (granted.get(sus.userId) == null) {
+                granted.put(sus.userId,
+                        copyGrants(sus.getPermissionsState(), userIds, permissionIndices));
+            }
+        }
+        for (int i = 0; i < packages.size(); i++) {
+            final PackageParser.Package pkg = packages.valueAt(i);
+            if (pkg.mExtras != null) {
+                packageAppIds.put(packages.keyAt(i),
+                        ((PackageSetting) pkg.mExtras).appId);
+            }
+        }
+        final SparseArray<long[]> systemGrants = new SparseArray<>(systemPermissions.size());
+        for (int i = 0; i < systemPermissions.size(); i++) {
+            systemGrants.put(systemPermissions.keyAt(i),
+                    toBits(systemPermissions.valueAt(i), permissionIndices));
+        }
+        return new PermissionSnapshot(version, permissionIndices, granted, packageAppIds,
+                instantAppIds, systemGrants);
+    }
+
+    private static SparseArray<long[]> copyGrants(PermissionsState state, int[] userIds,
+            ArrayMap<String, Integer> permissionIndices) {
+        final SparseArray<long[]> byUser = new SparseArray<>(userIds.length);
+        for (int userId : userIds) {
+            byUser.put(userId, toBits(state.getPermissions(userId), permissionIndices));
+        }
+        return byUser;
+    }
+
+    /** Interns {@code permNames} into {@code permissionIndices} and returns their bitset. */
+    private static long[] toBits(Collection<String> permNames,
+            ArrayMap<String, Integer> permissionIndices) {
+        long[] bits = EMPTY_BITS;
+        for (String permName : permNames) {
+            final int index = intern(permName, permissionIndices);
+            final int word = index >>> 6;
+            if (word >= bits.length) {
+                bits = Arrays.copyOf(bits, word + 1);
+            }
+            bits[word] |= 1L << index;
+        }
+        return bits;
+    }
+
+    private static int intern(String permName, ArrayMap<String, Integer> permissionIndices) {
+        Integer index = permissionIndices.get(permName);
+        if (index == null) {
+            index = permissionIndices.size();
+            permissionIndices.put(permName, index);
+        }
+        return index;
+    }
+
+    private static int indexOf(ArrayMap<String, Integer> permissionIndices, String permName) {
+        final Integer index = permissionIndices.get(permName);
+        return index != null ? index : NO_INDEX;
+    }
+
+    private static boolean isSet(long[] bits, int index) {
+        final int word = index >>> 6;
+        return index >= 0 && word < bits.length && (bits[word] & (1L << index)) != 0;
+    }
+
+    /**
+     * Returns the index to pass to the index based checks for {@code permName}, or
+     * {@link #NO_INDEX} if nobody held it when this snapshot was built. An index is valid for
+     * this snapshot and every later one; {@link #NO_INDEX} has to be looked up again in the
+     * next snapshot.
+     */
+    int getPermissionIndex(String permName) {
+        return indexOf(mPermissionIndices, permName);
+    }
+
+    private boolean isCallerSupported(int callingUid) {
+        return !Process.isIsolated(callingUid)
+                && !mInstantAppIds.get(UserHandle.getAppId(callingUid));
+    }
+
+    /** Lock-free equivalent of {@link PackageManagerService#checkPermission}. */
+    int checkPermission(String permName, String pkgName, int userId, int callingUid) {
+        return checkPermission(getPermissionIndex(permName), pkgName, userId, callingUid);
+    }
+
+    /** {@link #checkPermission(String, String, int, int)} by {@link #getPermissionIndex}. */
+    int checkPermission(int permIndex, String pkgName, int userId, int callingUid) {
+        if (!isCallerSupported(callingUid)) {
+            return RESULT_UNKNOWN;
+        }
+        final Integer appId = mPackageAppIds.get(pkgName);
+        if (appId == null) {
+            return PackageManager.PERMISSION_DENIED;
+        }
+        if (mInstantAppIds.get(appId)) {
+            return RESULT_UNKNOWN;
+        }
+        return checkGranted(mGrantedPermissions.get(appId), permIndex, userId);
+    }
+
+    /** Lock-free equivalent of {@link PackageManagerService#checkUidPermission}. */
+    int checkUidPermission(String permName, int uid, int callingUid) {
+        return checkUidPermission(getPermissionIndex(permName), uid, callingUid);
+    }
+
+    /** {@link #checkUidPermission(String, int, int)} by {@link #getPermissionIndex}. */
+    int checkUidPermission(int permIndex, int uid, int callingUid) {
+        if (!isCallerSupported(callingUid)) {
+            return RESULT_UNKNOWN;
+        }
+        final int appId = UserHandle.getAppId(uid);
+        if (mInstantAppIds.get(appId)) {
+            return RESULT_UNKNOWN;
+        }
+        final SparseArray<long[]> byUser = mGrantedPermissions.get(appId);
+        if (byUser != null) {
+            return checkGranted(byUser, permIndex, UserHandle.getUserId(uid));
+        }
+        final long[] bits = mSystemPermissions.get(uid);
+        return bits != null ? checkBits(bits, permIndex) : PackageManager.PERMISSION_DENIED;
+    }
+
+    private int checkGranted(SparseArray<long[]> byUser, int permIndex, int userId) {
+        final long[] bits = byUser != null ? byUser.get(userId) : null;
+        if (bits == null) {
+            // A user created after this snapshot; let the locked path decide.
+            return byUser != null ? RESULT_UNKNOWN : PackageManager.PERMISSION_DENIED;
+        }
+        return checkBits(bits, permIndex);
+    }
+
+    private int checkBits(long[] bits, int permIndex) {
+        if (isSet(bits, permIndex)) {
+            return PackageManager.PERMISSION_GRANTED;
+        }
+        // Special case: ACCESS_FINE_LOCATION permission includes ACCESS_COARSE_LOCATION
+        if (permIndex == mCoarseLocationIndex && isSet(bits, mFineLocationIndex)) {
+            return PackageManager.PERMISSION_GRANTED;
+        }
+        return PackageManager.PERMISSION_DENIED;
+    }
+
+    void dump(PrintWriter pw) {
+        pw.print("  version="); pw.print(version);
+        pw.print(" packages="); pw.print(mPackageAppIds.size());
+        pw.print(" appIds="); pw.print(mGrantedPermissions.size());
+        pw.print(" permissions="); pw.print(mPermissionIndices.size());
+        pw.print(" instantAppIds="); pw.println(mInstantAppIds.size());
+    }
+}
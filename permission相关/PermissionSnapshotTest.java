@@ -0,0 +1,596 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.pm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.Manifest;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageParser;
+import android.os.Process;
+import android.os.SystemClock;
+import android.os.UserHandle;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.Log;
+import android.util.SparseArray;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Checks that {@link PermissionSnapshot} answers like the checks that
+ * {@link PackageManagerService} makes under {@code mPackages}, by name and by index, and
+ * measures how many checks get through while installs hold the lock and how many uncontended
+ * checks the bitsets answer compared with string sets.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class PermissionSnapshotTest {
+    private static final String TAG = "PermissionSnapshotTest";
+    private static final long SEED = 6021023;
+
+    private static final int[] USER_IDS = { UserHandle.USER_SYSTEM, 10 };
+    private static final int MISSING_USER_ID = 11;
+    private static final int NUM_PACKAGES = 40;
+    private static final int NUM_SHARED_USERS = 3;
+    private static final int UNUSED_APP_ID = Process.FIRST_APPLICATION_UID + 999;
+
+    private static final String[] INSTALL_PERMISSIONS = {
+            Manifest.permission.INTERNET,
+            "com.example.permission.SIGNATURE",
+    };
+    private static final String[] RUNTIME_PERMISSIONS = {
+            Manifest.permission.CAMERA,
+            Manifest.permission.READ_CONTACTS,
+            Manifest.permission.ACCESS_FINE_LOCATION,
+            Manifest.permission.ACCESS_COARSE_LOCATION,
+    };
+    private static final String[] ALL_PERMISSIONS = {
+            Manifest.permission.INTERNET,
+            "com.example.permission.SIGNATURE",
+            Manifest.permission.CAMERA,
+            Manifest.permission.READ_CONTACTS,
+            Manifest.permission.ACCESS_FINE_LOCATION,
+            Manifest.permission.ACCESS_COARSE_LOCATION,
+            "com.example.permission.UNDECLARED",
+    };
+
+    private static final int READER_THREADS = 8;
+    private static final long MEASURE_MS = 1000;
+    /** How long an install keeps {@code mPackages} while it scans and updates permissions */
+    private static final long INSTALL_HOLD_MS = 20;
+    private static final long INSTALL_GAP_MS = 5;
+    /** Roughly how many more permissions a device defines and grants to its apps */
+    private static final int EXTRA_PERMISSIONS = 150;
+
+    private final ArrayMap<String, BasePermission> mPermissions = new ArrayMap<>();
+    private final ArrayMap<String, PackageSetting> mPackageSettings = new ArrayMap<>();
+    private final ArrayMap<String, SharedUserSetting> mSharedUsers = new ArrayMap<>();
+    private final ArrayMap<String, PackageParser.Package> mPackages = new ArrayMap<>();
+    private final SparseArray<ArraySet<String>> mSystemPermissions = new SparseArray<>();
+    /** appId -> the setting that holds its permissions, as {@code Settings.getUserIdLPr} */
+    private final SparseArray<SettingBase> mAppIds = new SparseArray<>();
+    private final ArrayList<String> mQueriedPackages = new ArrayList<>();
+    private final ArrayList<Integer> mQueriedUids = new ArrayList<>();
+    private Random mRandom;
+    private PackageSetting mInstantApp;
+    /** As {@code PackageManagerService.mLastPermissionSnapshot} */
+    private PermissionSnapshot mLastSnapshot;
+
+    @Before
+    public void setUp() {
+        mRandom = new Random(SEED);
+        for (String permName : INSTALL_PERMISSIONS) {
+            mPermissions.put(permName,
+                    new BasePermission(permName, "android", BasePermission.TYPE_NORMAL));
+        }
+        for (String permName : RUNTIME_PERMISSIONS) {
+            mPermissions.put(permName,
+                    new BasePermission(permName, "android", BasePermission.TYPE_NORMAL));
+        }
+
+        for (int i = 0; i < NUM_SHARED_USERS; i++) {
+            final SharedUserSetting sus = new SharedUserSetting("com.example.shared" + i, 0, 0);
+            sus.userId = Process.FIRST_APPLICATION_UID + i;
+            mSharedUsers.put(sus.name, sus);
+            mAppIds.put(sus.userId, sus);
+        }
+        for (int i = 0; i < NUM_PACKAGES; i++) {
+            final PackageSetting ps = newPackageSetting("com.example.app" + i);
+            if (i % 5 == 0) {
+                final SharedUserSetting sus = mSharedUsers.valueAt((i / 5) % NUM_SHARED_USERS);
+                ps.sharedUser = sus;
+                ps.appId = sus.userId;
+                sus.addPackage(ps);
+            } else {
+                ps.appId = Process.FIRST_APPLICATION_UID + NUM_SHARED_USERS + i;
+                mAppIds.put(ps.appId, ps);
+            }
+            final PackageParser.Package pkg = new PackageParser.Package(ps.name);
+            pkg.mExtras = ps;
+            mPackages.put(ps.name, pkg);
+        }
+        mInstantApp = mPackageSettings.valueAt(NUM_PACKAGES - 1);
+        mInstantApp.setInstantApp(true, USER_IDS[1]);
+
+        // Kept in the settings without being installed, e.g. uninstalled with DONT_DELETE_DATA
+        final PackageSetting removed = newPackageSetting("com.example.removed");
+        removed.appId = Process.FIRST_APPLICATION_UID + NUM_SHARED_USERS + NUM_PACKAGES;
+        mAppIds.put(removed.appId, removed);
+
+        for (int i = 0; i < mAppIds.size(); i++) {
+            randomizeGrants(mAppIds.valueAt(i).getPermissionsState(), mRandom);
+        }
+        mSystemPermissions.put(Process.MEDIA_UID, setOf(Manifest.permission.INTERNET));
+        mSystemPermissions.put(Process.AUDIOSERVER_UID,
+                setOf(Manifest.permission.ACCESS_FINE_LOCATION));
+
+        mQueriedPackages.addAll(mPackageSettings.keySet());
+        mQueriedPackages.add("com.example.unknown");
+        final ArrayList<Integer> appIds = new ArrayList<>();
+        for (int i = 0; i < mAppIds.size(); i++) {
+            appIds.add(mAppIds.keyAt(i));
+        }
+        appIds.add(Process.MEDIA_UID);
+        appIds.add(Process.AUDIOSERVER_UID);
+        appIds.add(UNUSED_APP_ID);
+        for (int userId : USER_IDS) {
+            for (int appId : appIds) {
+                mQueriedUids.add(UserHandle.getUid(userId, appId));
+            }
+        }
+    }
+
+    @Test
+    public void testMatchesLockedChecks() {
+        assertMatchesLockedChecks(buildSnapshot(1));
+        for (int version = 2; version < 50; version++) {
+            // Another install or grant, then a new snapshot as after updatePermissionsLPw
+            final SettingBase changed = mAppIds.valueAt(mRandom.nextInt(mAppIds.size()));
+            randomizeGrants(changed.getPermissionsState(), mRandom);
+            assertMatchesLockedChecks(buildSnapshot(version));
+        }
+    }
+
+    @Test
+    public void testLeavesUnsupportedChecksToLockedPath() {
+        final PermissionSnapshot snapshot = buildSnapshot(1);
+        final String permName = Manifest.permission.CAMERA;
+        final PackageSetting ps = mPackageSettings.valueAt(1);
+
+        // Instant callers, whichever user they are an instant app for
+        for (int userId : USER_IDS) {
+            final int instantUid = UserHandle.getUid(userId, mInstantApp.appId);
+            assertEquals(PermissionSnapshot.RESULT_UNKNOWN,
+                    snapshot.checkPermission(permName, ps.name, userId, instantUid));
+            assertEquals(PermissionSnapshot.RESULT_UNKNOWN, snapshot.checkUidPermission(permName,
+                    UserHandle.getUid(userId, ps.appId), instantUid));
+        }
+
+        // Isolated callers
+        assertEquals(PermissionSnapshot.RESULT_UNKNOWN, snapshot.checkPermission(permName,
+                ps.name, UserHandle.USER_SYSTEM, Process.FIRST_ISOLATED_UID));
+
+        // A user that was created after the snapshot
+        assertEquals(PermissionSnapshot.RESULT_UNKNOWN, snapshot.checkPermission(permName,
+                ps.name, MISSING_USER_ID, Process.SYSTEM_UID));
+        assertEquals(PermissionSnapshot.RESULT_UNKNOWN, snapshot.checkUidPermission(permName,
+                UserHandle.getUid(MISSING_USER_ID, ps.appId), Process.SYSTEM_UID));
+        assertEquals(PackageManager.PERMISSION_DENIED, snapshot.checkUidPermission(permName,
+                UserHandle.getUid(MISSING_USER_ID, UNUSED_APP_ID), Process.SYSTEM_UID));
+    }
+
+    @Test
+    public void testLaterChangesDoNotLeakIntoSnapshot() {
+        final PermissionSnapshot snapshot = buildSnapshot(1);
+        final int[] before = checkAll(snapshot);
+        for (int i = 0; i < mAppIds.size(); i++) {
+            randomizeGrants(mAppIds.valueAt(i).getPermissionsState(), mRandom);
+        }
+        final int[] after = checkAll(snapshot);
+        for (int i = 0; i < before.length; i++) {
+            assertEquals("check " + i, before[i], after[i]);
+        }
+        assertMatchesLockedChecks(buildSnapshot(2));
+    }
+
+    @Test
+    public void testIndicesStayValidInLaterSnapshots() {
+        final PermissionSnapshot first = buildSnapshot(1);
+        final int[] indices = new int[ALL_PERMISSIONS.length];
+        for (int i = 0; i < ALL_PERMISSIONS.length; i++) {
+            indices[i] = first.getPermissionIndex(ALL_PERMISSIONS[i]);
+        }
+        assertEquals(PermissionSnapshot.NO_INDEX,
+                first.getPermissionIndex("com.example.permission.UNDECLARED"));
+
+        // Revoke a permission from everyone, and grant one nobody held before
+        final BasePermission undeclared = new BasePermission("com.example.permission.UNDECLARED",
+                "com.example.app1", BasePermission.TYPE_NORMAL);
+        mPermissions.put(undeclared.name, undeclared);
+        for (int i = 0; i < mAppIds.size(); i++) {
+            final PermissionsState state = mAppIds.valueAt(i).getPermissionsState();
+            state.revokeInstallPermission(mPermissions.get(Manifest.permission.INTERNET));
+            if (i % 2 == 0) {
+                state.grantInstallPermission(undeclared);
+            }
+        }
+        final PermissionSnapshot second = buildSnapshot(2);
+        for (int i = 0; i < ALL_PERMISSIONS.length; i++) {
+            if (indices[i] != PermissionSnapshot.NO_INDEX) {
+                assertEquals(ALL_PERMISSIONS[i], indices[i],
+                        second.getPermissionIndex(ALL_PERMISSIONS[i]));
+            }
+        }
+        assertTrue(second.getPermissionIndex(undeclared.name) != PermissionSnapshot.NO_INDEX);
+        assertMatchesLockedChecks(second);
+    }
+
+    @Test
+    public void testFineLocationOnlyImpliesCoarseLocation() {
+        // Nobody holds COARSE itself
+        final BasePermission coarse = mPermissions.get(Manifest.permission.ACCESS_COARSE_LOCATION);
+        for (int i = 0; i < mAppIds.size(); i++) {
+            for (int userId : USER_IDS) {
+                mAppIds.valueAt(i).getPermissionsState().revokeRuntimePermission(coarse, userId);
+            }
+        }
+        final PackageSetting ps = mPackageSettings.valueAt(1);
+        final PermissionsState state = ps.getPermissionsState();
+        final int uid = UserHandle.getUid(UserHandle.USER_SYSTEM, ps.appId);
+        state.grantRuntimePermission(mPermissions.get(Manifest.permission.ACCESS_FINE_LOCATION),
+                UserHandle.USER_SYSTEM);
+        final PermissionSnapshot snapshot = buildSnapshot(1);
+
+        assertEquals(PackageManager.PERMISSION_GRANTED, snapshot.checkUidPermission(
+                Manifest.permission.ACCESS_COARSE_LOCATION, uid, Process.SYSTEM_UID));
+        // Neither a permission nobody holds nor one without an index passes for COARSE
+        assertEquals(PackageManager.PERMISSION_DENIED, snapshot.checkUidPermission(
+                "com.example.permission.UNDECLARED", uid, Process.SYSTEM_UID));
+        assertEquals(PackageManager.PERMISSION_DENIED, snapshot.checkUidPermission(
+                PermissionSnapshot.NO_INDEX, uid, Process.SYSTEM_UID));
+    }
+
+    /**
+     * Compares how many uncontended checks {@link #READER_THREADS} threads get through when
+     * grants are kept as string sets, as the snapshot did before, with the bitsets checked by
+     * name and checked by an index looked up once.
+     */
+    @Test
+    public void testCheckThroughputByLayout() throws Exception {
+        grantExtraPermissions();
+        final PermissionSnapshot snapshot = buildSnapshot(1);
+        final SparseArray<SparseArray<ArraySet<String>>> stringSets = copyStringSets();
+        final int[] indices = new int[ALL_PERMISSIONS.length];
+        for (int i = 0; i < ALL_PERMISSIONS.length; i++) {
+            indices[i] = snapshot.getPermissionIndex(ALL_PERMISSIONS[i]);
+        }
+
+        final long sets = measureChecks((permission, uid) ->
+                checkStringSets(stringSets, ALL_PERMISSIONS[permission], uid));
+        final long names = measureChecks((permission, uid) ->
+                snapshot.checkUidPermission(ALL_PERMISSIONS[permission], uid,
+                        Process.SYSTEM_UID));
+        final long byIndex = measureChecks((permission, uid) ->
+                snapshot.checkUidPermission(indices[permission], uid, Process.SYSTEM_UID));
+        Log.d(TAG, "checkUidPermission by " + READER_THREADS + " threads in " + MEASURE_MS
+                + " ms with " + mPermissions.size() + " permissions: string sets " + sets
+                + ", bitsets by name " + names + ", bitsets by index " + byIndex);
+        assertTrue(sets > 0);
+        assertTrue(names > 0);
+        assertTrue(byIndex > 0);
+    }
+
+    /**
+     * Compares checks that take the lock with checks that read the published snapshot while an
+     * install thread keeps taking the lock and publishing new snapshots.
+     */
+    @Test
+    public void testCheckThroughputDuringInstalls() throws Exception {
+        final long locked = measureChecksDuringInstalls(false);
+        final long lockFree = measureChecksDuringInstalls(true);
+        Log.d(TAG, "checkUidPermission by " + READER_THREADS + " threads in " + MEASURE_MS
+                + " ms of installs: locked " + locked + ", snapshot " + lockFree);
+        assertTrue(locked > 0);
+        assertTrue(lockFree > 0);
+    }
+
+    private long measureChecksDuringInstalls(boolean useSnapshot) throws InterruptedException {
+        final Object lock = new Object();
+        final AtomicReference<PermissionSnapshot> published =
+                new AtomicReference<>(buildSnapshot(1));
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicLong checks = new AtomicLong();
+
+        final ArrayList<Thread> threads = new ArrayList<>();
+        threads.add(new Thread(() -> {
+            final Random random = new Random(SEED);
+            long version = 2;
+            while (!done.get()) {
+                synchronized (lock) {
+                    final SettingBase changed = mAppIds.valueAt(random.nextInt(mAppIds.size()));
+                    randomizeGrants(changed.getPermissionsState(), random);
+                    SystemClock.sleep(INSTALL_HOLD_MS);
+                    if (useSnapshot) {
+                        published.set(buildSnapshot(version++));
+                    }
+                }
+                SystemClock.sleep(INSTALL_GAP_MS);
+            }
+        }, "install"));
+        for (int t = 0; t < READER_THREADS; t++) {
+            final int offset = t;
+            threads.add(new Thread(() -> {
+                long count = 0;
+                while (!done.get()) {
+                    final int i = (int) (count % (ALL_PERMISSIONS.length * mQueriedUids.size()));
+                    final String permName = ALL_PERMISSIONS[i % ALL_PERMISSIONS.length];
+                    final int uid = mQueriedUids.get((i + offset) % mQueriedUids.size());
+                    int result = useSnapshot ? published.get().checkUidPermission(permName, uid,
+                            Process.SYSTEM_UID) : PermissionSnapshot.RESULT_UNKNOWN;
+                    if (result == PermissionSnapshot.RESULT_UNKNOWN) {
+                        synchronized (lock) {
+                            result = checkUidPermissionLocked(permName, uid);
+                        }
+                    }
+                    count++;
+                }
+                checks.addAndGet(count);
+            }, "check" + t));
+        }
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        SystemClock.sleep(MEASURE_MS);
+        done.set(true);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return checks.get();
+    }
+
+    private interface UidCheck {
+        int check(int permission, int uid);
+    }
+
+    /** @return how many checks {@link #READER_THREADS} threads made in {@link #MEASURE_MS} */
+    private long measureChecks(UidCheck check) throws InterruptedException {
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicLong checks = new AtomicLong();
+        final AtomicLong granted = new AtomicLong();
+        final ArrayList<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < READER_THREADS; t++) {
+            final int offset = t;
+            threads.add(new Thread(() -> {
+                long count = 0;
+                long grants = 0;
+                while (!done.get()) {
+                    final int i = (int) (count % (ALL_PERMISSIONS.length * mQueriedUids.size()));
+                    final int uid = mQueriedUids.get((i + offset) % mQueriedUids.size());
+                    if (check.check(i % ALL_PERMISSIONS.length, uid)
+                            == PackageManager.PERMISSION_GRANTED) {
+                        grants++;
+                    }
+                    count++;
+                }
+                checks.addAndGet(count);
+                // Keeps the results alive
+                granted.addAndGet(grants);
+            }, "check" + t));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        SystemClock.sleep(MEASURE_MS);
+        done.set(true);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(granted.get() <= checks.get());
+        return checks.get();
+    }
+
+    /** The grants as the snapshot kept them before: appId -> userId -> names. */
+    private SparseArray<SparseArray<ArraySet<String>>> copyStringSets() {
+        final SparseArray<SparseArray<ArraySet<String>>> granted = new SparseArray<>();
+        for (int i = 0; i < mAppIds.size(); i++) {
+            final SparseArray<ArraySet<String>> byUser = new SparseArray<>();
+            for (int userId : USER_IDS) {
+                byUser.put(userId, new ArraySet<>(
+                        mAppIds.valueAt(i).getPermissionsState().getPermissions(userId)));
+            }
+            granted.put(mAppIds.keyAt(i), byUser);
+        }
+        return granted;
+    }
+
+    private int checkStringSets(SparseArray<SparseArray<ArraySet<String>>> granted,
+            String permName, int uid) {
+        final SparseArray<ArraySet<String>> byUser = granted.get(UserHandle.getAppId(uid));
+        final ArraySet<String> perms = byUser != null
+                ? byUser.get(UserHandle.getUserId(uid)) : mSystemPermissions.get(uid);
+        if (perms == null) {
+            return PackageManager.PERMISSION_DENIED;
+        }
+        if (perms.contains(permName)) {
+            return PackageManager.PERMISSION_GRANTED;
+        }
+        if (Manifest.permission.ACCESS_COARSE_LOCATION.equals(permName)
+                && perms.contains(Manifest.permission.ACCESS_FINE_LOCATION)) {
+            return PackageManager.PERMISSION_GRANTED;
+        }
+        return PackageManager.PERMISSION_DENIED;
+    }
+
+    /** Grants {@link #EXTRA_PERMISSIONS} more install permissions to about half the apps. */
+    private void grantExtraPermissions() {
+        for (int p = 0; p < EXTRA_PERMISSIONS; p++) {
+            final BasePermission bp = new BasePermission("com.example.permission.EXTRA" + p,
+                    "android", BasePermission.TYPE_NORMAL);
+            mPermissions.put(bp.name, bp);
+            for (int i = 0; i < mAppIds.size(); i++) {
+                if (mRandom.nextBoolean()) {
+                    mAppIds.valueAt(i).getPermissionsState().grantInstallPermission(bp);
+                }
+            }
+        }
+    }
+
+    private void assertMatchesLockedChecks(PermissionSnapshot snapshot) {
+        for (String pkgName : mQueriedPackages) {
+            final PackageSetting ps = mPackageSettings.get(pkgName);
+            for (String permName : ALL_PERMISSIONS) {
+                for (int userId : USER_IDS) {
+                    final int expected = ps != null && isInstantApp(ps)
+                            ? PermissionSnapshot.RESULT_UNKNOWN
+                            : checkPermissionLocked(permName, pkgName, userId);
+                    assertEquals(permName + " " + pkgName + " " + userId, expected,
+                            snapshot.checkPermission(permName, pkgName, userId,
+                                    Process.SYSTEM_UID));
+                    assertEquals(permName + " " + pkgName + " " + userId, expected,
+                            snapshot.checkPermission(snapshot.getPermissionIndex(permName),
+                                    pkgName, userId, Process.SYSTEM_UID));
+                }
+            }
+        }
+        for (int uid : mQueriedUids) {
+            final SettingBase setting = mAppIds.get(UserHandle.getAppId(uid));
+            for (String permName : ALL_PERMISSIONS) {
+                final int expected = setting instanceof PackageSetting
+                        && isInstantApp((PackageSetting) setting)
+                        ? PermissionSnapshot.RESULT_UNKNOWN
+                        : checkUidPermissionLocked(permName, uid);
+                assertEquals(permName + " " + uid, expected,
+                        snapshot.checkUidPermission(permName, uid, Process.SYSTEM_UID));
+                assertEquals(permName + " " + uid, expected, snapshot.checkUidPermission(
+                        snapshot.getPermissionIndex(permName), uid, Process.SYSTEM_UID));
+            }
+        }
+    }
+
+    private int[] checkAll(PermissionSnapshot snapshot) {
+        final int[] results = new int[ALL_PERMISSIONS.length
+                * (mQueriedPackages.size() * USER_IDS.length + mQueriedUids.size())];
+        int i = 0;
+        for (String permName : ALL_PERMISSIONS) {
+            for (String pkgName : mQueriedPackages) {
+                for (int userId : USER_IDS) {
+                    results[i++] = snapshot.checkPermission(permName, pkgName, userId,
+                            Process.SYSTEM_UID);
+                }
+            }
+            for (int uid : mQueriedUids) {
+                results[i++] = snapshot.checkUidPermission(permName, uid, Process.SYSTEM_UID);
+            }
+        }
+        return results;
+    }
+
+    /** {@link PackageManagerService#checkPermission} for a caller that sees every package. */
+    private int checkPermissionLocked(String permName, String pkgName, int userId) {
+        final PackageParser.Package p = mPackages.get(pkgName);
+        if (p != null && p.mExtras != null) {
+            final PackageSetting ps = (PackageSetting) p.mExtras;
+            return PackageManagerService.checkPermissionsStateLPr(ps.getPermissionsState(),
+                    permName, userId, ps.getInstantApp(userId), mPermissions);
+        }
+        return PackageManager.PERMISSION_DENIED;
+    }
+
+    /** {@link PackageManagerService#checkUidPermission} for a caller that sees every uid. */
+    private int checkUidPermissionLocked(String permName, int uid) {
+        final SettingBase setting = mAppIds.get(UserHandle.getAppId(uid));
+        if (setting != null) {
+            return PackageManagerService.checkPermissionsStateLPr(setting.getPermissionsState(),
+                    permName, UserHandle.getUserId(uid), false, mPermissions);
+        }
+        final ArraySet<String> perms = mSystemPermissions.get(uid);
+        if (perms != null) {
+            if (perms.contains(permName)) {
+                return PackageManager.PERMISSION_GRANTED;
+            }
+            if (Manifest.permission.ACCESS_COARSE_LOCATION.equals(permName) && perms
+                    .contains(Manifest.permission.ACCESS_FINE_LOCATION)) {
+                return PackageManager.PERMISSION_GRANTED;
+            }
+        }
+        return PackageManager.PERMISSION_DENIED;
+    }
+
+    private PermissionSnapshot buildSnapshot(long version) {
+        mLastSnapshot = PermissionSnapshot.build(version, mLastSnapshot, mPackageSettings,
+                mSharedUsers, mPackages, USER_IDS, mSystemPermissions);
+        return mLastSnapshot;
+    }
+
+    private PackageSetting newPackageSetting(String name) {
+        final File codePath = new File("/data/app/" + name + "-1");
+        final PackageSetting ps = new PackageSetting(name, name, codePath, codePath, null,
+                null, null, null, 1, 0, 0, null, null, 0, null, null);
+        mPackageSettings.put(name, ps);
+        return ps;
+    }
+
+    private static boolean isInstantApp(PackageSetting ps) {
+        for (int userId : USER_IDS) {
+            if (ps.getInstantApp(userId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void randomizeGrants(PermissionsState state, Random random) {
+        for (String permName : INSTALL_PERMISSIONS) {
+            final BasePermission bp = mPermissions.get(permName);
+            if (random.nextBoolean()) {
+                state.grantInstallPermission(bp);
+            } else {
+                state.revokeInstallPermission(bp);
+            }
+        }
+        for (String permName : RUNTIME_PERMISSIONS) {
+            final BasePermission bp = mPermissions.get(permName);
+            for (int userId : USER_IDS) {
+                if (random.nextBoolean()) {
+                    state.grantRuntimePermission(bp, userId);
+                } else {
+                    state.revokeRuntimePermission(bp, userId);
+                }
+            }
+        }
+    }
+
+    private static ArraySet<String> setOf(String permName) {
+        final ArraySet<String> perms = new ArraySet<>();
+        perms.add(permName);
+        return perms;
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.pm;
+
+import static android.os.Trace.TRACE_TAG_PACKAGE_MANAGER;
+
+import android.content.pm.PackageParser;
+import android.os.Process;
+import android.os.Trace;
+import android.util.DisplayMetrics;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.ConcurrentUtils;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Boot-time variant of {@link ParallelPackageParser} that shares one thread pool across all
+ * scanned directories. Every directory is submitted up front as a {@link Batch} with its own
+ * result queue, so the pool keeps parsing later partitions while
+ * {@link PackageManagerService} is still committing the results of earlier ones, and commit
+ * order between directories stays the same as with serial scanning.
+ *
+ * <p>Like {@link ParallelPackageParser}, at most {@link #MAX_IN_FLIGHT} packages are parsed
+ * ahead of the committing thread. Packages are handed to the pool in submission order, so the
+ * directory being committed always has its next packages in flight.
+ *
+ * <p>{@link #submit} and {@link Batch#take} must be called from the scanning thread.
+ */
+class PipelinedPackageParser implements AutoCloseable {
+
+    private static final int MAX_THREADS = 4;
+
+    /** Packages parsed or being parsed whose results were not taken yet */
+    @VisibleForTesting
+    static final int MAX_IN_FLIGHT = 10;
+
+    private final String[] mSeparateProcesses;
+    private final boolean mOnlyCore;
+    private final DisplayMetrics mMetrics;
+    private final File mCacheDir;
+    private final PackageParser.Callback mPackageParserCallback;
+    private volatile String mInterruptedInThread;
+
+    /** Packages of all batches not handed to the pool yet, in submission order */
+    private final ArrayDeque<PendingParse> mPending = new ArrayDeque<>();
+
+    /** Every package submitted, for {@link #warmCache} */
+    private final ArrayList<PendingParse> mSubmitted = new ArrayList<>();
+
+    /** Packages handed to the pool whose results were not taken yet */
+    private int mInFlight;
+
+    private final ExecutorService mService = ConcurrentUtils.newFixedThreadPool(MAX_THREADS,
+            "package-parsing-thread", Process.THREAD_PRIORITY_FOREGROUND);
+
+    private static class PendingParse {
+        final Batch batch;
+        final File file;
+
+        PendingParse(Batch batch, File file) {
+            this.batch = batch;
+            this.file = file;
+        }
+    }
+
+    /** The pending parse results of one directory. */
+    class Batch {
+        final File dir;
+        final int parseFlags;
+        private int mRemaining;
+        // Holds at most MAX_IN_FLIGHT results across all batches
+        private final BlockingQueue<ParallelPackageParser.ParseResult> mQueue =
+                new LinkedBlockingQueue<>();
+
+        Batch(File dir, int parseFlags) {
+            this.dir = dir;
+            this.parseFlags = parseFlags;
+        }
+
+        /** @return whether results remain that have not been returned by {@link #take()}. */
+        boolean hasNext() {
+            return mRemaining > 0;
+        }
+
+        /** Blocks until the next package of this directory has been parsed. */
+        ParallelPackageParser.ParseResult take() {
+            try {
+                if (mInterruptedInThread != null) {
+                    throw new InterruptedException("Interrupted in " + mInterruptedInThread);
+                }
+                final ParallelPackageParser.ParseResult result = mQueue.take();
+                mRemaining--;
+                mInFlight--;
+                submitPending();
+                return result;
+            } catch (InterruptedException e) {
+                // We cannot recover from interrupt here
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    PipelinedPackageParser(String[] separateProcesses, boolean onlyCoreApps,
+            DisplayMetrics metrics, File cacheDir, PackageParser.Callback callback) {
+        mSeparateProcesses = separateProcesses;
+        mOnlyCore = onlyCoreApps;
+        mMetrics = metrics;
+        mCacheDir = cacheDir;
+        mPackageParserCallback = callback;
+    }
+
+    /**
+     * Queues every package in {@code dir} for parsing and returns immediately.
+     *
+     * @return The batch to drain, in submission order relative to other directories.
+     */
+    Batch submit(File dir, int parseFlags) {
+        final Batch batch = new Batch(dir, parseFlags);
+        final File[] files = dir.listFiles();
+        if (files == null) {
+            return batch;
+        }
+        for (File file : files) {
+            final boolean isPackage = (PackageParser.isApkFile(file) || file.isDirectory())
+                    && !PackageInstallerService.isStageName(file.getName());
+            if (!isPackage) {
+                // Ignore entries which are not packages
+                continue;
+            }
+            batch.mRemaining++;
+            final PendingParse pending = new PendingParse(batch, file);
+            mPending.add(pending);
+            mSubmitted.add(pending);
+        }
+        submitPending();
+        return batch;
+    }
+
+    private void submitPending() {
+        while (mInFlight < MAX_IN_FLIGHT && !mPending.isEmpty()) {
+            final PendingParse pending = mPending.poll();
+            mInFlight++;
+            mService.submit(() -> parseInto(pending.batch, pending.file));
+        }
+    }
+
+    private PackageParser createPackageParser(File cacheDir) {
+        PackageParser pp = new PackageParser();
+        pp.setSeparateProcesses(mSeparateProcesses);
+        pp.setOnlyCoreApps(mOnlyCore);
+        pp.setDisplayMetrics(mMetrics);
+        pp.setCacheDir(cacheDir);
+        pp.setCallback(mPackageParserCallback);
+        return pp;
+    }
+
+    private void parseInto(Batch batch, File scanFile) {
+        ParallelPackageParser.ParseResult pr = new ParallelPackageParser.ParseResult();
+        Trace.traceBegin(TRACE_TAG_PACKAGE_MANAGER, "pipelined parsePackage [" + scanFile + "]");
+        try {
+            pr.scanFile = scanFile;
+            pr.pkg = parsePackage(createPackageParser(mCacheDir), scanFile, batch.parseFlags);
+        } catch (Throwable e) {
+            pr.throwable = e;
+        } finally {
+            Trace.traceEnd(TRACE_TAG_PACKAGE_MANAGER);
+        }
+        try {
+            batch.mQueue.put(pr);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            // Propagate result to callers of take().
+            // This is helpful to prevent main thread from getting stuck waiting on
+            // ArrayBlockingQueue.take() forever
+            mInterruptedInThread = Thread.currentThread().getName();
+        }
+    }
+
+    @VisibleForTesting
+    protected PackageParser.Package parsePackage(PackageParser packageParser, File scanFile,
+            int parseFlags) throws PackageParser.PackageParserException {
+        return packageParser.parsePackage(scanFile, parseFlags, true /* useCaches */);
+    }
+
+    /**
+     * Parse every submitted package again into {@code cacheDir}. Used after an upgrade, when
+     * the boot scan was run without a cache so that writing the cache entries is not on the
+     * boot path. Blocks, call after {@link #close} on a background thread.
+     *
+     * @return The number of packages that were cached
+     */
+    int warmCache(File cacheDir) {
+        int cached = 0;
+        for (int i = 0; i < mSubmitted.size(); i++) {
+            final PendingParse pending = mSubmitted.get(i);
+            Trace.traceBegin(TRACE_TAG_PACKAGE_MANAGER, "warmCache [" + pending.file + "]");
+            try {
+                parsePackage(createPackageParser(cacheDir), pending.file,
+                        pending.batch.parseFlags);
+                cached++;
+            } catch (Throwable e) {
+                // Reported by the boot scan already; parsed again at the next boot
+            } finally {
+                Trace.traceEnd(TRACE_TAG_PACKAGE_MANAGER);
+            }
+        }
+        return cached;
+    }
+
+    @Override
+    public void close() {
+        List<Runnable> unfinishedTasks = mService.shutdownNow();
+        if (!unfinishedTasks.isEmpty()) {
+            throw new IllegalStateException("Not all tasks finished before calling close: "
+                    + unfinishedTasks);
+        }
+    }
+}
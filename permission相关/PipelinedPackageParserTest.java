@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.pm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.content.pm.PackageParser;
+import android.os.SystemClock;
+import android.os.Trace;
+import android.util.TimingsTraceLog;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Scans synthetic partitions with a {@link PipelinedPackageParser} whose parsing only takes
+ * time, the way {@code PackageManagerService} commits them at boot.
+ */
+@RunWith(JUnit4.class)
+public class PipelinedPackageParserTest {
+    private static final String TAG = "PipelinedPackageParserTest";
+    private static final int PARTITIONS = 5;
+    private static final int PACKAGES_PER_PARTITION = 40;
+
+    /** Simulated cost of parsing one package on a pool thread */
+    private static final long PARSE_MS = 4;
+
+    /** Simulated cost of committing one package on the scanning thread */
+    private static final long COMMIT_MS = 1;
+
+    private final ArrayList<File> mPartitions = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        for (int i = 0; i < PARTITIONS; i++) {
+            final File dir = Files.createTempDirectory("partition" + i).toFile();
+            for (int j = 0; j < PACKAGES_PER_PARTITION; j++) {
+                new File(dir, "App" + j + ".apk").createNewFile();
+            }
+            // Not a package
+            new File(dir, "notes.txt").createNewFile();
+            mPartitions.add(dir);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        for (File dir : mPartitions) {
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void testEachBatchReturnsItsOwnPackages() {
+        final FakeParser parser = new FakeParser(0);
+        final List<PipelinedPackageParser.Batch> batches = submitAll(parser);
+        for (int i = 0; i < PARTITIONS; i++) {
+            final PipelinedPackageParser.Batch batch = batches.get(i);
+            final HashSet<String> names = new HashSet<>();
+            while (batch.hasNext()) {
+                final ParallelPackageParser.ParseResult result = batch.take();
+                assertEquals(mPartitions.get(i), result.scanFile.getParentFile());
+                assertEquals(result.scanFile.getName(), result.pkg.packageName);
+                names.add(result.pkg.packageName);
+            }
+            assertEquals(PACKAGES_PER_PARTITION, names.size());
+        }
+        parser.close();
+    }
+
+    @Test
+    public void testResultsAheadOfCommitAreBounded() {
+        final FakeParser parser = new FakeParser(0);
+        final List<PipelinedPackageParser.Batch> batches = submitAll(parser);
+        for (PipelinedPackageParser.Batch batch : batches) {
+            while (batch.hasNext()) {
+                // A slow commit lets the pool run ahead as far as it may
+                SystemClock.sleep(COMMIT_MS);
+                batch.take();
+                parser.mUntaken.decrementAndGet();
+            }
+        }
+        parser.close();
+        // The result being taken still counts until take() returned
+        assertTrue("max untaken " + parser.mMaxUntaken,
+                parser.mMaxUntaken <= PipelinedPackageParser.MAX_IN_FLIGHT + 1);
+    }
+
+    @Test
+    public void testWarmCacheParsesEverySubmittedPackage() {
+        final FakeParser parser = new FakeParser(0);
+        drainAll(submitAll(parser));
+        parser.close();
+
+        final int parsedAtBoot = parser.mParsed.get();
+        assertEquals(PARTITIONS * PACKAGES_PER_PARTITION, parsedAtBoot);
+        assertEquals(parsedAtBoot, parser.warmCache(mPartitions.get(0)));
+        assertEquals(2 * parsedAtBoot, parser.mParsed.get());
+    }
+
+    /**
+     * Compares committing each partition after parsing it, as the serial boot scan does, with
+     * parsing the next partitions while the current one is committed.
+     */
+    @Test
+    public void testScanTiming() {
+        final TimingsTraceLog traceLog = new TimingsTraceLog(TAG,
+                Trace.TRACE_TAG_PACKAGE_MANAGER);
+
+        traceLog.traceBegin("scanSystemPartitions");
+        final FakeParser serial = new FakeParser(PARSE_MS);
+        for (File dir : mPartitions) {
+            final PipelinedPackageParser.Batch batch = serial.submit(dir, 0);
+            while (batch.hasNext()) {
+                batch.take();
+                SystemClock.sleep(COMMIT_MS);
+            }
+        }
+        serial.close();
+        traceLog.traceEnd();
+
+        traceLog.traceBegin("scanSystemPartitionsPipelined");
+        final FakeParser pipelined = new FakeParser(PARSE_MS);
+        for (PipelinedPackageParser.Batch batch : submitAll(pipelined)) {
+            while (batch.hasNext()) {
+                batch.take();
+                SystemClock.sleep(COMMIT_MS);
+            }
+        }
+        pipelined.close();
+        traceLog.traceEnd();
+    }
+
+    private List<PipelinedPackageParser.Batch> submitAll(PipelinedPackageParser parser) {
+        final ArrayList<PipelinedPackageParser.Batch> batches = new ArrayList<>();
+        for (File dir : mPartitions) {
+            batches.add(parser.submit(dir, 0));
+        }
+        return batches;
+    }
+
+    private static void drainAll(List<PipelinedPackageParser.Batch> batches) {
+        for (PipelinedPackageParser.Batch batch : batches) {
+            while (batch.hasNext()) {
+                batch.take();
+            }
+        }
+    }
+
+    private static class FakeParser extends PipelinedPackageParser {
+        final long mParseMs;
+        final AtomicInteger mParsed = new AtomicInteger();
+        final AtomicInteger mUntaken = new AtomicInteger();
+        volatile int mMaxUntaken;
+
+        FakeParser(long parseMs) {
+            super(null, false, null, null, null);
+            mParseMs = parseMs;
+        }
+
+        @Override
+        protected PackageParser.Package parsePackage(PackageParser packageParser,
+                File scanFile, int parseFlags) {
+            final int untaken = mUntaken.incrementAndGet();
+            synchronized (this) {
+                mMaxUntaken = Math.max(mMaxUntaken, untaken);
+            }
+            if (mParseMs > 0) {
+                SystemClock.sleep(mParseMs);
+            }
+            mParsed.incrementAndGet();
+            return new PackageParser.Package(scanFile.getName());
+        }
+    }
+}